@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Single thread executors with a bounded queue, submitting a task waits while the queue is full
+ * <p>
+ * The stores fed by the threads reading the requests (see {@link MessageIndex} and {@link InboxStore}) use them:
+ * when the background thread can't keep up, the senders slow down instead of the queue growing without limit.
+ * That also bounds the {@link Frame}s waiting in the queue, so their arrays go back to the {@link BufferPool}
+ * and are reused instead of allocated. The queue is an array, queuing a task doesn't allocate a node either
+ */
+final class BoundedExecutor {
+	private BoundedExecutor() {
+	}
+
+	/**
+	 * @param thread_name the name of the thread, it is a daemon thread
+	 * @param capacity    max number of tasks waiting in the queue
+	 * @return the executor, submitting a task throws {@link RejectedExecutionException} after it is shut down
+	 */
+	static @NotNull ExecutorService newSingleThreadExecutor(@NotNull String thread_name, int capacity) {
+		return new ThreadPoolExecutor(
+			1,
+			1,
+			0,
+			TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(capacity),
+			runnable -> {
+				Thread thread = new Thread(runnable, thread_name);
+				thread.setDaemon(true);
+				return thread;
+			},
+			(runnable, executor) -> {
+				// the queue is full, wait for room
+				try {
+					while (!executor.isShutdown())
+						if (executor.getQueue().offer(runnable, 100, TimeUnit.MILLISECONDS))
+							return;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new RejectedExecutionException(thread_name + " is shut down");
+			}
+		);
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event for a response written to every connected session, e. g. a
+ * {@link ServerResponseType#USER_CONNECTED} or the {@link ServerResponseType#REDIRECT} when the server drains
+ */
+@Name("org.fos.Broadcast")
+@Label("Broadcast")
+@Description("A response written to every connected session")
+@Category({"ShareBook", "Chat Server"})
+@Threshold("20 ms")
+@StackTrace(false)
+public class BroadcastEvent extends Event {
+	@Label("Response Type")
+	String response_type;
+
+	@Label("Sessions")
+	@Description("Number of sessions the response was written to")
+	int n_sessions;
+
+	@Label("Failed Sessions")
+	@Description("Number of sessions that were closed or failed to receive the response")
+	int n_failed;
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Pool of byte arrays shared by all the connections
+ * <p>
+ * The arrays are grouped in size classes (powers of 2 from {@link #MIN_SIZE} to {@link #MAX_SIZE}). A connection
+ * borrows an array only while it has data to read or a response to write, and gives it back right after, so
+ * idle connections don't hold any buffer and the same few arrays are reused for every message instead of
+ * allocating new ones
+ * <p>
+ * Each class keeps at least {@link #MAX_FREE_PER_CLASS} free arrays, and the small classes as many as fit in
+ * {@link #MAX_FREE_BYTES_PER_CLASS}, the rest are left to the garbage collector. Most responses (chat messages)
+ * fit in the smallest class, and many of them can be waiting in the lanes of the sockets at the same time, so
+ * that class keeps enough arrays for all of them to come back. Requests bigger than {@link #MAX_SIZE} are
+ * allocated and never pooled
+ */
+public class BufferPool {
+	static final int MIN_SIZE = 1 << 10; // 1 KiB
+	static final int MAX_SIZE = 1 << 18; // 256 KiB, a file chunk encoded in base64 fits
+
+	private static final int MAX_FREE_PER_CLASS = 64;
+	private static final int MAX_FREE_BYTES_PER_CLASS = 1 << 20; // 1 MiB, 1024 arrays of the smallest class
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+	// free arrays of each class, the i-th class has arrays of MIN_SIZE << i bytes
+	@NotNull
+	private final List<ArrayBlockingQueue<byte[]>> free;
+
+	public BufferPool() {
+		int n_classes = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+		this.free = new ArrayList<>(n_classes);
+		for (int i = 0; i < n_classes; ++i)
+			this.free.add(new ArrayBlockingQueue<>(Math.max(MAX_FREE_PER_CLASS, MAX_FREE_BYTES_PER_CLASS / (MIN_SIZE << i))));
+	}
+
+	/**
+	 * @param min_size the min number of bytes needed
+	 * @return an array of at least min_size bytes, give it back with {@link #release(byte[])}
+	 */
+	public @NotNull byte[] acquire(int min_size) {
+		if (min_size > MAX_SIZE)
+			return new byte[min_size];
+
+		int size_class = sizeClass(min_size);
+		byte[] buff = this.free.get(size_class).poll();
+		return buff == null ? new byte[MIN_SIZE << size_class] : buff;
+	}
+
+	/**
+	 * Gives an array back to the pool, it should not be used after this
+	 *
+	 * @param buff an array returned by {@link #acquire(int)}
+	 */
+	public void release(@NotNull byte[] buff) {
+		int length = buff.length;
+		if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1)
+			return; // not from the pool
+
+		this.free.get(sizeClass(length)).offer(buff); // dropped if the class is full
+	}
+
+	/**
+	 * Replaces an array with a bigger one, keeping its content
+	 *
+	 * @param buff     the array to replace, it is released
+	 * @param used     number of bytes used in the array
+	 * @param min_size the min number of bytes needed
+	 * @return the new array
+	 */
+	public @NotNull byte[] grow(@NotNull byte[] buff, int used, int min_size) {
+		byte[] bigger = this.acquire(Math.max(min_size, buff.length * 2));
+		System.arraycopy(buff, 0, bigger, 0, used);
+		this.release(buff);
+		return bigger;
+	}
+
+	private static int sizeClass(int size) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, MIN_SIZE) - 1); // ceil(log2(size))
+		return shift - MIN_SHIFT;
+	}
+}
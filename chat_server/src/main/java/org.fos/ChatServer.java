@@ -19,10 +19,13 @@
 package org.fos;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -30,35 +33,115 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.Base64;
-import java.util.Properties;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class ChatServer implements Runnable {
 	private static boolean alreadyInstantiated;
 
 	private final ServerSocket serverSocket;
-	private final ConcurrentHashMap<ChatUser, ChatSocket> connectedClients; // maps user object -> chat socket
-	private final ConcurrentHashMap<Integer, ChatUser> connectedUsers; // maps user_chat_id -> user object
+
+	// the current configuration, it is replaced when the external config file changes
+	private final AtomicReference<ServerConfig> config;
+
+	// the clients reconnect at a random time in [REDIRECT_MIN_DELAY, REDIRECT_MIN_DELAY + redirect spread)
+	private static final long REDIRECT_MIN_DELAY = 1_000;
+
+	// how long a drain waits for the threads of the closed sessions to finish the request they were handling
+	private static final long SESSION_THREADS_TIMEOUT = 5_000;
+
+	// number of open sessions of all users
+	private final AtomicInteger n_sessions;
+
+	// number of threads handling the requests of a session, they may still run for a moment after the session is
+	// closed. The background services are stopped once they finish, see drain
+	private final AtomicInteger n_session_threads;
+
+	// max number of hits of a search
+	private static final int MAX_SEARCH_HITS = 100;
+
+	// full-text index of the delivered messages
+	private final MessageIndex messageIndex;
+
+	// last message and unread count of the conversations of each user, sent with an INBOX response
+	private final InboxStore inboxStore;
+
+	// buffers shared by all the sockets, to read requests and to write responses
+	private final BufferPool bufferPool;
+
+	// lines of a MESSAGE request, to compare them with the bytes read
+	private static final byte[] BEGIN_MESSAGE = "---BEGIN MESSAGE---".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] MESSAGE_ID_KEY = "id:".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] CLIENT_SEND_TIME_KEY = "t_cs:".getBytes(StandardCharsets.UTF_8);
+
+	// microseconds from reading a message header until the message is queued to every session,
+	// exported with JMX as org.fos:type=ChatServer,name=ForwardLatency
+	private final LatencyHistogram forwardLatency;
+
+	// maps user_chat_id -> ids of the last messages sent by the user, kept after the user disconnects
+	// because clients retry the messages they were not sure were sent after reconnecting
+	private final ConcurrentHashMap<Integer, DedupeWindow> dedupeWindows;
+
+	private volatile boolean draining;
+	private final ConcurrentHashMap<Integer, SessionSet> connectedUsers; // maps user_chat_id -> sessions of the user
+
+	// maps conversation key (see conversationKey) -> sequence number of the last message in the conversation.
+	// Seeded from the inbox the first time, so the numbering continues after a restart
+	private final ConcurrentHashMap<Long, AtomicLong> conversationSeqs;
+
+	// the trace of the requests, only while TRAFFIC_CAPTURE_FILE is set. Replaced when the config changes
+	@Nullable
+	private volatile TrafficCapture capture;
 
 	public ChatServer() throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, UnrecoverableKeyException, KeyManagementException, InstanceAlreadyExistsException {
 		if (alreadyInstantiated)
 			throw new InstanceAlreadyExistsException("You cannot instantiate ChatServer more than once");
 		alreadyInstantiated = true;
 
-		Properties config = new Properties();
-		config.load(this.getClass().getResourceAsStream("/resources/config.properties"));
+		ServerConfig config = ServerConfig.load(ServerConfig.getExternalPath());
+		this.config = new AtomicReference<>(config);
+		System.out.println("Using " + config);
 
-		int server_port = Integer.parseInt(config.getProperty("CHAT_PORT"));
+		int server_port = config.getPort();
 
 		this.serverSocket = getServerSocketFactory().createServerSocket(server_port);
-		this.connectedClients = new ConcurrentHashMap<>(3);
-		this.connectedUsers = new ConcurrentHashMap<>(3);
+		this.connectedUsers = new ConcurrentHashMap<>(config.getInitialUsersCapacity());
+		this.n_sessions = new AtomicInteger();
+		this.n_session_threads = new AtomicInteger();
+		this.messageIndex = new MessageIndex();
+		this.inboxStore = new InboxStore(config.getInboxDir());
+		this.bufferPool = new BufferPool();
+		this.forwardLatency = new LatencyHistogram();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				this.forwardLatency,
+				new ObjectName("org.fos:type=ChatServer,name=ForwardLatency")
+			);
+		} catch (JMException e) {
+			e.printStackTrace(); // the server works without it
+		}
+		this.dedupeWindows = new ConcurrentHashMap<>(config.getInitialUsersCapacity());
+		this.conversationSeqs = new ConcurrentHashMap<>();
+		this.updateCapture(null, config.getTrafficCaptureFile());
 		System.out.println("Socket server created and ready to accept connections on port: " + server_port);
 	}
 
@@ -89,18 +172,52 @@ public class ChatServer implements Runnable {
 	@Override
 	public void run() {
 		String clientAddr = null;
+		ChatSocket clientChatSocket = null;
+		ChatSession session = null;
 		try (Socket clientSocket = this.serverSocket.accept()) {
 			// start a new thread to accept a new client
 			// this is sort of a recursive way to do a loop and wait for connections
 			this.newListener();
 
-			clientSocket.setSoTimeout(60_000 * 30 /* 1m -> 30m */ ); // timeout after 30 minutes of inactivity
+			ServerConfig config = this.config.get();
+			clientSocket.setSoTimeout(config.getSocketTimeout()); // timeout after some inactivity, 30m by default
 			clientAddr = clientSocket.getInetAddress().toString();
 
-			ChatSocket clientChatSocket = new ChatSocket(clientSocket);
+			if (clientSocket instanceof SSLSocket)
+				this.handshake((SSLSocket) clientSocket, clientAddr);
+
+			clientChatSocket = new ChatSocket(
+				clientSocket,
+				this.bufferPool,
+				config.getSocketBufferSize(),
+				new OutboundLanes(
+					config.getInteractiveQuantum(),
+					config.getInteractiveCapacity(),
+					config.getBulkQuantum(),
+					config.getBulkCapacity()
+				)
+			);
 
 			// handle the new connection
-			if (!this.handleNewClientConnected(clientChatSocket)) {
+			ConnectEvent connectEvent = new ConnectEvent();
+			connectEvent.begin();
+			session = this.handleNewClientConnected(clientChatSocket);
+			connectEvent.end();
+			if (connectEvent.shouldCommit()) {
+				connectEvent.remote_address = clientAddr;
+				connectEvent.authenticated = session != null;
+				if (session != null) {
+					connectEvent.uid = session.getUser().getHashCode();
+					SessionSet sessions = this.connectedUsers.get(connectEvent.uid);
+					connectEvent.n_sessions = sessions == null ? 0 : sessions.size();
+				}
+				connectEvent.commit();
+			}
+
+			if (session != null)
+				this.capture(session, ClientRequestType.CONNECT, -1, 0);
+
+			if (session == null) {
 				// if the user couldn't be authenticated, close the connection
 				// the user should try again by opening a new connection
 				clientChatSocket.close();
@@ -108,26 +225,182 @@ public class ChatServer implements Runnable {
 			}
 
 			// if everything went good, start receiving and sending messages
-			while (!clientChatSocket.isClosed())
-				this.handleClientRequest(clientChatSocket);
+			this.n_session_threads.incrementAndGet();
+			try {
+				while (!clientChatSocket.isClosed()) {
+					session.throttle(this.config.get().getMaxRequestsPerSecond());
+					this.handleClientRequest(session);
+				}
+			} finally {
+				this.n_session_threads.decrementAndGet();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (SocketTimeoutException e) {
+			if (session != null)
+				session.setCloseReason(SessionCloseReason.TIMEOUT);
 			System.out.println("The socket from " + clientAddr + " has timed out. Connection was closed");
 			e.printStackTrace();
-			// TODO: REMOVE CLIENT SOCKET FROM THE HASHMAP
 		} catch(InvalidClientRequest e) {
+			if (session != null)
+				session.setCloseReason(SessionCloseReason.INVALID_REQUEST);
 			System.err.println("The client from " + clientAddr + " sent and invalid request!!");
 			e.printStackTrace();
+		} catch (SocketException e) {
+			// the server socket is closed when the server drains, that's not an error
+			if (!this.draining)
+				e.printStackTrace();
 		} catch (SSLException e) {
+			if (session != null)
+				session.setCloseReason(SessionCloseReason.ERROR);
 			e.printStackTrace();
 			System.err.println("Probably the above exception occurred because someone tried to connect " +
 				"trough a non-SSL channel (e. g. HTTP instead of HTTPS)");
 			System.out.println("If this were a web server, an HTTP server should be listening and " +
 				"redirecting to the HTTPS server");
 		} catch (IOException e) {
+			if (session != null)
+				session.setCloseReason(SessionCloseReason.ERROR);
 			e.printStackTrace();
+		} finally {
+			// run the close hook, so the session is removed no matter how the connection ended
+			if (clientChatSocket != null)
+				try {
+					clientChatSocket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 		}
 	}
 
+	/**
+	 * Does the TLS handshake of a new connection, recording a {@link TlsHandshakeEvent}
+	 * <p>
+	 * Otherwise the handshake would be done implicitly when reading the first request
+	 */
+	private void handshake(@NotNull SSLSocket socket, @NotNull String clientAddr) throws IOException {
+		TlsHandshakeEvent event = new TlsHandshakeEvent();
+		event.begin();
+		socket.startHandshake();
+		event.end();
+		if (event.shouldCommit()) {
+			SSLSession sslSession = socket.getSession();
+			event.remote_address = clientAddr;
+			event.protocol = sslSession.getProtocol();
+			event.cipher_suite = sslSession.getCipherSuite();
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return the configuration in use right now
+	 */
+	public @NotNull ServerConfig getConfig() {
+		return this.config.get();
+	}
+
+	/**
+	 * @return the number of open sessions
+	 */
+	int getSessionCount() {
+		return this.n_sessions.get();
+	}
+
+	/**
+	 * @return the number of users with at least one open session
+	 */
+	int getConnectedUserCount() {
+		return this.connectedUsers.size();
+	}
+
+	/**
+	 * @return the number of file transfers of the open sessions bound to a session that was closed,
+	 * {@link SoakTest} expects none
+	 */
+	int getStaleTransferCount() {
+		int n_stale = 0;
+		for (SessionSet sessions : this.connectedUsers.values())
+			for (ChatSession session : sessions.getSessions())
+				n_stale += session.getStaleTransferCount();
+		return n_stale;
+	}
+
+	/**
+	 * @return the index of the delivered messages, {@link SoakTest} checks it stays bounded
+	 */
+	@NotNull MessageIndex getMessageIndex() {
+		return this.messageIndex;
+	}
+
+	/**
+	 * Replaces the configuration while the server is running, e. g. when the config file changes
+	 * <p>
+	 * Readers always see either the old or the new snapshot, never a mix of both. The new timeout also applies to
+	 * the open connections. The rest of the values are read when they are used, e. g. the buffer size when
+	 * a client connects
+	 *
+	 * @param next the new configuration
+	 */
+	public void reloadConfig(@NotNull ServerConfig next) {
+		ServerConfig previous = this.config.getAndSet(next);
+		if (previous.getPort() != next.getPort() || previous.getInitialUsersCapacity() != next.getInitialUsersCapacity())
+			System.err.println("CHAT_PORT and INITIAL_USERS_CAPACITY only change after restarting the server");
+
+		if (!Objects.equals(previous.getTrafficCaptureFile(), next.getTrafficCaptureFile()))
+			this.updateCapture(previous.getTrafficCaptureFile(), next.getTrafficCaptureFile());
+
+		if (previous.getSocketTimeout() != next.getSocketTimeout())
+			this.connectedUsers.values().forEach(sessions -> {
+				for (ChatSession session : sessions.getSessions())
+					try {
+						session.getSocket().getClientSocket().setSoTimeout(next.getSocketTimeout());
+					} catch (SocketException e) {
+						e.printStackTrace(); // the socket is closed, it will be removed
+					}
+			});
+
+		System.out.println("Config reloaded " + next);
+	}
+
+	/**
+	 * Stops the running traffic capture, if any, and starts a new one
+	 *
+	 * @param previous the file of the running capture, null if there is none
+	 * @param next     the file of the new capture, null to stop capturing
+	 */
+	private synchronized void updateCapture(@Nullable Path previous, @Nullable Path next) {
+		TrafficCapture running = this.capture;
+		if (running != null)
+			try {
+				running.close();
+				System.out.println("Traffic capture " + previous + " stopped");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+		this.capture = null;
+		if (next != null)
+			try {
+				this.capture = TrafficCapture.open(next);
+				System.out.println("Capturing the traffic in " + next);
+			} catch (IOException e) {
+				System.err.println("The traffic capture " + next + " could not be started");
+				e.printStackTrace();
+			}
+	}
+
+	/**
+	 * Adds the request to the traffic capture, if the traffic is being captured
+	 *
+	 * @param peer_uid the other user in the request, -1 if there is none
+	 * @param size     the size of the content of the request
+	 */
+	private void capture(@NotNull ChatSession session, @NotNull ClientRequestType type, int peer_uid, int size) {
+		TrafficCapture capture = this.capture;
+		if (capture != null)
+			capture.record(session.getId(), session.getUser().getHashCode(), peer_uid, type, size);
+	}
+
 	/**
 	 * Starts a new thread from this Runnable class to listen for new incoming connections
 	 *
@@ -142,8 +415,9 @@ public class ChatServer implements Runnable {
 	/**
 	 * Handles the new client connected
 	 *
-	 * This method will first read the headers and if valid, the clientSocket will be added to the
-	 * {@link #connectedClients} hashmap
+	 * This method will first read the headers and if valid, a new session for the clientSocket will be added to the
+	 * sessions of the user in the {@link #connectedUsers} hashmap. A user may have many sessions at the same time,
+	 * e. g. one per device, a new session never replaces the others
 	 *
 	 * This will query the authentication microservice to know if the authHash is valid and is therefore a trusted user
 	 * the autHash is obtained from within the socketInputBuff, the client should send it
@@ -153,11 +427,11 @@ public class ChatServer implements Runnable {
 	 * that hashcode will be used to identify each socket (each user) in this chat
 	 * The microservice will also return the username for the user and maybe some other info @MauSwoosh decide it
 	 * @param clientSocket the client socket
-	 * @return true if the method could authenticate correctly the user, false otherwise. IF the user couldn't be
-	 * authenticated, the socket will not be added to the {@link #connectedClients} hashmap
+	 * @return the new session if the method could authenticate correctly the user, null otherwise. IF the user
+	 * couldn't be authenticated, the socket will not be added to the {@link #connectedUsers} hashmap
 	 * and a message indicating the authentication failed will be send trough it
 	 */
-	private boolean handleNewClientConnected(@NotNull ChatSocket clientSocket) throws IOException {
+	@Nullable ChatSession handleNewClientConnected(@NotNull ChatSocket clientSocket) throws IOException {
 		// first line should contain the request type header
 		String reqTypeHeader = clientSocket.readLine();
 
@@ -166,125 +440,654 @@ public class ChatServer implements Runnable {
 			throw new InvalidClientRequest("First request sent from the client SHOULD be a connect request");
 
 		// read next line that should contain the authentication hash
-		char[] authHash = clientSocket.readLine().toCharArray();
+		String authLine = clientSocket.readLine();
+		if (authLine == null)
+			throw new InvalidClientRequest("Incomplete " + reqType.getHeader() + " request");
+		char[] authHash = authLine.toCharArray();
 
 		// TODO: QUERY THE AUTH MICROSERVICE TO KNOW IF THE AUTH HASH IS GOOD
 
-		// FIXME: remove this "vulnerability"
-		if ("loginhashbypasss".equals(String.valueOf(authHash))) {
-			ChatUser connectedUser = new ChatUser(10, "el mau");
-
-			// notify all other connected clients a new client has connected
-			this.broadCastUserConnected(connectedUser);
-			this.connectedClients.put(connectedUser, clientSocket);
-			this.connectedUsers.put(connectedUser.getHashCode(), connectedUser);
-
-			// add hook to remove the socket when it is closed
-			clientSocket.setOnCloseHook(() -> {
-				this.connectedClients.remove(connectedUser);
-				this.connectedUsers.remove(connectedUser.getHashCode());
-			});
+		// the connection was accepted just before the server started draining
+		if (this.draining) {
+			clientSocket.writeLines(this.redirectLines());
+			return null;
+		}
 
-			// notify the user everything went OK
+		if (!this.reserveSession()) {
 			clientSocket.writeLines(
-				ServerResponseType.CONNECTION_SUCCESS.getHeader(),
-				String.valueOf(connectedUser.getHashCode())
+				ServerResponseType.CONNECTION_FAILED.getHeader(),
+				ServerResponseFailedReason.SERVER_FULL.getReason()
 			);
+			return null;
+		}
 
-			return true;
-		} else { // the user couldn't be authenticated
-			clientSocket.writeLines(
-				ServerResponseType.CONNECTION_FAILED.getHeader(), // write header
-				ServerResponseFailedReason.UNAUTHORIZED.getReason() // write reason
-			);
+		boolean is_added = false; // otherwise the reserved slot is given back
+		try {
+			// FIXME: remove this "vulnerability"
+			if ("loginhashbypasss".equals(String.valueOf(authHash))) {
+				ChatUser connectedUser = new ChatUser(10, "el mau");
+				ChatSession session = new ChatSession(connectedUser, clientSocket);
+
+				// notify all other connected clients a new client has connected
+				// other devices of the same user don't count, the others already know about the user
+				if (!this.connectedUsers.containsKey(connectedUser.getHashCode()))
+					this.broadCastUserConnected(connectedUser);
+				this.connectedUsers.compute(
+					connectedUser.getHashCode(),
+					(uid, sessions) -> sessions == null ? SessionSet.of(session) : sessions.with(session)
+				);
+
+				// add hook to remove the session when it is closed, only this session, not the other devices
+				clientSocket.setOnCloseHook(() -> {
+					if (!session.markClosed())
+						return; // already removed
+
+					this.connectedUsers.computeIfPresent(
+						connectedUser.getHashCode(),
+						(uid, sessions) -> sessions.without(session)
+					);
+					this.n_sessions.decrementAndGet();
+					session.unbindAllTransfers();
+
+					TrafficCapture capture = this.capture;
+					if (capture != null)
+						capture.recordClose(session.getId(), connectedUser.getHashCode());
+
+					SessionCloseEvent closeEvent = new SessionCloseEvent();
+					if (closeEvent.shouldCommit()) {
+						closeEvent.uid = connectedUser.getHashCode();
+						closeEvent.reason = session.getCloseReason().name();
+						closeEvent.session_duration = System.currentTimeMillis() - session.getConnectedAt();
+						closeEvent.commit();
+					}
+				});
+				is_added = true;
+
+				// notify the user everything went OK
+				clientSocket.writeLines(
+					ServerResponseType.CONNECTION_SUCCESS.getHeader(),
+					String.valueOf(connectedUser.getHashCode())
+				);
+
+				return session;
+			} else { // the user couldn't be authenticated
+				clientSocket.writeLines(
+					ServerResponseType.CONNECTION_FAILED.getHeader(), // write header
+					ServerResponseFailedReason.UNAUTHORIZED.getReason() // write reason
+				);
+			}
+			return null;
+		} finally {
+			if (!is_added)
+				this.n_sessions.decrementAndGet();
 		}
-		return false;
+	}
+
+	/**
+	 * Takes a slot for a new session if the server is not full, the slot is given back by decrementing
+	 * {@link #n_sessions}
+	 * <p>
+	 * The check and the increment are a single atomic step, so concurrent connections can't go over the limit
+	 * @return false if the server already has the max number of sessions
+	 */
+	private boolean reserveSession() {
+		int max_sessions = this.config.get().getMaxSessions();
+		int n;
+		do {
+			n = this.n_sessions.get();
+			if (n >= max_sessions)
+				return false;
+		} while (!this.n_sessions.compareAndSet(n, n + 1));
+		return true;
 	}
 
 	/**
 	 * this method will handle {@link ClientRequestType#MESSAGE} or {@link ClientRequestType#LOGOUT}
 	 * events
-	 * @param clientSocket the client socket
+	 * <p>
+	 * Package-private so {@link ForwardingAllocationBenchmark} measures the real relay
+	 * @param session the session of the client
 	 */
-	private void handleClientRequest(@NotNull ChatSocket clientSocket) throws IOException {
-		String reqTypeHeader = clientSocket.readLine();
+	void handleClientRequest(@NotNull ChatSession session) throws IOException {
+		ChatSocket clientSocket = session.getSocket();
+
+		ClientRequestType reqType;
+		String reqTypeHeader = null; // only decoded if it is invalid
+		try (Frame header = clientSocket.newFrame()) {
+			int length = clientSocket.readLine(header);
+			reqType = length < 0 ? null : ClientRequestType.fromHeader(header.array(), 0, length);
+			if (reqType == null && length >= 0)
+				reqTypeHeader = new String(header.array(), 0, length, StandardCharsets.UTF_8);
+		}
 
-		ClientRequestType reqType = ClientRequestType.fromHeader(reqTypeHeader);
 		if (reqType == ClientRequestType.LOGOUT) {
+			this.capture(session, reqType, -1, 0);
 			// close the socket, if the close hook is configured,
 			// the socket will be automatically removed from the hashmap
+			session.setCloseReason(SessionCloseReason.LOGOUT);
 			clientSocket.close();
 		} else if (reqType == ClientRequestType.MESSAGE) {
 			// handle the message
+			// it is relayed as it was read, only the receiver ID and the optional message id are parsed
+			long received_at = System.nanoTime();
+			long received_at_millis = System.currentTimeMillis(); // stamped in the message if the client asks for it
+			MessageForwardEvent forwardEvent = new MessageForwardEvent();
+			forwardEvent.begin();
+			try (Frame response = clientSocket.newFrame(); Frame body = clientSocket.newFrame()) {
+				response.line(ServerResponseType.MESSAGE.getHeader()); // message header
 
-			// read from ID
-			String fromID = clientSocket.readLine();
-
-			// read to ID
-			String toID = clientSocket.readLine();
-			int to_id = Integer.parseInt(toID);
-
-			// read beginning message header
-			String messageHeader = clientSocket.readLine(); // just ignore that header
-
-			// read the actual message, it should be base64-encoded
-			// and should be decoded in the receiving client
-			String message = clientSocket.readLine();
-
-			// read the message footer
-			String messageFooter = clientSocket.readLine(); // just ignore the footer
-
-			// forward data to the right client
-			// get the right client
-			ChatUser receiverUser = this.connectedUsers.get(to_id);
-			this.connectedClients.get(receiverUser).writeLines(
-				ServerResponseType.MESSAGE.getHeader(), // message header
-				fromID, // sender ID
-				toID, // receiver ID
-				messageHeader,
-				message, // this should be Base64-encoded
-				messageFooter
-			);
+				// read from ID and to ID
+				if (clientSocket.readLine(response) < 0)
+					throw new InvalidClientRequest("Incomplete " + reqType.getHeader() + " request");
+				int to_id_start = response.size();
+				int to_id_length = clientSocket.readLine(response);
+				if (to_id_length < 0)
+					throw new InvalidClientRequest("Incomplete " + reqType.getHeader() + " request");
+				int to_id = (int) response.parseLong(to_id_start, to_id_length);
 
-			System.out.println(
-				"Message forwarded from "
-					+ this.connectedUsers.get(Integer.parseInt(fromID))
-					+ " to "
-					+ receiverUser
-					+ " message: "
-					+ new String(
-						Base64.getDecoder().decode(message.getBytes(StandardCharsets.UTF_8)),
-						StandardCharsets.UTF_8
-					)
-			);
+				// read the optional key:value lines and the beginning message header
+				int message_id_start = -1;
+				int message_id_length = 0;
+				boolean stamp_times = false;
+				while (true) {
+					int line_start = body.size();
+					int line_length = clientSocket.readLine(body);
+					if (line_length < 0)
+						throw new InvalidClientRequest("Incomplete " + reqType.getHeader() + " request");
+					if (body.regionEquals(line_start, line_length, BEGIN_MESSAGE))
+						break;
+					if (body.regionStartsWith(line_start, line_length, MESSAGE_ID_KEY)) {
+						message_id_start = line_start + MESSAGE_ID_KEY.length;
+						message_id_length = line_length - MESSAGE_ID_KEY.length;
+					} else if (body.regionStartsWith(line_start, line_length, CLIENT_SEND_TIME_KEY)) {
+						stamp_times = true; // the client measures the latency, add the server times
+					}
+				}
+
+				// read the actual message, it should be base64-encoded
+				// and should be decoded in the receiving client
+				int message_start = body.size();
+				int message_length = clientSocket.readLine(body);
+				if (message_length < 0 || clientSocket.readLine(body) < 0) // and the footer
+					throw new InvalidClientRequest("Incomplete " + reqType.getHeader() + " request");
+				// only measured when the event is enabled, so it doesn't cost anything otherwise
+				MessageForwardEvent measuredEvent = forwardEvent.isEnabled() ? forwardEvent : null;
+				if (measuredEvent != null)
+					measuredEvent.read_time = System.nanoTime() - received_at;
+				this.capture(session, reqType, to_id, message_length);
+
+				// the filter reads the base64 text as it is, it doesn't decode it into a new array or string
+				ContentFilter contentFilter = this.config.get().getContentFilter();
+				int pattern = contentFilter.findBase64(body.array(), message_start, message_length);
+				if (pattern >= 0) {
+					System.out.println(
+						"Message from "
+							+ session.getUser()
+							+ " to "
+							+ to_id
+							+ " rejected, it contains \""
+							+ contentFilter.getPattern(pattern)
+							+ '"'
+					);
+					this.rejectMessage(clientSocket, to_id, body, message_id_start, message_id_length);
+					return;
+				}
+
+				SessionSet receiverSessions = this.connectedUsers.get(to_id);
+				if (receiverSessions == null) {
+					System.out.println("Message to " + to_id + " dropped, the user is not connected");
+					return;
+				}
+
+				// a client retrying a message it already sent, it was forwarded the first time
+				if (message_id_start >= 0 && !this.dedupeWindows
+					.computeIfAbsent(session.getUser().getHashCode(), uid -> new DedupeWindow())
+					.add(body.array(), message_id_start, message_id_length)) {
+					System.out.println(
+						"Duplicated message "
+							+ new String(body.array(), message_id_start, message_id_length, StandardCharsets.UTF_8)
+							+ " from "
+							+ session.getUser()
+							+ " ignored"
+					);
+					return;
+				}
+
+				long seq = this.nextSeq(session.getUser().getHashCode(), to_id);
+				response.line("seq:", seq);
+				if (stamp_times)
+					response.line("t_sr:", received_at_millis) // server receive time
+						.line("t_sf:", System.currentTimeMillis()); // server forward time
+				response.append(body, 0, body.size()); // the id is relayed too, so the receivers can dedupe
+
+				// forward data to every device of the receiver
+				// a message to yourself goes to the sending session too, it is the one expecting it
+				boolean is_to_self = to_id == session.getUser().getHashCode();
+				this.deliver(receiverSessions, is_to_self ? null : session, response, measuredEvent);
+
+				// and to the other devices of the sender, so they show the sent message too
+				if (!is_to_self) {
+					SessionSet senderSessions = this.connectedUsers.get(session.getUser().getHashCode());
+					if (senderSessions != null)
+						this.deliver(senderSessions, session, response, measuredEvent);
+				}
+
+				this.forwardLatency.record((System.nanoTime() - received_at) / 1_000);
+
+				forwardEvent.end();
+				if (forwardEvent.shouldCommit()) {
+					forwardEvent.from_uid = session.getUser().getHashCode();
+					forwardEvent.to_uid = to_id;
+					forwardEvent.payload_size = message_length;
+					forwardEvent.commit();
+				}
+
+				// decoded and indexed in the background, so this doesn't delay the next message
+				// both stores share a single copy, each one closes its reference when it is done
+				Frame message = clientSocket.newFrame();
+				message.append(body, message_start, message_length);
+				try {
+					this.messageIndex.add(session.getUser().getHashCode(), to_id, seq, message.retain());
+				} finally {
+					this.inboxStore.messageForwarded(session.getUser().getHashCode(), to_id, seq, System.currentTimeMillis(), message);
+				}
+
+				// the content is never logged
+				System.out.println(
+					"Message forwarded from "
+						+ session.getUser()
+						+ " to "
+						+ receiverSessions.getUser()
+						+ " (" + receiverSessions.size() + " sessions)"
+				);
+			}
+		} else if (reqType == ClientRequestType.READ) {
+			clientSocket.readLine(); // skip from ID, it is the user of the session
+			int peer_uid = Integer.parseInt(clientSocket.readLine());
+			long seq = Long.parseLong(clientSocket.readLine());
+			this.capture(session, reqType, peer_uid, 0);
+			session.setReadPosition(peer_uid, seq);
+			this.inboxStore.read(session.getUser().getHashCode(), peer_uid, seq);
+		} else if (reqType == ClientRequestType.SEARCH) {
+			clientSocket.readLine(); // skip from ID, users can only search their own messages
+			String searchID = clientSocket.readLine();
+			String encodedQuery = clientSocket.readLine();
+			String query = new String(Base64.getDecoder().decode(encodedQuery), StandardCharsets.UTF_8);
+			int limit = Math.min(MAX_SEARCH_HITS, Integer.parseInt(clientSocket.readLine()));
+			this.capture(session, reqType, -1, encodedQuery.length());
+
+			List<SearchHit> hits = this.messageIndex.search(session.getUser().getHashCode(), query, limit);
+			String[] lines = new String[3 + hits.size() * 3];
+			lines[0] = ServerResponseType.SEARCH_RESULTS.getHeader();
+			lines[1] = searchID;
+			lines[2] = String.valueOf(hits.size());
+			for (int i = 0; i < hits.size(); ++i) {
+				SearchHit hit = hits.get(i);
+				lines[3 + i * 3] = String.valueOf(hit.getPeerUID());
+				lines[4 + i * 3] = String.valueOf(hit.getSeq());
+				lines[5 + i * 3] = String.valueOf(hit.getScore());
+			}
+			clientSocket.sendLines(OutboundLane.CONTROL, lines);
+		} else if (reqType == ClientRequestType.INBOX) {
+			clientSocket.readLine(); // skip from ID, users can only load their own inbox
+			this.capture(session, reqType, -1, 0);
+
+			List<ConversationSummary> summaries;
+			try {
+				summaries = this.inboxStore.load(session.getUser().getHashCode()).join();
+			} catch (CompletionException | RejectedExecutionException e) {
+				// the file could not be read or the store was stopped by a drain
+				e.printStackTrace();
+				summaries = Collections.emptyList(); // answer anyway, so the client doesn't wait forever
+			}
+
+			// a single frame, it may be big so it goes with the messages instead of the control responses
+			Frame inbox = clientSocket.newFrame();
+			inbox.line(ServerResponseType.INBOX.getHeader()).line(summaries.size());
+			for (ConversationSummary summary : summaries)
+				inbox.line(summary.getPeerUID())
+					.line(summary.getLastSeq())
+					.line(summary.getLastTime())
+					.line(summary.getLastFromUID())
+					.line(summary.getUnread())
+					.line(Base64.getEncoder().encodeToString(summary.getPreview()));
+			clientSocket.send(OutboundLane.INTERACTIVE, inbox);
+		} else if (reqType == ClientRequestType.FILE_OFFER
+			|| reqType == ClientRequestType.FILE_RESUME
+			|| reqType == ClientRequestType.FILE_CHUNK
+			|| reqType == ClientRequestType.FILE_ACK
+			|| reqType == ClientRequestType.FILE_CANCEL) {
+			this.relayFileRequest(session, reqType);
 		} else
 			throw new InvalidClientRequest(reqTypeHeader + " is an invalid header!!");
 	}
 
 	/**
-	 * Broadcasts a {@link ServerResponseType#USER_CONNECTED} event to all connected sockets
-	 * @param newConnectedUser the object for the new connected user
+	 * Tells the sender the message was not forwarded with a {@link ServerResponseType#MESSAGE_REJECTED}
+	 * <p>
+	 * The pattern found is not sent, so spammers can't easily find which words are banned
+	 *
+	 * @param socket            the socket of the sender
+	 * @param to_id             the receiver of the message
+	 * @param body              the frame with the message id
+	 * @param message_id_start  where the message id starts in the body, -1 if the message doesn't have an id
+	 * @param message_id_length the length of the message id
 	 */
-	private void broadCastUserConnected(@NotNull ChatUser newConnectedUser) {
-		this.connectedClients.keySet().forEach(chatUser -> {
+	private void rejectMessage(
+		@NotNull ChatSocket socket,
+		int to_id,
+		@NotNull Frame body,
+		int message_id_start,
+		int message_id_length
+	) throws IOException {
+		Frame rejection = socket.newFrame();
+		rejection.line(ServerResponseType.MESSAGE_REJECTED.getHeader()).line(to_id);
+		if (message_id_start >= 0)
+			rejection.append(body, message_id_start, message_id_length);
+		rejection.line("");
+		socket.send(OutboundLane.CONTROL, rejection);
+	}
+
+	/**
+	 * Queues a copy of the frame in the {@link OutboundLane#INTERACTIVE} lane of every session in the set, except one
+	 * <p>
+	 * A broken session doesn't stop the delivery to the other ones, its own thread will close it
+	 *
+	 * @param sessions the sessions of a user
+	 * @param except   the session that should not receive the lines, e. g. the one that sent them. Null to send them to all
+	 * @param frame    the lines to write, the frame is not closed
+	 * @param event    where the time waiting for room in the lanes is added, null to not measure it
+	 */
+	private void deliver(
+		@NotNull SessionSet sessions,
+		@Nullable ChatSession except,
+		@NotNull Frame frame,
+		@Nullable MessageForwardEvent event
+	) {
+		for (ChatSession session : sessions.getSessions()) {
+			if (session == except)
+				continue;
+
 			try {
-				ChatSocket socket = this.connectedClients.get(chatUser);
-				if (socket.isClosed()) {
-					this.connectedClients.remove(chatUser);
-					return;
+				if (event == null) {
+					session.getSocket().send(OutboundLane.INTERACTIVE, frame.copy());
+				} else {
+					long start = System.nanoTime();
+					session.getSocket().send(OutboundLane.INTERACTIVE, frame.copy());
+					event.queue_wait += System.nanoTime() - start;
+					++event.n_sessions;
 				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
-				socket.writeLines(
-					// write header
-					ServerResponseType.USER_CONNECTED.getHeader(),
+	/**
+	 * @return the next sequence number in the conversation between the two users, it is the same for both
+	 * <p>
+	 * The first message of a conversation since the server started waits for the inbox to read the last seq
+	 * it persisted. The inbox is not synced, after a crash the numbering may repeat the last few seqs
+	 */
+	private long nextSeq(int uid, int other_uid) {
+		long key = conversationKey(uid, other_uid);
+		AtomicLong seq = this.conversationSeqs.get(key);
+		if (seq == null) {
+			long last_seq;
+			try {
+				last_seq = this.inboxStore.lastSeq(uid, other_uid).join();
+			} catch (CompletionException | RejectedExecutionException e) {
+				// the file could not be read or the store was stopped by a drain
+				e.printStackTrace();
+				last_seq = 0;
+			}
+			// read outside of the map, if another message got there first its seq is used
+			final long initial_seq = last_seq;
+			seq = this.conversationSeqs.computeIfAbsent(key, k -> new AtomicLong(initial_seq));
+		}
+		return seq.incrementAndGet();
+	}
 
-					// write connected user information
-					String.valueOf(newConnectedUser.getHashCode()),
-					newConnectedUser.getUsername()
-				);
+	/**
+	 * @return a key for the conversation between two users, it doesn't depend on the order of the users
+	 */
+	private static long conversationKey(int uid, int other_uid) {
+		int min = Math.min(uid, other_uid);
+		int max = Math.max(uid, other_uid);
+		return ((long) min << 32) | (max & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Relays a file transfer request to its receiver as soon as it is read
+	 * <p>
+	 * The requests are queued in the {@link OutboundLane#BULK} lane of the receiver. Its capacity (BULK_CAPACITY)
+	 * is at least the window of chunks a client sends before waiting for their acks, so relaying a transfer never
+	 * blocks this thread and the other requests of the sender (e. g. chat messages to other users) don't wait for
+	 * the receiver. Only a client ignoring the window fills the lane, then queueing blocks this thread until the
+	 * receiver catches up. Chat messages to the receiver go in another lane, so they don't wait behind the file
+	 * <p>
+	 * Unlike messages, a file goes to a single device: the offer is relayed to the newest session of the receiver
+	 * and the rest of the requests of the transfer go to the sessions that sent and received the offer
+	 *
+	 * @param session the session of the user sending the request
+	 * @param reqType the type of the request, one of the FILE_* requests
+	 */
+	private void relayFileRequest(@NotNull ChatSession session, @NotNull ClientRequestType reqType) throws IOException {
+		ChatSocket clientSocket = session.getSocket();
+
+		// number of lines after the from ID, to ID and transfer ID
+		int n_fields;
+		switch (reqType) {
+			case FILE_OFFER:
+				n_fields = 3; // file name, size, chunk size
+				break;
+			case FILE_CHUNK:
+				n_fields = 3; // chunk index, chunk checksum, chunk data
+				break;
+			default:
+				n_fields = 1; // received chunks, chunk index or cancel reason
+		}
+
+		String fromID = clientSocket.readLine();
+		String toID = clientSocket.readLine();
+		String transferID = clientSocket.readLine();
+		if (transferID == null)
+			throw new InvalidClientRequest("Incomplete " + reqType.getHeader() + " request");
+		int to_uid = Integer.parseInt(toID);
+
+		Frame frame = clientSocket.newFrame();
+		try {
+			frame.line(ServerResponseType.valueOf(reqType.name()).getHeader())
+				.line(fromID)
+				.line(toID)
+				.line(transferID);
+			// the fields (e. g. a base64-encoded chunk) are relayed as raw bytes, without decoding them
+			int fields_start = frame.size();
+			for (int i = 0; i < n_fields; ++i)
+				if (clientSocket.readLine(frame) < 0)
+					throw new InvalidClientRequest("Incomplete " + reqType.getHeader() + " request");
+			this.capture(session, reqType, to_uid, frame.size() - fields_start);
+
+			// a new offer (or a resumed one) may go to a different device
+			ChatSession receiver = reqType == ClientRequestType.FILE_OFFER ? null : session.getTransferPeer(transferID);
+			if (receiver == null) {
+				SessionSet receiverSessions = this.connectedUsers.get(to_uid);
+				if (receiverSessions != null)
+					receiver = receiverSessions.getNewest();
+			}
+
+			if (receiver == null) {
+				session.unbindTransfer(transferID);
+				// tell the sender to stop, unless it is already stopping
+				if (reqType != ClientRequestType.FILE_CANCEL)
+					clientSocket.sendLines(
+						OutboundLane.BULK, // after the other requests of the transfer
+						ServerResponseType.FILE_CANCEL.getHeader(),
+						toID, // as if the receiver cancelled it
+						fromID,
+						transferID,
+						ServerResponseFailedReason.USER_NOT_CONNECTED.getReason()
+					);
+				return;
+			}
+
+			if (reqType == ClientRequestType.FILE_CANCEL) {
+				session.unbindTransfer(transferID);
+				receiver.unbindTransfer(transferID);
+			} else {
+				session.bindTransfer(transferID, receiver);
+				receiver.bindTransfer(transferID, session);
+			}
+
+			// queued behind the previous chunks, but messages to the receiver don't wait behind them
+			Frame queued = frame;
+			frame = null; // the socket closes it once it is written
+			try {
+				receiver.getSocket().send(OutboundLane.BULK, queued);
 			} catch (IOException e) {
+				// the receiver was closed meanwhile, that doesn't end the session of the sender.
+				// The next request of the transfer goes to another session or is cancelled
 				e.printStackTrace();
 			}
+		} finally {
+			if (frame != null)
+				frame.close();
+		}
+	}
+
+	/**
+	 * Shuts down the server gracefully, e. g. before a deploy
+	 * <p>
+	 * New connections are no longer accepted and every connected client is told to reconnect later with a
+	 * {@link ServerResponseType#REDIRECT}, each one after a different random delay, so the clients come back
+	 * gradually instead of all at once. Then it waits for the clients to log out and closes the remaining sessions
+	 * once the deadline passes
+	 * <p>
+	 * The redirect goes in the {@link OutboundLane#LAST} lane, so when a client receives it, it already
+	 * received everything queued for it before
+	 *
+	 * @param timeout_millis how long to wait for the clients to log out
+	 * @return the number of sessions that had to be closed because they didn't log out in time
+	 */
+	public int drain(long timeout_millis) {
+		this.draining = true;
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		BroadcastEvent event = new BroadcastEvent();
+		event.begin();
+		this.connectedUsers.values().forEach(sessions -> {
+			for (ChatSession session : sessions.getSessions())
+				try {
+					session.getSocket().sendLines(OutboundLane.LAST, this.redirectLines());
+					++event.n_sessions;
+				} catch (IOException e) {
+					++event.n_failed;
+					e.printStackTrace();
+				}
+		});
+		event.end();
+		if (event.shouldCommit()) {
+			event.response_type = ServerResponseType.REDIRECT.getHeader();
+			event.commit();
+		}
+
+		long deadline = System.currentTimeMillis() + timeout_millis;
+		while (!this.connectedUsers.isEmpty() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		int[] n_closed = new int[1];
+		this.connectedUsers.values().forEach(sessions -> {
+			for (ChatSession session : sessions.getSessions())
+				try {
+					session.setCloseReason(SessionCloseReason.DRAINED);
+					session.getSocket().close();
+					++n_closed[0];
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		});
+
+		// a thread may be forwarding a message when its session is closed, it must finish before the stores stop
+		long threads_deadline = System.currentTimeMillis() + SESSION_THREADS_TIMEOUT;
+		while (this.n_session_threads.get() > 0 && System.currentTimeMillis() < threads_deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		this.messageIndex.close();
+		this.inboxStore.close();
+
+		// after closing the sessions, so the trace has their end
+		this.updateCapture(this.config.get().getTrafficCaptureFile(), null);
+		return n_closed[0];
+	}
+
+	/**
+	 * @return the lines of a response telling the client to reconnect later, after a random delay
+	 */
+	private @NotNull String[] redirectLines() {
+		ServerConfig config = this.config.get();
+		long delay = REDIRECT_MIN_DELAY + ThreadLocalRandom.current().nextLong(Math.max(1, config.getRedirectSpread()));
+		return new String[]{
+			ServerResponseType.REDIRECT.getHeader(),
+			config.getRedirectAddress(),
+			String.valueOf(delay)
+		};
+	}
+
+	/**
+	 * Broadcasts a {@link ServerResponseType#USER_CONNECTED} event to all connected sockets
+	 * @param newConnectedUser the object for the new connected user
+	 */
+	private void broadCastUserConnected(@NotNull ChatUser newConnectedUser) {
+		BroadcastEvent event = new BroadcastEvent();
+		event.begin();
+		this.connectedUsers.values().forEach(sessions -> {
+			for (ChatSession session : sessions.getSessions()) {
+				try {
+					ChatSocket socket = session.getSocket();
+					// don't use ChatSocket#isClosed, it reads from the socket and another thread is reading it
+					if (socket.getClientSocket().isClosed()) {
+						// the close hook removes only this session
+						socket.close();
+						++event.n_failed;
+						continue;
+					}
+
+					socket.sendLines(
+						OutboundLane.CONTROL,
+
+						// write header
+						ServerResponseType.USER_CONNECTED.getHeader(),
+
+						// write connected user information
+						String.valueOf(newConnectedUser.getHashCode()),
+						newConnectedUser.getUsername()
+					);
+					++event.n_sessions;
+				} catch (IOException e) {
+					++event.n_failed;
+					e.printStackTrace();
+				}
+			}
 		});
+		event.end();
+		if (event.shouldCommit()) {
+			event.response_type = ServerResponseType.USER_CONNECTED.getHeader();
+			event.commit();
+		}
 	}
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A single connection of a user, e. g. one per device where the user is logged in
+ * <p>
+ * Besides the socket, each session keeps its own read positions (the sequence number of the last message the
+ * user read in each conversation on that device) and the session at the other end of each file transfer,
+ * so the chunks go to the same device that accepted the file
+ */
+public class ChatSession {
+	private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+	// sequential number of the session, unique while the server runs
+	private final int id;
+
+	@NotNull
+	private final ChatUser user;
+
+	@NotNull
+	private final ChatSocket socket;
+
+	// maps peer uid -> sequence number of the last message read in the conversation
+	@NotNull
+	private final ConcurrentHashMap<Integer, Long> readPositions;
+
+	// maps transfer id -> session of the other user in the transfer
+	@NotNull
+	private final ConcurrentHashMap<String, ChatSession> transferPeers;
+
+	@NotNull
+	private final AtomicBoolean closed;
+
+	// earliest time (System.nanoTime) for the next request to be read without waiting, see throttle
+	private long next_request;
+
+	// epoch millis when the session was opened
+	private final long connected_at;
+
+	// the first reason given to close the session, null until then
+	@Nullable
+	private volatile SessionCloseReason closeReason;
+
+	public ChatSession(@NotNull ChatUser user, @NotNull ChatSocket socket) {
+		this.id = NEXT_ID.getAndIncrement();
+		this.user = user;
+		this.socket = socket;
+		this.readPositions = new ConcurrentHashMap<>();
+		this.transferPeers = new ConcurrentHashMap<>();
+		this.closed = new AtomicBoolean();
+		this.next_request = System.nanoTime() - 1_000_000_000L;
+		this.connected_at = System.currentTimeMillis();
+	}
+
+	/**
+	 * Waits if the session is sending more than the given number of requests per second
+	 * <p>
+	 * Bursts of up to one second worth of requests are read without waiting. Waiting before reading the next
+	 * request makes the client slow down (TCP backpressure) instead of dropping its requests
+	 * <p>
+	 * It should only be called from the thread reading the requests of the session
+	 *
+	 * @param max_requests_per_second the limit, it may change between calls
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void throttle(int max_requests_per_second) throws InterruptedException {
+		long now = System.nanoTime();
+		this.next_request = Math.max(this.next_request, now - 1_000_000_000L);
+		long wait = this.next_request - now;
+		this.next_request += 1_000_000_000L / max_requests_per_second;
+
+		if (wait > 0)
+			Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+	}
+
+	/**
+	 * @return true the first time it is called, so the session is removed only once even if its socket is closed
+	 * many times
+	 */
+	boolean markClosed() {
+		return this.closed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Tells why the session is being closed, call it before closing the socket
+	 * <p>
+	 * Only the first reason is kept, e. g. a timeout is not overwritten by the error closing the socket after it
+	 */
+	void setCloseReason(@NotNull SessionCloseReason reason) {
+		if (this.closeReason == null)
+			this.closeReason = reason;
+	}
+
+	/**
+	 * @return the reason given with {@link #setCloseReason(SessionCloseReason)} or
+	 * {@link SessionCloseReason#DISCONNECTED} if none was given
+	 */
+	@NotNull SessionCloseReason getCloseReason() {
+		SessionCloseReason reason = this.closeReason;
+		return reason == null ? SessionCloseReason.DISCONNECTED : reason;
+	}
+
+	/**
+	 * @return epoch millis when the session was opened
+	 */
+	long getConnectedAt() {
+		return connected_at;
+	}
+
+	/**
+	 * @return the sequential number of the session, e. g. to tell apart the devices of a user in a
+	 * {@link TrafficCapture}
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public @NotNull ChatUser getUser() {
+		return user;
+	}
+
+	public @NotNull ChatSocket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Moves the read position of a conversation forward, it never goes back
+	 *
+	 * @param peer_uid the chat uid of the other user in the conversation
+	 * @param seq      the sequence number of the last message read
+	 */
+	public void setReadPosition(int peer_uid, long seq) {
+		this.readPositions.merge(peer_uid, seq, Math::max);
+	}
+
+	/**
+	 * @param peer_uid the chat uid of the other user in the conversation
+	 * @return the sequence number of the last message read in this session, 0 if none was read
+	 */
+	public long getReadPosition(int peer_uid) {
+		return this.readPositions.getOrDefault(peer_uid, 0L);
+	}
+
+	/**
+	 * Binds a file transfer to the session of the other user, so the following requests of the transfer
+	 * are relayed to it
+	 */
+	void bindTransfer(@NotNull String transfer_id, @NotNull ChatSession peer) {
+		this.transferPeers.put(transfer_id, peer);
+
+		// the peer was closed meanwhile, its unbindAllTransfers may have missed this one
+		if (peer.closed.get())
+			this.transferPeers.remove(transfer_id, peer);
+	}
+
+	/**
+	 * @return the session of the other user in the transfer or null if it is unknown or it was closed
+	 */
+	@Nullable ChatSession getTransferPeer(@NotNull String transfer_id) {
+		ChatSession peer = this.transferPeers.get(transfer_id);
+		if (peer != null && peer.socket.getClientSocket().isClosed()) {
+			this.transferPeers.remove(transfer_id, peer);
+			return null;
+		}
+		return peer;
+	}
+
+	void unbindTransfer(@NotNull String transfer_id) {
+		this.transferPeers.remove(transfer_id);
+	}
+
+	/**
+	 * Removes the transfers of this session from the sessions at the other end, so they don't keep the closed
+	 * session (and its socket and lanes) alive. Transfers are never unbound when they complete, a long-lived
+	 * session would otherwise keep every session it ever sent a file to
+	 * <p>
+	 * It should be called once the session is closed
+	 */
+	void unbindAllTransfers() {
+		this.transferPeers.forEach((transfer_id, peer) -> peer.transferPeers.remove(transfer_id, this));
+		this.transferPeers.clear();
+	}
+
+	/**
+	 * @return the number of transfers bound to a session that was closed
+	 */
+	int getStaleTransferCount() {
+		int n_stale = 0;
+		for (ChatSession peer : this.transferPeers.values())
+			if (peer.closed.get())
+				++n_stale;
+		return n_stale;
+	}
+
+	@Override
+	public String toString() {
+		return "ChatSession{" +
+			"user=" + user +
+			", address=" + socket.getClientSocket().getInetAddress() +
+			'}';
+	}
+}
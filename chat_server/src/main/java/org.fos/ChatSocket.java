@@ -1,32 +1,80 @@
 package org.fos;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class ChatSocket implements AutoCloseable {
+	private static final byte[] NEW_LINE = {'\n'};
+
 	private final Socket clientSocket;
-	private final BufferedWriter socketBuffOutStream;
-	private final BufferedReader socketBuffInStream;
+	private final InputStream socketInStream;
+	private final OutputStream socketOutStream;
+
+	// where the read and write buffers are borrowed from
+	@NotNull
+	private final BufferPool pool;
+
+	// size of the read buffer borrowed from the pool
+	private final int read_buffer_size;
+
+	// bytes read from the socket and not consumed yet, in [read_pos, read_limit)
+	// the buffer is borrowed when data arrives and given back once it is consumed, null while the connection is idle
+	@Nullable
+	private byte[] readBuffer;
+	private int read_pos;
+	private int read_limit;
+
+	// the line being read when it doesn't fit in the read buffer
+	@Nullable
+	private Frame partialLine;
+
+	private volatile boolean closed;
+
+	// responses waiting for the writer thread, see send
+	@NotNull
+	private final OutboundLanes lanes;
+
+	// started with the first queued response
+	@Nullable
+	private Thread writer;
 
 	public Runnable onClose;
 
 	public ChatSocket(Socket clientSocket) throws IOException {
-		this.clientSocket = clientSocket;
+		this(clientSocket, new BufferPool(), 8_192);
+	}
+
+	/**
+	 * @param clientSocket     the socket
+	 * @param pool             the pool shared by all the sockets
+	 * @param read_buffer_size size of the buffer borrowed to read from the socket
+	 */
+	public ChatSocket(Socket clientSocket, @NotNull BufferPool pool, int read_buffer_size) throws IOException {
+		this(clientSocket, pool, read_buffer_size, new OutboundLanes());
+	}
 
-		this.socketBuffInStream = new BufferedReader( // improve performance with a buffer
-			new InputStreamReader( // decode raw bytes to the default charset
-				this.clientSocket.getInputStream(),
-				StandardCharsets.UTF_8
-			)
-		);
+	/**
+	 * @param clientSocket     the socket
+	 * @param pool             the pool shared by all the sockets
+	 * @param read_buffer_size size of the buffer borrowed to read from the socket
+	 * @param lanes            where the responses wait for the writer thread
+	 */
+	ChatSocket(Socket clientSocket, @NotNull BufferPool pool, int read_buffer_size, @NotNull OutboundLanes lanes) throws IOException {
+		this.clientSocket = clientSocket;
+		this.pool = pool;
+		this.read_buffer_size = read_buffer_size;
+		this.lanes = lanes;
 
-		this.socketBuffOutStream = new BufferedWriter( // improve performance with a buffer
-			new OutputStreamWriter( // encode raw bytes to the default charset
-				this.clientSocket.getOutputStream(),
-				StandardCharsets.UTF_8
-			)
-		);
+		// no buffered streams, reading and writing use arrays borrowed from the pool only while they are needed
+		this.socketInStream = this.clientSocket.getInputStream();
+		this.socketOutStream = this.clientSocket.getOutputStream();
 	}
 
 	/**
@@ -34,22 +82,124 @@ public class ChatSocket implements AutoCloseable {
 	 *
 	 * This method will call flush on the stream at the end, so data will be sent
 	 *
+	 * It is synchronized because the writer thread (see {@link #send(OutboundLane, Frame)}) writes to the same
+	 * socket, so the lines of different responses are never interleaved
+	 *
+	 * The lines are written right away, before anything waiting in the lanes. Use it for the responses that
+	 * should be written before closing the socket, e. g. when a connection is rejected
+	 *
 	 * @param lines the lines you want to write in the socket stream. These lines may not contain a new line
 	 *              as it will be added by this method automatically when writing to the buffer
 	 * @return the same object. Just for convenience so you can chain calls to other methods
 	 * @throws IOException if there was an error writing to the buffer
 	 */
 	public ChatSocket writeLines(String... lines) throws IOException {
-		for (String line : lines) {
-			this.socketBuffOutStream.write(line);
-			this.socketBuffOutStream.newLine();
+		try (Frame frame = this.newFrame()) {
+			for (String line : lines)
+				frame.line(line);
+			return this.write(frame);
 		}
+	}
 
-		this.socketBuffOutStream.flush();
+	/**
+	 * @return an empty frame with a buffer from the pool of this socket, close it after writing it
+	 */
+	public @NotNull Frame newFrame() {
+		return new Frame(this.pool);
+	}
 
+	/**
+	 * Writes a whole frame to the socket and flushes it
+	 * <p>
+	 * It is synchronized for the same reason as {@link #writeLines(String...)}. The frame is not closed,
+	 * so it can be written to other sockets too
+	 *
+	 * @param frame the lines to write
+	 * @return the same object
+	 * @throws IOException if there was an error writing to the socket
+	 */
+	synchronized public ChatSocket write(@NotNull Frame frame) throws IOException {
+		frame.writeTo(this.socketOutStream);
+		this.socketOutStream.flush();
 		return this;
 	}
 
+	/**
+	 * Queues a frame in one of the lanes of the socket, it is written by the writer thread of the socket
+	 * <p>
+	 * Unlike {@link #write(Frame)}, this returns as soon as the frame is queued, unless the lane is full. Frames
+	 * queued after the socket is closed are discarded
+	 *
+	 * @param lane  the lane, see {@link OutboundLane}
+	 * @param frame the lines to write, the socket closes it after writing it, don't use it after this
+	 * @throws IOException if the socket is closed or if the thread was interrupted while waiting for room
+	 */
+	public void send(@NotNull OutboundLane lane, @NotNull Frame frame) throws IOException {
+		this.startWriter();
+		try {
+			this.lanes.put(lane, frame);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for room in the " + lane + " lane");
+		}
+	}
+
+	/**
+	 * Same as {@link #send(OutboundLane, Frame)}, with the lines
+	 */
+	public void sendLines(@NotNull OutboundLane lane, String... lines) throws IOException {
+		Frame frame = this.newFrame();
+		for (String line : lines)
+			frame.line(line);
+		this.send(lane, frame);
+	}
+
+	private synchronized void startWriter() {
+		if (this.writer != null)
+			return;
+
+		this.writer = new Thread(this::writeQueued, "chat-writer-" + this.clientSocket.getRemoteSocketAddress());
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * The loop of the writer thread, it writes the queued frames until the socket is closed
+	 * <p>
+	 * If a write fails the socket is closed, so the reading thread of the session stops too
+	 */
+	private void writeQueued() {
+		try {
+			Frame frame;
+			while ((frame = this.lanes.take()) != null) {
+				try (Frame written = frame) {
+					OutboundWriteEvent event = new OutboundWriteEvent();
+					long lane_wait = event.isEnabled() ? System.nanoTime() - written.getEnqueuedAt() : 0;
+					event.begin();
+					this.write(written);
+					event.end();
+					if (event.shouldCommit()) {
+						event.lane = String.valueOf(written.getLane());
+						event.size = written.size();
+						event.lane_wait = lane_wait;
+						event.n_waiting = this.lanes.size();
+						event.commit();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			if (!this.closed)
+				e.printStackTrace();
+			try {
+				this.close();
+			} catch (IOException closeException) {
+				closeException.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * @return The original {@link Socket} object. The same used as argument in the
 	 * {@link #ChatSocket(Socket)} constructor
@@ -59,44 +209,171 @@ public class ChatSocket implements AutoCloseable {
 	}
 
 	/**
-	 * This method behaves exacly as {@link BufferedReader#readLine()}
-	 * @return the line read or null if EOF is reached, see {@link BufferedReader#readLine()} for more
+	 * Reads a line, the line separator may be \n or \r\n
+	 * @return the line read or null if EOF is reached
 	 * @throws IOException if there was an error reading the line
 	 */
 	public String readLine() throws IOException {
-		return this.socketBuffInStream.readLine();
+		while (true) {
+			if (!this.fill())
+				return this.takePartialLine(); // the last line, without a separator
+
+			int end = this.indexOfNewLine();
+			if (end < 0) {
+				this.keepPartialLine();
+				continue;
+			}
+
+			String line;
+			if (this.partialLine == null) {
+				// the whole line is in the read buffer, decode it from there
+				line = new String(
+					this.readBuffer,
+					this.read_pos,
+					lineLength(this.readBuffer, this.read_pos, end),
+					StandardCharsets.UTF_8
+				);
+			} else {
+				this.partialLine.append(this.readBuffer, this.read_pos, end - this.read_pos);
+				line = this.takePartialLine();
+			}
+			this.consume(end + 1);
+			return line;
+		}
 	}
 
-	public BufferedWriter getSocketBuffOutStream() {
-		return socketBuffOutStream;
+	/**
+	 * Reads a line and appends it to the frame, with a \n separator, without decoding it
+	 * <p>
+	 * Use it to relay lines (e. g. base64-encoded file chunks) without creating strings
+	 *
+	 * @param frame where the line is appended
+	 * @return the length of the line (without the separator) or -1 if EOF is reached. The line starts at
+	 * the size the frame had before calling this method
+	 * @throws IOException if there was an error reading the line
+	 */
+	public int readLine(@NotNull Frame frame) throws IOException {
+		int start = frame.size();
+		while (true) {
+			if (!this.fill())
+				return -1;
+
+			int end = this.indexOfNewLine();
+			if (end < 0) {
+				frame.append(this.readBuffer, this.read_pos, this.read_limit - this.read_pos);
+				this.consume(this.read_limit);
+				continue;
+			}
+
+			frame.append(this.readBuffer, this.read_pos, end - this.read_pos);
+			this.consume(end + 1);
+
+			int length = lineLength(frame.array(), start, frame.size());
+			frame.setSize(start + length);
+			frame.append(NEW_LINE, 0, 1);
+			return length;
+		}
 	}
 
-	public BufferedReader getSocketBuffInStream() {
-		return socketBuffInStream;
+	/**
+	 * Makes sure there are bytes to consume in the read buffer, borrowing it if needed
+	 * <p>
+	 * While the connection is idle it blocks reading a single byte, without holding a buffer
+	 *
+	 * @return false if EOF is reached
+	 */
+	private boolean fill() throws IOException {
+		if (this.readBuffer != null && this.read_pos < this.read_limit)
+			return true;
+		if (this.closed)
+			return false;
+
+		int first = this.socketInStream.read();
+		if (first < 0)
+			return false;
+
+		if (this.readBuffer == null)
+			this.readBuffer = this.pool.acquire(this.read_buffer_size);
+		this.readBuffer[0] = (byte) first;
+		this.read_pos = 0;
+		this.read_limit = 1;
+
+		// read what already arrived, without blocking again
+		int available = Math.min(this.socketInStream.available(), this.readBuffer.length - 1);
+		if (available > 0) {
+			int n_read = this.socketInStream.read(this.readBuffer, 1, available);
+			if (n_read > 0)
+				this.read_limit += n_read;
+		}
+		return true;
+	}
+
+	private int indexOfNewLine() {
+		byte[] buff = this.readBuffer;
+		for (int i = this.read_pos; i < this.read_limit; ++i)
+			if (buff[i] == '\n')
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Moves the read position, and gives the buffer back to the pool once everything was consumed
+	 */
+	private void consume(int position) {
+		this.read_pos = position;
+		if (this.read_pos == this.read_limit) {
+			this.pool.release(this.readBuffer);
+			this.readBuffer = null;
+			this.read_pos = this.read_limit = 0;
+		}
+	}
+
+	private void keepPartialLine() {
+		if (this.partialLine == null)
+			this.partialLine = this.newFrame();
+		this.partialLine.append(this.readBuffer, this.read_pos, this.read_limit - this.read_pos);
+		this.consume(this.read_limit);
+	}
+
+	/**
+	 * @return the partial line decoded, null if there is none
+	 */
+	private @Nullable String takePartialLine() {
+		Frame line = this.partialLine;
+		if (line == null)
+			return null;
+
+		this.partialLine = null;
+		try {
+			return new String(line.array(), 0, lineLength(line.array(), 0, line.size()), StandardCharsets.UTF_8);
+		} finally {
+			line.close();
+		}
+	}
+
+	/**
+	 * @return the length of the line in [start, end) without the \r of a \r\n separator
+	 */
+	private static int lineLength(@NotNull byte[] buff, int start, int end) {
+		return end > start && buff[end - 1] == '\r' ? end - start - 1 : end - start;
 	}
 
 	/**
 	 * @return true if the socket is closed, this could be because you closed it or because EOF has been reached
 	 */
 	public boolean isClosed() {
-		boolean eof_reached = false;
+		if (this.closed || this.clientSocket.isClosed())
+			return true;
 
 		try {
-			// read from the stream to check if we've reached the EOF
-			// this operation should not modify the current position (pointer) in the buffer
-			// therefore a mark and reset is used
-
-			// mark position previous to reading from the stream, so we can go reset the pointer
-			this.socketBuffInStream.mark(1);
-			eof_reached = this.socketBuffInStream.read() == - 1;
-			this.socketBuffInStream.reset(); // reset the pointer
+			// wait for the next request, it stays in the read buffer
+			return !this.fill();
+		} catch (SocketException e) {
+			return true;
 		} catch (IOException e) {
-			if ("Stream closed".equalsIgnoreCase(e.getMessage()))
-				return true;
 			e.printStackTrace();
+			return true;
 		}
-
-		return this.clientSocket.isClosed() || eof_reached;
 	}
 
 	/**
@@ -121,8 +398,8 @@ public class ChatSocket implements AutoCloseable {
 		if (this.onClose != null)
 			this.onClose.run();
 
-		this.socketBuffOutStream.close();
-		this.socketBuffInStream.close();
+		this.closed = true;
+		this.lanes.close();
 		this.clientSocket.close();
 	}
 }
@@ -40,15 +40,126 @@ public enum ClientRequestType {
 	 * <p>
 	 * An example of the request the client should send is
 	 * <p>
-	 * MESSAGE\n1\n2\nHello world
+	 * MESSAGE\n1\n2\nid:k3J9x1\n---BEGIN MESSAGE---\nSGVsbG8gd29ybGQ=\n---END MESSAGE---
 	 * <p>
 	 * Where 1 is the id for the user SENDING the message, the SENDER
 	 * 2 is the id for the user RECEIVING the message, the RECEIVER
 	 * <p>
-	 * Hello world is simple the message
+	 * SGVsbG8gd29ybGQ= is the base64-encoded message
+	 * <p>
+	 * k3J9x1 is an optional id generated by the client. A client retrying a message should send the same id,
+	 * the server forwards only the first one (see {@link DedupeWindow})
+	 * <p>
+	 * The client may add a t_cs:1612137600000 line with the time (epoch millis) it sent the message, then the
+	 * server adds its own times to the forwarded message (see {@link ServerResponseType#MESSAGE})
+	 * <p>
+	 * Messages with a banned word or link (see {@link ContentFilter}) are not forwarded, the server answers with
+	 * a {@link ServerResponseType#MESSAGE_REJECTED}
 	 */
 	MESSAGE("MESSAGE"),
 
+	/**
+	 * The user wants to send a file to someone, the chunks are sent with {@link #FILE_CHUNK} once the receiver
+	 * answers with {@link #FILE_RESUME}
+	 * <p>
+	 * An interrupted transfer is resumed by offering it again with the same TRANSFER_ID
+	 * <p>
+	 * An example of the request the client should send is
+	 * <p>
+	 * FILE_OFFER\n1\n2\nTRANSFER_ID\nbWkgbGlicm8uZXB1Yg==\n1048576\n65536
+	 * <p>
+	 * Where 1 is the SENDER, 2 is the RECEIVER, TRANSFER_ID identifies the transfer in the following requests,
+	 * bWkgbGlicm8uZXB1Yg== is the base64-encoded file name, 1048576 is the file size
+	 * and 65536 is the size of each chunk
+	 */
+	FILE_OFFER("FILE_OFFER"),
+
+	/**
+	 * The receiver of a file accepts a {@link #FILE_OFFER} and tells the sender which chunks it already has
+	 * <p>
+	 * An example of the request the client should send is
+	 * <p>
+	 * FILE_RESUME\n2\n1\nTRANSFER_ID\nBw==
+	 * <p>
+	 * Where 2 is the RECEIVER of the file, 1 is the SENDER of the file and Bw== is the base64-encoded bitmap
+	 * of the chunks the receiver has (bit i for chunk i), empty for a new transfer
+	 */
+	FILE_RESUME("FILE_RESUME"),
+
+	/**
+	 * A chunk of a file previously offered with {@link #FILE_OFFER}
+	 * <p>
+	 * An example of the request the client should send is
+	 * <p>
+	 * FILE_CHUNK\n1\n2\nTRANSFER_ID\n0\n2313073694\nSGVsbG8gd29ybGQ=
+	 * <p>
+	 * Where 0 is the index of the chunk, 2313073694 is the CRC32 of the chunk (unsigned)
+	 * and SGVsbG8gd29ybGQ= is the base64-encoded content of the chunk
+	 * <p>
+	 * The server relays each chunk as soon as it is read, the file is never kept in the server
+	 */
+	FILE_CHUNK("FILE_CHUNK"),
+
+	/**
+	 * The receiver of a file acknowledges it wrote a chunk, so the sender can send more (flow control)
+	 * <p>
+	 * An example of the request the client should send is
+	 * <p>
+	 * FILE_ACK\n2\n1\nTRANSFER_ID\n0
+	 * <p>
+	 * Where 2 is the RECEIVER of the file (who sends the ack), 1 is the SENDER of the file
+	 * and 0 is the index of the written chunk
+	 */
+	FILE_ACK("FILE_ACK"),
+
+	/**
+	 * Either side aborts a file transfer, e. g. because the receiver rejected the offer
+	 * <p>
+	 * An example of the request the client should send is
+	 * <p>
+	 * FILE_CANCEL\n2\n1\nTRANSFER_ID\nREJECTED
+	 */
+	FILE_CANCEL("FILE_CANCEL"),
+
+	/**
+	 * The user read a conversation up to some message in the device of this session
+	 * <p>
+	 * An example of the request the client should send is
+	 * <p>
+	 * READ\n2\n1\n15
+	 * <p>
+	 * Where 2 is the user who read the messages, 1 is the other user in the conversation
+	 * and 15 is the sequence number of the last message read. The read position is kept per session,
+	 * reading on one device doesn't move the position of the other devices
+	 * <p>
+	 * Reading up to the last message received clears the unread count of the conversation in the inbox
+	 * (see {@link #INBOX}) for all the devices
+	 */
+	READ("READ"),
+
+	/**
+	 * The user searches the messages it sent or received
+	 * <p>
+	 * An example of the request the client should send is
+	 * <p>
+	 * SEARCH\n1\nSEARCH_ID\nbGlicm8gcm9qbw==\n20
+	 * <p>
+	 * Where 1 is the user searching, SEARCH_ID identifies the search in the response,
+	 * bGlicm8gcm9qbw== is the base64-encoded query and 20 is the max number of hits
+	 */
+	SEARCH("SEARCH"),
+
+	/**
+	 * The user wants the last message and the unread count of each of its conversations, e. g. after logging in
+	 * <p>
+	 * An example of the request the client should send is
+	 * <p>
+	 * INBOX\n1
+	 * <p>
+	 * Where 1 is the user loading its inbox. The server answers with a {@link ServerResponseType#INBOX}
+	 */
+	INBOX("INBOX"),
+
 	/**
 	 * The user wants lo logout from the chat service
 	 *
@@ -58,6 +169,9 @@ public enum ClientRequestType {
 	 */
 	LOGOUT("LOGOUT");
 
+	// values() returns a new array each time
+	private static final ClientRequestType[] VALUES = ClientRequestType.values();
+
 	private final String header;
 
 	ClientRequestType(String header) {
@@ -82,6 +196,25 @@ public enum ClientRequestType {
 		return null;
 	}
 
+	/**
+	 * Same as {@link #fromHeader(String)}, with the header as ASCII bytes, so the header doesn't need to be decoded
+	 */
+	public static ClientRequestType fromHeader(byte[] buff, int offset, int length) {
+		for (ClientRequestType reqType : VALUES) {
+			String header = reqType.getHeader();
+			if (header.length() != length)
+				continue;
+
+			int i = 0;
+			while (i < length && Character.toUpperCase((char) buff[offset + i]) == header.charAt(i))
+				++i;
+			if (i == length)
+				return reqType;
+		}
+
+		return null;
+	}
+
 	@Override
 	public String toString() {
 		return "ClientRequestType{" +
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event for the authentication of a {@link ClientRequestType#CONNECT} request, from reading the
+ * request until the client is told whether it succeeded
+ */
+@Name("org.fos.Connect")
+@Label("Connect")
+@Description("Authentication of a CONNECT request")
+@Category({"ShareBook", "Chat Server"})
+@Threshold("20 ms")
+@StackTrace(false)
+public class ConnectEvent extends Event {
+	@Label("Remote Address")
+	String remote_address;
+
+	@Label("Authenticated")
+	boolean authenticated;
+
+	@Label("User")
+	@Description("Chat uid of the user, 0 if it was not authenticated")
+	int uid;
+
+	@Label("User Sessions")
+	@Description("Number of sessions of the user after connecting")
+	int n_sessions;
+}
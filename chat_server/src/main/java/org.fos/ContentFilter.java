@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Finds any of a list of patterns (banned words, spam links) in the messages with an Aho-Corasick automaton
+ * <p>
+ * The automaton reads each byte of the message once, so the cost of filtering a message depends on its length
+ * but not on the number of patterns. The matching is case-insensitive for ASCII letters
+ * <p>
+ * The trie is compiled into flat arrays: the transitions of each state are a sorted run in
+ * {@link #edge_labels}/{@link #edge_targets} and the root has a table with all 256 bytes, since most bytes go
+ * back to it. Each state takes about 17 bytes, roughly one state per byte of the patterns
+ * <p>
+ * Instances are immutable, a new list is compiled into a new filter and swapped with the config
+ */
+public final class ContentFilter {
+	public static final ContentFilter EMPTY = compile(new ArrayList<>());
+
+	// value of each base64 character, -1 for the characters that are not base64
+	private static final byte[] BASE64_VALUES = new byte[256];
+
+	static {
+		Arrays.fill(BASE64_VALUES, (byte) -1);
+		byte[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.getBytes(StandardCharsets.US_ASCII);
+		for (int i = 0; i < alphabet.length; ++i)
+			BASE64_VALUES[alphabet[i]] = (byte) i;
+	}
+
+	// the patterns, indexed by the values in match
+	@NotNull
+	private final String[] patterns;
+
+	// next state from the root (state 0) for each byte
+	@NotNull
+	private final int[] root_next;
+
+	// the transitions of state s are in [edge_start[s], edge_start[s + 1])
+	@NotNull
+	private final int[] edge_start;
+	@NotNull
+	private final byte[] edge_labels;
+	@NotNull
+	private final int[] edge_targets;
+
+	// state to go to when there is no transition, the longest suffix of the state that is in the trie
+	@NotNull
+	private final int[] fail;
+
+	// pattern that ends in the state (or in one of its suffixes), -1 for none
+	@NotNull
+	private final int[] match;
+
+	private ContentFilter(
+		@NotNull String[] patterns,
+		@NotNull int[] root_next,
+		@NotNull int[] edge_start,
+		@NotNull byte[] edge_labels,
+		@NotNull int[] edge_targets,
+		@NotNull int[] fail,
+		@NotNull int[] match
+	) {
+		this.patterns = patterns;
+		this.root_next = root_next;
+		this.edge_start = edge_start;
+		this.edge_labels = edge_labels;
+		this.edge_targets = edge_targets;
+		this.fail = fail;
+		this.match = match;
+	}
+
+	/**
+	 * Reads the patterns from a file, one per line. Blank lines and lines starting with # are ignored
+	 *
+	 * @param file the word list, in UTF-8
+	 * @return the compiled filter
+	 * @throws IOException if the file could not be read
+	 */
+	public static @NotNull ContentFilter load(@NotNull Path file) throws IOException {
+		List<String> patterns = new ArrayList<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (!line.isEmpty() && !line.startsWith("#"))
+				patterns.add(line);
+		}
+		return compile(patterns);
+	}
+
+	/**
+	 * @param patterns the patterns to find, empty patterns are ignored
+	 * @return the compiled filter
+	 */
+	public static @NotNull ContentFilter compile(@NotNull Collection<String> patterns) {
+		Set<String> unique = new LinkedHashSet<>();
+		for (String pattern : patterns)
+			if (!pattern.isEmpty())
+				unique.add(pattern);
+		String[] patternsArr = unique.toArray(new String[0]);
+
+		// build the trie, the transitions sorted by byte so they are already in order when compiled
+		List<TreeMap<Integer, Integer>> children = new ArrayList<>();
+		List<Integer> ends = new ArrayList<>(); // pattern ending in each state
+		children.add(new TreeMap<>());
+		ends.add(-1);
+		for (int i = 0; i < patternsArr.length; ++i) {
+			int state = 0;
+			for (byte b : patternsArr[i].getBytes(StandardCharsets.UTF_8)) {
+				Integer next = children.get(state).get(fold(b));
+				if (next == null) {
+					next = children.size();
+					children.add(new TreeMap<>());
+					ends.add(-1);
+					children.get(state).put(fold(b), next);
+				}
+				state = next;
+			}
+			if (ends.get(state) < 0)
+				ends.set(state, i);
+		}
+
+		int n_states = children.size();
+		int[] fail = new int[n_states];
+		int[] match = new int[n_states];
+		match[0] = -1;
+
+		// failure links in breadth-first order, the links of the shorter states are known first
+		ArrayDeque<Integer> queue = new ArrayDeque<>(children.get(0).values());
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			match[state] = ends.get(state) >= 0 ? ends.get(state) : match[fail[state]];
+
+			for (Map.Entry<Integer, Integer> child : children.get(state).entrySet()) {
+				int target = fail[state];
+				Integer next;
+				while ((next = children.get(target).get(child.getKey())) == null && target != 0)
+					target = fail[target];
+				fail[child.getValue()] = next == null ? 0 : next;
+				queue.add(child.getValue());
+			}
+		}
+
+		// compile the transitions into the flat arrays
+		int[] root_next = new int[256];
+		for (Map.Entry<Integer, Integer> child : children.get(0).entrySet())
+			root_next[child.getKey()] = child.getValue();
+
+		int[] edge_start = new int[n_states + 1];
+		for (int state = 0; state < n_states; ++state)
+			edge_start[state + 1] = edge_start[state] + (state == 0 ? 0 : children.get(state).size());
+
+		byte[] edge_labels = new byte[edge_start[n_states]];
+		int[] edge_targets = new int[edge_start[n_states]];
+		for (int state = 1; state < n_states; ++state) {
+			int edge = edge_start[state];
+			for (Map.Entry<Integer, Integer> child : children.get(state).entrySet()) {
+				edge_labels[edge] = (byte) (int) child.getKey();
+				edge_targets[edge] = child.getValue();
+				++edge;
+			}
+		}
+
+		return new ContentFilter(patternsArr, root_next, edge_start, edge_labels, edge_targets, fail, match);
+	}
+
+	/**
+	 * Looks for the patterns in the bytes
+	 *
+	 * @return the index of a pattern found (see {@link #getPattern(int)}), or -1 if none was found
+	 */
+	public int find(@NotNull byte[] bytes, int offset, int length) {
+		if (this.patterns.length == 0)
+			return -1;
+
+		int state = 0;
+		for (int i = offset, end = offset + length; i < end; ++i) {
+			state = this.next(state, fold(bytes[i]));
+			if (this.match[state] >= 0)
+				return this.match[state];
+		}
+		return -1;
+	}
+
+	/**
+	 * Same as {@link #find(byte[], int, int)}, but the bytes are base64-encoded, e. g. the text of a message
+	 * <p>
+	 * The text is decoded while it is read, without allocating it. Characters that are not base64 are skipped
+	 * and the decoding stops at the padding
+	 */
+	public int findBase64(@NotNull byte[] base64, int offset, int length) {
+		if (this.patterns.length == 0)
+			return -1;
+
+		int state = 0;
+		int bits = 0;
+		int n_bits = 0;
+		for (int i = offset, end = offset + length; i < end && base64[i] != '='; ++i) {
+			int value = BASE64_VALUES[base64[i] & 0xff];
+			if (value < 0)
+				continue;
+
+			bits = bits << 6 | value;
+			n_bits += 6;
+			if (n_bits >= 8) {
+				n_bits -= 8;
+				state = this.next(state, fold((byte) (bits >> n_bits)));
+				if (this.match[state] >= 0)
+					return this.match[state];
+			}
+		}
+		return -1;
+	}
+
+	private int next(int state, int b) {
+		while (state != 0) {
+			// binary search the transitions of the state, they are sorted by byte
+			int low = this.edge_start[state];
+			int high = this.edge_start[state + 1] - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int label = this.edge_labels[mid] & 0xff;
+				if (label < b)
+					low = mid + 1;
+				else if (label > b)
+					high = mid - 1;
+				else
+					return this.edge_targets[mid];
+			}
+			state = this.fail[state];
+		}
+		return this.root_next[b];
+	}
+
+	/**
+	 * @return the byte as an unsigned int, with ASCII upper case letters turned to lower case
+	 */
+	private static int fold(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff;
+	}
+
+	public @NotNull String getPattern(int index) {
+		return this.patterns[index];
+	}
+
+	/**
+	 * @return the number of patterns
+	 */
+	public int size() {
+		return this.patterns.length;
+	}
+
+	/**
+	 * @return the number of states of the automaton
+	 */
+	public int getStateCount() {
+		return this.fail.length;
+	}
+
+	@Override
+	public String toString() {
+		return "ContentFilter{patterns=" + this.patterns.length + ", states=" + this.fail.length + '}';
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The last message and the unread count of a conversation, as kept by the {@link InboxStore}
+ */
+public class ConversationSummary {
+	// the chat uid of the other user in the conversation
+	private final int peer_uid;
+
+	// the seq of the last message in the conversation
+	private final long last_seq;
+
+	// when the server forwarded the last message, epoch millis
+	private final long last_time;
+
+	// who sent the last message, the owner of the inbox or the peer
+	private final int last_from_uid;
+
+	// messages received from the peer after the last one the user read
+	private final int unread;
+
+	// the first bytes of the last message, UTF-8, cut at a character boundary
+	@NotNull
+	private final byte[] preview;
+
+	public ConversationSummary(int peer_uid, long last_seq, long last_time, int last_from_uid, int unread, @NotNull byte[] preview) {
+		this.peer_uid = peer_uid;
+		this.last_seq = last_seq;
+		this.last_time = last_time;
+		this.last_from_uid = last_from_uid;
+		this.unread = unread;
+		this.preview = preview;
+	}
+
+	public int getPeerUID() {
+		return peer_uid;
+	}
+
+	public long getLastSeq() {
+		return last_seq;
+	}
+
+	public long getLastTime() {
+		return last_time;
+	}
+
+	public int getLastFromUID() {
+		return last_from_uid;
+	}
+
+	public int getUnread() {
+		return unread;
+	}
+
+	public @NotNull byte[] getPreview() {
+		return preview;
+	}
+
+	@Override
+	public String toString() {
+		return "ConversationSummary{" +
+			"peer_uid=" + peer_uid +
+			", last_seq=" + last_seq +
+			", last_time=" + last_time +
+			", last_from_uid=" + last_from_uid +
+			", unread=" + unread +
+			", preview_length=" + preview.length +
+			'}';
+	}
+}
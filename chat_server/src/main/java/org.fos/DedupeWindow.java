@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Remembers the ids of the last messages sent by a user, so a message sent twice (e. g. a client retrying after
+ * reconnecting) is forwarded only once
+ * <p>
+ * The ids are kept as 64-bit hashes in a ring of the last {@link #CAPACITY} ids, and a counting Bloom filter
+ * over the same ids answers most lookups (new ids) without scanning the ring. The memory is fixed, about 6 KB,
+ * no matter how many messages the user sends
+ * <p>
+ * The methods are synchronized, the sessions of the same user may send messages at the same time
+ */
+public class DedupeWindow {
+	// number of recent ids remembered
+	static final int CAPACITY = 256;
+
+	// counters of the Bloom filter, a power of 2
+	private static final int N_COUNTERS = 2_048;
+
+	// number of counters for each id
+	private static final int N_HASHES = 3;
+
+	// hashes of the last ids, the oldest is at next when the ring is full
+	@NotNull
+	private final long[] ring;
+	private int next;
+	private int size;
+
+	// a counter is never more than CAPACITY (256 fits in a short, a byte could overflow)
+	@NotNull
+	private final short[] counters;
+
+	public DedupeWindow() {
+		this.ring = new long[CAPACITY];
+		this.counters = new short[N_COUNTERS];
+	}
+
+	/**
+	 * Remembers the id, unless it was already in the window
+	 *
+	 * @param message_id the id the client attached to the message
+	 * @return true if the id is new, false if it is a duplicate of one of the last {@link #CAPACITY} messages
+	 */
+	public boolean add(@NotNull String message_id) {
+		return this.add(hash(message_id));
+	}
+
+	/**
+	 * Same as {@link #add(String)}, with the UTF-8 bytes of the id
+	 */
+	public boolean add(@NotNull byte[] message_id, int offset, int length) {
+		return this.add(hash(message_id, offset, length));
+	}
+
+	private synchronized boolean add(long hash) {
+		if (this.mightContain(hash) && this.ringContains(hash))
+			return false;
+
+		if (this.size == CAPACITY)
+			this.updateCounters(this.ring[this.next], -1); // forget the oldest id
+		else
+			++this.size;
+
+		this.ring[this.next] = hash;
+		this.next = (this.next + 1) % CAPACITY;
+		this.updateCounters(hash, 1);
+		return true;
+	}
+
+	private boolean mightContain(long hash) {
+		for (int i = 0; i < N_HASHES; ++i)
+			if (this.counters[counterIndex(hash, i)] == 0)
+				return false;
+		return true;
+	}
+
+	private boolean ringContains(long hash) {
+		for (int i = 0; i < this.size; ++i)
+			if (this.ring[i] == hash)
+				return true;
+		return false;
+	}
+
+	private void updateCounters(long hash, int delta) {
+		for (int i = 0; i < N_HASHES; ++i)
+			this.counters[counterIndex(hash, i)] += delta;
+	}
+
+	/**
+	 * Double hashing, the i-th counter of the id is h1 + i * h2
+	 */
+	private static int counterIndex(long hash, int i) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1; // odd, so it visits different counters
+		return (h1 + i * h2) & (N_COUNTERS - 1);
+	}
+
+	/**
+	 * 64-bit FNV-1a of the UTF-8 bytes of the id, with the final mix of MurmurHash3 so all bits are well spread
+	 */
+	static long hash(@NotNull String message_id) {
+		byte[] bytes = message_id.getBytes(StandardCharsets.UTF_8);
+		return hash(bytes, 0, bytes.length);
+	}
+
+	static long hash(@NotNull byte[] message_id, int offset, int length) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; ++i) {
+			hash ^= message_id[i] & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.SequenceInputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Measures the bytes allocated to relay a message, with buffered readers and strings (as the server used to do)
+ * and with {@link ChatServer#handleClientRequest(ChatSession)}, the code the server runs for each request
+ * <p>
+ * The requests are read from memory and the responses are discarded. The server relays each message to another
+ * session of the same user, as it does with the devices of a receiver. Only the allocations of the thread reading
+ * the requests are counted, it is the one that delays the next message. The writers of the sockets, the message
+ * index and the inbox allocate in their own threads
+ * <p>
+ * The messages are read as fast as the thread can, faster than the index and the inbox keep up with, so the reader
+ * waits for room in their queues (see {@link BoundedExecutor}) and for the writers of the sockets. That bounds the
+ * frames in flight, they go back to the {@link BufferPool} and are reused. What is left is mostly the log line and
+ * the small objects (frames, tasks) of each message
+ * <p>
+ * The server is started on a free port, with a temporary config and inbox directory.
+ * Run it with java -cp chat_server.jar org.fos.ForwardingAllocationBenchmark [number of messages]
+ */
+public class ForwardingAllocationBenchmark {
+	private static final int WARMUP_MESSAGES = 50_000;
+
+	private static final String LOGIN_HASH = "loginhashbypasss";
+
+	public static void main(String[] args) throws Exception {
+		int n_messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+		long strings = measure(new StringRelay(), n_messages);
+
+		Path dir = Files.createTempDirectory("forwarding-benchmark");
+		long server;
+		PrintStream stdout = System.out;
+		try {
+			ServerRelay relay = new ServerRelay(dir);
+			System.setOut(new PrintStream(new NullOutputStream())); // the server logs every message
+			try {
+				server = measure(relay, n_messages);
+			} finally {
+				System.setOut(stdout);
+			}
+			relay.close();
+		} finally {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+
+		System.out.println("Bytes allocated per forwarded message (" + MessageRequests.REQUEST_SIZE + " bytes each)");
+		System.out.println("\tBufferedReader + strings: " + strings);
+		System.out.println("\tChatServer:               " + server);
+	}
+
+	/**
+	 * @return the average number of bytes allocated by the current thread to relay a message
+	 */
+	private static long measure(@NotNull Relay relay, int n_messages) throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread_id = Thread.currentThread().getId();
+
+		for (int i = 0; i < WARMUP_MESSAGES; ++i)
+			relay.relay(i);
+
+		long before = threads.getThreadAllocatedBytes(thread_id);
+		for (int i = 0; i < n_messages; ++i)
+			relay.relay(i);
+		long after = threads.getThreadAllocatedBytes(thread_id);
+
+		return (after - before) / n_messages;
+	}
+
+	private interface Relay {
+		void relay(long seq) throws IOException;
+	}
+
+	/**
+	 * The relay as it was done before the pool, kept here as the baseline
+	 */
+	private static class StringRelay implements Relay {
+		@NotNull
+		private final BufferedReader in;
+		@NotNull
+		private final BufferedWriter out;
+
+		@NotNull
+		private final DedupeWindow dedupe = new DedupeWindow();
+
+		private int to_id;
+
+		StringRelay() {
+			this.in = new BufferedReader(new InputStreamReader(new MessageRequests(), StandardCharsets.UTF_8));
+			this.out = new BufferedWriter(new OutputStreamWriter(new NullOutputStream(), StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void relay(long seq) throws IOException {
+			if (ClientRequestType.fromHeader(this.in.readLine()) != ClientRequestType.MESSAGE)
+				throw new IllegalStateException("Unexpected request");
+			String fromID = this.in.readLine();
+			String toID = this.in.readLine();
+			this.to_id = Integer.parseInt(toID);
+			String messageID = this.in.readLine().substring(3);
+			String messageHeader = this.in.readLine();
+			String message = this.in.readLine();
+			String messageFooter = this.in.readLine();
+			this.dedupe.add(messageID);
+
+			this.writeLines(
+				ServerResponseType.MESSAGE.getHeader(),
+				fromID,
+				toID,
+				"seq:" + seq,
+				"id:" + messageID,
+				messageHeader,
+				message,
+				messageFooter
+			);
+		}
+
+		private void writeLines(String... lines) throws IOException {
+			for (String line : lines) {
+				this.out.write(line);
+				this.out.newLine();
+			}
+			this.out.flush();
+		}
+	}
+
+	/**
+	 * The relay of {@link ChatServer}: a session sends the messages, another session of the same user receives them
+	 */
+	private static class ServerRelay implements Relay {
+		@NotNull
+		private final ChatServer server;
+
+		@NotNull
+		private final ChatSession sender;
+
+		ServerRelay(@NotNull Path dir) throws Exception {
+			int port;
+			try (ServerSocket socket = new ServerSocket(0)) {
+				port = socket.getLocalPort();
+			}
+			Path config = dir.resolve("benchmark.properties");
+			Files.write(config, ("CHAT_PORT=" + port + "\nINBOX_DIR=inbox\n").getBytes(StandardCharsets.UTF_8));
+			System.setProperty(ServerConfig.CONFIG_PROPERTY, config.toString());
+			this.server = new ChatServer();
+
+			this.connect(new ByteArrayInputStream(connectRequest())); // the receiver, it only reads the connect request
+			this.sender = this.connect(new SequenceInputStream(
+				new ByteArrayInputStream(connectRequest()),
+				new MessageRequests()
+			));
+		}
+
+		private @NotNull ChatSession connect(@NotNull InputStream in) throws IOException {
+			ChatSocket socket = new ChatSocket(new MemorySocket(in, new NullOutputStream()), new BufferPool(), 8_192);
+			ChatSession session = this.server.handleNewClientConnected(socket);
+			if (session == null)
+				throw new IllegalStateException("The benchmark session was not accepted");
+			return session;
+		}
+
+		private static byte[] connectRequest() {
+			return (ClientRequestType.CONNECT.getHeader() + '\n' + LOGIN_HASH + '\n').getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void relay(long seq) throws IOException {
+			this.server.handleClientRequest(this.sender);
+		}
+
+		void close() {
+			this.server.drain(0);
+		}
+	}
+
+	/**
+	 * MESSAGE requests like the ones sent by the clients, with a 200 characters message, forever. Each one has a
+	 * different id, so none is dropped as a duplicate
+	 */
+	private static class MessageRequests extends InputStream {
+		private static final byte[] TEMPLATE;
+		private static final int ID_DIGITS = 16;
+		private static final int ID_START;
+		static final int REQUEST_SIZE;
+
+		static {
+			StringBuilder text = new StringBuilder();
+			while (text.length() < 200)
+				text.append("the quick brown fox jumps over the lazy dog ");
+
+			String beforeID = String.join(
+				"\n",
+				ClientRequestType.MESSAGE.getHeader(),
+				"10",
+				"10",
+				"id:"
+			);
+			String id = String.format("%0" + ID_DIGITS + "d", 0);
+			String afterID = String.join(
+				"\n",
+				"",
+				"---BEGIN MESSAGE---",
+				Base64.getEncoder().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8)),
+				"---END MESSAGE---",
+				""
+			);
+			TEMPLATE = (beforeID + id + afterID).getBytes(StandardCharsets.UTF_8);
+			ID_START = beforeID.length();
+			REQUEST_SIZE = TEMPLATE.length;
+		}
+
+		@NotNull
+		private final byte[] request = TEMPLATE.clone();
+		private int position;
+		private long id;
+
+		@Override
+		public int read() {
+			int b = this.request[this.position] & 0xFF;
+			this.advance(1);
+			return b;
+		}
+
+		@Override
+		public int read(@NotNull byte[] buff, int offset, int length) {
+			int n = Math.min(length, this.request.length - this.position);
+			System.arraycopy(this.request, this.position, buff, offset, n);
+			this.advance(n);
+			return n;
+		}
+
+		private void advance(int n) {
+			this.position += n;
+			if (this.position < this.request.length)
+				return;
+
+			// the next request, with the next id
+			this.position = 0;
+			long digits = ++this.id;
+			for (int i = ID_START + ID_DIGITS - 1; i >= ID_START; --i, digits /= 10)
+				this.request[i] = (byte) ('0' + digits % 10);
+		}
+
+		@Override
+		public int available() {
+			return this.request.length - this.position;
+		}
+	}
+
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(@NotNull byte[] buff, int offset, int length) {
+		}
+	}
+
+	/**
+	 * A socket that reads and writes the given streams, without a connection
+	 */
+	private static class MemorySocket extends Socket {
+		@NotNull
+		private final InputStream in;
+		@NotNull
+		private final OutputStream out;
+
+		MemorySocket(@NotNull InputStream in, @NotNull OutputStream out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return this.in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this.out;
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A response being written, as UTF-8 bytes in an array borrowed from a {@link BufferPool}
+ * <p>
+ * Lines are encoded straight into the array, numbers are written digit by digit and lines read from another
+ * socket are copied as raw bytes (see {@link ChatSocket#readLine(Frame)}), so building and relaying a response
+ * doesn't create strings or other garbage
+ * <p>
+ * The same frame can be written to many sockets, e. g. to every session of a user. Close it to give the array
+ * back to the pool
+ * <p>
+ * A frame read by several threads (e. g. the message index and the inbox) is shared instead of copied: each
+ * reader gets a reference with {@link #retain()} and closes it, the array goes back to the pool with the last one
+ */
+public class Frame implements AutoCloseable {
+	// the array of a closed frame, the pool ignores it so closing twice is harmless
+	private static final byte[] CLOSED = new byte[0];
+
+	// a field updater instead of an AtomicInteger, so a frame is a single object
+	private static final AtomicIntegerFieldUpdater<Frame> REFERENCES =
+		AtomicIntegerFieldUpdater.newUpdater(Frame.class, "references");
+
+	@NotNull
+	private final BufferPool pool;
+
+	@NotNull
+	private byte[] buff;
+
+	private int size;
+
+	// set when the frame is added to the lanes of a socket, see OutboundLanes
+	@Nullable
+	private OutboundLane lane;
+	private long enqueued_at;
+
+	// number of open references, see retain()
+	private volatile int references;
+
+	Frame(@NotNull BufferPool pool) {
+		this.pool = pool;
+		this.buff = pool.acquire(BufferPool.MIN_SIZE);
+		this.references = 1;
+	}
+
+	/**
+	 * Appends a line, encoded in UTF-8
+	 */
+	public @NotNull Frame line(@NotNull CharSequence line) {
+		// a char is at most 3 bytes in UTF-8 (a surrogate pair is 2 chars and 4 bytes)
+		this.ensureCapacity(line.length() * 3 + 1);
+
+		byte[] buff = this.buff;
+		int size = this.size;
+		for (int i = 0; i < line.length(); ++i) {
+			char c = line.charAt(i);
+			if (c < 0x80) {
+				buff[size++] = (byte) c;
+			} else if (c < 0x800) {
+				buff[size++] = (byte) (0xC0 | c >> 6);
+				buff[size++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1))) {
+				int code_point = Character.toCodePoint(c, line.charAt(++i));
+				buff[size++] = (byte) (0xF0 | code_point >> 18);
+				buff[size++] = (byte) (0x80 | code_point >> 12 & 0x3F);
+				buff[size++] = (byte) (0x80 | code_point >> 6 & 0x3F);
+				buff[size++] = (byte) (0x80 | code_point & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				buff[size++] = '?'; // unpaired surrogate, like String.getBytes
+			} else {
+				buff[size++] = (byte) (0xE0 | c >> 12);
+				buff[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+				buff[size++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		buff[size++] = '\n';
+		this.size = size;
+		return this;
+	}
+
+	/**
+	 * Appends a line with the number, without creating a string
+	 */
+	public @NotNull Frame line(long value) {
+		return this.line("", value);
+	}
+
+	/**
+	 * Appends a line with an ASCII prefix followed by the number, e. g. "seq:" and 10 give "seq:10"
+	 */
+	public @NotNull Frame line(@NotNull String prefix, long value) {
+		this.ensureCapacity(prefix.length() + 21); // sign, 19 digits and the line separator
+
+		if (value == Long.MIN_VALUE)
+			return this.line(prefix + value);
+
+		for (int i = 0; i < prefix.length(); ++i)
+			this.buff[this.size++] = (byte) prefix.charAt(i);
+
+
+		if (value < 0) {
+			this.buff[this.size++] = '-';
+			value = -value;
+		}
+
+		int n_digits = 1;
+		for (long rest = value / 10; rest != 0; rest /= 10)
+			++n_digits;
+
+		for (int i = this.size + n_digits - 1; i >= this.size; --i) {
+			this.buff[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		this.size += n_digits;
+		this.buff[this.size++] = '\n';
+		return this;
+	}
+
+	/**
+	 * Appends bytes already encoded
+	 */
+	void append(@NotNull byte[] bytes, int offset, int length) {
+		this.ensureCapacity(length);
+		System.arraycopy(bytes, offset, this.buff, this.size, length);
+		this.size += length;
+	}
+
+	/**
+	 * Appends a part of another frame
+	 */
+	public @NotNull Frame append(@NotNull Frame other, int offset, int length) {
+		this.append(other.buff, offset, length);
+		return this;
+	}
+
+	/**
+	 * @return true if the bytes in [offset, offset + length) start with the given bytes
+	 */
+	boolean regionStartsWith(int offset, int length, @NotNull byte[] prefix) {
+		if (length < prefix.length)
+			return false;
+
+		for (int i = 0; i < prefix.length; ++i)
+			if (this.buff[offset + i] != prefix[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return true if the bytes in [offset, offset + length) are the given bytes
+	 */
+	boolean regionEquals(int offset, int length, @NotNull byte[] bytes) {
+		return length == bytes.length && this.regionStartsWith(offset, length, bytes);
+	}
+
+	/**
+	 * Parses the decimal number in [offset, offset + length), like {@link Long#parseLong(String)} but without
+	 * creating a string
+	 *
+	 * @throws NumberFormatException if the bytes are not a number
+	 */
+	long parseLong(int offset, int length) {
+		boolean negative = length > 1 && this.buff[offset] == '-';
+		int start = negative ? offset + 1 : offset;
+		if (length == 0 || length - (start - offset) > 18) // more digits could overflow, let Long do it
+			return Long.parseLong(new String(this.buff, offset, length, StandardCharsets.UTF_8));
+
+		long value = 0;
+		for (int i = start; i < offset + length; ++i) {
+			int digit = this.buff[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException(
+					"For input string: \"" + new String(this.buff, offset, length, StandardCharsets.UTF_8) + "\""
+				);
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	void ensureCapacity(int n_bytes) {
+		if (this.size + n_bytes > this.buff.length)
+			this.buff = this.pool.grow(this.buff, this.size, this.size + n_bytes);
+	}
+
+	void writeTo(@NotNull OutputStream out) throws IOException {
+		out.write(this.buff, 0, this.size);
+	}
+
+	/**
+	 * @return the array with the content, valid until something else is appended
+	 */
+	@NotNull byte[] array() {
+		return buff;
+	}
+
+	/**
+	 * @return number of bytes in the frame
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Drops the bytes after the given size
+	 */
+	void setSize(int size) {
+		if (size < 0 || size > this.size)
+			throw new IllegalArgumentException("The size should be in [0, " + this.size + "], but it is " + size);
+		this.size = size;
+	}
+
+	/**
+	 * @return a new frame with the same content, e. g. to write the same response to many sockets
+	 */
+	public @NotNull Frame copy() {
+		Frame copy = new Frame(this.pool);
+		copy.append(this.buff, 0, this.size);
+		return copy;
+	}
+
+	void setQueued(@NotNull OutboundLane lane, long enqueued_at) {
+		this.lane = lane;
+		this.enqueued_at = enqueued_at;
+	}
+
+	/**
+	 * @return the lane where the frame was queued, null if it was not queued
+	 */
+	@Nullable OutboundLane getLane() {
+		return lane;
+	}
+
+	/**
+	 * @return System.nanoTime when the frame was queued
+	 */
+	long getEnqueuedAt() {
+		return enqueued_at;
+	}
+
+	/**
+	 * Empties the frame, so it can be reused
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+
+	/**
+	 * Adds a reference to the frame, e. g. to hand it to another thread that only reads it
+	 * The frame should not be modified while it is shared
+	 *
+	 * @return this frame, close it once for each reference
+	 */
+	public @NotNull Frame retain() {
+		REFERENCES.incrementAndGet(this);
+		return this;
+	}
+
+	/**
+	 * Closes a reference, the last one gives the array back to the pool. The frame should not be used after this
+	 */
+	@Override
+	public void close() {
+		if (REFERENCES.decrementAndGet(this) > 0)
+			return;
+
+		this.pool.release(this.buff);
+		this.buff = CLOSED;
+		this.size = 0;
+	}
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The inbox of each user: the last message and the unread count of every conversation, kept up to date as messages
+ * are forwarded and read, so loading the inbox doesn't scan the history
+ * <p>
+ * Each user has a UID.inbox file with one fixed-size record per conversation:
+ * <p>
+ * [int peer_uid][long last_seq][long last_time][int last_from_uid][int unread][long last_received_seq]
+ * [short preview_length][preview, padded to {@link #RECORD_SIZE}]
+ * <p>
+ * A record never moves, so updating a conversation is a single positional write and loading the whole inbox is a
+ * single read of the file: 2000 conversations are 250 KiB
+ * <p>
+ * Updates are done in a single background thread, so forwarding a message never waits for the disk. The files are
+ * not synced on every update, a crash may lose the last updates
+ */
+public class InboxStore implements AutoCloseable {
+	static final int RECORD_SIZE = 128;
+
+	// offsets of the fields in a record
+	private static final int PEER_UID = 0;
+	private static final int LAST_SEQ = 4;
+	private static final int LAST_TIME = 12;
+	private static final int LAST_FROM_UID = 20;
+	private static final int UNREAD = 24;
+	private static final int LAST_RECEIVED_SEQ = 28;
+	private static final int PREVIEW_LENGTH = 36;
+	private static final int PREVIEW = 38;
+
+	// max size in bytes of the preview of the last message
+	static final int MAX_PREVIEW_SIZE = RECORD_SIZE - PREVIEW;
+
+	// max number of inbox files that are kept open at the same time
+	private static final int MAX_OPEN_INBOXES = 256;
+
+	@NotNull
+	private final Path dir;
+
+	// max number of updates waiting to be written, adding more waits for room (see BoundedExecutor)
+	private static final int MAX_PENDING_UPDATES = 32;
+
+	// single thread, so the updates of a conversation are written in order
+	@NotNull
+	private final ExecutorService writer;
+
+	// maps chat uid -> open inbox, in access order so the least recently used is closed first
+	@NotNull
+	private final LinkedHashMap<Integer, UserInbox> openInboxes;
+
+	/**
+	 * Creates a new store, the directory will be created if it doesn't exist
+	 *
+	 * @param dir the directory where the inbox files are kept
+	 * @throws IOException if the directory could not be created
+	 */
+	public InboxStore(@NotNull Path dir) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.writer = BoundedExecutor.newSingleThreadExecutor("inbox-writer", MAX_PENDING_UPDATES);
+		this.openInboxes = new LinkedHashMap<Integer, UserInbox>(MAX_OPEN_INBOXES, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, UserInbox> eldest) {
+				if (this.size() <= MAX_OPEN_INBOXES)
+					return false;
+
+				eldest.getValue().close();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Updates the conversation in the inbox of both users after a message was forwarded, in a background thread
+	 * <p>
+	 * The message counts as unread only for the receiver
+	 *
+	 * @param from_uid the sender
+	 * @param to_uid   the receiver
+	 * @param seq      position of the message in the conversation
+	 * @param time     when the message was forwarded, epoch millis
+	 * @param base64   a reference to the base64-encoded message (see {@link Frame#retain()}), it is closed once the inboxes are updated. Only the
+	 *                 beginning is decoded, for the preview
+	 */
+	public void messageForwarded(int from_uid, int to_uid, long seq, long time, @NotNull Frame base64) {
+		try {
+			this.writer.execute(() -> {
+				byte[] preview;
+				try (Frame message = base64) {
+					preview = preview(message);
+				}
+
+				try {
+					this.getInbox(from_uid).update(to_uid, seq, time, from_uid, false, preview);
+					if (to_uid != from_uid)
+						this.getInbox(to_uid).update(from_uid, seq, time, from_uid, true, preview);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			base64.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Clears the unread count of a conversation if the user read up to the last message it received, in a
+	 * background thread
+	 * <p>
+	 * The count is not known when the user read only some of the unread messages, so it is kept until the user
+	 * reads the last one. Unlike the read position of a {@link ChatSession}, the count is the same for all the
+	 * devices of the user
+	 *
+	 * @param uid      the user who read the messages
+	 * @param peer_uid the other user in the conversation
+	 * @param seq      the sequence number of the last message read
+	 */
+	public void read(int uid, int peer_uid, long seq) {
+		this.writer.execute(() -> {
+			try {
+				this.getInbox(uid).read(peer_uid, seq);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Reads the inbox of a user with a single read of its file, after the pending updates are written
+	 *
+	 * @param uid the owner of the inbox
+	 * @return a future with the conversations, the one with the newest message first
+	 */
+	public @NotNull CompletableFuture<List<ConversationSummary>> load(int uid) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				List<ConversationSummary> summaries = new ArrayList<>();
+				ByteBuffer records = this.readAll(uid);
+				while (records.remaining() >= RECORD_SIZE) {
+					int start = records.position();
+					byte[] preview = new byte[Math.min(MAX_PREVIEW_SIZE, Math.max(0, records.getShort(start + PREVIEW_LENGTH)))];
+					records.position(start + PREVIEW);
+					records.get(preview);
+					summaries.add(new ConversationSummary(
+						records.getInt(start + PEER_UID),
+						records.getLong(start + LAST_SEQ),
+						records.getLong(start + LAST_TIME),
+						records.getInt(start + LAST_FROM_UID),
+						records.getInt(start + UNREAD),
+						preview
+					));
+					records.position(start + RECORD_SIZE);
+				}
+				summaries.sort(Comparator.comparingLong(ConversationSummary::getLastTime).reversed());
+				return summaries;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, this.writer);
+	}
+
+	/**
+	 * Reads the sequence number of the last message of a conversation, after the pending updates are written.
+	 * The server continues the numbering from it after a restart
+	 *
+	 * @param uid      one of the users
+	 * @param peer_uid the other user in the conversation
+	 * @return a future with the last seq, 0 if the conversation has no messages
+	 */
+	public @NotNull CompletableFuture<Long> lastSeq(int uid, int peer_uid) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return this.getInbox(uid).lastSeq(peer_uid);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, this.writer);
+	}
+
+	/**
+	 * Reads the whole inbox file of a user, the file is not opened for writing if the user doesn't have it open
+	 */
+	private @NotNull ByteBuffer readAll(int uid) throws IOException {
+		UserInbox inbox;
+		synchronized (this.openInboxes) {
+			inbox = this.openInboxes.get(uid);
+		}
+		if (inbox != null)
+			return inbox.readAll();
+
+		try (FileChannel channel = FileChannel.open(this.dir.resolve(uid + ".inbox"), StandardOpenOption.READ)) {
+			return readFully(channel, channel.size() / RECORD_SIZE * RECORD_SIZE);
+		} catch (NoSuchFileException e) {
+			return ByteBuffer.allocate(0); // the user doesn't have any conversation yet
+		}
+	}
+
+	private static @NotNull ByteBuffer readFully(@NotNull FileChannel channel, long size) throws IOException {
+		ByteBuffer buff = ByteBuffer.allocate((int) size);
+		while (buff.hasRemaining() && channel.read(buff, buff.position()) >= 0)
+			; // a single read unless the file is huge
+		buff.flip();
+		return buff;
+	}
+
+	/**
+	 * @return the first bytes of a base64-encoded UTF-8 message, cut at a character boundary. Only the base64
+	 * characters needed for the preview (and one more character) are decoded
+	 */
+	static @NotNull byte[] preview(@NotNull Frame base64) {
+		// 4 base64 characters are 3 bytes, a prefix with a multiple of 4 characters is valid base64 too
+		int length = Math.min(base64.size(), ((MAX_PREVIEW_SIZE + 4) / 3 + 1) * 4);
+		ByteBuffer decoded;
+		try {
+			decoded = Base64.getDecoder().decode(ByteBuffer.wrap(base64.array(), 0, length));
+		} catch (IllegalArgumentException e) {
+			return new byte[0]; // not base64, the receiver can't read it either
+		}
+		return preview(decoded.array(), decoded.limit());
+	}
+
+	/**
+	 * @return the first bytes of the text in UTF-8, cut at a character boundary
+	 */
+	static @NotNull byte[] preview(@NotNull String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		return preview(bytes, bytes.length);
+	}
+
+	private static @NotNull byte[] preview(@NotNull byte[] bytes, int size) {
+		if (size <= MAX_PREVIEW_SIZE)
+			return Arrays.copyOf(bytes, size);
+
+		int length = MAX_PREVIEW_SIZE;
+		while (length > 0 && (bytes[length] & 0xC0) == 0x80) // a continuation byte, don't split the character
+			--length;
+		byte[] preview = new byte[length];
+		System.arraycopy(bytes, 0, preview, 0, length);
+		return preview;
+	}
+
+	/**
+	 * Waits for the pending updates and closes all open files
+	 */
+	@Override
+	public void close() {
+		this.writer.shutdown();
+		try {
+			this.writer.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this.openInboxes) {
+			Iterator<UserInbox> it = this.openInboxes.values().iterator();
+			while (it.hasNext()) {
+				it.next().close();
+				it.remove();
+			}
+		}
+	}
+
+	private @NotNull UserInbox getInbox(int uid) throws IOException {
+		synchronized (this.openInboxes) {
+			UserInbox inbox = this.openInboxes.get(uid);
+			if (inbox == null) {
+				inbox = new UserInbox(this.dir.resolve(uid + ".inbox"));
+				this.openInboxes.put(uid, inbox);
+			}
+			return inbox;
+		}
+	}
+
+	/**
+	 * The inbox file of a single user, only used from the writer thread
+	 */
+	private static class UserInbox {
+		@NotNull
+		private final FileChannel file;
+
+		// maps peer uid -> state of the conversation, the record is at slot * RECORD_SIZE
+		@NotNull
+		private final HashMap<Integer, Conversation> conversations;
+
+		// reused for every update, records are written one at a time
+		@NotNull
+		private final ByteBuffer record;
+
+		UserInbox(@NotNull Path path) throws IOException {
+			this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.conversations = new HashMap<>();
+			this.record = ByteBuffer.allocate(RECORD_SIZE);
+
+			// a record cut by a crash while the file grew is dropped
+			long size = this.file.size() / RECORD_SIZE * RECORD_SIZE;
+			this.file.truncate(size);
+			ByteBuffer records = readFully(this.file, size);
+			for (int slot = 0; slot * RECORD_SIZE < records.limit(); ++slot) {
+				int start = slot * RECORD_SIZE;
+				this.conversations.put(records.getInt(start + PEER_UID), new Conversation(
+					slot,
+					records.getInt(start + UNREAD),
+					records.getLong(start + LAST_RECEIVED_SEQ)
+				));
+			}
+		}
+
+		void update(int peer_uid, long seq, long time, int from_uid, boolean received, @NotNull byte[] preview) throws IOException {
+			Conversation conversation = this.conversations.get(peer_uid);
+			if (conversation == null) {
+				conversation = new Conversation(this.conversations.size(), 0, 0);
+				this.conversations.put(peer_uid, conversation);
+			}
+			if (received) {
+				++conversation.unread;
+				conversation.last_received_seq = seq;
+			}
+
+			this.record.clear();
+			this.record.putInt(peer_uid)
+				.putLong(seq)
+				.putLong(time)
+				.putInt(from_uid)
+				.putInt(conversation.unread)
+				.putLong(conversation.last_received_seq)
+				.putShort((short) preview.length)
+				.put(preview);
+			while (this.record.hasRemaining())
+				this.record.put((byte) 0);
+			this.record.flip();
+			this.write(this.record, (long) conversation.slot * RECORD_SIZE);
+		}
+
+		void read(int peer_uid, long seq) throws IOException {
+			Conversation conversation = this.conversations.get(peer_uid);
+			if (conversation == null || conversation.unread == 0 || seq < conversation.last_received_seq)
+				return;
+
+			conversation.unread = 0;
+			this.record.clear();
+			this.record.putInt(0).flip();
+			this.write(this.record, (long) conversation.slot * RECORD_SIZE + UNREAD);
+		}
+
+		long lastSeq(int peer_uid) throws IOException {
+			Conversation conversation = this.conversations.get(peer_uid);
+			if (conversation == null)
+				return 0;
+
+			this.record.clear();
+			this.record.limit(Long.BYTES);
+			while (this.record.hasRemaining()
+				&& this.file.read(this.record, (long) conversation.slot * RECORD_SIZE + LAST_SEQ + this.record.position()) >= 0)
+				;
+			return this.record.hasRemaining() ? 0 : this.record.getLong(0);
+		}
+
+		@NotNull ByteBuffer readAll() throws IOException {
+			return readFully(this.file, (long) this.conversations.size() * RECORD_SIZE);
+		}
+
+		private void write(@NotNull ByteBuffer buff, long position) throws IOException {
+			while (buff.hasRemaining())
+				this.file.write(buff, position + buff.position());
+		}
+
+		void close() {
+			try {
+				this.file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class Conversation {
+		// position of the record in the file
+		final int slot;
+
+		int unread;
+
+		// the seq of the last message received from the peer, reading it clears the unread count
+		long last_received_seq;
+
+		Conversation(int slot, int unread, long last_received_seq) {
+			this.slot = slot;
+			this.unread = unread;
+			this.last_received_seq = last_received_seq;
+		}
+	}
+}
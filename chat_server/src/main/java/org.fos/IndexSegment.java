@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An immutable part of the inverted index of a user
+ * <p>
+ * The terms are sorted, and the postings (document ids and frequencies) of all terms are kept in two flat arrays,
+ * the postings of the i-th term are in [offsets[i], offsets[i + 1]). Postings are sorted by document id
+ * <p>
+ * Segments are never modified, so they are searched without locks. Two segments are merged into a new one by
+ * {@link #merge(IndexSegment, IndexSegment)}
+ */
+final class IndexSegment {
+	@NotNull
+	private final String[] terms;
+
+	@NotNull
+	private final int[] offsets;
+
+	@NotNull
+	private final int[] docs;
+
+	@NotNull
+	private final int[] frequencies;
+
+	// number of documents in the segment
+	private final int n_docs;
+
+	private IndexSegment(@NotNull String[] terms, @NotNull int[] offsets, @NotNull int[] docs, @NotNull int[] frequencies, int n_docs) {
+		this.terms = terms;
+		this.offsets = offsets;
+		this.docs = docs;
+		this.frequencies = frequencies;
+		this.n_docs = n_docs;
+	}
+
+	/**
+	 * Freezes the postings of the documents buffered in memory
+	 *
+	 * @param postings maps term -> [doc, frequency, doc, frequency...] sorted by doc
+	 * @param sizes    maps term -> number of ints used in the postings array
+	 * @param n_docs   number of documents in the postings
+	 */
+	static @NotNull IndexSegment of(@NotNull Map<String, int[]> postings, @NotNull Map<String, Integer> sizes, int n_docs) {
+		String[] terms = postings.keySet().toArray(new String[0]);
+		Arrays.sort(terms);
+
+		int total = 0;
+		for (String term : terms)
+			total += sizes.get(term) / 2;
+
+		int[] offsets = new int[terms.length + 1];
+		int[] docs = new int[total];
+		int[] frequencies = new int[total];
+		int position = 0;
+		for (int i = 0; i < terms.length; ++i) {
+			offsets[i] = position;
+			int[] termPostings = postings.get(terms[i]);
+			int size = sizes.get(terms[i]);
+			for (int j = 0; j < size; j += 2) {
+				docs[position] = termPostings[j];
+				frequencies[position] = termPostings[j + 1];
+				++position;
+			}
+		}
+		offsets[terms.length] = position;
+
+		return new IndexSegment(terms, offsets, docs, frequencies, n_docs);
+	}
+
+	/**
+	 * Merges two segments, all documents in older should have lower ids than the documents in newer,
+	 * so the postings of each term are just concatenated
+	 */
+	static @NotNull IndexSegment merge(@NotNull IndexSegment older, @NotNull IndexSegment newer) {
+		List<String> terms = new ArrayList<>(Math.max(older.terms.length, newer.terms.length));
+		int[] offsets = new int[older.terms.length + newer.terms.length + 1];
+		int[] docs = new int[older.docs.length + newer.docs.length];
+		int[] frequencies = new int[docs.length];
+
+		int i = 0, j = 0, position = 0;
+		while (i < older.terms.length || j < newer.terms.length) {
+			int cmp;
+			if (i == older.terms.length)
+				cmp = 1;
+			else if (j == newer.terms.length)
+				cmp = -1;
+			else
+				cmp = older.terms[i].compareTo(newer.terms[j]);
+
+			offsets[terms.size()] = position;
+			if (cmp <= 0) {
+				terms.add(older.terms[i]);
+				position = older.copyPostings(i++, docs, frequencies, position);
+			}
+			if (cmp >= 0) {
+				if (cmp > 0)
+					terms.add(newer.terms[j]);
+				position = newer.copyPostings(j++, docs, frequencies, position);
+			}
+		}
+		offsets[terms.size()] = position;
+
+		return new IndexSegment(
+			terms.toArray(new String[0]),
+			Arrays.copyOf(offsets, terms.size() + 1),
+			docs,
+			frequencies,
+			older.n_docs + newer.n_docs
+		);
+	}
+
+	private int copyPostings(int term, @NotNull int[] docs, @NotNull int[] frequencies, int position) {
+		int from = this.offsets[term];
+		int length = this.offsets[term + 1] - from;
+		System.arraycopy(this.docs, from, docs, position, length);
+		System.arraycopy(this.frequencies, from, frequencies, position, length);
+		return position + length;
+	}
+
+	/**
+	 * @return the position of the term or a negative value if the segment doesn't contain it
+	 */
+	int find(@NotNull String term) {
+		return Arrays.binarySearch(this.terms, term);
+	}
+
+	/**
+	 * @return number of documents containing the term at the given position
+	 */
+	int documentFrequency(int term) {
+		return this.offsets[term + 1] - this.offsets[term];
+	}
+
+	int postingsStart(int term) {
+		return this.offsets[term];
+	}
+
+	int postingsEnd(int term) {
+		return this.offsets[term + 1];
+	}
+
+	@NotNull int[] getDocs() {
+		return docs;
+	}
+
+	@NotNull int[] getFrequencies() {
+		return frequencies;
+	}
+
+	int getDocumentCount() {
+		return n_docs;
+	}
+}
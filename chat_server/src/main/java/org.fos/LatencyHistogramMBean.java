@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+/**
+ * The attributes of a {@link LatencyHistogram} exported with JMX, e. g. to see them with JConsole
+ */
+public interface LatencyHistogramMBean {
+	long getCount();
+
+	long getMax();
+
+	double getMean();
+
+	long getPercentile50();
+
+	long getPercentile90();
+
+	long getPercentile99();
+
+	long getPercentile999();
+
+	void reset();
+}
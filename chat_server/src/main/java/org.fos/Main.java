@@ -19,6 +19,7 @@
 package org.fos;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -30,5 +31,20 @@ public class Main {
 	public static void main(String... args) throws CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InstanceAlreadyExistsException, IOException {
 		ChatServer server = new ChatServer();
 		server.newListener();
+
+		// apply the changes to the external config file without restarting
+		Path configPath = ServerConfig.getExternalPath();
+		if (configPath != null) {
+			ServerConfigWatcher watcher = new ServerConfigWatcher(configPath, server::reloadConfig);
+			watcher.watch(server.getConfig().getContentFilterFile());
+			watcher.start();
+		}
+
+		// on SIGTERM (e. g. a deploy) tell the clients to reconnect gradually instead of dropping them all at once
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			System.out.println("Draining the server...");
+			int n_closed = server.drain(server.getConfig().getDrainTimeout());
+			System.out.println("Server drained, " + n_closed + " sessions were closed after the deadline");
+		}, "chat-server-drain"));
 	}
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for a {@link ClientRequestType#MESSAGE} forwarded to the sessions of the receiver
+ * <p>
+ * The event lasts from the moment the request header is read until the message is queued to every session.
+ * Its duration is split in the time reading the rest of the request from the sender and the time waiting for
+ * room in the lanes of the receiving sockets (see {@link OutboundLanes}), whatever is left was spent in the
+ * server itself (e. g. checking duplicates). The writes are recorded by the {@link OutboundWriteEvent}
+ * <p>
+ * Start the server with -XX:StartFlightRecording=filename=chat.jfr to record this and the other org.fos events,
+ * only the forwards longer than the threshold are recorded
+ */
+@Name("org.fos.MessageForward")
+@Label("Message Forward")
+@Description("A message relayed from its sender to the sessions of the receiver")
+@Category({"ShareBook", "Chat Server"})
+@Threshold("10 ms")
+@StackTrace(false)
+public class MessageForwardEvent extends Event {
+	@Label("Sender")
+	int from_uid;
+
+	@Label("Receiver")
+	int to_uid;
+
+	@Label("Payload Size")
+	@Description("Size of the base64-encoded message")
+	@DataAmount
+	int payload_size;
+
+	@Label("Sessions")
+	@Description("Number of sessions the message was written to, including other sessions of the sender")
+	int n_sessions;
+
+	@Label("Read Time")
+	@Description("Time reading the message from the sender")
+	@Timespan
+	long read_time;
+
+	@Label("Queue Wait")
+	@Description("Time waiting for room in the lanes of the receiving sockets")
+	@Timespan
+	long queue_wait;
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Full-text index of the delivered messages, partitioned per user
+ * <p>
+ * Each user has its own {@link UserMessageIndex} with the messages the user sent or received, so a search only
+ * touches the messages of the user who searches, no matter how many users the server has
+ * <p>
+ * The index is kept in memory only, and for each user it keeps the last {@link UserMessageIndex#MAX_DOCUMENTS}
+ * messages or so, older messages are not found anymore. So the memory grows with the number of users, not with
+ * the number of messages delivered
+ * <p>
+ * Messages are decoded and indexed in a background thread and segments are merged in another one, so forwarding a
+ * message never waits for the index. A message may take a few milliseconds to be searchable
+ */
+public class MessageIndex implements AutoCloseable {
+	// maps chat uid -> index of the messages of the user
+	@NotNull
+	private final ConcurrentHashMap<Integer, UserMessageIndex> partitions;
+
+	// max number of messages waiting to be indexed, adding more waits for room (see BoundedExecutor)
+	private static final int MAX_PENDING_MESSAGES = 32;
+
+	// single thread, so the messages of a user are added in order
+	@NotNull
+	private final ExecutorService indexer;
+
+	@NotNull
+	private final ExecutorService merger;
+
+	public MessageIndex() {
+		this.partitions = new ConcurrentHashMap<>();
+		this.indexer = BoundedExecutor.newSingleThreadExecutor("message-indexer", MAX_PENDING_MESSAGES);
+		this.merger = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "message-index-merger");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+
+	/**
+	 * Indexes a delivered message for both the sender and the receiver, in a background thread
+	 *
+	 * @param from_uid the sender
+	 * @param to_uid   the receiver
+	 * @param seq      position of the message in the conversation
+	 * @param base64   a reference to the base64-encoded message (see {@link Frame#retain()}), it is closed once the message is indexed
+	 */
+	public void add(int from_uid, int to_uid, long seq, @NotNull Frame base64) {
+		try {
+			this.indexer.execute(() -> {
+				String text;
+				try (Frame message = base64) {
+					text = decode(message);
+				} catch (IllegalArgumentException e) {
+					return; // not base64, the receiver can't read it either
+				}
+
+				HashMap<String, Integer> terms = new HashMap<>();
+				int length = 0;
+				for (String term : tokenize(text)) {
+					terms.merge(term, 1, Integer::sum);
+					++length;
+				}
+
+				this.addTo(from_uid, to_uid, seq, terms, length);
+				if (to_uid != from_uid)
+					this.addTo(to_uid, from_uid, seq, terms, length);
+			});
+		} catch (RejectedExecutionException e) {
+			base64.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the text of a base64-encoded UTF-8 message
+	 * @throws IllegalArgumentException if the message is not valid base64
+	 */
+	static @NotNull String decode(@NotNull Frame base64) {
+		ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(base64.array(), 0, base64.size()));
+		return new String(decoded.array(), 0, decoded.limit(), StandardCharsets.UTF_8);
+	}
+
+	private void addTo(int uid, int peer_uid, long seq, @NotNull HashMap<String, Integer> terms, int length) {
+		UserMessageIndex partition = this.partitions.computeIfAbsent(uid, key -> new UserMessageIndex());
+		if (partition.add(peer_uid, seq, terms, length))
+			this.merger.execute(partition::merge);
+	}
+
+	/**
+	 * Searches the messages sent or received by a user
+	 *
+	 * @param uid   the user searching
+	 * @param query the text to search
+	 * @param limit the max number of hits
+	 * @return the best hits, best first
+	 */
+	public @NotNull List<SearchHit> search(int uid, @NotNull String query, int limit) {
+		UserMessageIndex partition = this.partitions.get(uid);
+		if (partition == null || limit <= 0)
+			return new ArrayList<>();
+
+		return partition.search(new LinkedHashSet<>(tokenize(query)), limit);
+	}
+
+	/**
+	 * @return the number of messages kept for all the users, a message between two users counts twice
+	 */
+	public int getDocumentCount() {
+		int n_docs = 0;
+		for (UserMessageIndex partition : this.partitions.values())
+			n_docs += partition.getDocumentCount();
+		return n_docs;
+	}
+
+	/**
+	 * @return the number of users with an index
+	 */
+	public int getUserCount() {
+		return this.partitions.size();
+	}
+
+	/**
+	 * Splits the text in lowercase terms made of letters and digits
+	 */
+	static @NotNull List<String> tokenize(@NotNull String text) {
+		List<String> terms = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); ++i) {
+			boolean is_term_char = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (is_term_char && start < 0)
+				start = i;
+			else if (!is_term_char && start >= 0) {
+				terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Waits for the pending messages to be indexed and stops the background threads
+	 */
+	@Override
+	public void close() {
+		this.indexer.shutdown();
+		try {
+			this.indexer.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.merger.shutdownNow();
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+/**
+ * The lanes of the responses waiting to be written to a {@link ChatSocket}, see {@link OutboundLanes}
+ * <p>
+ * The order of the responses in the same lane is kept, responses in different lanes may be reordered
+ */
+public enum OutboundLane {
+	/**
+	 * Small responses that should never wait behind other traffic, e. g. {@link ServerResponseType#USER_CONNECTED}
+	 * or the results of a search. It is always written first and it is not bounded
+	 */
+	CONTROL,
+
+	/**
+	 * Chat messages. It shares the socket with {@link #BULK}, but it gets most of it when both are busy
+	 * <p>
+	 * Its quantum and capacity are INTERACTIVE_QUANTUM and INTERACTIVE_CAPACITY in the {@link ServerConfig}
+	 */
+	INTERACTIVE,
+
+	/**
+	 * File transfers. Each chunk is written whole (the protocol is line-based, a request can't be split),
+	 * so the chunk size of the transfers bounds how long a message may wait behind a chunk
+	 * <p>
+	 * Its quantum and capacity are BULK_QUANTUM and BULK_CAPACITY in the {@link ServerConfig}
+	 */
+	BULK,
+
+	/**
+	 * Written only when the other lanes are empty, e. g. a {@link ServerResponseType#REDIRECT} so the client
+	 * already received everything sent before it. It is not bounded
+	 */
+	LAST
+}
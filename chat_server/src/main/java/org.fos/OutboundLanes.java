@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The responses waiting to be written to a socket, in one queue per {@link OutboundLane}
+ * <p>
+ * The writer thread of the socket takes the next frame with {@link #take()}: {@link OutboundLane#CONTROL} first,
+ * then {@link OutboundLane#INTERACTIVE} and {@link OutboundLane#BULK} with a deficit round robin, so when both
+ * are busy each one gets a share of the bytes proportional to its quantum and a big file doesn't delay the chat
+ * messages, and {@link OutboundLane#LAST} once everything else was written
+ * <p>
+ * The weighted lanes are bounded, adding a frame to a full lane blocks until the writer catches up, so a slow
+ * client slows down whoever is sending to it instead of filling the memory of the server
+ */
+class OutboundLanes {
+	private static final OutboundLane[] LANES = OutboundLane.values();
+
+	// the lanes scheduled with the deficit round robin
+	private static final OutboundLane[] WEIGHTED_LANES = {OutboundLane.INTERACTIVE, OutboundLane.BULK};
+
+	// the defaults of the ServerConfig, for the sockets created without one
+	static final int DEFAULT_INTERACTIVE_QUANTUM = 32 * 1024;
+	static final int DEFAULT_INTERACTIVE_CAPACITY = 4_096;
+	static final int DEFAULT_BULK_QUANTUM = 8 * 1024;
+	static final int DEFAULT_BULK_CAPACITY = 32;
+
+	// one queue per lane, indexed by ordinal
+	@NotNull
+	private final List<ArrayDeque<Frame>> queues;
+
+	// bytes added to the deficit of a weighted lane in each round of the scheduler, indexed by ordinal
+	@NotNull
+	private final int[] quanta;
+
+	// max number of frames waiting in each lane, adding more blocks the caller. Indexed by ordinal
+	@NotNull
+	private final int[] capacities;
+
+	// bytes each weighted lane can write before its turn ends, indexed by ordinal
+	@NotNull
+	private final long[] deficits;
+
+	// index in WEIGHTED_LANES of the lane whose turn it is
+	private int current;
+
+	// true if the quantum was already added to the current lane in this turn
+	private boolean turn_started;
+
+	private boolean closed;
+
+	OutboundLanes() {
+		this(DEFAULT_INTERACTIVE_QUANTUM, DEFAULT_INTERACTIVE_CAPACITY, DEFAULT_BULK_QUANTUM, DEFAULT_BULK_CAPACITY);
+	}
+
+	/**
+	 * @param interactive_quantum  bytes the {@link OutboundLane#INTERACTIVE} lane writes in each turn
+	 * @param interactive_capacity max number of frames waiting in the {@link OutboundLane#INTERACTIVE} lane
+	 * @param bulk_quantum         bytes the {@link OutboundLane#BULK} lane writes in each turn
+	 * @param bulk_capacity        max number of frames waiting in the {@link OutboundLane#BULK} lane
+	 */
+	OutboundLanes(int interactive_quantum, int interactive_capacity, int bulk_quantum, int bulk_capacity) {
+		this.queues = new ArrayList<>(LANES.length);
+		for (int i = 0; i < LANES.length; ++i)
+			this.queues.add(new ArrayDeque<>());
+		this.quanta = new int[LANES.length];
+		this.quanta[OutboundLane.INTERACTIVE.ordinal()] = interactive_quantum;
+		this.quanta[OutboundLane.BULK.ordinal()] = bulk_quantum;
+		this.capacities = new int[LANES.length];
+		Arrays.fill(this.capacities, Integer.MAX_VALUE);
+		this.capacities[OutboundLane.INTERACTIVE.ordinal()] = interactive_capacity;
+		this.capacities[OutboundLane.BULK.ordinal()] = bulk_capacity;
+		this.deficits = new long[LANES.length];
+	}
+
+	/**
+	 * Adds a frame to the lane, waiting if the lane is full
+	 * <p>
+	 * The frame belongs to the lanes from now on, it is closed once it is written or discarded
+	 *
+	 * @throws SocketException if the lanes were closed, the frame is closed too
+	 */
+	synchronized void put(@NotNull OutboundLane lane, @NotNull Frame frame) throws IOException, InterruptedException {
+		ArrayDeque<Frame> queue = this.queues.get(lane.ordinal());
+		try {
+			while (!this.closed && queue.size() >= this.capacities[lane.ordinal()])
+				this.wait();
+		} catch (InterruptedException e) {
+			frame.close();
+			throw e;
+		}
+
+		if (this.closed) {
+			frame.close();
+			throw new SocketException("Socket closed");
+		}
+
+		frame.setQueued(lane, System.nanoTime());
+		queue.add(frame);
+		this.notifyAll();
+	}
+
+	/**
+	 * Waits for the next frame to write
+	 *
+	 * @return the frame, the caller should close it after writing it. Null if the lanes were closed
+	 */
+	synchronized @Nullable Frame take() throws InterruptedException {
+		while (!this.closed) {
+			Frame frame = this.poll(OutboundLane.CONTROL);
+			if (frame == null)
+				frame = this.pollWeighted();
+			if (frame == null)
+				frame = this.poll(OutboundLane.LAST);
+
+			if (frame != null) {
+				this.notifyAll(); // there is room in the lane now
+				return frame;
+			}
+			this.wait();
+		}
+		return null;
+	}
+
+	private @Nullable Frame poll(@NotNull OutboundLane lane) {
+		return this.queues.get(lane.ordinal()).poll();
+	}
+
+	/**
+	 * Deficit round robin between the weighted lanes: in its turn, a lane gets its quantum of bytes and writes
+	 * frames while they fit, what is left is kept for its next turn. Empty lanes don't keep anything
+	 *
+	 * @return the next frame of the weighted lanes or null if they are empty
+	 */
+	private @Nullable Frame pollWeighted() {
+		boolean all_empty = true;
+		for (OutboundLane lane : WEIGHTED_LANES)
+			all_empty &= this.queues.get(lane.ordinal()).isEmpty();
+		if (all_empty)
+			return null;
+
+		// each round adds a quantum to the non-empty lanes, so a frame is found after a few rounds at most
+		while (true) {
+			OutboundLane lane = WEIGHTED_LANES[this.current];
+			ArrayDeque<Frame> queue = this.queues.get(lane.ordinal());
+			if (queue.isEmpty()) {
+				this.deficits[lane.ordinal()] = 0;
+				this.nextTurn();
+				continue;
+			}
+
+			if (!this.turn_started) {
+				this.deficits[lane.ordinal()] += this.quanta[lane.ordinal()];
+				this.turn_started = true;
+			}
+
+			int size = queue.peek().size();
+			if (size <= this.deficits[lane.ordinal()]) {
+				this.deficits[lane.ordinal()] -= size;
+				return queue.poll();
+			}
+			this.nextTurn();
+		}
+	}
+
+	private void nextTurn() {
+		this.current = (this.current + 1) % WEIGHTED_LANES.length;
+		this.turn_started = false;
+	}
+
+	/**
+	 * @return number of frames waiting in all the lanes
+	 */
+	synchronized int size() {
+		int size = 0;
+		for (ArrayDeque<Frame> queue : this.queues)
+			size += queue.size();
+		return size;
+	}
+
+	/**
+	 * Discards the waiting frames and wakes up the writer and the threads waiting for room
+	 */
+	synchronized void close() {
+		this.closed = true;
+		for (ArrayDeque<Frame> queue : this.queues) {
+			for (Frame frame : queue)
+				frame.close();
+			queue.clear();
+		}
+		this.notifyAll();
+	}
+}
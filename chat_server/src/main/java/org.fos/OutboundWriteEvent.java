@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for a response written by the writer thread of a socket (see {@link OutboundLanes})
+ * <p>
+ * The event lasts while the response is written to the socket, the time it waited in its lane before is a field
+ */
+@Name("org.fos.OutboundWrite")
+@Label("Outbound Write")
+@Description("A response taken from its lane and written to a socket")
+@Category({"ShareBook", "Chat Server"})
+@Threshold("10 ms")
+@StackTrace(false)
+public class OutboundWriteEvent extends Event {
+	@Label("Lane")
+	String lane;
+
+	@Label("Size")
+	@DataAmount
+	int size;
+
+	@Label("Lane Wait")
+	@Description("Time the response waited in its lane")
+	@Timespan
+	long lane_wait;
+
+	@Label("Waiting Frames")
+	@Description("Number of responses still waiting in the lanes of the socket")
+	int n_waiting;
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+/**
+ * A message found by a {@link MessageIndex} search
+ */
+public class SearchHit {
+	// the chat uid of the other user in the conversation
+	private final int peer_uid;
+
+	// position of the message in the conversation, the seq sent with the message
+	private final long seq;
+
+	private final float score;
+
+	public SearchHit(int peer_uid, long seq, float score) {
+		this.peer_uid = peer_uid;
+		this.seq = seq;
+		this.score = score;
+	}
+
+	public int getPeerUID() {
+		return peer_uid;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public float getScore() {
+		return score;
+	}
+
+	@Override
+	public String toString() {
+		return "SearchHit{" +
+			"peer_uid=" + peer_uid +
+			", seq=" + seq +
+			", score=" + score +
+			'}';
+	}
+}
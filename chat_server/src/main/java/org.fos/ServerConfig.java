@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable snapshot of the server configuration
+ * <p>
+ * The defaults are in /resources/config.properties inside the jar, an external file given with
+ * -Dsharebook.config=path overrides any of them. The external file is watched by {@link ServerConfigWatcher},
+ * and every time it changes a new snapshot is created and swapped atomically in the {@link ChatServer}, so the
+ * code reading the configuration always sees a consistent set of values
+ * <p>
+ * Most settings apply without a restart: timeouts and rate limits apply to the open connections too, buffer sizes,
+ * lane sizes and limits of sessions apply to the new connections. Only CHAT_PORT, INITIAL_USERS_CAPACITY and INBOX_DIR need a restart
+ * <p>
+ * The word list of the {@link ContentFilter} is compiled with the snapshot, the watcher reloads the configuration
+ * when the list changes too
+ */
+public final class ServerConfig {
+	// the system property with the path of the external config file
+	public static final String CONFIG_PROPERTY = "sharebook.config";
+
+	// number of file chunks a client sends before waiting for their acks (WINDOW_SIZE of the desktop app)
+	static final int MIN_BULK_CAPACITY = 16;
+
+	private final int port;
+
+	// initial capacity of the map of connected users
+	private final int initial_users_capacity;
+
+	// a connection is closed after this many milliseconds without receiving anything
+	private final int socket_timeout;
+
+	// size (in bytes) of the buffer each connection borrows from the pool while it is reading a request
+	private final int socket_buffer_size;
+
+	// max number of open sessions, each session uses a thread
+	private final int max_sessions;
+
+	// max number of requests per second a single session can send, the reading is delayed above it
+	private final int max_requests_per_second;
+
+	// bytes the chat messages and the file chunks write in each turn when both lanes of a socket are busy
+	private final int interactive_quantum;
+	private final int bulk_quantum;
+
+	// max number of chat messages and file requests waiting to be written to a socket, see OutboundLane
+	private final int interactive_capacity;
+	private final int bulk_capacity;
+
+	// where the clients are sent when the server drains, empty for the same server
+	@NotNull
+	private final String redirect_address;
+
+	// the clients reconnect at a random time in [1s, 1s + redirect_spread) after a drain
+	private final long redirect_spread;
+
+	// how long a drain waits for the clients to log out
+	private final long drain_timeout;
+
+	// the word list of the content filter, null if messages are not filtered
+	@Nullable
+	private final Path content_filter_file;
+
+	@NotNull
+	private final ContentFilter contentFilter;
+
+	// where the traffic is captured, see TrafficCapture. Null to not capture it
+	@Nullable
+	private final Path traffic_capture_file;
+
+	// where the InboxStore keeps the conversation summaries of each user
+	@NotNull
+	private final Path inbox_dir;
+
+	private ServerConfig(@NotNull Properties properties, @Nullable Path base_dir) throws IOException {
+		this.port = parseInt(properties, "CHAT_PORT", 12365, 1, 65535);
+		this.initial_users_capacity = parseInt(properties, "INITIAL_USERS_CAPACITY", 16, 1, 1 << 24);
+		this.socket_timeout = parseInt(properties, "SOCKET_TIMEOUT_MS", 60_000 * 30, 0, Integer.MAX_VALUE);
+		this.socket_buffer_size = parseInt(properties, "SOCKET_BUFFER_SIZE", 8_192, 512, BufferPool.MAX_SIZE);
+		this.max_sessions = parseInt(properties, "MAX_SESSIONS", 10_000, 1, Integer.MAX_VALUE);
+		this.max_requests_per_second = parseInt(properties, "MAX_REQUESTS_PER_SECOND", 500, 1, Integer.MAX_VALUE);
+		this.interactive_quantum = parseInt(properties, "INTERACTIVE_QUANTUM", OutboundLanes.DEFAULT_INTERACTIVE_QUANTUM, 512, Integer.MAX_VALUE);
+		this.interactive_capacity = parseInt(properties, "INTERACTIVE_CAPACITY", OutboundLanes.DEFAULT_INTERACTIVE_CAPACITY, 1, Integer.MAX_VALUE);
+		this.bulk_quantum = parseInt(properties, "BULK_QUANTUM", OutboundLanes.DEFAULT_BULK_QUANTUM, 512, Integer.MAX_VALUE);
+		// below the transfer window of the clients, relaying a file would block the reading thread of the sender
+		this.bulk_capacity = parseInt(properties, "BULK_CAPACITY", OutboundLanes.DEFAULT_BULK_CAPACITY, MIN_BULK_CAPACITY, Integer.MAX_VALUE);
+		this.redirect_address = properties.getProperty("REDIRECT_ADDRESS", "").trim();
+		this.redirect_spread = parseInt(properties, "REDIRECT_SPREAD_MS", 10_000, 0, Integer.MAX_VALUE);
+		this.drain_timeout = parseInt(properties, "DRAIN_TIMEOUT_MS", 30_000, 0, Integer.MAX_VALUE);
+
+		// a relative path is relative to the external config file
+		String content_filter_file = properties.getProperty("CONTENT_FILTER_FILE", "").trim();
+		if (content_filter_file.isEmpty()) {
+			this.content_filter_file = null;
+			this.contentFilter = ContentFilter.EMPTY;
+		} else {
+			Path path = Paths.get(content_filter_file);
+			this.content_filter_file = (base_dir == null ? path : base_dir.resolve(path)).toAbsolutePath();
+			this.contentFilter = ContentFilter.load(this.content_filter_file);
+		}
+
+		String traffic_capture_file = properties.getProperty("TRAFFIC_CAPTURE_FILE", "").trim();
+		if (traffic_capture_file.isEmpty()) {
+			this.traffic_capture_file = null;
+		} else {
+			Path path = Paths.get(traffic_capture_file);
+			this.traffic_capture_file = (base_dir == null ? path : base_dir.resolve(path)).toAbsolutePath();
+		}
+
+		Path inbox_dir = Paths.get(properties.getProperty("INBOX_DIR", "inbox").trim());
+		this.inbox_dir = (base_dir == null ? inbox_dir : base_dir.resolve(inbox_dir)).toAbsolutePath();
+	}
+
+	/**
+	 * Reads the configuration from the defaults in the jar and the external file, if any
+	 *
+	 * @param external the external config file, null to use only the defaults
+	 * @return the new snapshot
+	 * @throws IOException              if a file could not be read
+	 * @throws IllegalArgumentException if a value is not valid, e. g. a negative timeout
+	 */
+	public static @NotNull ServerConfig load(@Nullable Path external) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream defaults = ServerConfig.class.getResourceAsStream("/resources/config.properties")) {
+			if (defaults != null)
+				properties.load(defaults);
+		}
+
+		if (external != null)
+			try (InputStream overrides = Files.newInputStream(external)) {
+				properties.load(overrides);
+			}
+
+		return new ServerConfig(properties, external == null ? null : external.getParent());
+	}
+
+	/**
+	 * @return the path of the external config file, from the {@link #CONFIG_PROPERTY} system property,
+	 * or null if it is not set
+	 */
+	public static @Nullable Path getExternalPath() {
+		String path = System.getProperty(CONFIG_PROPERTY);
+		return path == null || path.isEmpty() ? null : Paths.get(path).toAbsolutePath();
+	}
+
+	private static int parseInt(@NotNull Properties properties, @NotNull String key, int default_value, int min, int max) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty())
+			return default_value;
+
+		int parsed;
+		try {
+			parsed = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " should be an integer, but it is " + value, e);
+		}
+
+		if (parsed < min || parsed > max)
+			throw new IllegalArgumentException(key + " should be in [" + min + ", " + max + "], but it is " + value);
+		return parsed;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getInitialUsersCapacity() {
+		return initial_users_capacity;
+	}
+
+	public int getSocketTimeout() {
+		return socket_timeout;
+	}
+
+	public int getSocketBufferSize() {
+		return socket_buffer_size;
+	}
+
+	public int getMaxSessions() {
+		return max_sessions;
+	}
+
+	public int getMaxRequestsPerSecond() {
+		return max_requests_per_second;
+	}
+
+	public @NotNull String getRedirectAddress() {
+		return redirect_address;
+	}
+
+	public long getRedirectSpread() {
+		return redirect_spread;
+	}
+
+	public long getDrainTimeout() {
+		return drain_timeout;
+	}
+
+	public @Nullable Path getContentFilterFile() {
+		return content_filter_file;
+	}
+
+	public @NotNull ContentFilter getContentFilter() {
+		return contentFilter;
+	}
+
+	public @Nullable Path getTrafficCaptureFile() {
+		return traffic_capture_file;
+	}
+
+	public int getInteractiveQuantum() {
+		return interactive_quantum;
+	}
+
+	public int getInteractiveCapacity() {
+		return interactive_capacity;
+	}
+
+	public int getBulkQuantum() {
+		return bulk_quantum;
+	}
+
+	public int getBulkCapacity() {
+		return bulk_capacity;
+	}
+
+	public @NotNull Path getInboxDir() {
+		return inbox_dir;
+	}
+
+	@Override
+	public String toString() {
+		return "ServerConfig{" +
+			"port=" + port +
+			", initial_users_capacity=" + initial_users_capacity +
+			", socket_timeout=" + socket_timeout +
+			", socket_buffer_size=" + socket_buffer_size +
+			", max_sessions=" + max_sessions +
+			", max_requests_per_second=" + max_requests_per_second +
+			", interactive_quantum=" + interactive_quantum +
+			", interactive_capacity=" + interactive_capacity +
+			", bulk_quantum=" + bulk_quantum +
+			", bulk_capacity=" + bulk_capacity +
+			", redirect_address='" + redirect_address + '\'' +
+			", redirect_spread=" + redirect_spread +
+			", drain_timeout=" + drain_timeout +
+			", content_filter_file=" + content_filter_file +
+			", contentFilter=" + contentFilter +
+			", traffic_capture_file=" + traffic_capture_file +
+			", inbox_dir=" + inbox_dir +
+			'}';
+	}
+}
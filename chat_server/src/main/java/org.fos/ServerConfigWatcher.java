@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Watches the external config file and reloads the configuration when it changes
+ * <p>
+ * The directory of the file is watched (a {@link WatchService} can't watch a single file), so editors that save
+ * by writing a new file and renaming it are detected too. If the new file is not valid, the error is logged
+ * and the running configuration is kept
+ * <p>
+ * The word list of the content filter is watched the same way, a change to it reloads the whole configuration
+ */
+public class ServerConfigWatcher implements Runnable, AutoCloseable {
+	@NotNull
+	private final Path file;
+
+	@NotNull
+	private final WatchService watchService;
+
+	// the config file and the other files it references, only used from the watcher thread after starting
+	@NotNull
+	private final Set<Path> watchedFiles;
+
+	// receives every valid configuration read after a change
+	@NotNull
+	private final Consumer<ServerConfig> onReload;
+
+	public ServerConfigWatcher(@NotNull Path file, @NotNull Consumer<ServerConfig> onReload) throws IOException {
+		this.file = file.toAbsolutePath();
+		this.onReload = onReload;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.watchedFiles = new HashSet<>();
+		this.watch(this.file);
+	}
+
+	/**
+	 * Reloads the configuration when the file changes too, e. g. the word list of the content filter
+	 *
+	 * @param file the file to watch, nothing is done if it is null or already watched
+	 * @throws IOException if the directory of the file could not be watched
+	 */
+	public void watch(@Nullable Path file) throws IOException {
+		if (file == null || !this.watchedFiles.add(file.toAbsolutePath()))
+			return;
+
+		// registering a directory again returns the same key
+		file.toAbsolutePath().getParent().register(
+			this.watchService,
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_MODIFY
+		);
+	}
+
+	/**
+	 * Starts watching in a daemon thread
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "config-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = this.watchService.take();
+
+				boolean changed = false;
+				Path dir = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents())
+					if (event.context() instanceof Path && this.watchedFiles.contains(dir.resolve((Path) event.context())))
+						changed = true;
+				key.reset();
+
+				if (changed)
+					this.reload();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ignored) {
+			// the watcher was closed
+		}
+	}
+
+	private void reload() {
+		try {
+			ServerConfig config = ServerConfig.load(this.file);
+			this.watch(config.getContentFilterFile()); // the config may point to a new list
+			this.onReload.accept(config);
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("The config file " + this.file + " could not be reloaded, the running config is kept");
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.watchService.close();
+	}
+}
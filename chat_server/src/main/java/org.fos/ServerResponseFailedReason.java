@@ -19,7 +19,13 @@
 package org.fos;
 
 public enum ServerResponseFailedReason {
-	UNAUTHORIZED("UNAUTHORIZED");
+	UNAUTHORIZED("UNAUTHORIZED"),
+
+	// the receiver of a request is not connected
+	USER_NOT_CONNECTED("USER_NOT_CONNECTED"),
+
+	// the server reached the max number of sessions, see ServerConfig#getMaxSessions()
+	SERVER_FULL("SERVER_FULL");
 
 	private final String reason;
 
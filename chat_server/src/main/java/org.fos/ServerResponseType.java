@@ -49,10 +49,20 @@ public enum ServerResponseType {
 	 *
 	 * An example of the response is
 	 *
+	 * MESSAGE\n1\n2\nseq:15\n---BEGIN MESSAGE---\nSGVsbG8gd29ybGQ=\n---END MESSAGE---
+	 *
 	 * Where 1 is the id for the user SENDING the message, the SENDER
 	 * 2 is the id for the user RECEIVING the message, the RECEIVER
+	 * 15 is the sequence number of the message in the conversation between 1 and 2
+	 * <p>
+	 * SGVsbG8gd29ybGQ= is the base64-encoded message
+	 * <p>
+	 * The message is delivered to every session of the receiver and to the other sessions of the sender,
+	 * so all the devices of both users see the whole conversation
 	 * <p>
-	 * Hello world is simple the message
+	 * If the request had a t_cs line, the server adds t_sr:1612137600010 and t_sf:1612137600012 after the seq line,
+	 * the times (epoch millis in the server clock) it received and forwarded the message. The receiver can measure
+	 * the time spent in the server without being affected by the clock skew between the devices and the server
 	 */
 	MESSAGE("MESSAGE"),
 
@@ -62,7 +72,87 @@ public enum ServerResponseType {
 	 * The server needs to notify everyone else about that, therefore the server will broadcast
 	 * that event to all connected clients
 	 */
-	USER_CONNECTED("USER_CONNECTED");
+	USER_CONNECTED("USER_CONNECTED"),
+
+	/**
+	 * The server is relaying a {@link ClientRequestType#FILE_OFFER}, the lines are the same as in the request
+	 */
+	FILE_OFFER("FILE_OFFER"),
+
+	/**
+	 * The server is relaying a {@link ClientRequestType#FILE_RESUME}, the lines are the same as in the request
+	 */
+	FILE_RESUME("FILE_RESUME"),
+
+	/**
+	 * The server is relaying a {@link ClientRequestType#FILE_CHUNK}, the lines are the same as in the request
+	 */
+	FILE_CHUNK("FILE_CHUNK"),
+
+	/**
+	 * The server is relaying a {@link ClientRequestType#FILE_ACK}, the lines are the same as in the request
+	 */
+	FILE_ACK("FILE_ACK"),
+
+	/**
+	 * The server is relaying a {@link ClientRequestType#FILE_CANCEL}, the lines are the same as in the request
+	 * <p>
+	 * The server also sends it to the sender of a file request if the receiver is not connected, e. g.
+	 * <p>
+	 * FILE_CANCEL\n2\n1\nTRANSFER_ID\nUSER_NOT_CONNECTED
+	 */
+	FILE_CANCEL("FILE_CANCEL"),
+
+	/**
+	 * The server is shutting down (e. g. for a deploy), the client should disconnect and connect again later
+	 * <p>
+	 * An example of the response is
+	 * <p>
+	 * REDIRECT\nchat2.example.com:12365\n7350
+	 * <p>
+	 * Where chat2.example.com:12365 is the server the client should connect to, empty to connect to the same
+	 * address again, and 7350 is the number of milliseconds to wait before connecting. Each client gets a different
+	 * delay, so they don't reconnect all at once
+	 */
+	REDIRECT("REDIRECT"),
+
+	/**
+	 * The hits of a {@link ClientRequestType#SEARCH}, best first
+	 * <p>
+	 * An example of the response is
+	 * <p>
+	 * SEARCH_RESULTS\nSEARCH_ID\n2\n7\n15\n3.21\n9\n4\n1.75
+	 * <p>
+	 * Where 2 is the number of hits, and each hit is 3 lines: the other user in the conversation,
+	 * the seq of the message in the conversation and the score
+	 */
+	SEARCH_RESULTS("SEARCH_RESULTS"),
+
+	/**
+	 * A {@link ClientRequestType#MESSAGE} was not forwarded because it contains a banned word or link
+	 * <p>
+	 * An example of the response is
+	 * <p>
+	 * MESSAGE_REJECTED\n2\n7f3c9a10
+	 * <p>
+	 * Where 2 is the id of the RECEIVER of the message and 7f3c9a10 is the id of the message,
+	 * the line is empty if the message didn't have an id
+	 */
+	MESSAGE_REJECTED("MESSAGE_REJECTED"),
+
+	/**
+	 * The conversations of the user, answering a {@link ClientRequestType#INBOX}, the newest first
+	 * <p>
+	 * An example of the response is
+	 * <p>
+	 * INBOX\n2\n7\n15\n1612137600012\n7\n3\nSGVsbG8gd29ybGQ=\n9\n4\n1612130000000\n1\n0\nT2sh
+	 * <p>
+	 * Where 2 is the number of conversations, and each conversation is 6 lines: the other user in the conversation,
+	 * the seq and the time (epoch millis in the server clock) of the last message, who sent it, the number of
+	 * messages received after the last one read (see {@link ClientRequestType#READ}) and the base64-encoded
+	 * first bytes of the last message
+	 */
+	INBOX("INBOX");
 
 	private final String header;
 
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for a closed {@link ChatSession}
+ * <p>
+ * It is an instant event, the duration of the session is one of its fields. Sessions are closed rarely, so it
+ * has no threshold
+ */
+@Name("org.fos.SessionClose")
+@Label("Session Close")
+@Description("A session of a user was closed")
+@Category({"ShareBook", "Chat Server"})
+@StackTrace(false)
+public class SessionCloseEvent extends Event {
+	@Label("User")
+	int uid;
+
+	@Label("Reason")
+	String reason;
+
+	@Label("Session Duration")
+	@Timespan(Timespan.MILLISECONDS)
+	long session_duration;
+}
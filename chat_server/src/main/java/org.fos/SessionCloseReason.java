@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+/**
+ * Why a {@link ChatSession} was closed, reported in the {@link SessionCloseEvent}
+ */
+public enum SessionCloseReason {
+	/**
+	 * The client sent a {@link ClientRequestType#LOGOUT}
+	 */
+	LOGOUT,
+
+	/**
+	 * The client closed the connection without logging out
+	 */
+	DISCONNECTED,
+
+	/**
+	 * The client didn't send anything for longer than the socket timeout
+	 */
+	TIMEOUT,
+
+	/**
+	 * The client sent a request the server doesn't understand
+	 */
+	INVALID_REQUEST,
+
+	/**
+	 * The server was drained and the client didn't log out before the deadline
+	 */
+	DRAINED,
+
+	/**
+	 * Reading from or writing to the socket failed
+	 */
+	ERROR
+}
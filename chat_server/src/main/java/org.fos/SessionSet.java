@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The sessions of a single user, one per device
+ * <p>
+ * The set is immutable: adding or removing a session creates a new set, so the routing code reads a plain array
+ * without locks or copies, and a lookup costs the same no matter how many devices the user has. Users rarely have
+ * more than a few sessions and they change only on login/logout, so copying the array is cheap
+ * <p>
+ * {@link ChatServer} swaps the sets atomically with {@link java.util.concurrent.ConcurrentHashMap#compute}
+ */
+public final class SessionSet {
+	@NotNull
+	private final ChatUser user;
+
+	// oldest session first
+	@NotNull
+	private final ChatSession[] sessions;
+
+	private SessionSet(@NotNull ChatUser user, @NotNull ChatSession[] sessions) {
+		this.user = user;
+		this.sessions = sessions;
+	}
+
+	/**
+	 * @return a set with only the given session
+	 */
+	public static @NotNull SessionSet of(@NotNull ChatSession session) {
+		return new SessionSet(session.getUser(), new ChatSession[]{session});
+	}
+
+	/**
+	 * @return a new set with the session added at the end
+	 */
+	public @NotNull SessionSet with(@NotNull ChatSession session) {
+		ChatSession[] sessions = Arrays.copyOf(this.sessions, this.sessions.length + 1);
+		sessions[this.sessions.length] = session;
+		return new SessionSet(this.user, sessions);
+	}
+
+	/**
+	 * Removes a session, only that session, other sessions of the same user are not affected
+	 *
+	 * @return a new set without the session, the same set if the session is not in it or null if the set is empty
+	 */
+	public @Nullable SessionSet without(@NotNull ChatSession session) {
+		for (int i = 0; i < this.sessions.length; ++i) {
+			if (this.sessions[i] != session)
+				continue;
+
+			if (this.sessions.length == 1)
+				return null;
+
+			ChatSession[] sessions = new ChatSession[this.sessions.length - 1];
+			System.arraycopy(this.sessions, 0, sessions, 0, i);
+			System.arraycopy(this.sessions, i + 1, sessions, i, sessions.length - i);
+			return new SessionSet(this.user, sessions);
+		}
+		return this;
+	}
+
+	public @NotNull ChatUser getUser() {
+		return user;
+	}
+
+	/**
+	 * @return the sessions, oldest first. The array is shared, it must not be modified
+	 */
+	public @NotNull ChatSession[] getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * @return the session opened most recently, e. g. the device the user is using right now
+	 */
+	public @NotNull ChatSession getNewest() {
+		return this.sessions[this.sessions.length - 1];
+	}
+
+	public int size() {
+		return this.sessions.length;
+	}
+
+	@Override
+	public String toString() {
+		return "SessionSet{" +
+			"user=" + user +
+			", sessions=" + sessions.length +
+			'}';
+	}
+}
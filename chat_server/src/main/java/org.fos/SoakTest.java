@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Runs a server in this JVM and keeps opening and closing connections against it in every way a client may
+ * leave (logging out, dropping the connection, timing out, failing to log in...), then checks that the sessions,
+ * threads, file descriptors and heap went back to where they were before the churn
+ * <p>
+ * A long-lived session stays connected the whole time and offers files to the other sessions, so anything the
+ * server keeps from the closed sessions in the open ones shows up too. Every client logs in as the same user and
+ * sends messages to it, so they go through the whole forward path: the delivery to the open sessions, the inbox
+ * and the message index, which must stay under its bound
+ * <p>
+ * It exits with 1 and a report of what leaked if anything didn't go back to the baseline.
+ * Run it with java -cp chat_server.jar org.fos.SoakTest [minutes, 60 by default] [clients, 16 by default]
+ * [port, 12367 by default]
+ */
+public class SoakTest {
+	private static final String LOGIN_HASH = "loginhashbypasss";
+
+	// short, so the timeouts are a good part of the churn
+	private static final int SOCKET_TIMEOUT = 1_000;
+
+	// growth still considered noise
+	private static final int THREADS_TOLERANCE = 2;
+	private static final int FDS_TOLERANCE = 8;
+	private static final long HEAP_TOLERANCE = 16L << 20;
+
+	private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+	// the clients give up waiting for the server after this, so a stuck server doesn't hang the test
+	private static final int CLIENT_TIMEOUT = 10_000;
+
+	/**
+	 * The ways a client connects and leaves
+	 */
+	private enum Churn {
+		LOGOUT, // logs in, sends a few requests and logs out
+		DROP, // logs in, sends a few requests and closes the connection without logging out
+		TIMEOUT, // logs in and stays idle until the server closes the connection
+		BAD_LOGIN, // sends a wrong login hash
+		BAD_REQUEST, // sends something that is not a CONNECT
+		HALF_CONNECT, // sends CONNECT and closes the connection before the hash
+		SILENT, // does the TLS handshake and never sends anything
+		NO_TLS // connects without TLS
+	}
+
+	@NotNull
+	private final PrintStream console;
+
+	@NotNull
+	private final ChatServer server;
+
+	@NotNull
+	private final SSLSocketFactory socketFactory;
+
+	private final int port;
+
+	// number of connections of each kind of churn, by ordinal
+	@NotNull
+	private final AtomicLongArray n_churns;
+
+	private volatile boolean stopped;
+
+	private SoakTest(@NotNull PrintStream console, @NotNull ChatServer server, int port) throws Exception {
+		this.console = console;
+		this.server = server;
+		this.socketFactory = TrafficReplay.trustServerCertificate().getSocketFactory();
+		this.port = port;
+		this.n_churns = new AtomicLongArray(Churn.values().length);
+	}
+
+	public static void main(String[] args) throws Exception {
+		double minutes = args.length > 0 ? Double.parseDouble(args[0]) : 60;
+		int n_clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 12367;
+
+		Path dir = Files.createTempDirectory("soak");
+		Path config = dir.resolve("soak.properties");
+		Files.write(config, (
+			"CHAT_PORT=" + port + '\n'
+				+ "SOCKET_TIMEOUT_MS=" + SOCKET_TIMEOUT + '\n'
+				+ "MAX_REQUESTS_PER_SECOND=100000\n"
+		).getBytes(StandardCharsets.UTF_8));
+		System.setProperty(ServerConfig.CONFIG_PROPERTY, config.toString());
+
+		// the server logs every connection, keep it out of the report
+		PrintStream console = System.out;
+		Path log = dir.resolve("server.log");
+		PrintStream serverLog = new PrintStream(Files.newOutputStream(log), true, "UTF-8");
+		System.setOut(serverLog);
+		System.setErr(serverLog);
+		console.println("Server log in " + log);
+
+		ChatServer server = new ChatServer();
+		server.newListener();
+		SoakTest soak = new SoakTest(console, server, port);
+
+		boolean leaked = soak.run(TimeUnit.SECONDS.toMillis((long) (minutes * 60)), n_clients);
+		server.drain(0);
+		System.exit(leaked ? 1 : 0);
+	}
+
+	/**
+	 * @return true if something leaked
+	 */
+	private boolean run(long duration, int n_clients) throws Exception {
+		Anchor anchor = new Anchor();
+
+		// a round of each kind first, so the classes, pools and JIT are warm before the baseline
+		for (Churn churn : Churn.values())
+			this.churn(churn);
+		Sample baseline = this.settle();
+		this.console.println("Baseline " + baseline);
+
+		List<Thread> clients = new ArrayList<>(n_clients);
+		for (int i = 0; i < n_clients; ++i) {
+			Thread client = new Thread(this::churnLoop, "soak-client-" + i);
+			client.setDaemon(true);
+			client.start();
+			clients.add(client);
+		}
+
+		long deadline = System.currentTimeMillis() + duration;
+		while (System.currentTimeMillis() < deadline) {
+			Thread.sleep(Math.min(SAMPLE_INTERVAL, Math.max(1, deadline - System.currentTimeMillis())));
+			this.console.println(Sample.take(this.server) + ", connections " + this.churnSummary());
+		}
+
+		this.stopped = true;
+		for (Thread client : clients)
+			client.join();
+
+		Sample end = this.settle();
+		this.console.println("End " + end);
+
+		List<String> leaks = end.compare(baseline);
+		if (anchor.disconnected)
+			leaks.add(0, "the long-lived session was closed by the server, see the server log");
+		if (leaks.isEmpty()) {
+			this.console.println("No leaks after " + this.churnSummary());
+		} else {
+			this.console.println("LEAKED after " + this.churnSummary());
+			for (String leak : leaks)
+				this.console.println("\t" + leak);
+		}
+
+		anchor.close();
+		return !leaks.isEmpty();
+	}
+
+	/**
+	 * Waits for the server to close the connections that are timing out and collects the garbage
+	 */
+	private @NotNull Sample settle() throws InterruptedException {
+		Thread.sleep(SOCKET_TIMEOUT * 3);
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		return Sample.take(this.server);
+	}
+
+	private void churnLoop() {
+		Churn[] churns = Churn.values();
+		while (!this.stopped)
+			this.churn(churns[ThreadLocalRandom.current().nextInt(churns.length)]);
+	}
+
+	private void churn(@NotNull Churn churn) {
+		this.n_churns.incrementAndGet(churn.ordinal());
+		try {
+			if (churn == Churn.NO_TLS) {
+				try (Socket socket = new Socket("localhost", this.port)) {
+					socket.setSoTimeout(CLIENT_TIMEOUT);
+					socket.getOutputStream().write("CONNECT\n".getBytes(StandardCharsets.UTF_8));
+				}
+				return;
+			}
+
+			try (SSLSocket socket = (SSLSocket) this.socketFactory.createSocket("localhost", this.port)) {
+				socket.setSoTimeout(CLIENT_TIMEOUT);
+				socket.startHandshake();
+				OutputStream out = socket.getOutputStream();
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				switch (churn) {
+					case LOGOUT:
+					case DROP:
+						write(out, "CONNECT\n" + LOGIN_HASH + '\n');
+						in.readLine();
+						int uid = Integer.parseInt(in.readLine());
+						// delivered to every session of the user, the anchor included, and indexed
+						write(out, "MESSAGE\n" + uid + '\n' + uid + "\n---BEGIN MESSAGE---\naG9sYQ==\n---END MESSAGE---\n");
+						write(out, "READ\n" + uid + '\n' + uid + "\n1\n");
+						// the newest session of the user gets it, often the anchor
+						write(out, "FILE_OFFER\n" + uid + '\n' + uid + "\nsoak-" + Thread.currentThread().getName()
+							+ '-' + System.nanoTime() + "\nYS50eHQ=\n10\n10\n");
+						if (churn == Churn.LOGOUT)
+							write(out, "LOGOUT\n");
+						break;
+					case TIMEOUT:
+						write(out, "CONNECT\n" + LOGIN_HASH + '\n');
+						while (in.readLine() != null) ; // until the server closes it
+						break;
+					case BAD_LOGIN:
+						write(out, "CONNECT\nnot-a-valid-hash\n");
+						in.readLine();
+						break;
+					case BAD_REQUEST:
+						write(out, "HELLO\n");
+						in.readLine();
+						break;
+					case HALF_CONNECT:
+						write(out, "CONNECT\n");
+						break;
+					case SILENT:
+						break;
+				}
+			}
+		} catch (IOException e) {
+			// the server may close the connection first, e. g. after an invalid request
+		}
+	}
+
+	private static void write(@NotNull OutputStream out, @NotNull String lines) throws IOException {
+		out.write(lines.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	private @NotNull String churnSummary() {
+		StringBuilder summary = new StringBuilder();
+		for (Churn churn : Churn.values())
+			summary.append(summary.length() == 0 ? "" : ", ").append(churn).append(' ').append(this.n_churns.get(churn.ordinal()));
+		return summary.toString();
+	}
+
+	/**
+	 * The session that stays connected during the whole test, it reads everything sent to it
+	 */
+	private class Anchor implements AutoCloseable {
+		@NotNull
+		private final SSLSocket socket;
+
+		private final int uid;
+
+		private volatile boolean closed;
+
+		// true if the server closed the session, it should stay open during the whole test
+		private volatile boolean disconnected;
+
+		Anchor() throws IOException {
+			this.socket = (SSLSocket) SoakTest.this.socketFactory.createSocket("localhost", SoakTest.this.port);
+			this.socket.startHandshake();
+			BufferedReader in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), StandardCharsets.UTF_8));
+			write(this.socket.getOutputStream(), "CONNECT\n" + LOGIN_HASH + '\n');
+			in.readLine();
+			this.uid = Integer.parseInt(in.readLine());
+
+			Thread reader = new Thread(() -> {
+				try {
+					while (in.readLine() != null) ;
+				} catch (IOException ignored) {
+					// closed
+				}
+				this.disconnected = !this.closed;
+			}, "soak-anchor-reader");
+			reader.setDaemon(true);
+			reader.start();
+
+			Thread requests = new Thread(this::sendRequests, "soak-anchor-requests");
+			requests.setDaemon(true);
+			requests.start();
+		}
+
+		/**
+		 * Sends a request often enough to not time out, and offers files to the newest session of the user,
+		 * they are never completed nor cancelled
+		 */
+		private void sendRequests() {
+			try {
+				for (int i = 0; !this.closed; ++i) {
+					Thread.sleep(SOCKET_TIMEOUT / 4);
+					synchronized (this) {
+						write(this.socket.getOutputStream(), "READ\n" + this.uid + '\n' + this.uid + "\n1\n");
+						if (i % 4 == 0)
+							write(this.socket.getOutputStream(), "FILE_OFFER\n" + this.uid + '\n' + this.uid + "\nanchor-" + i
+								+ "\nYS50eHQ=\n10\n10\n");
+					}
+				}
+			} catch (InterruptedException | IOException e) {
+				// the reader notices it if the server closed the session
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			this.closed = true;
+			if (!this.disconnected)
+				write(this.socket.getOutputStream(), "LOGOUT\n");
+			this.socket.close();
+		}
+	}
+
+	/**
+	 * The resources in use at some moment
+	 */
+	private static class Sample {
+		int n_sessions;
+		int n_users;
+		int n_stale_transfers;
+		int n_indexed_messages;
+		int n_indexed_users;
+		int n_threads;
+		long n_fds;
+		long heap;
+		@NotNull
+		Map<String, Integer> threadGroups = new TreeMap<>();
+
+		static @NotNull Sample take(@NotNull ChatServer server) {
+			Sample sample = new Sample();
+			sample.n_sessions = server.getSessionCount();
+			sample.n_users = server.getConnectedUserCount();
+			sample.n_stale_transfers = server.getStaleTransferCount();
+			sample.n_indexed_messages = server.getMessageIndex().getDocumentCount();
+			sample.n_indexed_users = server.getMessageIndex().getUserCount();
+			sample.n_threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+			OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+			sample.n_fds = os instanceof com.sun.management.UnixOperatingSystemMXBean
+				? ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount()
+				: -1;
+
+			Runtime runtime = Runtime.getRuntime();
+			sample.heap = runtime.totalMemory() - runtime.freeMemory();
+
+			// the threads grouped by name without the numbers and addresses, e. g. chat-writer-
+			for (Thread thread : Thread.getAllStackTraces().keySet())
+				sample.threadGroups.merge(thread.getName().replaceAll("[0-9./:]+$", ""), 1, Integer::sum);
+			return sample;
+		}
+
+		/**
+		 * @return what grew from the baseline, empty if nothing did
+		 */
+		@NotNull List<String> compare(@NotNull Sample baseline) {
+			List<String> leaks = new ArrayList<>();
+			if (this.n_sessions > baseline.n_sessions)
+				leaks.add((this.n_sessions - baseline.n_sessions) + " sessions were not removed");
+			if (this.n_users > baseline.n_users)
+				leaks.add((this.n_users - baseline.n_users) + " users are still connected");
+			if (this.n_stale_transfers > 0)
+				leaks.add(this.n_stale_transfers + " transfers still reference closed sessions");
+
+			// the index grows with the messages until it reaches the bound of each user
+			long max_indexed = (long) this.n_indexed_users * (UserMessageIndex.MAX_DOCUMENTS + UserMessageIndex.BUFFER_SIZE);
+			if (this.n_indexed_messages > Math.max(baseline.n_indexed_messages, max_indexed))
+				leaks.add("the index keeps " + this.n_indexed_messages + " messages of " + this.n_indexed_users
+					+ " users, its bound is " + max_indexed);
+
+			if (this.n_threads > baseline.n_threads + THREADS_TOLERANCE) {
+				StringBuilder groups = new StringBuilder();
+				this.threadGroups.forEach((group, count) -> {
+					int extra = count - baseline.threadGroups.getOrDefault(group, 0);
+					if (extra > 0)
+						groups.append(groups.length() == 0 ? "" : ", ").append(extra).append(" x ").append(group);
+				});
+				leaks.add((this.n_threads - baseline.n_threads) + " threads more: " + groups);
+			}
+
+			if (this.n_fds > baseline.n_fds + FDS_TOLERANCE)
+				leaks.add((this.n_fds - baseline.n_fds) + " file descriptors more");
+
+			long heap_tolerance = Math.max(HEAP_TOLERANCE, baseline.heap / 4);
+			if (this.heap > baseline.heap + heap_tolerance)
+				leaks.add(((this.heap - baseline.heap) >> 20) + " MB more of heap after the GC");
+			return leaks;
+		}
+
+		@Override
+		public String toString() {
+			return "sessions " + this.n_sessions
+				+ ", users " + this.n_users
+				+ ", stale transfers " + this.n_stale_transfers
+				+ ", indexed messages " + this.n_indexed_messages
+				+ ", threads " + this.n_threads
+				+ ", fds " + this.n_fds
+				+ ", heap " + (this.heap >> 20) + " MB";
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes a trace of the requests the server receives, so the traffic can be replayed later with
+ * {@link TrafficReplay}
+ * <p>
+ * Only the metadata of each request is written, never its content: the file starts with a header
+ * [int MAGIC][short VERSION][long start epoch millis][byte n_types][n_types request type names (writeUTF)]
+ * followed by records of {@link #RECORD_SIZE} bytes
+ * [long nanos since start][int session id][int uid][int peer uid][int size][byte request type]
+ * where the request type is the index of its name in the header, or {@link #CLOSED} when a session ends
+ * <p>
+ * Recording a request only copies it to a buffer, a background thread writes the full buffers. If the disk
+ * can't keep up the records are dropped (and counted) instead of slowing down the sessions
+ */
+public class TrafficCapture implements AutoCloseable {
+	static final int MAGIC = 0x53425452; // "SBTR"
+	static final short VERSION = 1;
+
+	static final int RECORD_SIZE = Long.BYTES + Integer.BYTES * 4 + 1;
+
+	// request type of the record written when a session ends
+	static final byte CLOSED = -1;
+
+	private static final int BUFFER_SIZE = RECORD_SIZE * 4_096; // 100 KB
+	private static final int N_BUFFERS = 4;
+
+	@NotNull
+	private final Path file;
+
+	@NotNull
+	private final FileChannel channel;
+
+	private final long start;
+
+	// buffer being filled, guarded by this
+	@Nullable
+	private ByteBuffer current;
+
+	@NotNull
+	private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+
+	@NotNull
+	private final ArrayBlockingQueue<ByteBuffer> fullBuffers;
+
+	@NotNull
+	private final Thread writer;
+
+	@NotNull
+	private final AtomicLong n_dropped;
+
+	private volatile boolean closed;
+
+	// true if a write failed, the records are ignored from then on
+	private volatile boolean failed;
+
+	private TrafficCapture(@NotNull Path file, @NotNull FileChannel channel) {
+		this.file = file;
+		this.channel = channel;
+		this.start = System.nanoTime();
+		this.freeBuffers = new ArrayBlockingQueue<>(N_BUFFERS);
+		this.fullBuffers = new ArrayBlockingQueue<>(N_BUFFERS);
+		for (int i = 1; i < N_BUFFERS; ++i)
+			this.freeBuffers.add(ByteBuffer.allocate(BUFFER_SIZE));
+		this.current = ByteBuffer.allocate(BUFFER_SIZE);
+		this.n_dropped = new AtomicLong();
+
+		this.writer = new Thread(this::writeBuffers, "traffic-capture-writer");
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Starts a new capture, the file is overwritten if it exists
+	 *
+	 * @param file where the trace is written
+	 * @return the capture, it should be closed to write the last records
+	 * @throws IOException if the file could not be created
+	 */
+	public static @NotNull TrafficCapture open(@NotNull Path file) throws IOException {
+		FileChannel channel = FileChannel.open(
+			file,
+			StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING
+		);
+
+		ClientRequestType[] types = ClientRequestType.values();
+		ByteBuffer header = ByteBuffer.allocate(1_024);
+		header.putInt(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis()).put((byte) types.length);
+		for (ClientRequestType type : types) {
+			byte[] name = type.name().getBytes(StandardCharsets.UTF_8);
+			header.putShort((short) name.length).put(name); // same as DataOutput.writeUTF for ASCII names
+		}
+		header.flip();
+		while (header.hasRemaining())
+			channel.write(header);
+
+		TrafficCapture capture = new TrafficCapture(file, channel);
+		capture.writer.start();
+		return capture;
+	}
+
+	/**
+	 * Records a request
+	 *
+	 * @param session_id the session that sent the request, see {@link ChatSession#getId()}
+	 * @param uid        the user of the session
+	 * @param peer_uid   the other user in the request (e. g. the receiver of a message), -1 if there is none
+	 * @param type       the request type
+	 * @param size       the bytes of the content of the request, e. g. the base64-encoded text of a message
+	 */
+	public void record(int session_id, int uid, int peer_uid, @NotNull ClientRequestType type, int size) {
+		this.record(session_id, uid, peer_uid, (byte) type.ordinal(), size);
+	}
+
+	/**
+	 * Records the end of a session
+	 */
+	public void recordClose(int session_id, int uid) {
+		this.record(session_id, uid, -1, CLOSED, 0);
+	}
+
+	private synchronized void record(int session_id, int uid, int peer_uid, byte type, int size) {
+		if (this.closed || this.failed)
+			return;
+
+		if (this.current == null && (this.current = this.freeBuffers.poll()) == null) {
+			this.n_dropped.incrementAndGet(); // the writer is behind
+			return;
+		}
+
+		this.current.putLong(System.nanoTime() - this.start)
+			.putInt(session_id)
+			.putInt(uid)
+			.putInt(peer_uid)
+			.putInt(size)
+			.put(type);
+
+		if (!this.current.hasRemaining())
+			this.handOff();
+	}
+
+	/**
+	 * Gives the current buffer to the writer, if it has any record
+	 */
+	private synchronized void handOff() {
+		if (this.current == null || this.current.position() == 0)
+			return;
+
+		this.current.flip();
+		this.fullBuffers.add(this.current); // never full, there are only N_BUFFERS buffers
+		this.current = null;
+	}
+
+	/**
+	 * The loop of the writer thread. The records are written at least every second, even if the buffer
+	 * is not full, so a trace is useful even if the server is killed
+	 */
+	private void writeBuffers() {
+		try {
+			while (!this.closed || !this.fullBuffers.isEmpty()) {
+				ByteBuffer buffer = this.fullBuffers.poll(1, TimeUnit.SECONDS);
+				if (buffer == null) {
+					this.handOff();
+					continue;
+				}
+
+				while (buffer.hasRemaining())
+					this.channel.write(buffer);
+				buffer.clear();
+				this.freeBuffers.add(buffer);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.err.println("The traffic capture " + this.file + " could not be written, it was stopped");
+			e.printStackTrace();
+			this.failed = true;
+		}
+	}
+
+	/**
+	 * @return the number of records that were not written because the disk was too slow
+	 */
+	public long getDroppedCount() {
+		return this.n_dropped.get();
+	}
+
+	public @NotNull Path getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Writes the remaining records and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (this.closed)
+				return;
+			this.handOff();
+			this.closed = true;
+		}
+
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.channel.close();
+
+		if (this.n_dropped.get() > 0)
+			System.err.println(this.n_dropped.get() + " records were dropped from the traffic capture " + this.file);
+	}
+}
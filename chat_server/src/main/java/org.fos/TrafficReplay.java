@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Replays a trace written by {@link TrafficCapture} against a server, e. g. one started in a workstation to
+ * reproduce an incident
+ * <p>
+ * Each session of the trace gets its own connection, opened and closed when the session was, and each request
+ * is sent at its time in the trace divided by the speed. The content was not captured, so the requests carry
+ * filler text of the same size. The connections log in with the development login hash, so every session
+ * gets the same user from the server and the messages reach every other replayed session
+ * <p>
+ * At the end it reports the latency from sending a message until another session receives it, and how late the
+ * requests were sent (if this machine can't keep up with the trace, the requests are sent late)
+ * <p>
+ * Run it with java -cp chat_server.jar org.fos.TrafficReplay TRACE_FILE [speed, 1 by default]
+ * [host:port, localhost:12365 by default]
+ */
+public class TrafficReplay {
+	private static final String LOGIN_HASH = "loginhashbypasss";
+
+	// words used as filler for the content of the requests, so the index of the server gets real-looking text
+	private static final String FILLER_TEXT = "el libro que lei la semana pasada tiene una historia muy buena ";
+
+	// time to wait for the last messages after the trace ends
+	private static final long DRAIN_MILLIS = 2_000;
+
+	@NotNull
+	private final SSLSocketFactory socketFactory;
+
+	@NotNull
+	private final String host;
+
+	private final int port;
+
+	// different in each run, so the ids of the messages are not taken as retries of a previous run
+	private final long run_id;
+
+	// maps id of a message -> System.nanoTime when it was sent, removed when the first session receives it
+	@NotNull
+	private final ConcurrentHashMap<Long, Long> inFlight;
+
+	@NotNull
+	private final AtomicLong next_message_id;
+
+	// microseconds from sending a message until the first session receives it
+	@NotNull
+	private final LatencyHistogram latency;
+
+	// microseconds a request was sent after its time in the trace
+	@NotNull
+	private final LatencyHistogram lag;
+
+	// number of requests sent of each type, by ordinal
+	@NotNull
+	private final AtomicLongArray n_sent;
+
+	@NotNull
+	private final AtomicLong n_rejected;
+
+	// filler of each size, the sizes repeat a lot
+	@NotNull
+	private final Map<Integer, String> fillers;
+
+	private TrafficReplay(@NotNull SSLSocketFactory socketFactory, @NotNull String host, int port) {
+		this.socketFactory = socketFactory;
+		this.host = host;
+		this.port = port;
+		this.run_id = System.currentTimeMillis();
+		this.inFlight = new ConcurrentHashMap<>();
+		this.next_message_id = new AtomicLong();
+		this.latency = new LatencyHistogram();
+		this.lag = new LatencyHistogram();
+		this.n_sent = new AtomicLongArray(ClientRequestType.values().length);
+		this.n_rejected = new AtomicLong();
+		this.fillers = new HashMap<>();
+	}
+
+	public static void main(String[] args) throws IOException, GeneralSecurityException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: java -cp chat_server.jar org.fos.TrafficReplay TRACE_FILE [speed] [host:port]");
+			System.exit(1);
+		}
+
+		Trace trace = Trace.read(Paths.get(args[0]));
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+		String address = args.length > 2 ? args[2] : "localhost:12365";
+		int colon = address.lastIndexOf(':');
+
+		TrafficReplay replay = new TrafficReplay(
+			trustServerCertificate().getSocketFactory(),
+			address.substring(0, colon),
+			Integer.parseInt(address.substring(colon + 1))
+		);
+
+		System.out.println(
+			"Replaying " + trace.size + " requests (" + TimeUnit.NANOSECONDS.toSeconds(trace.getDuration()) + "s)"
+				+ " at " + speed + "x against " + address
+		);
+		long start = System.nanoTime();
+		int n_sessions = replay.replay(trace, speed);
+		replay.report(n_sessions, System.nanoTime() - start);
+	}
+
+	/**
+	 * The server certificate is self-signed, trust the one in the keystore of the server
+	 */
+	static @NotNull SSLContext trustServerCertificate() throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		keyStore.load(TrafficReplay.class.getResourceAsStream("/resources/secrets/keystore.jks"), "sharebook".toCharArray());
+
+		TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagerFactory.init(keyStore);
+
+		SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+		sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+		return sslContext;
+	}
+
+	/**
+	 * Sends the requests of the trace at their time
+	 *
+	 * @return the number of sessions opened
+	 */
+	private int replay(@NotNull Trace trace, double speed) throws InterruptedException {
+		// maps session id in the trace -> connection
+		Map<Integer, ReplaySession> sessions = new HashMap<>();
+		// maps uid in the trace -> uid given by the server
+		Map<Integer, Integer> uids = new HashMap<>();
+		int n_sessions = 0;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < trace.size; ++i) {
+			long wait = start + (long) (trace.times[i] / speed) - System.nanoTime();
+			if (wait > 0)
+				TimeUnit.NANOSECONDS.sleep(wait);
+			else
+				this.lag.record(-wait / 1_000);
+
+			int session_id = trace.sessions[i];
+			ReplaySession session = sessions.get(session_id);
+			ClientRequestType type = trace.types[i];
+			if (type == null) { // the session ended
+				if (session != null)
+					session.close();
+				sessions.remove(session_id);
+				continue;
+			}
+
+			try {
+				// the sessions already open when the capture started don't have a CONNECT
+				if (session == null) {
+					session = new ReplaySession(this.connect());
+					sessions.put(session_id, session);
+					uids.putIfAbsent(trace.uids[i], session.uid);
+					++n_sessions;
+				}
+				if (type != ClientRequestType.CONNECT)
+					session.send(type, session_id, uids.getOrDefault(trace.peers[i], trace.peers[i]), trace.sizes[i]);
+				this.n_sent.incrementAndGet(type.ordinal());
+			} catch (IOException e) {
+				System.err.println("Session " + session_id + " of the trace failed: " + e.getMessage());
+				if (session != null)
+					session.close();
+				sessions.remove(session_id);
+			}
+		}
+
+		Thread.sleep(DRAIN_MILLIS);
+		sessions.values().forEach(ReplaySession::close);
+		return n_sessions;
+	}
+
+	private @NotNull SSLSocket connect() throws IOException {
+		SSLSocket socket = (SSLSocket) this.socketFactory.createSocket(this.host, this.port);
+		socket.startHandshake();
+		return socket;
+	}
+
+	private void report(int n_sessions, long duration) {
+		System.out.println("Replayed in " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms with " + n_sessions + " sessions");
+
+		System.out.println("Requests sent");
+		for (ClientRequestType type : ClientRequestType.values())
+			if (this.n_sent.get(type.ordinal()) > 0)
+				System.out.println("\t" + type.getHeader() + ": " + this.n_sent.get(type.ordinal()));
+
+		System.out.println(
+			"Messages received: " + this.latency.getCount()
+				+ ", not received: " + this.inFlight.size()
+				+ ", rejected: " + this.n_rejected.get()
+		);
+		System.out.println("Message latency (ms): " + summary(this.latency));
+		System.out.println("Requests sent late: " + this.lag.getCount() + ", lag (ms): " + summary(this.lag));
+	}
+
+	private static @NotNull String summary(@NotNull LatencyHistogram histogram) {
+		return String.format(
+			"p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+			histogram.getPercentile50() / 1e3,
+			histogram.getPercentile90() / 1e3,
+			histogram.getPercentile99() / 1e3,
+			histogram.getPercentile999() / 1e3,
+			histogram.getMax() / 1e3
+		);
+	}
+
+	/**
+	 * @param length the length of the base64-encoded filler
+	 * @return filler text encoded in base64, about the given length
+	 */
+	private @NotNull String filler(int length) {
+		return this.fillers.computeIfAbsent(length, key -> {
+			int n_chars = Math.max(1, key / 4 * 3);
+			StringBuilder text = new StringBuilder(n_chars);
+			while (text.length() < n_chars)
+				text.append(FILLER_TEXT, 0, Math.min(FILLER_TEXT.length(), n_chars - text.length()));
+			return Base64.getEncoder().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8));
+		});
+	}
+
+	/**
+	 * A connection replaying one session of the trace, the responses are read in its own thread
+	 */
+	private class ReplaySession {
+		@NotNull
+		private final SSLSocket socket;
+
+		@NotNull
+		private final OutputStream out;
+
+		@NotNull
+		private final BufferedReader in;
+
+		// the uid given by the server
+		private final int uid;
+
+		ReplaySession(@NotNull SSLSocket socket) throws IOException {
+			this.socket = socket;
+			this.out = socket.getOutputStream();
+			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+			this.write(ClientRequestType.CONNECT.getHeader() + '\n' + LOGIN_HASH + '\n');
+			String header = this.in.readLine();
+			String value = this.in.readLine();
+			if (!ServerResponseType.CONNECTION_SUCCESS.getHeader().equals(header)) {
+				this.close();
+				throw new IOException("The server didn't accept the connection: " + header + ' ' + value);
+			}
+			this.uid = Integer.parseInt(value);
+
+			Thread reader = new Thread(this::readResponses, "replay-reader-" + this.uid);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Sends a request like the one in the trace, with filler instead of its content
+		 *
+		 * @param session_id the id of the session in the trace
+		 * @param peer_uid   the other user in the request, -1 if there is none
+		 * @param size       the size of the content of the request in the trace
+		 */
+		void send(@NotNull ClientRequestType type, int session_id, int peer_uid, int size) throws IOException {
+			String transferID = "replay-" + session_id + '-' + peer_uid;
+			StringBuilder request = new StringBuilder(size + 128).append(type.getHeader()).append('\n');
+			switch (type) {
+				case MESSAGE:
+					long message_id = TrafficReplay.this.next_message_id.incrementAndGet();
+					request.append(this.uid).append('\n')
+						.append(peer_uid).append('\n')
+						.append("id:r").append(TrafficReplay.this.run_id).append('-').append(message_id).append('\n')
+						.append("t_cs:").append(System.currentTimeMillis()).append('\n')
+						.append("---BEGIN MESSAGE---\n")
+						.append(TrafficReplay.this.filler(size)).append('\n')
+						.append("---END MESSAGE---\n");
+					TrafficReplay.this.inFlight.put(message_id, System.nanoTime());
+					break;
+				case READ:
+					request.append(this.uid).append('\n').append(peer_uid).append('\n').append("0\n");
+					break;
+				case SEARCH:
+					request.append(this.uid).append('\n')
+						.append("replay-search\n")
+						.append(TrafficReplay.this.filler(size)).append('\n')
+						.append("20\n");
+					break;
+				case FILE_OFFER:
+					request.append(this.uid).append('\n').append(peer_uid).append('\n').append(transferID).append('\n')
+						.append(TrafficReplay.this.filler(size - 16)).append('\n')
+						.append("1048576\n65536\n");
+					break;
+				case FILE_CHUNK:
+					request.append(this.uid).append('\n').append(peer_uid).append('\n').append(transferID).append('\n')
+						.append("0\n0\n")
+						.append(TrafficReplay.this.filler(size - 5)).append('\n');
+					break;
+				case FILE_RESUME:
+				case FILE_ACK:
+				case FILE_CANCEL:
+					request.append(this.uid).append('\n').append(peer_uid).append('\n').append(transferID).append('\n')
+						.append("0\n");
+					break;
+				case INBOX:
+					request.append(this.uid).append('\n');
+					break;
+				default: // LOGOUT, the server closes the connection
+			}
+			this.write(request);
+		}
+
+		private void write(@NotNull CharSequence request) throws IOException {
+			this.out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+			this.out.flush();
+		}
+
+		/**
+		 * Reads the responses until the connection is closed, only the messages and the rejections are looked at,
+		 * the lines of other responses are skipped
+		 */
+		private void readResponses() {
+			try {
+				String line;
+				while ((line = this.in.readLine()) != null) {
+					if (ServerResponseType.MESSAGE_REJECTED.getHeader().equals(line)) {
+						TrafficReplay.this.n_rejected.incrementAndGet();
+						continue;
+					}
+					if (!ServerResponseType.MESSAGE.getHeader().equals(line))
+						continue;
+
+					String messageID = null;
+					while ((line = this.in.readLine()) != null && !"---BEGIN MESSAGE---".equals(line))
+						if (line.startsWith("id:"))
+							messageID = line;
+					long received_at = System.nanoTime();
+					this.in.readLine(); // the message
+					this.in.readLine(); // and the footer
+
+					Long sent_at = this.parseReplayID(messageID);
+					if (sent_at != null)
+						TrafficReplay.this.latency.record((received_at - sent_at) / 1_000);
+				}
+			} catch (IOException e) {
+				if (!this.socket.isClosed())
+					System.err.println("Replay session " + this.uid + " stopped reading: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * @return the time the message was sent if this is the first time it is received, null otherwise
+		 */
+		private @Nullable Long parseReplayID(@Nullable String messageID) {
+			String prefix = "id:r" + TrafficReplay.this.run_id + '-';
+			if (messageID == null || !messageID.startsWith(prefix))
+				return null;
+			return TrafficReplay.this.inFlight.remove(Long.parseLong(messageID.substring(prefix.length())));
+		}
+
+		void close() {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The records of a trace file, in parallel arrays
+	 */
+	private static class Trace {
+		@NotNull
+		long[] times = new long[1_024];
+		@NotNull
+		int[] sessions = new int[1_024];
+		@NotNull
+		int[] uids = new int[1_024];
+		@NotNull
+		int[] peers = new int[1_024];
+		@NotNull
+		int[] sizes = new int[1_024];
+		// null when the session ended
+		@NotNull
+		ClientRequestType[] types = new ClientRequestType[1_024];
+		int size;
+
+		static @NotNull Trace read(@NotNull Path file) throws IOException {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				if (in.readInt() != TrafficCapture.MAGIC || in.readShort() != TrafficCapture.VERSION)
+					throw new IOException(file + " is not a traffic capture or its version is not supported");
+				in.readLong(); // start time
+
+				// the types are in the file, so a trace can be read even if the request types change
+				Map<String, ClientRequestType> byName = new HashMap<>();
+				for (ClientRequestType type : ClientRequestType.values())
+					byName.put(type.name(), type);
+				List<ClientRequestType> types = new ArrayList<>();
+				int n_types = in.readUnsignedByte();
+				for (int i = 0; i < n_types; ++i)
+					types.add(byName.get(in.readUTF()));
+
+				Map<String, Long> n_unknown = new HashMap<>();
+				Trace trace = new Trace();
+				byte[] record = new byte[TrafficCapture.RECORD_SIZE];
+				ByteBuffer recordBuff = ByteBuffer.wrap(record);
+				while (true) {
+					try {
+						in.readFully(record);
+					} catch (EOFException e) {
+						break; // a server that was killed may leave half of the last record, it is ignored
+					}
+
+					recordBuff.clear();
+					long time = recordBuff.getLong();
+					int session_id = recordBuff.getInt();
+					int uid = recordBuff.getInt();
+					int peer_uid = recordBuff.getInt();
+					int size = recordBuff.getInt();
+					byte type = recordBuff.get();
+
+					ClientRequestType requestType = null;
+					if (type != TrafficCapture.CLOSED) {
+						requestType = type >= 0 && type < types.size() ? types.get(type) : null;
+						if (requestType == null) {
+							n_unknown.merge("type " + type, 1L, Long::sum);
+							continue;
+						}
+					}
+					trace.add(time, session_id, uid, peer_uid, size, requestType);
+				}
+
+				n_unknown.forEach((type, count) -> System.err.println(count + " records with unknown " + type + " skipped"));
+				return trace;
+			} catch (EOFException e) {
+				throw new IOException(file + " is truncated", e);
+			}
+		}
+
+		void add(long time, int session_id, int uid, int peer_uid, int size, @Nullable ClientRequestType type) {
+			if (this.size == this.times.length) {
+				int capacity = this.size * 2;
+				this.times = Arrays.copyOf(this.times, capacity);
+				this.sessions = Arrays.copyOf(this.sessions, capacity);
+				this.uids = Arrays.copyOf(this.uids, capacity);
+				this.peers = Arrays.copyOf(this.peers, capacity);
+				this.sizes = Arrays.copyOf(this.sizes, capacity);
+				this.types = Arrays.copyOf(this.types, capacity);
+			}
+			this.times[this.size] = time;
+			this.sessions[this.size] = session_id;
+			this.uids[this.size] = uid;
+			this.peers[this.size] = peer_uid;
+			this.sizes[this.size] = size;
+			this.types[this.size] = type;
+			++this.size;
+		}
+
+		long getDuration() {
+			return this.size == 0 ? 0 : this.times[this.size - 1];
+		}
+	}
+}
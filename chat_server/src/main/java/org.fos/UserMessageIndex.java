@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The inverted index of the messages of a single user, both sent and received
+ * <p>
+ * New messages are buffered in a small mutable map, and every {@link #BUFFER_SIZE} messages the buffer is frozen
+ * into an immutable {@link IndexSegment}. Segments of similar size are merged by {@link #merge()}, so a user with
+ * n messages has O(log n) segments
+ * <p>
+ * The index is bounded: once it has more than {@link #MAX_DOCUMENTS} messages the oldest segments are dropped, so
+ * the oldest messages are no longer found. Merged segments never have more than {@link #MAX_SEGMENT_DOCUMENTS}
+ * messages, so a drop loses at most that many. With the usual short chat messages (about a dozen terms) an index
+ * takes a few MB at most
+ * <p>
+ * {@link #add(int, long, Map, int)} is called from a single thread. Searches and merges run in other
+ * threads, they only hold the lock to take a snapshot of the buffer and to swap the segments
+ */
+final class UserMessageIndex {
+	// number of messages buffered before they are frozen into a segment
+	static final int BUFFER_SIZE = 1_024;
+
+	// max number of messages kept, plus the ones in the buffer
+	static final int MAX_DOCUMENTS = 32 * BUFFER_SIZE;
+
+	// segments are not merged beyond this size, so dropping the oldest segment doesn't drop too many messages
+	static final int MAX_SEGMENT_DOCUMENTS = MAX_DOCUMENTS / 8;
+
+	// BM25 parameters, the usual values
+	private static final float K1 = 1.2f;
+	private static final float B = 0.75f;
+
+	// the metadata of each message, indexed by document id - first_doc
+	@NotNull
+	private int[] peers = new int[BUFFER_SIZE];
+	@NotNull
+	private long[] seqs = new long[BUFFER_SIZE];
+	@NotNull
+	private int[] lengths = new int[BUFFER_SIZE];
+
+	// id of the oldest document kept and id of the next document, ids are never reused
+	private int first_doc;
+	private int n_docs;
+	// sum of the lengths of the documents kept
+	private long total_length;
+
+	// maps term -> [doc, frequency, doc, frequency...] for the buffered messages
+	@NotNull
+	private HashMap<String, int[]> bufferPostings = new HashMap<>();
+	@NotNull
+	private HashMap<String, Integer> bufferSizes = new HashMap<>();
+	private int n_buffered;
+
+	// oldest first, replaced (never modified) when a segment is added or two segments are merged
+	@NotNull
+	private volatile IndexSegment[] segments = new IndexSegment[0];
+
+	/**
+	 * Adds a message to the index
+	 *
+	 * @param peer_uid the other user in the conversation
+	 * @param seq      position of the message in the conversation
+	 * @param terms    maps each distinct term of the message -> times it appears in the message
+	 * @param length   number of terms in the message, counting repeated terms
+	 * @return true if a new segment was created, so a merge may be needed
+	 */
+	synchronized boolean add(int peer_uid, long seq, @NotNull Map<String, Integer> terms, int length) {
+		int doc = this.n_docs++;
+		int slot = doc - this.first_doc;
+		if (slot == this.peers.length) {
+			this.peers = Arrays.copyOf(this.peers, slot * 2);
+			this.seqs = Arrays.copyOf(this.seqs, slot * 2);
+			this.lengths = Arrays.copyOf(this.lengths, slot * 2);
+		}
+		this.peers[slot] = peer_uid;
+		this.seqs[slot] = seq;
+		this.lengths[slot] = length;
+		this.total_length += length;
+
+		for (Map.Entry<String, Integer> entry : terms.entrySet()) {
+			String term = entry.getKey();
+			int[] postings = this.bufferPostings.get(term);
+			int size = this.bufferSizes.getOrDefault(term, 0);
+			if (postings == null)
+				postings = new int[4];
+			else if (size == postings.length)
+				postings = Arrays.copyOf(postings, size * 2);
+			postings[size] = doc;
+			postings[size + 1] = entry.getValue();
+			this.bufferPostings.put(term, postings);
+			this.bufferSizes.put(term, size + 2);
+		}
+
+		if (++this.n_buffered < BUFFER_SIZE)
+			return false;
+
+		IndexSegment[] segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+		segments[segments.length - 1] = IndexSegment.of(this.bufferPostings, this.bufferSizes, this.n_buffered);
+		this.segments = segments;
+		this.bufferPostings = new HashMap<>();
+		this.bufferSizes = new HashMap<>();
+		this.n_buffered = 0;
+
+		while (this.n_docs - this.first_doc > MAX_DOCUMENTS && this.segments.length > 1)
+			this.dropOldestSegment();
+		return true;
+	}
+
+	/**
+	 * Forgets the messages of the oldest segment, it holds the documents from first_doc on
+	 * <p>
+	 * The metadata arrays are copied instead of shifted, searches in progress may still read the old ones
+	 */
+	private void dropOldestSegment() {
+		int n_dropped = this.segments[0].getDocumentCount();
+		for (int slot = 0; slot < n_dropped; ++slot)
+			this.total_length -= this.lengths[slot];
+
+		this.peers = Arrays.copyOfRange(this.peers, n_dropped, n_dropped + this.peers.length);
+		this.seqs = Arrays.copyOfRange(this.seqs, n_dropped, n_dropped + this.seqs.length);
+		this.lengths = Arrays.copyOfRange(this.lengths, n_dropped, n_dropped + this.lengths.length);
+		this.first_doc += n_dropped;
+		this.segments = Arrays.copyOfRange(this.segments, 1, this.segments.length);
+	}
+
+	/**
+	 * Merges segments of similar size until there are none left, the merge itself runs without the lock
+	 * <p>
+	 * It should be called from a single thread
+	 */
+	void merge() {
+		while (true) {
+			IndexSegment[] segments = this.segments;
+
+			// the newest pair where the older segment is not much bigger than the newer one
+			int i = segments.length - 2;
+			while (i >= 0 && (segments[i].getDocumentCount() > segments[i + 1].getDocumentCount() * 2
+				|| segments[i].getDocumentCount() + segments[i + 1].getDocumentCount() > MAX_SEGMENT_DOCUMENTS))
+				--i;
+			if (i < 0)
+				return;
+
+			IndexSegment merged = IndexSegment.merge(segments[i], segments[i + 1]);
+
+			synchronized (this) {
+				// new segments may have been appended and the oldest ones dropped meanwhile
+				IndexSegment[] current = this.segments;
+				int at = current.length - 2;
+				while (at >= 0 && current[at] != segments[i])
+					--at;
+				if (at < 0 || current[at + 1] != segments[i + 1])
+					continue; // the pair was dropped
+
+				IndexSegment[] next = new IndexSegment[current.length - 1];
+				System.arraycopy(current, 0, next, 0, at);
+				next[at] = merged;
+				System.arraycopy(current, at + 2, next, at + 1, current.length - at - 2);
+				this.segments = next;
+			}
+		}
+	}
+
+	/**
+	 * Ranks the messages containing any of the terms with BM25
+	 *
+	 * @param terms the distinct terms of the query
+	 * @param limit the max number of hits
+	 * @return the best hits, best first
+	 */
+	@NotNull List<SearchHit> search(@NotNull Collection<String> terms, int limit) {
+		IndexSegment[] segments;
+		int first_doc, n_docs;
+		long total_length;
+		int[] peers, lengths;
+		long[] seqs;
+		int[][] bufferPostings = new int[terms.size()][];
+		int[] bufferSizes = new int[terms.size()];
+
+		// snapshot, the metadata arrays are only appended (or replaced) so the captured references are enough
+		synchronized (this) {
+			segments = this.segments;
+			first_doc = this.first_doc;
+			n_docs = this.n_docs - this.first_doc;
+			total_length = this.total_length;
+			peers = this.peers;
+			lengths = this.lengths;
+			seqs = this.seqs;
+
+			int t = 0;
+			for (String term : terms) {
+				int[] postings = this.bufferPostings.get(term);
+				if (postings != null) {
+					bufferSizes[t] = this.bufferSizes.get(term);
+					bufferPostings[t] = Arrays.copyOf(postings, bufferSizes[t]);
+				}
+				++t;
+			}
+		}
+		if (n_docs == 0)
+			return new ArrayList<>();
+
+		float avg_length = (float) total_length / n_docs;
+		float[] scores = new float[n_docs];
+		int[] touched = new int[n_docs];
+		int n_touched = 0;
+
+		int t = 0;
+		for (String term : terms) {
+			int[] positions = new int[segments.length];
+			int df = bufferSizes[t] / 2;
+			for (int s = 0; s < segments.length; ++s) {
+				positions[s] = segments[s].find(term);
+				if (positions[s] >= 0)
+					df += segments[s].documentFrequency(positions[s]);
+			}
+			if (df == 0) {
+				++t;
+				continue;
+			}
+
+			float idf = (float) Math.log(1 + (n_docs - df + 0.5) / (df + 0.5));
+			for (int s = 0; s < segments.length; ++s) {
+				if (positions[s] < 0)
+					continue;
+
+				int[] docs = segments[s].getDocs();
+				int[] frequencies = segments[s].getFrequencies();
+				for (int p = segments[s].postingsStart(positions[s]); p < segments[s].postingsEnd(positions[s]); ++p) {
+					int doc = docs[p] - first_doc;
+					if (scores[doc] == 0)
+						touched[n_touched++] = doc;
+					scores[doc] += bm25(idf, frequencies[p], lengths[doc], avg_length);
+				}
+			}
+
+			int[] postings = bufferPostings[t];
+			for (int p = 0; p < bufferSizes[t]; p += 2) {
+				int doc = postings[p] - first_doc;
+				if (scores[doc] == 0)
+					touched[n_touched++] = doc;
+				scores[doc] += bm25(idf, postings[p + 1], lengths[doc], avg_length);
+			}
+			++t;
+		}
+
+		// keep the best hits in a min-heap, the worst of them at the top
+		PriorityQueue<Integer> best = new PriorityQueue<>(
+			limit + 1,
+			(a, b) -> a.equals(b) ? 0 : scores[a] != scores[b] ? Float.compare(scores[a], scores[b]) : Integer.compare(a, b)
+		);
+		for (int i = 0; i < n_touched; ++i) {
+			int doc = touched[i];
+			if (best.size() < limit)
+				best.add(doc);
+			else if (scores[doc] > scores[best.peek()]) {
+				best.poll();
+				best.add(doc);
+			}
+		}
+
+		SearchHit[] hits = new SearchHit[best.size()];
+		for (int i = hits.length - 1; i >= 0; --i) {
+			int doc = best.poll();
+			hits[i] = new SearchHit(peers[doc], seqs[doc], scores[doc]);
+		}
+		return new ArrayList<>(Arrays.asList(hits));
+	}
+
+	private static float bm25(float idf, int frequency, int length, float avg_length) {
+		float norm = K1 * (1 - B + B * length / avg_length);
+		return idf * frequency * (K1 + 1) / (frequency + norm);
+	}
+
+	int getSegmentCount() {
+		return this.segments.length;
+	}
+
+	/**
+	 * @return the number of messages kept
+	 */
+	synchronized int getDocumentCount() {
+		return this.n_docs - this.first_doc;
+	}
+}
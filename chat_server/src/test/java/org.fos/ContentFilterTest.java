@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ContentFilterTest {
+	@Test
+	public void testOverlappingPatterns() {
+		ContentFilter filter = ContentFilter.compile(Arrays.asList("he", "she", "his", "hers"));
+
+		assertEquals("she", found(filter, "ushers"));
+		assertEquals("his", found(filter, "this"));
+		assertEquals("he", found(filter, "the"));
+		assertEquals(null, found(filter, "hxsrhi"));
+	}
+
+	@Test
+	public void testFailureLinks() {
+		// "bc" ends inside "abcd", it is only found through the failure link of "abc"
+		ContentFilter filter = ContentFilter.compile(Arrays.asList("abcd", "bc"));
+		assertEquals("bc", found(filter, "xabce"));
+
+		// after a mismatch the automaton continues from the longest suffix, not from the start
+		filter = ContentFilter.compile(Collections.singletonList("aab"));
+		assertEquals("aab", found(filter, "aaab"));
+		assertEquals("aab", found(filter, "abaaab"));
+		assertEquals(null, found(filter, "abab"));
+	}
+
+	@Test
+	public void testCaseFolding() {
+		ContentFilter filter = ContentFilter.compile(Arrays.asList("Spam", "ñ"));
+
+		assertEquals("Spam", found(filter, "buy SPAM now"));
+		assertEquals("Spam", found(filter, "sPaM"));
+		// only ASCII letters are folded, the UTF-8 bytes of other letters are compared as they are
+		assertEquals(null, found(filter, "Ñ"));
+		assertEquals("ñ", found(filter, "año"));
+	}
+
+	@Test
+	public void testEmptyFilter() {
+		assertEquals(0, ContentFilter.EMPTY.size());
+		assertEquals(null, found(ContentFilter.EMPTY, "anything"));
+		assertEquals(0, ContentFilter.compile(Collections.singletonList("")).size());
+	}
+
+	@Test
+	public void testFindBase64() {
+		ContentFilter filter = ContentFilter.compile(Collections.singletonList("xyz"));
+
+		// every length mod 3, so the text ends with 0, 1 and 2 padding characters, with the pattern at the end
+		for (String prefix : new String[]{"", "a", "ab", "abc", "abcd", "abcde"}) {
+			String text = prefix + "xyz";
+			assertEquals("xyz", foundBase64(filter, Base64.getEncoder().encodeToString(bytes(text))), text);
+			assertEquals("xyz", foundBase64(filter, Base64.getMimeEncoder(4, new byte[]{'\n'}).encodeToString(bytes(text))), text);
+
+			// the pattern cut at the end, the bits of the padding shouldn't complete it
+			String cut = prefix + "xy";
+			assertEquals(null, foundBase64(filter, Base64.getEncoder().encodeToString(bytes(cut))), cut);
+		}
+
+		// the decoding stops at the padding
+		String encoded = Base64.getEncoder().encodeToString(bytes("a")) + Base64.getEncoder().encodeToString(bytes("xyz"));
+		assertEquals(null, foundBase64(filter, encoded));
+	}
+
+	private static String found(ContentFilter filter, String text) {
+		byte[] bytes = bytes(text);
+		int index = filter.find(bytes, 0, bytes.length);
+		return index < 0 ? null : filter.getPattern(index);
+	}
+
+	private static String foundBase64(ContentFilter filter, String base64) {
+		// with something around it, to check the offset and length are used
+		byte[] bytes = bytes("xyz" + base64 + "xyz");
+		int index = filter.findBase64(bytes, 3, bytes.length - 6);
+		return index < 0 ? null : filter.getPattern(index);
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+}
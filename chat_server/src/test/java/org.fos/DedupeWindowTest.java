@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DedupeWindowTest {
+	@Test
+	public void testDuplicates() {
+		DedupeWindow window = new DedupeWindow();
+
+		assertTrue(window.add("first"));
+		assertTrue(window.add("second"));
+		assertFalse(window.add("first"));
+
+		byte[] id = "second".getBytes(StandardCharsets.UTF_8);
+		byte[] padded = new byte[id.length + 2];
+		System.arraycopy(id, 0, padded, 1, id.length);
+		assertFalse(window.add(padded, 1, id.length));
+	}
+
+	@Test
+	public void testEviction() {
+		DedupeWindow window = new DedupeWindow();
+		for (int i = 0; i < DedupeWindow.CAPACITY; ++i)
+			assertTrue(window.add("id " + i));
+
+		// the window is full, every id is still remembered
+		for (int i = 0; i < DedupeWindow.CAPACITY; ++i)
+			assertFalse(window.add("id " + i));
+
+		// each new id forgets the oldest one
+		assertTrue(window.add("id " + DedupeWindow.CAPACITY));
+		assertTrue(window.add("id 0"));
+		assertFalse(window.add("id 2"));
+		assertFalse(window.add("id " + DedupeWindow.CAPACITY));
+
+		// after a full window of new ids none of the old ones is remembered
+		for (int i = 0; i < DedupeWindow.CAPACITY; ++i)
+			assertTrue(window.add("new id " + i));
+		for (int i = 0; i <= DedupeWindow.CAPACITY; ++i)
+			assertTrue(window.add("id " + i));
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundLanesTest {
+	private final BufferPool pool = new BufferPool();
+
+	@Test
+	public void testLanePriority() throws Exception {
+		OutboundLanes lanes = new OutboundLanes();
+		lanes.put(OutboundLane.LAST, this.frame("last", 10));
+		lanes.put(OutboundLane.BULK, this.frame("bulk", 10));
+		lanes.put(OutboundLane.INTERACTIVE, this.frame("interactive", 10));
+		lanes.put(OutboundLane.CONTROL, this.frame("control", 10));
+		assertEquals(4, lanes.size());
+
+		assertEquals("control", take(lanes));
+		assertEquals("interactive", take(lanes));
+		assertEquals("bulk", take(lanes));
+		assertEquals("last", take(lanes));
+		assertEquals(0, lanes.size());
+	}
+
+	@Test
+	public void testDeficitRoundRobin() throws Exception {
+		// the interactive lane gets 3 times the bytes of the bulk lane while both are busy
+		OutboundLanes lanes = new OutboundLanes(3_000, 100, 1_000, 100);
+		for (int i = 0; i < 10; ++i) {
+			lanes.put(OutboundLane.INTERACTIVE, this.frame("interactive", 1_000));
+			lanes.put(OutboundLane.BULK, this.frame("bulk", 1_000));
+		}
+
+		StringBuilder order = new StringBuilder();
+		for (int i = 0; i < 13; ++i)
+			order.append(take(lanes).charAt(0));
+		assertEquals("iiibiiibiiibi", order.toString());
+
+		// the interactive lane is empty now, the bulk lane gets every turn
+		for (int i = 0; i < 7; ++i)
+			assertEquals("bulk", take(lanes));
+		assertEquals(0, lanes.size());
+	}
+
+	@Test
+	public void testFrameBiggerThanQuantum() throws Exception {
+		// the deficit is kept between turns until the frame fits
+		OutboundLanes lanes = new OutboundLanes(1_000, 100, 1_000, 100);
+		lanes.put(OutboundLane.BULK, this.frame("big", 2_500));
+		lanes.put(OutboundLane.INTERACTIVE, this.frame("interactive", 500));
+		lanes.put(OutboundLane.INTERACTIVE, this.frame("interactive", 500));
+		lanes.put(OutboundLane.INTERACTIVE, this.frame("interactive", 500));
+
+		assertEquals("interactive", take(lanes));
+		assertEquals("interactive", take(lanes));
+		assertEquals("interactive", take(lanes));
+		assertEquals("big", take(lanes));
+	}
+
+	@Test
+	public void testFullLaneBlocks() throws Exception {
+		OutboundLanes lanes = new OutboundLanes(1_000, 100, 1_000, 2);
+		lanes.put(OutboundLane.BULK, this.frame("bulk", 10));
+		lanes.put(OutboundLane.BULK, this.frame("bulk", 10));
+		// the other lanes are not affected
+		lanes.put(OutboundLane.INTERACTIVE, this.frame("interactive", 10));
+
+		CompletableFuture<Void> put = CompletableFuture.runAsync(() -> {
+			try {
+				lanes.put(OutboundLane.BULK, this.frame("third", 10));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		assertThrows(TimeoutException.class, () -> put.get(200, TimeUnit.MILLISECONDS));
+
+		assertEquals("interactive", take(lanes));
+		assertFalse(put.isDone(), "the bulk lane is still full");
+
+		assertEquals("bulk", take(lanes));
+		put.get(5, TimeUnit.SECONDS);
+		assertEquals("bulk", take(lanes));
+		assertEquals("third", take(lanes));
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		OutboundLanes lanes = new OutboundLanes(1_000, 100, 1_000, 1);
+		lanes.put(OutboundLane.BULK, this.frame("bulk", 10));
+
+		CompletableFuture<Void> put = CompletableFuture.runAsync(() -> {
+			try {
+				lanes.put(OutboundLane.BULK, this.frame("bulk", 10));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		assertThrows(TimeoutException.class, () -> put.get(200, TimeUnit.MILLISECONDS));
+
+		// the waiting frames are discarded and the blocked writer is woken up
+		lanes.close();
+		ExecutionException e = assertThrows(ExecutionException.class, () -> put.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause().getCause() instanceof SocketException);
+		assertEquals(0, lanes.size());
+		assertNull(lanes.take());
+		assertThrows(SocketException.class, () -> lanes.put(OutboundLane.CONTROL, this.frame("control", 10)));
+	}
+
+	/**
+	 * @return a frame of the given size starting with the name
+	 */
+	private Frame frame(String name, int size) {
+		StringBuilder line = new StringBuilder(name);
+		while (line.length() < size - 1)
+			line.append('.');
+		return new Frame(this.pool).line(line);
+	}
+
+	private static String take(OutboundLanes lanes) throws InterruptedException {
+		try (Frame frame = lanes.take()) {
+			assertNotNull(frame);
+			String line = new String(frame.array(), 0, frame.size() - 1, StandardCharsets.UTF_8);
+			int end = line.indexOf('.');
+			return end < 0 ? line : line.substring(0, end);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserMessageIndexTest {
+	private static final int PEER_UID = 7;
+
+	@Test
+	public void testSearch() {
+		UserMessageIndex index = new UserMessageIndex();
+		for (int seq = 0; seq < UserMessageIndex.BUFFER_SIZE * 3 + 10; ++seq)
+			add(index, seq, "hello", "message" + seq);
+
+		List<SearchHit> hits = index.search(Arrays.asList("message5"), 10);
+		assertEquals(1, hits.size());
+		assertEquals(5, hits.get(0).getSeq());
+
+		// the last messages are still in the buffer
+		hits = index.search(Arrays.asList("message" + (UserMessageIndex.BUFFER_SIZE * 3 + 9)), 10);
+		assertEquals(1, hits.size());
+		assertEquals(10, index.search(Arrays.asList("hello"), 10).size());
+	}
+
+	@Test
+	public void testOldestMessagesAreDropped() {
+		UserMessageIndex index = new UserMessageIndex();
+		int n_messages = UserMessageIndex.MAX_DOCUMENTS * 3;
+		for (int seq = 0; seq < n_messages; ++seq) {
+			add(index, seq, "hello", "message" + seq);
+			assertTrue(index.getDocumentCount() <= UserMessageIndex.MAX_DOCUMENTS + UserMessageIndex.BUFFER_SIZE);
+		}
+
+		assertTrue(index.getDocumentCount() >= UserMessageIndex.MAX_DOCUMENTS - UserMessageIndex.MAX_SEGMENT_DOCUMENTS);
+		assertTrue(index.getSegmentCount() <= UserMessageIndex.MAX_DOCUMENTS / UserMessageIndex.MAX_SEGMENT_DOCUMENTS + 8);
+		assertTrue(index.search(Arrays.asList("message0"), 10).isEmpty());
+
+		List<SearchHit> hits = index.search(Arrays.asList("message" + (n_messages - 1)), 10);
+		assertEquals(1, hits.size());
+		assertEquals(n_messages - 1, hits.get(0).getSeq());
+		assertEquals(PEER_UID, hits.get(0).getPeerUID());
+	}
+
+	private static void add(UserMessageIndex index, long seq, String... terms) {
+		Map<String, Integer> frequencies = new HashMap<>();
+		for (String term : terms)
+			frequencies.merge(term, 1, Integer::sum);
+		if (index.add(PEER_UID, seq, frequencies, terms.length))
+			index.merge();
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.build;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Generates the typed message tables from the messages*.properties bundles
+ * <p>
+ * For each key in the bundles a constant in the enum org.fos.core.Message is generated, and for each language
+ * an array with the messages indexed by the ordinal of the constant. That way getting a message is an array access
+ * instead of a lookup in the {@link java.util.ResourceBundle} chain
+ * <p>
+ * Missing messages in a language fall back to the default bundle (messages.properties) and then to english
+ * <p>
+ * This is executed by maven in the generate-sources phase as a single-file program (requires JDK 11+ to build)
+ * java MessagesGenerator.java BUNDLES_DIR OUTPUT_DIR
+ */
+public class MessagesGenerator {
+	private static final String PACKAGE = "org.fos.core";
+	private static final String BUNDLE_NAME = "messages";
+
+	// used for unknown languages and for messages missing in both a language and the default bundle
+	private static final String FALLBACK_LANGUAGE = "en";
+
+	public static void main(String... args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java MessagesGenerator.java BUNDLES_DIR OUTPUT_DIR");
+			System.exit(1);
+		}
+
+		Path bundlesDir = Paths.get(args[0]);
+		Path outputDir = Paths.get(args[1]).resolve(PACKAGE.replace('.', '/'));
+
+		// maps language ("" for the default bundle) -> messages
+		Map<String, Properties> bundles = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(bundlesDir, BUNDLE_NAME + "*.properties")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				String language = name.substring(BUNDLE_NAME.length(), name.length() - ".properties".length());
+				if (language.startsWith("_"))
+					language = language.substring(1);
+
+				Properties messages = new Properties();
+				try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+					messages.load(reader);
+				}
+				bundles.put(language, messages);
+			}
+		}
+
+		Properties defaultBundle = bundles.getOrDefault("", new Properties());
+		TreeSet<String> keys = new TreeSet<>();
+		bundles.values().forEach(bundle -> keys.addAll(bundle.stringPropertyNames()));
+
+		Files.createDirectories(outputDir);
+		writeMessageEnum(outputDir.resolve("Message.java"), keys);
+		writeMessageTables(outputDir.resolve("MessageTables.java"), keys, bundles, defaultBundle);
+	}
+
+	private static void writeMessageEnum(Path file, TreeSet<String> keys) throws IOException {
+		try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			out.write("package " + PACKAGE + ";\n\n");
+			out.write("/**\n * Keys of the messages bundles. GENERATED by MessagesGenerator, do not edit\n */\n");
+			out.write("public enum Message {\n");
+			for (String key : keys)
+				out.write("\t" + toConstant(key) + "(\"" + key + "\"),\n");
+			out.write("\t;\n\n");
+			out.write("\tprivate final String key;\n\n");
+			out.write("\tMessage(String key) {\n\t\tthis.key = key;\n\t}\n\n");
+			out.write("\t/**\n\t * @return the key in the .properties file\n\t */\n");
+			out.write("\tpublic String getKey() {\n\t\treturn key;\n\t}\n");
+			out.write("}\n");
+		}
+	}
+
+	private static void writeMessageTables(
+		Path file,
+		TreeSet<String> keys,
+		Map<String, Properties> bundles,
+		Properties defaultBundle
+	) throws IOException {
+		try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			out.write("package " + PACKAGE + ";\n\n");
+			out.write("/**\n * Messages for each language, indexed by {@link Message#ordinal()}."
+				+ " GENERATED by MessagesGenerator, do not edit\n */\n");
+			out.write("final class MessageTables {\n");
+
+			Properties englishBundle = bundles.getOrDefault(FALLBACK_LANGUAGE, new Properties());
+			for (Map.Entry<String, Properties> bundle : bundles.entrySet()) {
+				if (bundle.getKey().isEmpty())
+					continue; // the default bundle is only used to fill the missing messages
+
+				out.write("\tprivate static final String[] " + tableName(bundle.getKey()) + " = {\n");
+				for (String key : keys) {
+					String message = bundle.getValue().getProperty(
+						key,
+						defaultBundle.getProperty(key, englishBundle.getProperty(key, key))
+					);
+					out.write("\t\t\"" + escape(message) + "\",\n");
+				}
+				out.write("\t};\n\n");
+			}
+
+			out.write("\tprivate MessageTables() {\n\t}\n\n");
+			out.write("\t/**\n\t * @param language the language code, e. g. \"es\"\n");
+			out.write("\t * @return the messages for the language, or the default messages if there are none for it\n\t */\n");
+			out.write("\tstatic String[] forLanguage(String language) {\n");
+			out.write("\t\tswitch (language) {\n");
+			for (String language : bundles.keySet())
+				if (!language.isEmpty())
+					out.write("\t\t\tcase \"" + language + "\":\n\t\t\t\treturn " + tableName(language) + ";\n");
+			out.write("\t\t\tdefault:\n\t\t\t\treturn " + tableName(FALLBACK_LANGUAGE) + ";\n");
+			out.write("\t\t}\n\t}\n");
+			out.write("}\n");
+		}
+	}
+
+	private static String toConstant(String key) {
+		return key.toUpperCase(Locale.ROOT).replaceAll("[^A-Z0-9_]", "_");
+	}
+
+	private static String tableName(String language) {
+		return language.toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * Escapes the message so it can be written as a java string literal
+	 * non-ASCII characters are written as unicode escapes so the generated file doesn't depend on the encoding
+	 */
+	private static String escape(String message) {
+		StringBuilder escaped = new StringBuilder(message.length());
+		for (char c : message.toCharArray()) {
+			if (c == '"' || c == '\\')
+				escaped.append('\\').append(c);
+			else if (c == '\n')
+				escaped.append("\\n");
+			else if (c < 0x20 || c > 0x7e)
+				escaped.append(String.format("\\u%04x", (int) c));
+			else
+				escaped.append(c);
+		}
+		return escaped.toString();
+	}
+}
@@ -20,6 +20,11 @@ package org.fos;
 
 import java.util.ResourceBundle;
 
+/**
+ * A view whose text depends on the current language
+ * <p>
+ * Register the view in the {@link org.fos.core.I18nRegistry} so it is re-rendered every time the language changes
+ */
 public interface I18nable {
 	/**
 	 * Updates & displays the text according to the current loaded message bundle
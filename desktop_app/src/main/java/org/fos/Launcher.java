@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos;
+
+/**
+ * Entry point to start the app from the jar with all the dependencies (the classpath)
+ * <p>
+ * Since Java 11 the launcher refuses to start a main class that extends {@link javafx.application.Application}
+ * if JavaFX is not in the module path, this class doesn't extend it so the check is skipped
+ */
+public class Launcher {
+	public static void main(String... args) {
+		ShareBook.main(args);
+	}
+}
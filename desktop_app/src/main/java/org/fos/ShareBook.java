@@ -19,37 +19,56 @@
 package org.fos;
 
 import javafx.application.Application;
-import javafx.fxml.FXMLLoader;
+import javafx.application.Platform;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+import javafx.scene.layout.StackPane;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 import org.fos.chat.ChatClient;
-import org.fos.controllers.InitialViewController;
+import org.fos.components.LatencyOverlay;
+import org.fos.core.I18nRegistry;
+import org.fos.core.MessageTable;
+import org.fos.core.StartupTimer;
+import org.fos.core.ViewRegistry;
 
 import java.io.IOException;
-import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Locale;
-import java.util.MissingResourceException;
 import java.util.Properties;
-import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
 
 public class ShareBook extends Application {
-    private static ResourceBundle messagesBundle;
     private static Properties appConfig; // Properties is thread-safe
     private static Stage primaryStage;
 
     public static void main(String... args) {
-        ShareBook.changeMessagesBundle(Locale.ENGLISH); // change message bundle to default
-        ShareBook.loadConfig();
+        StartupTimer.mark("main");
+
+        // these steps are independent from each other, so run them at the same time
+        CompletableFuture<Void> bundleLoaded = CompletableFuture.runAsync(() -> {
+            ShareBook.changeMessagesBundle(Locale.ENGLISH); // change message bundle to default
+            StartupTimer.mark("bundle");
+        });
+        CompletableFuture<Void> configLoaded = CompletableFuture.runAsync(() -> {
+            ShareBook.loadConfig();
+            StartupTimer.mark("config");
+        });
+        ChatClient.preloadSSLContext(); // not needed until the user logs in, so don't wait for it
+
+        // the views need the bundle and the config
+        CompletableFuture.allOf(bundleLoaded, configLoaded).join();
         launch(args); // launch JavaFX app
     }
 
     /**
-     * @return the current loaded messages bundle
+     * @return the messages for the current language
      */
-    public static ResourceBundle getMessagesBundle() {
-        return ShareBook.messagesBundle;
+    public static MessageTable getMessages() {
+        return I18nRegistry.getMessages();
     }
 
     /**
@@ -60,21 +79,22 @@ public class ShareBook extends Application {
     }
 
     /**
-     * Loads a new bundle for the given locale
+     * @return the directory where the app keeps its local data (e. g. the chat conversations)
+     * it can be changed with the DATA_DIR property in the app configuration
+     */
+    public static Path getDataDir() {
+        String defaultDataDir = Paths.get(System.getProperty("user.home"), ".sharebook").toString();
+        return Paths.get(ShareBook.appConfig.getProperty("DATA_DIR", defaultDataDir));
+    }
+
+    /**
+     * Changes the language of the app, every open {@link I18nable} view registered in the {@link I18nRegistry}
+     * will display its text in the new language
+     *
      * @param locale the message's locale to be loaded
      */
     public static void changeMessagesBundle(final Locale locale) {
-        ResourceBundle newBundle;
-
-        try {
-            newBundle = ResourceBundle.getBundle("resources.bundles.messages", locale);
-        } catch (NullPointerException | MissingResourceException e) {
-            // TODO: USE ERROR HANDLING STRATEGY
-            newBundle = ResourceBundle.getBundle("resources.bundles.messages", Locale.ENGLISH);
-            // ENGLISH SHOULD be in the resources, if not bad things can happen
-        }
-
-        ShareBook.messagesBundle = newBundle;
+        I18nRegistry.changeLanguage(locale);
     }
 
     /**
@@ -91,6 +111,16 @@ public class ShareBook extends Application {
         }
     }
 
+    /**
+     * Starts parsing the initial view (and the login panel inside it) in background threads
+     * This runs while the JavaFX toolkit creates the primary stage, so the view is (almost) ready in {@link #start(Stage)}
+     */
+    @Override
+    public void init() {
+        StartupTimer.mark("fx_toolkit");
+        ViewRegistry.preload(ViewRegistry.INITIAL_VIEW, ViewRegistry.LOGIN_VIEW);
+    }
+
     /**
      * Starts the app, sets the main scene
      * It also sets min dimensions
@@ -104,15 +134,33 @@ public class ShareBook extends Application {
 
         Parent primaryView;
         try {
-            primaryView = FXMLLoader.load(
-                    new URL(InitialViewController.class.getResource("/resources/views/InitialView.fxml").toString())
-            );
+            primaryView = ViewRegistry.get(ViewRegistry.INITIAL_VIEW).getRoot();
         } catch (IOException e) {
-            // TODO: handle exception
+            // the view was parsed in a background thread, report the error here in the FX thread
             e.printStackTrace();
+            new Alert(
+                Alert.AlertType.ERROR,
+                "Fatal error, could not load the initial view. Please retry",
+                ButtonType.CLOSE
+            ).showAndWait();
+            ShareBook.exit();
+            Platform.exit();
             return;
         }
+        StartupTimer.mark("initial_view");
+
+        if (LatencyOverlay.isEnabled())
+            primaryView = new StackPane(primaryView, new LatencyOverlay());
+
         Scene scene = new Scene(primaryView);
+        scene.addPostLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                // the first layout pulse of the scene is the first time the window is painted
+                scene.removePostLayoutPulseListener(this);
+                ShareBook.onFirstPaint();
+            }
+        });
         primaryStage.setScene(scene);
         primaryStage.show();
 
@@ -122,6 +170,21 @@ public class ShareBook extends Application {
         primaryStage.setOnCloseRequest((WindowEvent evt) -> ShareBook.exit());
     }
 
+    /**
+     * Invoked once the window has been painted for the first time
+     * <p>
+     * If the app was started with -Dsharebook.exitAfterFirstPaint=true it will exit right away,
+     * this is used to measure the startup time and to create the class data sharing archive
+     */
+    private static void onFirstPaint() {
+        StartupTimer.mark("first_paint");
+        if (StartupTimer.isTraceEnabled())
+            System.out.println(StartupTimer.report());
+
+        if (Boolean.getBoolean("sharebook.exitAfterFirstPaint"))
+            Platform.runLater(ShareBook::exit);
+    }
+
     /**
      * Exits the app by first closing the main stage
      *
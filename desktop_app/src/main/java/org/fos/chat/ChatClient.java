@@ -19,7 +19,10 @@
 package org.fos.chat;
 
 import org.fos.ShareBook;
+import org.fos.core.Message;
+import org.fos.core.StartupTimer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.net.ssl.SSLContext;
@@ -28,6 +31,8 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -35,15 +40,29 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ChatClient extends Thread {
+	private static final String CERT_FILE_PATH = "/resources/cert.pem";
+
 	private static ChatClient instance;
 
+	private static CompletableFuture<SSLContext> sslContext;
+
 	private ChatSocket socket;
 
 	private final char[] loginHash;
@@ -61,6 +80,52 @@ public class ChatClient extends Thread {
 	private Consumer<String> onConnectionFailed;
 	@NotNull
 	private Runnable onConnectionSuccess;
+	// returns where an offered file should be saved, or null to reject it
+	@NotNull
+	private Function<FileTransfer, Path> onFileOffer = transfer -> null;
+
+	// if set, every sent/received message is also written to the local store
+	@Nullable
+	private ConversationStore conversationStore;
+
+	// if set, received events are also delivered to the UI through it
+	@Nullable
+	private ChatEventBus eventBus;
+
+	// created once the client is connected
+	@Nullable
+	private volatile FileTransferManager fileTransfers;
+
+	// set when the server asks to reconnect, "host:port" or empty for the same server
+	@Nullable
+	private volatile String redirect_address;
+	private volatile long redirect_delay = -1;
+
+	// bounds of the wait between the attempts to reconnect after a redirect, see reconnectDelay
+	private static final long MIN_RECONNECT_DELAY = 1_000;
+	private static final long MAX_RECONNECT_DELAY = 60_000;
+
+	// messages that could not be written, they are sent again with the same id after reconnecting
+	@NotNull
+	private final ConcurrentLinkedQueue<OutgoingMessage> unsent = new ConcurrentLinkedQueue<>();
+
+	// maps search id -> future completed when the results arrive
+	@NotNull
+	private final ConcurrentHashMap<String, CompletableFuture<List<MessageSearchHit>>> pendingSearches = new ConcurrentHashMap<>();
+	@NotNull
+	private final AtomicLong search_ids = new AtomicLong();
+
+	// futures of the inbox requests, the server answers them in order
+	@NotNull
+	private final ConcurrentLinkedQueue<CompletableFuture<List<ConversationSummary>>> pendingInboxes = new ConcurrentLinkedQueue<>();
+
+	// maps peer uid -> sequence number of the last message received in the conversation
+	@NotNull
+	private final ConcurrentHashMap<Integer, Long> lastSeqs = new ConcurrentHashMap<>();
+
+	// latency of the received messages that carry the time they were sent
+	@NotNull
+	private final MessageLatency latency = new MessageLatency();
 
 	/**
 	 * Creates a new chat client
@@ -95,27 +160,79 @@ public class ChatClient extends Thread {
 	/**
 	 * Initialize the attributes for this class
 	 * @throws IOException see {@link #configuredSSLContext(String)}
-	 * @throws CertificateException see {@link #configuredSSLContext(String)}
-	 * @throws NoSuchAlgorithmException see {@link #configuredSSLContext(String)}
-	 * @throws KeyStoreException see {@link #configuredSSLContext(String)}
-	 * @throws KeyManagementException see {@link #configuredSSLContext(String)}
+	 * @throws GeneralSecurityException see {@link #configuredSSLContext(String)}
 	 */
-	private void init() throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+	private void init() throws IOException, GeneralSecurityException {
 		if (this.isInterrupted())
 			return;
 
 		Properties appConfig = ShareBook.getAppConfig();
 
-		SSLSocketFactory factory = this.configuredSSLContext("/resources/cert.pem").getSocketFactory();
-		SSLSocket socket = (SSLSocket) factory.createSocket(
-			appConfig.getProperty("CHAT_IP", "127.0.0.1"),
-			Integer.parseInt(appConfig.getProperty("CHAT_PORT", "12365"))
-		);
+		String host = appConfig.getProperty("CHAT_IP", "127.0.0.1");
+		int port = Integer.parseInt(appConfig.getProperty("CHAT_PORT", "12365"));
+
+		// the server may have sent this client to another server
+		String redirectAddress = this.redirect_address;
+		if (redirectAddress != null && !redirectAddress.isEmpty()) {
+			int colon = redirectAddress.lastIndexOf(':');
+			host = colon < 0 ? redirectAddress : redirectAddress.substring(0, colon);
+			if (colon >= 0)
+				port = Integer.parseInt(redirectAddress.substring(colon + 1));
+		}
+
+		SSLSocketFactory factory = ChatClient.getSSLContext().getSocketFactory();
+		SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
 		socket.startHandshake();
 
 		this.socket = new ChatSocket(socket);
 	}
 
+	/**
+	 * Starts creating the SSL context in a background thread, so it is ready by the time the client connects
+	 * <p>
+	 * Creating the context is slow (parsing the certificate, initializing the trust managers) and it is the same
+	 * for every connection, so it is created only once
+	 *
+	 * @return the future SSL context
+	 */
+	synchronized public static CompletableFuture<SSLContext> preloadSSLContext() {
+		if (ChatClient.sslContext == null)
+			ChatClient.sslContext = CompletableFuture.supplyAsync(() -> {
+				try {
+					SSLContext sslContext = ChatClient.configuredSSLContext(CERT_FILE_PATH);
+					StartupTimer.mark("ssl_context");
+					return sslContext;
+				} catch (IOException | GeneralSecurityException e) {
+					throw new CompletionException(e);
+				}
+			});
+
+		return ChatClient.sslContext;
+	}
+
+	/**
+	 * Gets the SSL context, waiting for it if it is being created by {@link #preloadSSLContext()}
+	 *
+	 * @return the SSL context
+	 * @throws IOException              see {@link #configuredSSLContext(String)}
+	 * @throws GeneralSecurityException see {@link #configuredSSLContext(String)}
+	 */
+	private static SSLContext getSSLContext() throws IOException, GeneralSecurityException {
+		try {
+			return ChatClient.preloadSSLContext().join();
+		} catch (CompletionException e) {
+			synchronized (ChatClient.class) {
+				ChatClient.sslContext = null; // so it is retried the next time
+			}
+
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof GeneralSecurityException)
+				throw (GeneralSecurityException) e.getCause();
+			throw e;
+		}
+	}
+
 	/**
 	 * Configures the SSL context to accept a self-signed certificate
 	 *
@@ -126,7 +243,7 @@ public class ChatClient extends Thread {
 	 * @throws NoSuchAlgorithmException if the TLSv1.2 is not supported
 	 * @throws KeyManagementException   if the operation (forcing the created ssl context to trust the self-signed cert) fails
 	 */
-	private SSLContext configuredSSLContext(@NotNull String certFilePath) throws CertificateException, KeyStoreException, IOException, NoSuchAlgorithmException, KeyManagementException {
+	private static SSLContext configuredSSLContext(@NotNull String certFilePath) throws CertificateException, KeyStoreException, IOException, NoSuchAlgorithmException, KeyManagementException {
 		Certificate certificate = CertificateFactory
 			.getInstance("X.509")
 			.generateCertificate(ChatClient.class.getResourceAsStream(certFilePath));
@@ -152,6 +269,7 @@ public class ChatClient extends Thread {
 	 *
 	 * @return true if the response from the server was good and the client connected successfully, false otherwise
 	 * if it is false, you'll probably want to check the next line in the buffer to see why the connection failed
+	 * unless the server redirected the client, in that case {@link #redirect_delay} is set and the socket is closed
 	 * @throws IOException if there was an error while writing to or reading from the socket
 	 */
 	private boolean sendConnectRequest() throws IOException {
@@ -166,7 +284,17 @@ public class ChatClient extends Thread {
 		);
 
 		// test if the connection was successful
-		if (!ServerResponseType.CONNECTION_SUCCESS.getHeader().equalsIgnoreCase(this.socket.readLine()))
+		String header = this.socket.readLine();
+		if (header == null)
+			throw new IOException("The server closed the connection");
+		if (ServerResponseType.REDIRECT.getHeader().equalsIgnoreCase(header)) {
+			// the server started draining while this client was connecting
+			this.redirect_address = this.socket.readLine();
+			this.redirect_delay = Long.parseLong(this.socket.readLine());
+			this.socket.close();
+			return false;
+		}
+		if (!ServerResponseType.CONNECTION_SUCCESS.getHeader().equalsIgnoreCase(header))
 			return false;
 
 		// if it was successful the server should have sent the chat id
@@ -178,6 +306,9 @@ public class ChatClient extends Thread {
 	 * Use this method to simply send a message tto someone
 	 * <p>
 	 * This method is synchronized to avoid multiple threads sending a message at one time
+	 * <p>
+	 * Each message gets a random id. If it can't be written, it is sent again with the same id after reconnecting,
+	 * and the server ignores it if the first attempt did arrive
 	 *
 	 * @param message the message you want to send
 	 * @throws InterruptedException if the thread is interrupted
@@ -186,25 +317,160 @@ public class ChatClient extends Thread {
 		if (this.isInterrupted())
 			throw new InterruptedException("The chat thread is interrupted");
 
+		OutgoingMessage outgoingMessage = new OutgoingMessage(
+			new ChatMessage(this.chat_uid, to_id, System.currentTimeMillis(), message),
+			UUID.randomUUID().toString()
+		);
+		try {
+			this.writeMessage(outgoingMessage);
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.unsent.add(outgoingMessage);
+			this.onError.accept(ShareBook.getMessages().get(Message.CHAT_SEND_MSG_ERROR));
+		}
+	}
+
+	private void writeMessage(@NotNull OutgoingMessage outgoingMessage) throws IOException {
+		ChatMessage chatMessage = outgoingMessage.message;
+		this.socket.writeLines(
+			"MESSAGE", // write request header
+			String.valueOf(chatMessage.getFromUID()), // write FROM_ID
+			String.valueOf(chatMessage.getToUID()), // write TO_ID
+			"id:" + outgoingMessage.message_id, // the same id in every attempt
+			"t_cs:" + chatMessage.getTimestamp(), // the time it was sent, so retries count the time until the retry
+			"---BEGIN MESSAGE---",
+			Base64.getEncoder().encodeToString(chatMessage.getText().getBytes(StandardCharsets.UTF_8)), // write message
+			"---END MESSAGE---"
+		);
+
+		if (this.conversationStore != null)
+			this.conversationStore.append(chatMessage.getToUID(), chatMessage);
+	}
+
+	/**
+	 * Sends again the messages that could not be written in the previous connection
+	 */
+	synchronized private void retryOutgoingMessages() {
+		OutgoingMessage outgoingMessage;
+		while ((outgoingMessage = this.unsent.peek()) != null) {
+			try {
+				this.writeMessage(outgoingMessage);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return; // the connection broke again, keep them for the next one
+			}
+			this.unsent.poll();
+		}
+	}
+
+	/**
+	 * Tells the server the user read the conversation up to the last received message
+	 * <p>
+	 * The read position is kept per session, so reading in this device doesn't mark the messages as read
+	 * in the other devices where the user is logged in. The unread count of the conversation in the inbox
+	 * (see {@link #loadInbox()}) is kept per user, it is cleared for every device
+	 *
+	 * @param peer_uid the chat uid of the other user in the conversation
+	 */
+	synchronized public void markRead(int peer_uid) {
+		Long seq = this.lastSeqs.get(peer_uid);
+		if (seq == null)
+			return; // nothing was received in this session and the inbox was not loaded
+
 		try {
 			this.socket.writeLines(
-				"MESSAGE", // write request header
-				String.valueOf(this.chat_uid), // write FROM_ID
-				String.valueOf(to_id), // write TO_ID
-				"---BEGIN MESSAGE---",
-				Base64.getEncoder().encodeToString(message.getBytes(StandardCharsets.UTF_8)), // write message
-				"---END MESSAGE---"
+				"READ", // write request header
+				String.valueOf(this.chat_uid),
+				String.valueOf(peer_uid),
+				String.valueOf(seq)
 			);
 		} catch (IOException e) {
 			e.printStackTrace();
-			this.onError.accept(ShareBook.getMessagesBundle().getString("chat_send_msg_error"));
+			this.onError.accept(ShareBook.getMessages().get(Message.CHAT_SEND_MSG_ERROR));
+		}
+	}
+
+	/**
+	 * Searches the messages this user sent or received, the server keeps the index
+	 *
+	 * @param query the text to search
+	 * @param limit the max number of hits, the server may return less
+	 * @return a future completed with the hits, best first. It fails if the connection is closed before
+	 * the results arrive
+	 */
+	public @NotNull CompletableFuture<List<MessageSearchHit>> searchMessages(@NotNull String query, int limit) {
+		String searchID = String.valueOf(this.search_ids.incrementAndGet());
+		CompletableFuture<List<MessageSearchHit>> results = new CompletableFuture<>();
+		this.pendingSearches.put(searchID, results);
+
+		try {
+			this.socket.writeLines(
+				"SEARCH", // write request header
+				String.valueOf(this.chat_uid),
+				searchID,
+				Base64.getEncoder().encodeToString(query.getBytes(StandardCharsets.UTF_8)),
+				String.valueOf(limit)
+			);
+		} catch (IOException e) {
+			this.pendingSearches.remove(searchID);
+			results.completeExceptionally(e);
 		}
+		return results;
+	}
+
+	/**
+	 * Loads the last message and the unread count of every conversation of this user, the server keeps them
+	 * up to date so this is a single small response no matter how long the conversations are
+	 * <p>
+	 * After it, {@link #markRead(int)} can clear the unread count of a conversation even if no message of it was
+	 * received in this session
+	 *
+	 * @return a future completed with the conversations, the one with the newest message first. It fails if the
+	 * connection is closed before the inbox arrives
+	 */
+	public @NotNull CompletableFuture<List<ConversationSummary>> loadInbox() {
+		CompletableFuture<List<ConversationSummary>> inbox = new CompletableFuture<>();
+		// synchronized, so the futures are queued in the same order as the requests
+		synchronized (this.pendingInboxes) {
+			this.pendingInboxes.add(inbox);
+			try {
+				this.socket.writeLines(
+					"INBOX", // write request header
+					String.valueOf(this.chat_uid)
+				);
+			} catch (IOException e) {
+				this.pendingInboxes.remove(inbox);
+				inbox.completeExceptionally(e);
+			}
+		}
+		return inbox;
+	}
+
+	/**
+	 * Starts sending a file to someone, the file is sent in chunks from a background thread
+	 * <p>
+	 * The receiver may reject it, in that case the completion future of the transfer fails
+	 *
+	 * @param file  the file you want to send
+	 * @param to_id the chat uid of the receiver
+	 * @return the transfer, use it to follow the progress or cancel it
+	 * @throws IOException           if the file could not be opened
+	 * @throws IllegalStateException if the client is not connected yet
+	 */
+	public @NotNull FileTransfer sendFile(@NotNull Path file, int to_id) throws IOException {
+		FileTransferManager fileTransfers = this.fileTransfers;
+		if (fileTransfers == null)
+			throw new IllegalStateException("The client is not connected");
+
+		return fileTransfers.send(file, to_id);
 	}
 
 	/**
 	 * Use it to logout from the Chat server
 	 */
 	synchronized public void logout() throws IOException {
+		if (this.fileTransfers != null)
+			this.fileTransfers.suspendAll();
 		this.socket.writeLines("LOGOUT");
 		this.socket.close();
 	}
@@ -222,37 +488,103 @@ public class ChatClient extends Thread {
 
 	@Override
 	public void run() {
+		this.runSession(true);
+
+		// the server is restarting, connect again after the delay it asked for
+		// each client gets a different delay, so they don't reconnect all at the same time
+		while (this.redirect_delay >= 0 && !this.isInterrupted()) {
+			long delay = this.redirect_delay;
+			this.redirect_delay = -1;
+
+			// the server may take longer to come back than the delay, keep trying until it does
+			for (int attempt = 0; !this.isInterrupted(); ++attempt) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (this.runSession(attempt == 0) || this.redirect_delay >= 0)
+					break; // connected (and disconnected again), or redirected once more
+
+				delay = reconnectDelay(attempt);
+			}
+		}
+	}
+
+	/**
+	 * @return how long to wait before the next attempt to reconnect after a redirect, it grows exponentially with
+	 * the number of failed attempts. It is random in [max / 2, max), so the clients that failed together don't try
+	 * again together
+	 */
+	static long reconnectDelay(int attempt) {
+		long max = Math.min(MAX_RECONNECT_DELAY, MIN_RECONNECT_DELAY << Math.min(attempt, 20));
+		return max / 2 + ThreadLocalRandom.current().nextLong(max / 2);
+	}
+
+	/**
+	 * Connects to the server and processes the incoming data until the connection is closed
+	 *
+	 * @param report_errors if the errors to connect are shown to the user, not while retrying after a redirect
+	 * @return false if the connection could not be opened and trying again later may work, e. g. the server is down
+	 */
+	private boolean runSession(boolean report_errors) {
 		// start TCP connection to the server
 		try {
 			this.init();
-		} catch (KeyManagementException | KeyStoreException | NoSuchAlgorithmException | CertificateException e) {
+		} catch (GeneralSecurityException e) {
 			// TODO: HANDLE EXCEPTION
 			// exceptions are thrown if there is an error with the JVM
 			// e. g. it doesn't support TLS, don't have compatible algorithms with the server, etc...
 			e.printStackTrace();
-			this.onError.accept(ShareBook.getMessagesBundle().getString("chat_init_error"));
-			return;
+			this.onError.accept(ShareBook.getMessages().get(Message.CHAT_INIT_ERROR));
+			return true; // trying again won't fix it
 		} catch (IOException e) {
 			// TODO: HANDLE EXCEPTION
 			// exception is likely to happen if there is an error with the certificate (unlikely)
 			// or with the connectivity, e. g. if the server is DOWN
 			e.printStackTrace();
-			this.onError.accept(ShareBook.getMessagesBundle().getString("chat_conn_error"));
-			return;
+			if (report_errors)
+				this.onError.accept(ShareBook.getMessages().get(Message.CHAT_CONN_ERROR));
+			return false;
 		}
 
 		// start own-protocol connection
 		try {
 			if (!this.sendConnectRequest()) {
+				if (this.redirect_delay >= 0)
+					return true; // not a failure, run() will connect again later
+
 				// if the connection failed wee why and notify the user
 				String failReason = this.socket.readLine();
 				this.onConnectionFailed.accept(failReason);
-				return;
+				return true;
+			}
+		} catch (IOException e) {
+			// e. g. the server closed the connection because it is still starting
+			e.printStackTrace();
+			try {
+				this.socket.close();
+			} catch (IOException closeException) {
+				closeException.printStackTrace();
 			}
+			if (report_errors)
+				this.onError.accept(ShareBook.getMessages().get(Message.CHAT_CONN_ERROR));
+			return false;
+		}
+
+		try {
+			this.fileTransfers = new FileTransferManager(
+				this.socket::writeLines,
+				this.chat_uid,
+				ShareBook.getDataDir().resolve("transfers"),
+				this.onFileOffer
+			);
 			this.onConnectionSuccess.run();
+			this.retryOutgoingMessages();
+			this.fileTransfers.resumeAll(); // the transfers interrupted in the previous connection
 		} catch (IOException e) {
 			// TODO: HANDLE EXCEPTION
-			this.onError.accept(ShareBook.getMessagesBundle().getString("chat_init_error"));
+			this.onError.accept(ShareBook.getMessages().get(Message.CHAT_INIT_ERROR));
 			e.printStackTrace();
 		}
 
@@ -262,8 +594,19 @@ public class ChatClient extends Thread {
 				this.handleServerResponses();
 		} catch (IOException e) {
 			e.printStackTrace();
-			this.onError.accept(ShareBook.getMessagesBundle().getString("chat_send_msg_error"));
+			this.onError.accept(ShareBook.getMessages().get(Message.CHAT_SEND_MSG_ERROR));
+		} finally {
+			if (this.fileTransfers != null)
+				this.fileTransfers.suspendAll(); // they will be resumed in the next connection
+
+			IOException closed = new IOException("The connection was closed");
+			this.pendingSearches.values().forEach(results -> results.completeExceptionally(closed));
+			this.pendingSearches.clear();
+			CompletableFuture<List<ConversationSummary>> inbox;
+			while ((inbox = this.pendingInboxes.poll()) != null)
+				inbox.completeExceptionally(closed);
 		}
+		return true;
 	}
 
 	/**
@@ -280,10 +623,27 @@ public class ChatClient extends Thread {
 			// read from ID
 			int from_id = Integer.parseInt(this.socket.readLine());
 
-			// skip to id because its your own chat_uid
-			this.socket.readLine();
-
-			this.socket.readLine(); // skip begin message header
+			// read to ID, it is your own chat_uid unless the message was sent from another of your devices
+			int to_id = Integer.parseInt(this.socket.readLine());
+			int peer_uid = from_id == this.chat_uid ? to_id : from_id;
+
+			// read the optional key:value lines until the begin message header
+			String line;
+			long sent_at = 0; // the times are epoch millis, 0 if the message doesn't have them
+			long server_received_at = 0;
+			long server_forwarded_at = 0;
+			while (!"---BEGIN MESSAGE---".equals(line = this.socket.readLine())) {
+				if (line == null)
+					throw new IOException("Incomplete message");
+				if (line.startsWith("seq:"))
+					this.lastSeqs.put(peer_uid, Long.parseLong(line.substring(4)));
+				else if (line.startsWith("t_cs:"))
+					sent_at = Long.parseLong(line.substring(5));
+				else if (line.startsWith("t_sr:"))
+					server_received_at = Long.parseLong(line.substring(5));
+				else if (line.startsWith("t_sf:"))
+					server_forwarded_at = Long.parseLong(line.substring(5));
+			}
 
 			// read base64 message
 			String message = new String(
@@ -295,7 +655,22 @@ public class ChatClient extends Thread {
 
 			this.socket.readLine(); // skipp end message header
 
-			this.onMessage.accept(from_id, message);
+			ChatMessage chatMessage = new ChatMessage(from_id, to_id, System.currentTimeMillis(), message);
+			if (sent_at != 0)
+				this.latency.record(sent_at, server_received_at, server_forwarded_at, chatMessage.getTimestamp());
+
+			// the store writes in its own thread, so this doesn't delay the callback
+			if (this.conversationStore != null)
+				this.conversationStore.append(peer_uid, chatMessage);
+
+			if (this.eventBus != null)
+				this.eventBus.postMessage(chatMessage);
+
+			// messages sent from other devices to someone else are only stored and posted, they were not received
+			// a message to yourself is received like any other
+			boolean is_mirrored = from_id == this.chat_uid && to_id != this.chat_uid;
+			if (!is_mirrored)
+				this.onMessage.accept(from_id, message);
 		} else if (resType == ServerResponseType.USER_CONNECTED) {
 			int new_user_chat_id = Integer.parseInt(this.socket.readLine());
 			String username = this.socket.readLine();
@@ -303,7 +678,65 @@ public class ChatClient extends Thread {
 			System.out.print(" id: " + new_user_chat_id);
 			System.out.println(" username: " + username);
 
-			this.onUserConnected.accept(new ChatUser(new_user_chat_id, username));
+			ChatUser connectedUser = new ChatUser(new_user_chat_id, username);
+			if (this.eventBus != null)
+				this.eventBus.postUserConnected(connectedUser);
+
+			this.onUserConnected.accept(connectedUser);
+		} else if (resType == ServerResponseType.FILE_OFFER
+			|| resType == ServerResponseType.FILE_RESUME
+			|| resType == ServerResponseType.FILE_CHUNK
+			|| resType == ServerResponseType.FILE_ACK
+			|| resType == ServerResponseType.FILE_CANCEL) {
+			// chunks are written to the disk right here, so a big file is never held in memory
+			this.fileTransfers.handle(resType, this.socket::readLine);
+		} else if (resType == ServerResponseType.SEARCH_RESULTS) {
+			String searchID = this.socket.readLine();
+			int n_hits = Integer.parseInt(this.socket.readLine());
+			List<MessageSearchHit> hits = new ArrayList<>(n_hits);
+			for (int i = 0; i < n_hits; ++i)
+				hits.add(new MessageSearchHit(
+					Integer.parseInt(this.socket.readLine()),
+					Long.parseLong(this.socket.readLine()),
+					Float.parseFloat(this.socket.readLine())
+				));
+
+			CompletableFuture<List<MessageSearchHit>> results = this.pendingSearches.remove(searchID);
+			if (results != null)
+				results.complete(hits);
+		} else if (resType == ServerResponseType.INBOX) {
+			int n_conversations = Integer.parseInt(this.socket.readLine());
+			List<ConversationSummary> conversations = new ArrayList<>(n_conversations);
+			for (int i = 0; i < n_conversations; ++i) {
+				ConversationSummary conversation = new ConversationSummary(
+					Integer.parseInt(this.socket.readLine()),
+					Long.parseLong(this.socket.readLine()),
+					Long.parseLong(this.socket.readLine()),
+					Integer.parseInt(this.socket.readLine()),
+					Integer.parseInt(this.socket.readLine()),
+					new String(Base64.getDecoder().decode(this.socket.readLine()), StandardCharsets.UTF_8)
+				);
+				// so markRead works for the messages received before this session
+				this.lastSeqs.merge(conversation.getPeerUID(), conversation.getLastSeq(), Math::max);
+				conversations.add(conversation);
+			}
+
+			CompletableFuture<List<ConversationSummary>> inbox = this.pendingInboxes.poll();
+			if (inbox != null)
+				inbox.complete(conversations);
+		} else if (resType == ServerResponseType.MESSAGE_REJECTED) {
+			int to_id = Integer.parseInt(this.socket.readLine());
+			String messageID = this.socket.readLine();
+			System.out.println("Message " + messageID + " to " + to_id + " was rejected by the server");
+
+			this.onError.accept(ShareBook.getMessages().get(Message.CHAT_MSG_REJECTED));
+		} else if (resType == ServerResponseType.REDIRECT) {
+			this.redirect_address = this.socket.readLine();
+			long delay = Long.parseLong(this.socket.readLine());
+
+			// the file transfers are suspended when the loop ends and resumed after reconnecting
+			this.logout();
+			this.redirect_delay = delay;
 		}
 	}
 
@@ -376,6 +809,68 @@ public class ChatClient extends Thread {
 		this.onUserConnected = Objects.requireNonNull(onUserConnected);
 	}
 
+	/**
+	 * Set the store where sent and received messages will be saved
+	 * <p>
+	 * This should be set before calling {@link Thread#start()} on this object
+	 * otherwise this will throw an exception
+	 *
+	 * @param conversationStore the store, or null to not save the messages
+	 * @throws IllegalStateException if the thread has started
+	 */
+	public void setConversationStore(@Nullable ConversationStore conversationStore) {
+		if (this.isAlive())
+			throw new IllegalStateException("Thread is already running");
+
+		this.conversationStore = conversationStore;
+	}
+
+	/**
+	 * Set the event bus that will deliver the received messages and user connected events to the UI
+	 * <p>
+	 * The {@link #setOnMessage(BiConsumer)} and {@link #setOnUserConnected(Consumer)} callbacks are still executed
+	 * in the chat thread, use the bus for anything that touches JavaFX nodes
+	 * <p>
+	 * This should be set before calling {@link Thread#start()} on this object
+	 * otherwise this will throw an exception
+	 *
+	 * @param eventBus the event bus, or null to not deliver the events to the UI
+	 * @throws IllegalStateException if the thread has started
+	 */
+	public void setEventBus(@Nullable ChatEventBus eventBus) {
+		if (this.isAlive())
+			throw new IllegalStateException("Thread is already running");
+
+		this.eventBus = eventBus;
+	}
+
+	/**
+	 * Set the callback that decides what to do with the files other users send
+	 * <p>
+	 * The callback is executed in the chat thread, it should return quickly
+	 * (e. g. a path in the downloads directory, not a path chosen by the user in a dialog)
+	 * <p>
+	 * This should be set before calling {@link Thread#start()} on this object
+	 * otherwise this will throw an exception
+	 *
+	 * @param onFileOffer the callback. It receives the offered transfer and returns the path where the file
+	 *                    will be saved, or null to reject it. By default every file is rejected
+	 * @throws IllegalStateException if the thread has started
+	 */
+	public void setOnFileOffer(@NotNull Function<FileTransfer, Path> onFileOffer) {
+		if (this.isAlive())
+			throw new IllegalStateException("Thread is already running");
+
+		this.onFileOffer = Objects.requireNonNull(onFileOffer);
+	}
+
+	/**
+	 * @return the latency of the received messages, it keeps growing while the client runs
+	 */
+	public @NotNull MessageLatency getLatency() {
+		return latency;
+	}
+
 	public int getChatUID() {
 		return chat_uid;
 	}
@@ -399,6 +894,12 @@ public class ChatClient extends Thread {
 		@NotNull
 		private Runnable onConnectionSuccess = () -> {
 		};
+		@Nullable
+		private ConversationStore conversationStore;
+		@Nullable
+		private ChatEventBus eventBus;
+		@NotNull
+		private Function<FileTransfer, Path> onFileOffer = transfer -> null;
 
 		public Builder loginHash(char[] loginHash) {
 			this.loginHash = loginHash;
@@ -430,8 +931,23 @@ public class ChatClient extends Thread {
 			return this;
 		}
 
+		public Builder conversationStore(@Nullable ConversationStore conversationStore) {
+			this.conversationStore = conversationStore;
+			return this;
+		}
+
+		public Builder eventBus(@Nullable ChatEventBus eventBus) {
+			this.eventBus = eventBus;
+			return this;
+		}
+
+		public Builder onFileOffer(@NotNull Function<FileTransfer, Path> onFileOffer) {
+			this.onFileOffer = onFileOffer;
+			return this;
+		}
+
 		public ChatClient createChatClient() throws InstanceAlreadyExistsException {
-			return new ChatClient(
+			ChatClient chatClient = new ChatClient(
 				loginHash,
 				onMessage,
 				onUserConnected,
@@ -439,6 +955,26 @@ public class ChatClient extends Thread {
 				onConnectionSuccess,
 				onConnectionFailed
 			);
+			chatClient.setConversationStore(conversationStore);
+			chatClient.setEventBus(eventBus);
+			chatClient.setOnFileOffer(onFileOffer);
+			return chatClient;
+		}
+	}
+
+	/**
+	 * A message and the id it is sent with
+	 */
+	private static class OutgoingMessage {
+		@NotNull
+		final ChatMessage message;
+
+		@NotNull
+		final String message_id;
+
+		OutgoingMessage(@NotNull ChatMessage message, @NotNull String message_id) {
+			this.message = message;
+			this.message_id = message_id;
 		}
 	}
 }
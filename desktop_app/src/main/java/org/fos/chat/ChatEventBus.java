@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Collects the events received by the {@link ChatClient} (in the chat thread) and delivers them
+ * to the UI in the JavaFX application thread
+ * <p>
+ * Instead of calling {@link Platform#runLater(Runnable)} once per event, which floods the FX queue when
+ * many messages arrive at the same time, the events are queued and applied once per JavaFX pulse, in batches.
+ * Consecutive presence changes of the same user are coalesced, so only the last one is delivered
+ * <p>
+ * The pulse timer only runs while there are pending events, so an idle chat doesn't keep the FX thread busy
+ */
+public class ChatEventBus {
+	// max number of messages delivered in a single pulse, so a burst doesn't freeze user input
+	private static final int MAX_MESSAGES_PER_PULSE = 1_000;
+
+	@NotNull
+	private final ConcurrentLinkedQueue<ChatMessage> pendingMessages;
+
+	// maps chat_uid -> last presence event for that user
+	@NotNull
+	private final ConcurrentHashMap<Integer, ChatUser> pendingUsersConnected;
+
+	// true while the pulse timer is running or about to be started
+	@NotNull
+	private final AtomicBoolean is_scheduled;
+
+	@NotNull
+	private final AnimationTimer pulseTimer;
+
+	// callbacks, executed in the FX thread
+	@NotNull
+	private final Consumer<List<ChatMessage>> onMessages;
+	@NotNull
+	private final Consumer<Collection<ChatUser>> onUsersConnected;
+
+	/**
+	 * @param onMessages       callback executed in the FX thread with the batch of messages received since the
+	 *                         last pulse, in the order they were received
+	 * @param onUsersConnected callback executed in the FX thread with the users that connected since the last pulse
+	 */
+	public ChatEventBus(
+		@NotNull Consumer<List<ChatMessage>> onMessages,
+		@NotNull Consumer<Collection<ChatUser>> onUsersConnected
+	) {
+		this.onMessages = Objects.requireNonNull(onMessages);
+		this.onUsersConnected = Objects.requireNonNull(onUsersConnected);
+		this.pendingMessages = new ConcurrentLinkedQueue<>();
+		this.pendingUsersConnected = new ConcurrentHashMap<>();
+		this.is_scheduled = new AtomicBoolean(false);
+		this.pulseTimer = new AnimationTimer() {
+			@Override
+			public void handle(long now) {
+				ChatEventBus.this.drain();
+			}
+		};
+	}
+
+	/**
+	 * Queues a received message. This method can be called from any thread
+	 *
+	 * @param message the received message
+	 */
+	public void postMessage(@NotNull ChatMessage message) {
+		this.pendingMessages.add(message);
+		this.schedule();
+	}
+
+	/**
+	 * Queues a user connected event. This method can be called from any thread
+	 *
+	 * @param user the connected user, if there is already a pending event for the same user it is replaced
+	 */
+	public void postUserConnected(@NotNull ChatUser user) {
+		this.pendingUsersConnected.put(user.getChatUID(), user);
+		this.schedule();
+	}
+
+	/**
+	 * Starts the pulse timer if it is not running
+	 */
+	private void schedule() {
+		if (this.is_scheduled.compareAndSet(false, true))
+			Platform.runLater(this.pulseTimer::start);
+	}
+
+	/**
+	 * Delivers the pending events, this is executed in the FX thread once per pulse
+	 */
+	private void drain() {
+		if (!this.pendingUsersConnected.isEmpty()) {
+			List<ChatUser> users = new ArrayList<>(this.pendingUsersConnected.size());
+			for (Map.Entry<Integer, ChatUser> entry : this.pendingUsersConnected.entrySet()) {
+				ChatUser user = entry.getValue();
+				users.add(user);
+
+				// removed only if it is still the event just read, a newer one posted meanwhile stays for the next
+				// pulse. Compared by identity, users with the same uid are equal
+				this.pendingUsersConnected.computeIfPresent(
+					entry.getKey(),
+					(uid, pending) -> pending == user ? null : pending
+				);
+			}
+			this.onUsersConnected.accept(users);
+		}
+
+		if (!this.pendingMessages.isEmpty()) {
+			List<ChatMessage> messages = new ArrayList<>(Math.min(MAX_MESSAGES_PER_PULSE, 64));
+			ChatMessage message;
+			while (messages.size() < MAX_MESSAGES_PER_PULSE && (message = this.pendingMessages.poll()) != null)
+				messages.add(message);
+			this.onMessages.accept(messages);
+		}
+
+		if (this.pendingMessages.isEmpty() && this.pendingUsersConnected.isEmpty()) {
+			this.pulseTimer.stop();
+			this.is_scheduled.set(false);
+
+			// an event may have been posted after the check but before the flag was cleared
+			if (!this.pendingMessages.isEmpty() || !this.pendingUsersConnected.isEmpty())
+				this.schedule();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * Immutable wrapper for a single chat message, either sent or received
+ */
+public class ChatMessage {
+	// the chat UID of the user who sent the message
+	private final int from_uid;
+
+	// the chat UID of the user who received the message
+	private final int to_uid;
+
+	// epoch millis when the message was sent/received by this client
+	private final long timestamp;
+
+	@NotNull
+	private final String text;
+
+	public ChatMessage(int from_uid, int to_uid, long timestamp, @NotNull String text) {
+		this.from_uid = from_uid;
+		this.to_uid = to_uid;
+		this.timestamp = timestamp;
+		this.text = Objects.requireNonNull(text);
+	}
+
+	public int getFromUID() {
+		return from_uid;
+	}
+
+	public int getToUID() {
+		return to_uid;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public @NotNull String getText() {
+		return text;
+	}
+
+	@Override
+	public String toString() {
+		return "ChatMessage{" +
+			"from_uid=" + from_uid +
+			", to_uid=" + to_uid +
+			", timestamp=" + timestamp +
+			", text='" + text + '\'' +
+			'}';
+	}
+}
@@ -51,13 +51,16 @@ public class ChatSocket implements AutoCloseable {
 	 * Writes multiple lines to the socket, by appending a line separator after each written string
 	 * <p>
 	 * This method will call flush on the stream at the end, so data will be sent
+	 * <p>
+	 * It is synchronized because file chunks are written from other threads than the chat thread, so the lines of
+	 * different requests are never interleaved
 	 *
 	 * @param lines the lines you want to write in the socket stream. These lines may not contain a new line
 	 *              as it will be added by this method automatically when writing to the buffer
 	 * @return the same object. Just for convenience so you can chain calls to other methods
 	 * @throws IOException if there was an error writing to the buffer
 	 */
-	public ChatSocket writeLines(String... lines) throws IOException {
+	synchronized public ChatSocket writeLines(String... lines) throws IOException {
 		for (String line : lines) {
 			this.socketBuffOutStream.write(line);
 			this.socketBuffOutStream.newLine();
@@ -36,6 +36,14 @@ public class ChatUser {
 		this.userName = userName;
 	}
 
+	public int getChatUID() {
+		return chat_uid;
+	}
+
+	public @NotNull String getUserName() {
+		return userName;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local on-disk store for the chat conversations
+ * <p>
+ * Each conversation (identified by the chat UID of the other user, the peer) is kept in two files:
+ * <p>
+ * - PEER.log an append-only log with the messages. Each record is
+ * [int length][long timestamp][int from_uid][int to_uid][utf-8 text]
+ * where length is the size of everything after it
+ * <p>
+ * - PEER.idx the offset (long) of each record in the log, so the i-th message is at position i * 8
+ * <p>
+ * That way reading any page of messages costs two positional reads no matter how long the conversation is,
+ * and nothing is loaded in memory until it is requested
+ * <p>
+ * Writes are done in a single background thread, so the caller (e. g. the chat thread) is never blocked by disk IO
+ */
+public class ConversationStore implements AutoCloseable {
+	// max number of conversation files that are kept open at the same time
+	private static final int MAX_OPEN_LOGS = 16;
+
+	// size of the fixed part of each record (timestamp + from_uid + to_uid)
+	private static final int RECORD_HEADER_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+	@NotNull
+	private final Path dir;
+
+	// single thread so messages are appended in the same order they were received
+	@NotNull
+	private final ExecutorService writer;
+
+	// maps peer uid -> open log, in access order so the least recently used is closed first
+	// a log in use (see leaseLog) is never closed, so the map may have a few more logs while they are in use
+	@NotNull
+	private final LinkedHashMap<Integer, ConversationLog> openLogs;
+
+	/**
+	 * Creates a new store, the directory will be created if it doesn't exist
+	 *
+	 * @param dir the directory where the conversation files will be kept
+	 * @throws IOException if the directory could not be created
+	 */
+	public ConversationStore(@NotNull Path dir) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.writer = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "conversation-store-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.openLogs = new LinkedHashMap<Integer, ConversationLog>(MAX_OPEN_LOGS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, ConversationLog> eldest) {
+				if (this.size() <= MAX_OPEN_LOGS)
+					return false;
+
+				// the least recently used log that is not in use
+				Iterator<ConversationLog> it = this.values().iterator();
+				while (it.hasNext()) {
+					ConversationLog log = it.next();
+					if (log.leases == 0) {
+						log.close();
+						it.remove();
+						break;
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Appends the message to the conversation with the given peer
+	 * <p>
+	 * The message is written in a background thread, so this method returns immediately
+	 *
+	 * @param peer_uid the chat uid of the other user in the conversation
+	 * @param message  the message to append
+	 * @return a future that completes once the message is written to the disk
+	 */
+	public CompletableFuture<Void> append(int peer_uid, @NotNull ChatMessage message) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				this.withLog(peer_uid, log -> {
+					log.append(message);
+					return null;
+				});
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, this.writer);
+	}
+
+	/**
+	 * @param peer_uid the chat uid of the other user in the conversation
+	 * @return the number of messages stored for the conversation, 0 if there are none
+	 * @throws IOException if the conversation files could not be opened
+	 */
+	public int size(int peer_uid) throws IOException {
+		Integer size = this.withExistingLog(peer_uid, ConversationLog::size);
+		return size == null ? 0 : size;
+	}
+
+	/**
+	 * Reads the messages in the range [from, to) of the conversation, the oldest message is at position 0
+	 * <p>
+	 * The cost of this method depends only on the size of the range, not on the size of the conversation
+	 *
+	 * @param peer_uid the chat uid of the other user in the conversation
+	 * @param from     the position of the first message to read (inclusive)
+	 * @param to       the position of the last message to read (exclusive)
+	 * @return the messages, in chronological order. If the range exceeds the stored messages it is truncated
+	 * @throws IOException if there was an error reading the files
+	 */
+	public List<ChatMessage> read(int peer_uid, int from, int to) throws IOException {
+		List<ChatMessage> messages = this.withExistingLog(peer_uid, log -> log.read(from, to));
+		return messages == null ? new ArrayList<>() : messages;
+	}
+
+	/**
+	 * Reads the last messages of the conversation
+	 *
+	 * @param peer_uid the chat uid of the other user in the conversation
+	 * @param count    the max number of messages to read
+	 * @return the messages, in chronological order
+	 * @throws IOException if there was an error reading the files
+	 */
+	public List<ChatMessage> readRecent(int peer_uid, int count) throws IOException {
+		List<ChatMessage> messages = this.withExistingLog(peer_uid, log -> {
+			synchronized (log) {
+				int size = log.size();
+				return log.read(Math.max(0, size - count), size);
+			}
+		});
+		return messages == null ? new ArrayList<>() : messages;
+	}
+
+	/**
+	 * Waits for the pending writes and closes all open files
+	 */
+	@Override
+	public void close() {
+		this.writer.shutdown();
+		try {
+			this.writer.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this.openLogs) {
+			Iterator<ConversationLog> it = this.openLogs.values().iterator();
+			while (it.hasNext()) {
+				it.next().close();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Runs an operation on the log of a conversation, the log is not closed until the operation ends
+	 * <p>
+	 * The files are created if the conversation doesn't have them yet
+	 */
+	private <T> T withLog(int peer_uid, @NotNull LogOperation<T> operation) throws IOException {
+		return this.withLog(this.leaseLog(peer_uid, true), operation);
+	}
+
+	/**
+	 * Like {@link #withLog(int, LogOperation)} but for reading, the files are not created
+	 *
+	 * @return the result of the operation, or null if the conversation has no files
+	 */
+	private <T> T withExistingLog(int peer_uid, @NotNull LogOperation<T> operation) throws IOException {
+		ConversationLog log = this.leaseLog(peer_uid, false);
+		return log == null ? null : this.withLog(log, operation);
+	}
+
+	private <T> T withLog(@NotNull ConversationLog log, @NotNull LogOperation<T> operation) throws IOException {
+		try {
+			return operation.apply(log);
+		} finally {
+			synchronized (this.openLogs) {
+				--log.leases;
+			}
+		}
+	}
+
+	/**
+	 * @param create if the files should be created when the conversation doesn't have them
+	 * @return the open log of the conversation, it can't be closed to make room for other logs until the lease is
+	 * released by decrementing {@link ConversationLog#leases}. Null if create is false and there are no files
+	 */
+	private ConversationLog leaseLog(int peer_uid, boolean create) throws IOException {
+		synchronized (this.openLogs) {
+			ConversationLog log = this.openLogs.get(peer_uid);
+			if (log == null || !log.isOpen()) {
+				Path logPath = this.dir.resolve(peer_uid + ".log");
+				if (!create && Files.notExists(logPath))
+					return null;
+
+				log = new ConversationLog(logPath, this.dir.resolve(peer_uid + ".idx"));
+				++log.leases; // before adding it, so it is not the one closed to make room
+				this.openLogs.put(peer_uid, log);
+			} else {
+				++log.leases;
+			}
+			return log;
+		}
+	}
+
+	private interface LogOperation<T> {
+		T apply(@NotNull ConversationLog log) throws IOException;
+	}
+
+	/**
+	 * The pair of files for a single conversation
+	 * <p>
+	 * All methods are synchronized on the object, so a page is never read while a record is half-written
+	 */
+	private static class ConversationLog {
+		@NotNull
+		private final FileChannel log;
+		@NotNull
+		private final FileChannel idx;
+
+		// number of (complete) messages in the log
+		private int size;
+
+		// number of operations using the log, it is closed to make room for others only when it is 0
+		// guarded by the lock of openLogs
+		int leases;
+
+		ConversationLog(@NotNull Path logPath, @NotNull Path idxPath) throws IOException {
+			this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.idx = FileChannel.open(idxPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.recover();
+		}
+
+		/**
+		 * Drops any record that was not completely written, e. g. if the app was killed in the middle of a write
+		 * <p>
+		 * The log is always written before the index, so only the tail of both files needs to be checked
+		 */
+		private void recover() throws IOException {
+			this.size = (int) (this.idx.size() / Long.BYTES);
+			long log_end = 0;
+
+			while (this.size > 0) {
+				long offset = this.readOffset(this.size - 1);
+				ByteBuffer lengthBuff = ByteBuffer.allocate(Integer.BYTES);
+				if (offset + Integer.BYTES <= this.log.size() && this.log.read(lengthBuff, offset) == Integer.BYTES) {
+					log_end = offset + Integer.BYTES + lengthBuff.getInt(0);
+					if (log_end <= this.log.size())
+						break;
+				}
+				--this.size; // the record is incomplete, drop it
+				log_end = 0;
+			}
+
+			this.idx.truncate((long) this.size * Long.BYTES);
+			this.log.truncate(log_end);
+		}
+
+		private long readOffset(int position) throws IOException {
+			ByteBuffer buff = ByteBuffer.allocate(Long.BYTES);
+			this.idx.read(buff, (long) position * Long.BYTES);
+			return buff.getLong(0);
+		}
+
+		synchronized void append(@NotNull ChatMessage message) throws IOException {
+			byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+			long offset = this.log.size();
+
+			ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + RECORD_HEADER_SIZE + text.length);
+			record.putInt(RECORD_HEADER_SIZE + text.length)
+				.putLong(message.getTimestamp())
+				.putInt(message.getFromUID())
+				.putInt(message.getToUID())
+				.put(text)
+				.flip();
+			while (record.hasRemaining())
+				this.log.write(record, offset + record.position());
+
+			ByteBuffer idxEntry = ByteBuffer.allocate(Long.BYTES);
+			idxEntry.putLong(offset).flip();
+			while (idxEntry.hasRemaining())
+				this.idx.write(idxEntry, (long) this.size * Long.BYTES + idxEntry.position());
+
+			++this.size;
+		}
+
+		synchronized int size() {
+			return this.size;
+		}
+
+		synchronized List<ChatMessage> read(int from, int to) throws IOException {
+			from = Math.max(0, from);
+			to = Math.min(this.size, to);
+			if (from >= to)
+				return Collections.emptyList();
+
+			// read all offsets for the page in a single read
+			ByteBuffer offsets = ByteBuffer.allocate((to - from) * Long.BYTES);
+			while (offsets.hasRemaining())
+				if (this.idx.read(offsets, (long) from * Long.BYTES + offsets.position()) < 0)
+					throw new IOException("Unexpected end of the index file");
+
+			long start = offsets.getLong(0);
+			long end = to < this.size ? this.readOffset(to) : this.log.size();
+
+			// and all records in another single read
+			ByteBuffer records = ByteBuffer.allocate((int) (end - start));
+			while (records.hasRemaining())
+				if (this.log.read(records, start + records.position()) < 0)
+					throw new IOException("Unexpected end of the log file");
+			records.flip();
+
+			List<ChatMessage> messages = new ArrayList<>(to - from);
+			while (records.hasRemaining()) {
+				int length = records.getInt();
+				long timestamp = records.getLong();
+				int from_uid = records.getInt();
+				int to_uid = records.getInt();
+
+				int text_length = length - RECORD_HEADER_SIZE;
+				String text = new String(records.array(), records.position(), text_length, StandardCharsets.UTF_8);
+				records.position(records.position() + text_length);
+
+				messages.add(new ChatMessage(from_uid, to_uid, timestamp, text));
+			}
+
+			return messages;
+		}
+
+		synchronized boolean isOpen() {
+			return this.log.isOpen() && this.idx.isOpen();
+		}
+
+		synchronized void close() {
+			try {
+				this.log.close();
+				this.idx.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file being sent to or received from another user, see {@link FileTransferManager}
+ */
+public class FileTransfer {
+	@NotNull
+	private final String id;
+
+	private final int peer_uid;
+
+	private final boolean is_incoming;
+
+	@NotNull
+	private final String fileName;
+
+	private final long size;
+
+	private final int chunk_size;
+
+	@NotNull
+	private final AtomicLong bytes_transferred;
+
+	// completes with the path of the file once every chunk was written by the receiver
+	@NotNull
+	private final CompletableFuture<Path> completion;
+
+	@NotNull
+	private final FileTransferManager manager;
+
+	// chunks to send in this connection (the receiver may have some of them already) and how many were
+	// acknowledged, only used when sending
+	private int n_to_send;
+	private int n_acked;
+
+	FileTransfer(
+		@NotNull FileTransferManager manager,
+		@NotNull String id,
+		int peer_uid,
+		boolean is_incoming,
+		@NotNull String fileName,
+		long size,
+		int chunk_size
+	) {
+		this.manager = manager;
+		this.id = id;
+		this.peer_uid = peer_uid;
+		this.is_incoming = is_incoming;
+		this.fileName = fileName;
+		this.size = size;
+		this.chunk_size = chunk_size;
+		this.bytes_transferred = new AtomicLong();
+		this.completion = new CompletableFuture<>();
+	}
+
+	/**
+	 * Aborts the transfer and tells the other user about it
+	 * <p>
+	 * The completion future fails with a {@link java.util.concurrent.CancellationException}
+	 */
+	public void cancel() {
+		this.manager.cancel(this, "CANCELLED");
+	}
+
+	public @NotNull String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the chat uid of the other user, the receiver or the sender of the file
+	 */
+	public int getPeerUID() {
+		return peer_uid;
+	}
+
+	public boolean isIncoming() {
+		return is_incoming;
+	}
+
+	/**
+	 * @return the name of the file, without directories
+	 */
+	public @NotNull String getFileName() {
+		return fileName;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	int getChunkSize() {
+		return chunk_size;
+	}
+
+	int getChunkCount() {
+		return TransferManifest.chunkCount(this.size, this.chunk_size);
+	}
+
+	/**
+	 * @return the size of the chunk, the last one may be smaller than the rest
+	 */
+	int getChunkLength(int index) {
+		return (int) Math.min(this.chunk_size, this.size - (long) index * this.chunk_size);
+	}
+
+	/**
+	 * @return the bytes sent (and acknowledged by the receiver) or received and written to the disk
+	 */
+	public long getBytesTransferred() {
+		return bytes_transferred.get();
+	}
+
+	void addBytesTransferred(long bytes) {
+		this.bytes_transferred.addAndGet(bytes);
+	}
+
+	/**
+	 * @return a future that completes with the path of the file (the sent file or the received one) when the
+	 * transfer is done, or completes exceptionally if it fails or is cancelled
+	 */
+	public @NotNull CompletableFuture<Path> getCompletion() {
+		return completion;
+	}
+
+	/**
+	 * Sets the number of chunks that will be sent in this connection
+	 */
+	synchronized void startSending(int n_to_send) {
+		this.n_to_send = n_to_send;
+		this.n_acked = 0;
+	}
+
+	/**
+	 * Waits until the number of chunks sent but not acknowledged is less than the window
+	 *
+	 * @param n_sent the number of chunks sent so far
+	 * @param window the max number of unacknowledged chunks
+	 * @return false if the transfer finished (e. g. it was cancelled) while waiting
+	 */
+	synchronized boolean awaitWindow(int n_sent, int window) throws InterruptedException {
+		while (n_sent - this.n_acked >= window && !this.completion.isDone())
+			this.wait();
+		return !this.completion.isDone();
+	}
+
+	/**
+	 * Records the acknowledgement of a chunk. Chunks are acknowledged in the same order they are sent,
+	 * and that may skip the chunks the receiver already had
+	 *
+	 * @return true if it was the last chunk
+	 */
+	synchronized boolean onAck(int index) {
+		++this.n_acked;
+		this.addBytesTransferred(this.getChunkLength(index));
+		this.notifyAll();
+		return this.n_acked >= this.n_to_send;
+	}
+
+	/**
+	 * Wakes up the sender thread, e. g. because the transfer was cancelled
+	 */
+	synchronized void wakeUp() {
+		this.notifyAll();
+	}
+
+	@Override
+	public String toString() {
+		return "FileTransfer{" +
+			"id='" + id + '\'' +
+			", peer_uid=" + peer_uid +
+			", is_incoming=" + is_incoming +
+			", fileName='" + fileName + '\'' +
+			", size=" + size +
+			", bytes_transferred=" + bytes_transferred +
+			'}';
+	}
+}
@@ -0,0 +1,719 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Sends and receives files through the chat connection, in chunks
+ * <p>
+ * The sender sends a FILE_OFFER. If the receiver accepts it, it answers with a FILE_RESUME with the bitmap of
+ * the chunks it already has (none for a new transfer). Then the sender sends the missing chunks, read with a
+ * {@link FileChannel} in chunks of {@link #CHUNK_SIZE} bytes (one FILE_CHUNK request each, with its CRC32).
+ * The receiver verifies and writes each chunk straight to the disk and answers with a FILE_ACK. The sender never
+ * has more than {@link #WINDOW_SIZE} chunks waiting for their ack, so no matter how big the file is the memory
+ * used by the sender, the server (which only relays the requests) and the receiver is at most a few chunks.
+ * The receiver syncs the file once per window: the written chunks are synced to the disk together, then marked
+ * as done and acknowledged
+ * <p>
+ * Both sides keep a {@link TransferManifest} per transfer in the transfers directory. If the connection is lost
+ * (or the app is closed) the transfer is suspended, and after connecting again the sender offers it again
+ * with the same id ({@link #resumeAll()}) and only the chunks the receiver doesn't have are sent. A chunk is marked
+ * as done only after it was synced to the disk, so the receiver trusts its manifest when resuming; the chunks
+ * written after the last sync are not marked and are sent again
+ * <p>
+ * Chunks are sent from a background thread, the incoming requests are handled in the chat thread except
+ * the received chunks, which are written in another background thread so the chat thread never waits for the disk
+ */
+class FileTransferManager {
+	// bytes of the file in each chunk
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	// max number of chunks sent and not acknowledged yet. BULK_CAPACITY in the server config is at least this,
+	// otherwise the server would stop reading the other requests of the sender while it relays the chunks
+	static final int WINDOW_SIZE = 16;
+
+	private static final String MANIFEST_EXTENSION = ".manifest";
+
+	// the ids are also manifest file names, so ids from other users must be validated
+	private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+	/**
+	 * Writes a request to the connection, e. g. {@link ChatSocket#writeLines(String...)}
+	 */
+	interface LineWriter {
+		void writeLines(String... lines) throws IOException;
+	}
+
+	/**
+	 * Reads a line from the connection, e. g. {@link ChatSocket#readLine()}
+	 */
+	interface LineReader {
+		@Nullable
+		String readLine() throws IOException;
+	}
+
+	@NotNull
+	private final LineWriter writer;
+
+	private final int own_uid;
+
+	// where the manifests are kept
+	@NotNull
+	private final Path dir;
+
+	// decides where an offered file is saved, null to reject it
+	@NotNull
+	private final Function<FileTransfer, Path> onFileOffer;
+
+	// maps transfer id -> transfer, both incoming and outgoing
+	@NotNull
+	private final ConcurrentHashMap<String, Transfer> transfers;
+
+	@NotNull
+	private final ExecutorService senders;
+
+	// writes the received chunks, one thread so the chunks of a transfer are written in the order they arrive.
+	// Its queue doesn't need a bound, each sender has at most WINDOW_SIZE chunks without ack
+	@NotNull
+	private final ExecutorService chunkWriter;
+
+	/**
+	 * @param writer      where the requests are written
+	 * @param own_uid     the chat uid of this user
+	 * @param dir         directory for the manifests of the transfers, it will be created if it doesn't exist
+	 * @param onFileOffer called in the chat thread when someone offers a file, it returns the path where
+	 *                    the file will be saved or null to reject it
+	 * @throws IOException if the directory could not be created
+	 */
+	FileTransferManager(
+		@NotNull LineWriter writer,
+		int own_uid,
+		@NotNull Path dir,
+		@NotNull Function<FileTransfer, Path> onFileOffer
+	) throws IOException {
+		this.writer = writer;
+		this.own_uid = own_uid;
+		this.dir = Files.createDirectories(dir);
+		this.onFileOffer = onFileOffer;
+		this.transfers = new ConcurrentHashMap<>();
+		this.senders = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "file-transfer-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.chunkWriter = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "file-transfer-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Starts sending a file, it is sent in a background thread
+	 *
+	 * @param file   the file to send
+	 * @param to_uid the chat uid of the receiver
+	 * @return the transfer, use it to follow the progress
+	 * @throws IOException if the file could not be opened
+	 */
+	@NotNull FileTransfer send(@NotNull Path file, int to_uid) throws IOException {
+		String id = UUID.randomUUID().toString();
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		TransferManifest manifest;
+		try {
+			manifest = TransferManifest.create(
+				this.manifestPath(id),
+				false,
+				channel.size(),
+				CHUNK_SIZE,
+				to_uid,
+				Files.getLastModifiedTime(file).toMillis(),
+				file,
+				file.getFileName().toString()
+			);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return this.startOutgoing(id, manifest, channel);
+	}
+
+	/**
+	 * Offers again the outgoing transfers that were interrupted, e. g. because the connection was lost or the app
+	 * was closed. The receiver answers with the chunks it already has
+	 * <p>
+	 * Transfers whose file was modified or deleted since they started are discarded
+	 *
+	 * @return the resumed transfers
+	 */
+	@NotNull List<FileTransfer> resumeAll() {
+		List<FileTransfer> resumed = new ArrayList<>();
+
+		try (DirectoryStream<Path> manifests = Files.newDirectoryStream(this.dir, "*" + MANIFEST_EXTENSION)) {
+			for (Path manifestPath : manifests) {
+				String fileName = manifestPath.getFileName().toString();
+				String id = fileName.substring(0, fileName.length() - MANIFEST_EXTENSION.length());
+				if (this.transfers.containsKey(id))
+					continue;
+
+				TransferManifest manifest;
+				try {
+					manifest = TransferManifest.open(manifestPath);
+				} catch (IOException e) {
+					e.printStackTrace();
+					Files.deleteIfExists(manifestPath);
+					continue;
+				}
+
+				if (manifest.isIncoming()) {
+					manifest.close(); // the sender will offer it again
+					continue;
+				}
+
+				Path file = manifest.getPath();
+				if (!Files.isRegularFile(file)
+					|| Files.size(file) != manifest.getSize()
+					|| Files.getLastModifiedTime(file).toMillis() != manifest.getSourceMTime()) {
+					System.err.println("The file " + file + " changed since it was offered, it won't be resumed");
+					manifest.delete();
+					continue;
+				}
+
+				resumed.add(this.startOutgoing(id, manifest, FileChannel.open(file, StandardOpenOption.READ)));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return resumed;
+	}
+
+	private @NotNull FileTransfer startOutgoing(
+		@NotNull String id,
+		@NotNull TransferManifest manifest,
+		@NotNull FileChannel channel
+	) {
+		FileTransfer transfer = new FileTransfer(
+			this,
+			id,
+			manifest.getPeerUID(),
+			false,
+			manifest.getFileName(),
+			manifest.getSize(),
+			manifest.getChunkSize()
+		);
+		transfer.addBytesTransferred(manifest.getBytesDone());
+		this.transfers.put(id, new Transfer(transfer, channel, manifest));
+
+		this.senders.execute(() -> {
+			try {
+				this.writer.writeLines(
+					"FILE_OFFER",
+					String.valueOf(this.own_uid),
+					String.valueOf(transfer.getPeerUID()),
+					id,
+					Base64.getEncoder().encodeToString(transfer.getFileName().getBytes(StandardCharsets.UTF_8)),
+					String.valueOf(transfer.getSize()),
+					String.valueOf(transfer.getChunkSize())
+				);
+			} catch (IOException e) {
+				// the connection is broken, the transfer will be suspended and resumed in the next one
+				e.printStackTrace();
+			}
+		});
+
+		return transfer;
+	}
+
+	/**
+	 * Sends the chunks the receiver doesn't have, in order
+	 */
+	private void sendChunks(@NotNull Transfer outgoing, @NotNull BitSet received) {
+		FileTransfer transfer = outgoing.transfer;
+		String to_id = String.valueOf(transfer.getPeerUID());
+		String from_id = String.valueOf(this.own_uid);
+
+		try {
+			// the same buffer is reused for every chunk
+			ByteBuffer chunk = ByteBuffer.allocate(transfer.getChunkSize());
+			CRC32 crc = new CRC32();
+			int n_sent = 0;
+
+			for (int index = received.nextClearBit(0); index < transfer.getChunkCount(); index = received.nextClearBit(index + 1)) {
+				if (!transfer.awaitWindow(n_sent, WINDOW_SIZE))
+					return; // cancelled or suspended
+
+				chunk.clear();
+				long position = (long) index * transfer.getChunkSize();
+				chunk.limit(transfer.getChunkLength(index));
+				while (chunk.hasRemaining())
+					if (outgoing.channel.read(chunk, position + chunk.position()) < 0)
+						throw new IOException("The file was truncated while sending it");
+
+				crc.reset();
+				crc.update(chunk.array(), 0, chunk.limit());
+				outgoing.crcs[index] = (int) crc.getValue();
+
+				chunk.flip();
+				ByteBuffer encoded = Base64.getEncoder().encode(chunk);
+				this.writer.writeLines(
+					"FILE_CHUNK",
+					from_id,
+					to_id,
+					transfer.getId(),
+					String.valueOf(index),
+					Integer.toUnsignedString(outgoing.crcs[index]),
+					new String(encoded.array(), 0, encoded.limit(), StandardCharsets.US_ASCII)
+				);
+				++n_sent;
+			}
+			// the transfer completes when the last ack arrives
+		} catch (IOException e) {
+			if (transfer.getCompletion().isDone())
+				return; // the file was closed because the transfer was cancelled or suspended
+
+			e.printStackTrace();
+			this.cancel(transfer, "SEND_ERROR");
+		} catch (InterruptedException e) {
+			// the manager is shutting down, the transfer is suspended
+		}
+	}
+
+	/**
+	 * Handles a FILE_* response, the header was already read
+	 *
+	 * @param type   the type of the response
+	 * @param reader reads the rest of the lines of the response
+	 * @throws IOException if there was an error reading the response
+	 */
+	void handle(@NotNull ServerResponseType type, @NotNull LineReader reader) throws IOException {
+		int from_uid = Integer.parseInt(reader.readLine());
+		reader.readLine(); // skip to id because its your own chat_uid
+		String transfer_id = reader.readLine();
+
+		switch (type) {
+			case FILE_OFFER:
+				String fileName = new String(Base64.getDecoder().decode(reader.readLine()), StandardCharsets.UTF_8);
+				long size = Long.parseLong(reader.readLine());
+				int chunk_size = Integer.parseInt(reader.readLine());
+				this.onOffer(from_uid, transfer_id, fileName, size, chunk_size);
+				break;
+			case FILE_RESUME:
+				this.onResume(transfer_id, BitSet.valueOf(Base64.getDecoder().decode(reader.readLine())));
+				break;
+			case FILE_CHUNK:
+				int index = Integer.parseInt(reader.readLine());
+				int crc = Integer.parseUnsignedInt(reader.readLine());
+				String data = reader.readLine();
+				this.onChunk(transfer_id, index, crc, data);
+				break;
+			case FILE_ACK:
+				this.onAck(transfer_id, Integer.parseInt(reader.readLine()));
+				break;
+			case FILE_CANCEL:
+				String reason = reader.readLine();
+				this.finish(transfer_id, new CancellationException("Transfer cancelled by the other user: " + reason), true);
+				break;
+			default:
+				throw new IllegalArgumentException(type + " is not a file transfer response");
+		}
+	}
+
+	private void onOffer(int from_uid, @NotNull String transfer_id, @NotNull String fileName, long size, int chunk_size) throws IOException {
+		// the receiver allocates a buffer of chunk_size bytes, a huge chunk size could exhaust the memory
+		if (!VALID_ID.matcher(transfer_id).matches() || size < 0 || chunk_size <= 0 || chunk_size > CHUNK_SIZE) {
+			this.writer.writeLines("FILE_CANCEL", String.valueOf(this.own_uid), String.valueOf(from_uid), transfer_id, "INVALID_OFFER");
+			return;
+		}
+
+		Transfer current = this.transfers.get(transfer_id);
+		if (current != null) {
+			// the sender reconnected before this side noticed the old connection was lost
+			this.sendResume(current);
+			return;
+		}
+
+		TransferManifest manifest = this.openIncomingManifest(transfer_id, from_uid, size, chunk_size);
+		FileTransfer transfer;
+		FileChannel channel;
+
+		if (manifest != null) {
+			// resume, the user already accepted the file
+			transfer = new FileTransfer(this, transfer_id, from_uid, true, manifest.getFileName(), size, chunk_size);
+			try {
+				channel = FileChannel.open(manifest.getPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				manifest.close();
+				throw e;
+			}
+			transfer.addBytesTransferred(manifest.getBytesDone());
+		} else {
+			// never trust the name sent by the other user, it may contain directories
+			transfer = new FileTransfer(this, transfer_id, from_uid, true, safeFileName(fileName), size, chunk_size);
+
+			Path destination = this.onFileOffer.apply(transfer);
+			if (destination == null) {
+				this.writer.writeLines("FILE_CANCEL", String.valueOf(this.own_uid), String.valueOf(from_uid), transfer_id, "REJECTED");
+				transfer.getCompletion().completeExceptionally(new CancellationException("Transfer rejected"));
+				return;
+			}
+
+			channel = FileChannel.open(
+				destination,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE
+			);
+			try {
+				manifest = TransferManifest.create(
+					this.manifestPath(transfer_id), true, size, chunk_size, from_uid, 0, destination, transfer.getFileName()
+				);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		Transfer incoming = new Transfer(transfer, channel, manifest);
+		this.transfers.put(transfer_id, incoming);
+		this.sendResume(incoming);
+
+		if (manifest.countDone() == transfer.getChunkCount())
+			this.finish(transfer_id, null, true);
+	}
+
+	/**
+	 * @return the manifest of a previous attempt of the same incoming transfer or null if there is none
+	 */
+	private @Nullable TransferManifest openIncomingManifest(@NotNull String transfer_id, int from_uid, long size, int chunk_size) {
+		Path manifestPath = this.manifestPath(transfer_id);
+		if (!Files.exists(manifestPath))
+			return null;
+
+		try {
+			TransferManifest manifest = TransferManifest.open(manifestPath);
+			if (manifest.isIncoming()
+				&& manifest.getPeerUID() == from_uid
+				&& manifest.getSize() == size
+				&& manifest.getChunkSize() == chunk_size
+				&& Files.exists(manifest.getPath()))
+				return manifest;
+
+			manifest.delete(); // it doesn't match, start from scratch
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Tells the sender which chunks this side already has, so it sends only the rest
+	 */
+	private void sendResume(@NotNull Transfer incoming) throws IOException {
+		this.writer.writeLines(
+			"FILE_RESUME",
+			String.valueOf(this.own_uid),
+			String.valueOf(incoming.transfer.getPeerUID()),
+			incoming.transfer.getId(),
+			Base64.getEncoder().encodeToString(incoming.manifest.getDone().toByteArray())
+		);
+	}
+
+	private void onResume(@NotNull String transfer_id, @NotNull BitSet received) {
+		Transfer outgoing = this.transfers.get(transfer_id);
+		if (outgoing == null || outgoing.transfer.isIncoming())
+			return;
+
+		FileTransfer transfer = outgoing.transfer;
+		received.clear(transfer.getChunkCount(), Math.max(transfer.getChunkCount(), received.length()));
+		int n_to_send = transfer.getChunkCount() - received.cardinality();
+		if (n_to_send == 0) {
+			this.finish(transfer_id, null, true);
+			return;
+		}
+
+		transfer.startSending(n_to_send);
+		this.senders.execute(() -> this.sendChunks(outgoing, received));
+	}
+
+	private void onChunk(@NotNull String transfer_id, int index, int crc, @NotNull String data) {
+		Transfer incoming = this.transfers.get(transfer_id);
+		if (incoming == null || !incoming.transfer.isIncoming())
+			return; // cancelled, the sender will stop once it receives the cancel
+
+		try {
+			this.chunkWriter.execute(() -> this.writeChunk(incoming, index, crc, data));
+		} catch (RejectedExecutionException e) {
+			// the manager was suspended, the chunk will be sent again in the next connection
+		}
+	}
+
+	/**
+	 * Verifies and writes a received chunk, in the chunk writer thread. The chunk is acknowledged after
+	 * the next sync, see {@link #syncChunks(Transfer)}
+	 */
+	private void writeChunk(@NotNull Transfer incoming, int index, int crc, @NotNull String data) {
+		FileTransfer transfer = incoming.transfer;
+		if (this.transfers.get(transfer.getId()) != incoming)
+			return; // finished while the chunk was waiting
+
+		byte[] bytes = Base64.getDecoder().decode(data);
+		if (index < 0 || index >= transfer.getChunkCount() || bytes.length != transfer.getChunkLength(index)) {
+			this.cancel(transfer, "INVALID_CHUNK");
+			return;
+		}
+
+		CRC32 actual = new CRC32();
+		actual.update(bytes);
+		if ((int) actual.getValue() != crc) {
+			this.cancel(transfer, "CHECKSUM_MISMATCH");
+			return;
+		}
+
+		try {
+			if (incoming.manifest.isDone(index)) {
+				this.sendAck(transfer, index); // the sender didn't know it was received
+				return;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			long position = (long) index * transfer.getChunkSize();
+			while (buffer.hasRemaining())
+				incoming.channel.write(buffer, position + buffer.position());
+		} catch (IOException e) {
+			if (transfer.getCompletion().isDone())
+				return; // the file was closed because the transfer was cancelled or suspended
+
+			e.printStackTrace();
+			this.cancel(transfer, "WRITE_ERROR");
+			return;
+		}
+
+		incoming.crcs[index] = crc;
+		incoming.unsynced[incoming.n_unsynced++] = index;
+		if (incoming.n_unsynced == incoming.unsynced.length
+			|| incoming.manifest.countDone() + incoming.n_unsynced >= transfer.getChunkCount())
+			this.syncChunks(incoming);
+	}
+
+	/**
+	 * Syncs the written chunks to the disk, marks them as done and acknowledges them. It is done once per window
+	 * instead of once per chunk, the sender doesn't send more chunks until these are acknowledged
+	 */
+	private void syncChunks(@NotNull Transfer incoming) {
+		FileTransfer transfer = incoming.transfer;
+		try {
+			// the data must be on the disk before the manifest says the chunks are done
+			incoming.channel.force(false);
+			for (int i = 0; i < incoming.n_unsynced; ++i) {
+				int index = incoming.unsynced[i];
+				if (!incoming.manifest.isDone(index)) {
+					incoming.manifest.markDone(index, incoming.crcs[index]);
+					transfer.addBytesTransferred(transfer.getChunkLength(index));
+				}
+			}
+			// once acknowledged the sender sends more, mark the whole window first
+			for (int i = 0; i < incoming.n_unsynced; ++i)
+				this.sendAck(transfer, incoming.unsynced[i]);
+			incoming.n_unsynced = 0;
+		} catch (IOException e) {
+			if (transfer.getCompletion().isDone())
+				return; // the file was closed because the transfer was cancelled or suspended
+
+			e.printStackTrace();
+			this.cancel(transfer, "WRITE_ERROR");
+			return;
+		}
+
+		if (incoming.manifest.countDone() == transfer.getChunkCount())
+			this.finish(transfer.getId(), null, true);
+	}
+
+	private void sendAck(@NotNull FileTransfer transfer, int index) throws IOException {
+		this.writer.writeLines(
+			"FILE_ACK",
+			String.valueOf(this.own_uid),
+			String.valueOf(transfer.getPeerUID()),
+			transfer.getId(),
+			String.valueOf(index)
+		);
+	}
+
+	private void onAck(@NotNull String transfer_id, int index) {
+		Transfer outgoing = this.transfers.get(transfer_id);
+		if (outgoing == null || outgoing.transfer.isIncoming() || index < 0 || index >= outgoing.crcs.length)
+			return;
+
+		try {
+			outgoing.manifest.markDone(index, outgoing.crcs[index]);
+		} catch (IOException e) {
+			e.printStackTrace(); // the chunk will be sent again if the transfer is resumed
+		}
+
+		if (outgoing.transfer.onAck(index))
+			this.finish(transfer_id, null, true);
+	}
+
+	/**
+	 * Aborts a transfer and notifies the other user, the transfer can't be resumed
+	 *
+	 * @param transfer the transfer
+	 * @param reason   why it is cancelled, sent to the other user
+	 */
+	void cancel(@NotNull FileTransfer transfer, @NotNull String reason) {
+		if (!this.finish(transfer.getId(), new CancellationException("Transfer cancelled: " + reason), true))
+			return; // already finished
+
+		try {
+			this.writer.writeLines(
+				"FILE_CANCEL",
+				String.valueOf(this.own_uid),
+				String.valueOf(transfer.getPeerUID()),
+				transfer.getId(),
+				reason
+			);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops every transfer in progress, e. g. because the connection was closed
+	 * <p>
+	 * The manifests are kept, so the transfers are resumed in the next connection. The completion futures of the
+	 * stopped transfers fail, the resumed transfers are new objects
+	 */
+	void suspendAll() {
+		for (String transfer_id : this.transfers.keySet())
+			this.finish(transfer_id, new IOException("The connection was closed, the transfer will be resumed later"), false);
+		this.senders.shutdownNow();
+		this.chunkWriter.shutdown(); // the chunks waiting are dropped, their transfers are finished
+	}
+
+	/**
+	 * Closes the file and completes the transfer
+	 *
+	 * @param error   null if the transfer succeeded
+	 * @param discard if the manifest should be deleted (and the partial file, if the transfer failed),
+	 *                otherwise the transfer can be resumed later
+	 * @return false if the transfer had already finished
+	 */
+	private boolean finish(@NotNull String transfer_id, @Nullable Throwable error, boolean discard) {
+		Transfer finished = this.transfers.remove(transfer_id);
+		if (finished == null)
+			return false;
+
+		FileTransfer transfer = finished.transfer;
+		try {
+			finished.channel.close();
+			if (discard)
+				finished.manifest.delete();
+			else
+				finished.manifest.close();
+
+			// don't leave half-written files
+			if (discard && error != null && transfer.isIncoming())
+				Files.deleteIfExists(finished.manifest.getPath());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (error == null)
+			transfer.getCompletion().complete(finished.manifest.getPath());
+		else
+			transfer.getCompletion().completeExceptionally(error);
+		transfer.wakeUp();
+
+		return true;
+	}
+
+	private @NotNull Path manifestPath(@NotNull String transfer_id) {
+		return this.dir.resolve(transfer_id + MANIFEST_EXTENSION);
+	}
+
+	/**
+	 * @return the name without any directory, so a malicious name like "../../.bashrc" can't escape the
+	 * directory chosen by the user
+	 */
+	static @NotNull String safeFileName(@NotNull String fileName) {
+		String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1).trim();
+		while (name.startsWith("."))
+			name = name.substring(1);
+		return name.isEmpty() ? "file" : name;
+	}
+
+	/**
+	 * A transfer in progress, its open file and its manifest
+	 */
+	private static class Transfer {
+		@NotNull
+		final FileTransfer transfer;
+
+		@NotNull
+		final FileChannel channel;
+
+		@NotNull
+		final TransferManifest manifest;
+
+		// CRC32 of the chunks sent and not acknowledged yet (or received and not synced yet),
+		// they are written to the manifest with the ack
+		@NotNull
+		final int[] crcs;
+
+		// indexes of the received chunks written since the last sync, in the order they arrived.
+		// Only used by the chunk writer thread
+		@NotNull
+		final int[] unsynced;
+
+		int n_unsynced;
+
+		Transfer(@NotNull FileTransfer transfer, @NotNull FileChannel channel, @NotNull TransferManifest manifest) {
+			this.transfer = transfer;
+			this.channel = channel;
+			this.manifest = manifest;
+			this.crcs = new int[transfer.getChunkCount()];
+			this.unsynced = transfer.isIncoming() ? new int[WINDOW_SIZE] : new int[0];
+		}
+	}
+}
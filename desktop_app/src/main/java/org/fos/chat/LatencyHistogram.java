@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a fixed memory footprint, safe to record from many threads at the same time
+ * <p>
+ * Values below {@link #LINEAR_LIMIT} get their own bucket, bigger values go to logarithmic buckets: each power of 2
+ * is split in {@link #SUB_BUCKETS} buckets, so a percentile is never more than 12.5% off the real value.
+ * Recording is a couple of atomic increments, nothing is allocated
+ * <p>
+ * Latencies measured between two clocks may be negative if the clocks are skewed, they are recorded as 0 and
+ * counted apart (see {@link #getNegativeCount()})
+ * <p>
+ * The unit is up to the caller, {@link MessageLatency} records milliseconds
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+	private static final int LINEAR_LIMIT_BITS = Integer.numberOfTrailingZeros(LINEAR_LIMIT);
+
+	// linear buckets, then SUB_BUCKETS for each power of 2 from LINEAR_LIMIT to 2^63
+	private static final int N_BUCKETS = LINEAR_LIMIT + (Long.SIZE - 1 - LINEAR_LIMIT_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+	private final AtomicLong n_negative;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(N_BUCKETS);
+		this.count = new AtomicLong();
+		this.sum = new AtomicLong();
+		this.max = new AtomicLong();
+		this.n_negative = new AtomicLong();
+	}
+
+	/**
+	 * @param value the latency, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			this.n_negative.incrementAndGet();
+			value = 0;
+		}
+		this.counts.incrementAndGet(bucket(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		this.max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * @param percentile in [0, 100]
+	 * @return the upper bound of the bucket with the given percentile, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long count = this.count.get();
+		if (count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < N_BUCKETS; ++i) {
+			seen += this.counts.get(i);
+			if (seen >= rank)
+				return Math.min(upperBound(i), this.max.get());
+		}
+		return this.max.get(); // values recorded while iterating
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * @return how many negative values were recorded (as 0), e. g. because of clock skew
+	 */
+	public long getNegativeCount() {
+		return this.n_negative.get();
+	}
+
+	public double getMean() {
+		long count = this.count.get();
+		return count == 0 ? 0 : (double) this.sum.get() / count;
+	}
+
+	/**
+	 * Forgets everything recorded, values recorded at the same time may be partially kept
+	 */
+	public void reset() {
+		for (int i = 0; i < N_BUCKETS; ++i)
+			this.counts.set(i, 0);
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+		this.n_negative.set(0);
+	}
+
+	static int bucket(long value) {
+		if (value < LINEAR_LIMIT)
+			return (int) value;
+
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value); // floor(log2(value))
+		int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - LINEAR_LIMIT_BITS) * SUB_BUCKETS + sub_bucket;
+	}
+
+	/**
+	 * @return the biggest value that goes to the bucket
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < LINEAR_LIMIT)
+			return bucket;
+
+		int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_LIMIT_BITS;
+		int sub_bucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		long lower = (1L << exponent) + ((long) sub_bucket << (exponent - SUB_BUCKET_BITS));
+		return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Latency of the received messages, from the moment they were sent until this client read them
+ * <p>
+ * The sender adds the time it sent each message and the server adds the times it received and forwarded it
+ * (see {@link ServerResponseType#MESSAGE}). The clocks of the sender, the server and this device are not
+ * synchronized, so the segments measured between two clocks are off by the skew between them, and may even be
+ * negative. The time in the server is measured with a single clock, that's why each segment is kept apart
+ * instead of only the total
+ * <p>
+ * All values are in milliseconds
+ */
+public class MessageLatency {
+	// sender -> server, sender and server clocks
+	@NotNull
+	private final LatencyHistogram upstream = new LatencyHistogram();
+
+	// server receive -> server forward, server clock only
+	@NotNull
+	private final LatencyHistogram server = new LatencyHistogram();
+
+	// server -> this client, server and client clocks
+	@NotNull
+	private final LatencyHistogram downstream = new LatencyHistogram();
+
+	// sender -> this client, sender and client clocks
+	@NotNull
+	private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+	/**
+	 * Records the times of a received message, all of them are epoch millis
+	 *
+	 * @param sent_at             when the sender sent the message, in the sender clock
+	 * @param server_received_at  when the server received the message, in the server clock. 0 if unknown
+	 * @param server_forwarded_at when the server forwarded the message, in the server clock. 0 if unknown
+	 * @param received_at         when this client read the message, in this device clock
+	 */
+	void record(long sent_at, long server_received_at, long server_forwarded_at, long received_at) {
+		this.endToEnd.record(received_at - sent_at);
+		if (server_received_at == 0 || server_forwarded_at == 0)
+			return; // an older server, it doesn't add its times
+
+		this.upstream.record(server_received_at - sent_at);
+		this.server.record(server_forwarded_at - server_received_at);
+		this.downstream.record(received_at - server_forwarded_at);
+	}
+
+	public @NotNull LatencyHistogram getUpstream() {
+		return upstream;
+	}
+
+	public @NotNull LatencyHistogram getServer() {
+		return server;
+	}
+
+	public @NotNull LatencyHistogram getDownstream() {
+		return downstream;
+	}
+
+	public @NotNull LatencyHistogram getEndToEnd() {
+		return endToEnd;
+	}
+
+	public void reset() {
+		this.upstream.reset();
+		this.server.reset();
+		this.downstream.reset();
+		this.endToEnd.reset();
+	}
+
+	/**
+	 * @return a line per segment with the count, p50, p99 and max, e. g. for a debug overlay
+	 */
+	public @NotNull String summary() {
+		return summary("end to end", this.endToEnd)
+			+ '\n' + summary("upstream", this.upstream)
+			+ '\n' + summary("server", this.server)
+			+ '\n' + summary("downstream", this.downstream);
+	}
+
+	private static @NotNull String summary(@NotNull String name, @NotNull LatencyHistogram histogram) {
+		String summary = String.format(
+			"%-10s n=%d p50=%dms p99=%dms max=%dms",
+			name,
+			histogram.getCount(),
+			histogram.getPercentile(50),
+			histogram.getPercentile(99),
+			histogram.getMax()
+		);
+		if (histogram.getNegativeCount() > 0)
+			summary += " (" + histogram.getNegativeCount() + " negative, clock skew)";
+		return summary;
+	}
+}
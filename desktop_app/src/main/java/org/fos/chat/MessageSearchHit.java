@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+/**
+ * A message found by {@link ChatClient#searchMessages(String, int)}
+ * <p>
+ * The message is identified by its position in the conversation, the seq the server sent with it
+ */
+public class MessageSearchHit {
+	// the chat UID of the other user in the conversation
+	private final int peer_uid;
+
+	private final long seq;
+
+	private final float score;
+
+	public MessageSearchHit(int peer_uid, long seq, float score) {
+		this.peer_uid = peer_uid;
+		this.seq = seq;
+		this.score = score;
+	}
+
+	public int getPeerUID() {
+		return peer_uid;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public float getScore() {
+		return score;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageSearchHit{" +
+			"peer_uid=" + peer_uid +
+			", seq=" + seq +
+			", score=" + score +
+			'}';
+	}
+}
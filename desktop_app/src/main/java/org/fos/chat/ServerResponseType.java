@@ -50,10 +50,18 @@ public enum ServerResponseType {
 	 * <p>
 	 * An example of the response is
 	 * <p>
+	 * MESSAGE\n1\n2\nseq:15\n---BEGIN MESSAGE---\nSGVsbG8gd29ybGQ=\n---END MESSAGE---
+	 * <p>
 	 * Where 1 is the id for the user SENDING the message, the SENDER
 	 * 2 is the id for the user RECEIVING the message, the RECEIVER
+	 * 15 is the sequence number of the message in the conversation
+	 * <p>
+	 * SGVsbG8gd29ybGQ= is the base64-encoded message
 	 * <p>
-	 * Hello world is simple the message
+	 * If the SENDER is this user, the message was sent from another device where the user is logged in
+	 * <p>
+	 * The message may also have the lines t_cs (when the sender sent it), t_sr and t_sf (when the server received
+	 * and forwarded it), see {@link MessageLatency}
 	 */
 	MESSAGE("MESSAGE"),
 
@@ -63,7 +71,97 @@ public enum ServerResponseType {
 	 * The server needs to notify everyone else about that, therefore the server will broadcast
 	 * that event to all connected clients
 	 */
-	USER_CONNECTED("USER_CONNECTED");
+	USER_CONNECTED("USER_CONNECTED"),
+
+	/**
+	 * Someone wants to send a file to this user
+	 * <p>
+	 * An example of the response is
+	 * <p>
+	 * FILE_OFFER\n1\n2\nTRANSFER_ID\nbWkgbGlicm8uZXB1Yg==\n1048576\n65536
+	 * <p>
+	 * Where 1 is the SENDER, 2 is the RECEIVER, bWkgbGlicm8uZXB1Yg== is the base64-encoded file name,
+	 * 1048576 is the file size and 65536 is the size of each chunk
+	 *
+	 * @see FileTransferManager
+	 */
+	FILE_OFFER("FILE_OFFER"),
+
+	/**
+	 * The receiver of a file offered by this user accepted it, the chunks it doesn't have should be sent
+	 * <p>
+	 * FILE_RESUME\n2\n1\nTRANSFER_ID\nBw==
+	 * <p>
+	 * Where Bw== is the base64-encoded bitmap of the chunks the receiver already has (bit i for chunk i),
+	 * empty for a new transfer
+	 */
+	FILE_RESUME("FILE_RESUME"),
+
+	/**
+	 * A chunk of an offered file
+	 * <p>
+	 * FILE_CHUNK\n1\n2\nTRANSFER_ID\n0\n2313073694\nSGVsbG8gd29ybGQ=
+	 * <p>
+	 * Where 0 is the index of the chunk, 2313073694 is the CRC32 of the chunk
+	 * and SGVsbG8gd29ybGQ= is its base64-encoded content
+	 */
+	FILE_CHUNK("FILE_CHUNK"),
+
+	/**
+	 * The receiver of a file sent by this user wrote a chunk
+	 * <p>
+	 * FILE_ACK\n2\n1\nTRANSFER_ID\n0
+	 * <p>
+	 * Where 2 is the RECEIVER of the file, 1 is the SENDER (this user) and 0 is the index of the chunk
+	 */
+	FILE_ACK("FILE_ACK"),
+
+	/**
+	 * The other side aborted a file transfer
+	 * <p>
+	 * FILE_CANCEL\n2\n1\nTRANSFER_ID\nREJECTED
+	 */
+	FILE_CANCEL("FILE_CANCEL"),
+
+	/**
+	 * The server is shutting down, the client should disconnect and connect again later
+	 * <p>
+	 * REDIRECT\nchat2.example.com:12365\n7350
+	 * <p>
+	 * Where chat2.example.com:12365 is the server to connect to, empty for the same server,
+	 * and 7350 is the number of milliseconds to wait before connecting
+	 */
+	REDIRECT("REDIRECT"),
+
+	/**
+	 * The hits of a search sent with {@link ChatClient#searchMessages(String, int)}, best first
+	 * <p>
+	 * SEARCH_RESULTS\nSEARCH_ID\n2\n7\n15\n3.21\n9\n4\n1.75
+	 * <p>
+	 * Where 2 is the number of hits, and each hit is 3 lines: the other user in the conversation,
+	 * the seq of the message in the conversation and the score
+	 */
+	SEARCH_RESULTS("SEARCH_RESULTS"),
+
+	/**
+	 * A message sent by this client was not forwarded because it contains a banned word or link
+	 * <p>
+	 * MESSAGE_REJECTED\n2\n7f3c9a10
+	 * <p>
+	 * Where 2 is the receiver of the message and 7f3c9a10 is the id of the message, empty if it had no id
+	 */
+	MESSAGE_REJECTED("MESSAGE_REJECTED"),
+
+	/**
+	 * The conversations of this user, loaded with {@link ChatClient#loadInbox()}, the newest first
+	 * <p>
+	 * INBOX\n2\n7\n15\n1612137600012\n7\n3\nSGVsbG8gd29ybGQ=\n9\n4\n1612130000000\n1\n0\nT2sh
+	 * <p>
+	 * Where 2 is the number of conversations, and each conversation is 6 lines: the other user in the conversation,
+	 * the seq and the time of the last message, who sent it, the number of unread messages and the base64-encoded
+	 * beginning of the last message
+	 */
+	INBOX("INBOX");
 
 	private final String header;
 
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Persistent state of a file transfer, so it can be resumed after a dropped connection or an app restart
+ * <p>
+ * The manifest is a small binary file with a fixed header, followed by a bitmap with the chunks already
+ * transferred (received by the receiver, acknowledged for the sender) and the CRC32 of each of those chunks:
+ * <p>
+ * [int magic][int version][byte is_incoming][long size][int chunk_size][int peer_uid][long source_mtime]
+ * [int length][utf-8 path][int length][utf-8 file name][bitmap][int crc] * n_chunks
+ * <p>
+ * Marking a chunk as done is two small positioned writes, the CRC first and then the byte of the bitmap,
+ * so a chunk marked as done always has its CRC. The bitmap is also kept in memory
+ * <p>
+ * The receiver syncs the data of a chunk before marking it as done, so the bitmap is never ahead of the data
+ */
+class TransferManifest implements AutoCloseable {
+	private static final int MAGIC = 0x5342544D; // SBTM
+	private static final int VERSION = 1;
+
+	@NotNull
+	private final Path file;
+
+	@NotNull
+	private final FileChannel channel;
+
+	private final boolean is_incoming;
+	private final long size;
+	private final int chunk_size;
+	private final int peer_uid;
+
+	// last modified time of the sent file, to detect it changed before resuming. 0 for incoming files
+	private final long source_mtime;
+
+	@NotNull
+	private final Path path;
+
+	@NotNull
+	private final String fileName;
+
+	// position of the bitmap and the CRCs in the manifest file
+	private final long bitmap_offset;
+	private final long crcs_offset;
+
+	@NotNull
+	private final BitSet done;
+
+	private TransferManifest(
+		@NotNull Path file,
+		@NotNull FileChannel channel,
+		boolean is_incoming,
+		long size,
+		int chunk_size,
+		int peer_uid,
+		long source_mtime,
+		@NotNull Path path,
+		@NotNull String fileName,
+		long bitmap_offset,
+		@NotNull BitSet done
+	) {
+		this.file = file;
+		this.channel = channel;
+		this.is_incoming = is_incoming;
+		this.size = size;
+		this.chunk_size = chunk_size;
+		this.peer_uid = peer_uid;
+		this.source_mtime = source_mtime;
+		this.path = path;
+		this.fileName = fileName;
+		this.bitmap_offset = bitmap_offset;
+		this.crcs_offset = bitmap_offset + bitmapSize(this.getChunkCount());
+		this.done = done;
+	}
+
+	/**
+	 * Creates a new manifest, with no chunk done
+	 *
+	 * @param file         where the manifest is written
+	 * @param is_incoming  if the file is received or sent
+	 * @param size         the size of the transferred file
+	 * @param chunk_size   the size of each chunk
+	 * @param peer_uid     the chat uid of the other user
+	 * @param source_mtime the last modified time of the sent file, or 0 if it is received
+	 * @param path         the sent file or where the received file is written
+	 * @param fileName     the name of the file, as shown to the users
+	 */
+	static @NotNull TransferManifest create(
+		@NotNull Path file,
+		boolean is_incoming,
+		long size,
+		int chunk_size,
+		int peer_uid,
+		long source_mtime,
+		@NotNull Path path,
+		@NotNull String fileName
+	) throws IOException {
+		byte[] pathBytes = path.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+		byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+		int n_chunks = chunkCount(size, chunk_size);
+
+		ByteBuffer header = ByteBuffer.allocate(
+			2 * Integer.BYTES + 1 + Long.BYTES + 2 * Integer.BYTES + Long.BYTES
+				+ Integer.BYTES + pathBytes.length + Integer.BYTES + nameBytes.length
+		);
+		header.putInt(MAGIC)
+			.putInt(VERSION)
+			.put((byte) (is_incoming ? 1 : 0))
+			.putLong(size)
+			.putInt(chunk_size)
+			.putInt(peer_uid)
+			.putLong(source_mtime)
+			.putInt(pathBytes.length)
+			.put(pathBytes)
+			.putInt(nameBytes.length)
+			.put(nameBytes)
+			.flip();
+
+		FileChannel channel = FileChannel.open(
+			file,
+			StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING,
+			StandardOpenOption.READ,
+			StandardOpenOption.WRITE
+		);
+		try {
+			writeFully(channel, header, 0);
+			// bitmap and CRCs, all zeros
+			writeFully(channel, ByteBuffer.allocate(bitmapSize(n_chunks) + n_chunks * Integer.BYTES), header.limit());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return new TransferManifest(
+			file, channel, is_incoming, size, chunk_size, peer_uid, source_mtime, path, fileName, header.limit(), new BitSet(n_chunks)
+		);
+	}
+
+	/**
+	 * Opens an existing manifest
+	 *
+	 * @param file the manifest
+	 * @throws IOException if the file could not be read or is not a valid manifest
+	 */
+	static @NotNull TransferManifest open(@NotNull Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate((int) Math.min(channel.size(), 64 * 1024));
+			while (header.hasRemaining())
+				if (channel.read(header, header.position()) < 0)
+					break;
+			header.flip();
+
+			if (header.remaining() < 2 * Integer.BYTES || header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IOException(file + " is not a transfer manifest");
+
+			boolean is_incoming = header.get() == 1;
+			long size = header.getLong();
+			int chunk_size = header.getInt();
+			int peer_uid = header.getInt();
+			long source_mtime = header.getLong();
+			Path path = Paths.get(readString(header));
+			String fileName = readString(header);
+			long bitmap_offset = header.position();
+
+			int n_chunks = chunkCount(size, chunk_size);
+			ByteBuffer bitmap = ByteBuffer.allocate(bitmapSize(n_chunks));
+			while (bitmap.hasRemaining())
+				if (channel.read(bitmap, bitmap_offset + bitmap.position()) < 0)
+					throw new IOException(file + " is truncated");
+
+			return new TransferManifest(
+				file, channel, is_incoming, size, chunk_size, peer_uid, source_mtime, path, fileName,
+				bitmap_offset, BitSet.valueOf(bitmap.array())
+			);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e instanceof IOException ? (IOException) e : new IOException(file + " is corrupted", e);
+		}
+	}
+
+	/**
+	 * Marks a chunk as transferred
+	 *
+	 * @param index the index of the chunk
+	 * @param crc   the CRC32 of the chunk
+	 */
+	synchronized void markDone(int index, int crc) throws IOException {
+		ByteBuffer crcBuff = ByteBuffer.allocate(Integer.BYTES);
+		crcBuff.putInt(crc).flip();
+		writeFully(this.channel, crcBuff, this.crcs_offset + (long) index * Integer.BYTES);
+
+		this.done.set(index);
+		ByteBuffer bitmapByte = ByteBuffer.allocate(1);
+		bitmapByte.put(this.bitmapByte(index)).flip();
+		writeFully(this.channel, bitmapByte, this.bitmap_offset + index / 8);
+	}
+
+	private byte bitmapByte(int index) {
+		byte[] bytes = this.done.get(index & ~7, (index & ~7) + 8).toByteArray();
+		return bytes.length == 0 ? 0 : bytes[0];
+	}
+
+	/**
+	 * @return the CRC32 stored for the chunk, only meaningful if the chunk is done
+	 */
+	synchronized int getCrc(int index) throws IOException {
+		ByteBuffer crcBuff = ByteBuffer.allocate(Integer.BYTES);
+		while (crcBuff.hasRemaining())
+			if (this.channel.read(crcBuff, this.crcs_offset + (long) index * Integer.BYTES + crcBuff.position()) < 0)
+				throw new IOException(this.file + " is truncated");
+		return crcBuff.getInt(0);
+	}
+
+	synchronized boolean isDone(int index) {
+		return this.done.get(index);
+	}
+
+	/**
+	 * @return a copy of the bitmap of the chunks done
+	 */
+	synchronized @NotNull BitSet getDone() {
+		return (BitSet) this.done.clone();
+	}
+
+	synchronized int countDone() {
+		return this.done.cardinality();
+	}
+
+	/**
+	 * @return the number of bytes of the chunks done
+	 */
+	synchronized long getBytesDone() {
+		long bytes = (long) this.done.cardinality() * this.chunk_size;
+		int last = this.getChunkCount() - 1;
+		if (last >= 0 && this.done.get(last))
+			bytes -= (long) last * this.chunk_size + this.chunk_size - this.size; // the last chunk is smaller
+		return bytes;
+	}
+
+	boolean isIncoming() {
+		return this.is_incoming;
+	}
+
+	long getSize() {
+		return this.size;
+	}
+
+	int getChunkSize() {
+		return this.chunk_size;
+	}
+
+	int getChunkCount() {
+		return chunkCount(this.size, this.chunk_size);
+	}
+
+	int getPeerUID() {
+		return this.peer_uid;
+	}
+
+	long getSourceMTime() {
+		return this.source_mtime;
+	}
+
+	@NotNull Path getPath() {
+		return this.path;
+	}
+
+	@NotNull String getFileName() {
+		return this.fileName;
+	}
+
+	/**
+	 * Closes and deletes the manifest, e. g. because the transfer finished
+	 */
+	void delete() throws IOException {
+		this.close();
+		Files.deleteIfExists(this.file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	static int chunkCount(long size, int chunk_size) {
+		return (int) ((size + chunk_size - 1) / chunk_size);
+	}
+
+	private static int bitmapSize(int n_chunks) {
+		return (n_chunks + 7) / 8;
+	}
+
+	private static @NotNull String readString(@NotNull ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.components;
+
+import javafx.scene.control.ListCell;
+import javafx.scene.text.Text;
+import org.fos.chat.ChatMessage;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Cell to display a single message in a {@link ChatTranscriptView}
+ * <p>
+ * Cells are recycled by the list while scrolling, so the {@link Text} node is created once per cell and only its
+ * content changes. The measured height of each message is cached in the transcript, so scrolling back over an
+ * already seen message doesn't measure the wrapped text again
+ */
+class ChatMessageCell extends ListCell<ChatMessage> {
+	// horizontal space not available for the text (cell padding + scrollbar)
+	private static final double HORIZONTAL_INSETS = 40;
+
+	@NotNull
+	private final ChatTranscriptView transcript;
+
+	@NotNull
+	private final Text text;
+
+	ChatMessageCell(@NotNull ChatTranscriptView transcript) {
+		this.transcript = transcript;
+		this.text = new Text();
+		this.text.getStyleClass().add("chat-message-text");
+		this.text.wrappingWidthProperty().bind(transcript.widthProperty().subtract(HORIZONTAL_INSETS));
+		this.getStyleClass().add("chat-message-cell");
+	}
+
+	@Override
+	protected void updateItem(ChatMessage message, boolean empty) {
+		super.updateItem(message, empty);
+
+		this.getStyleClass().removeAll("chat-message-sent", "chat-message-received");
+		if (empty || message == null) {
+			this.setGraphic(null);
+			return;
+		}
+
+		this.text.setText(message.getText());
+		this.getStyleClass().add(
+			message.getFromUID() == this.transcript.getOwnUID() ? "chat-message-sent" : "chat-message-received"
+		);
+		this.setGraphic(this.text);
+
+		this.transcript.onCellShown(this.getIndex());
+	}
+
+	@Override
+	protected double computePrefHeight(double width) {
+		int index = this.getIndex();
+		if (this.isEmpty() || index < 0)
+			return super.computePrefHeight(width);
+
+		double list_width = this.transcript.getWidth();
+		double height = this.transcript.getCachedHeight(index, list_width);
+		if (height < 0) {
+			height = super.computePrefHeight(width);
+			this.transcript.cacheHeight(index, list_width, height);
+		}
+
+		return height;
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.components;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.util.Duration;
+import org.fos.ShareBook;
+import org.fos.chat.ChatMessage;
+import org.fos.chat.ConversationStore;
+import org.fos.core.Message;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Transcript of a single conversation
+ * <p>
+ * The {@link ListView} already creates cells only for the visible rows and recycles them while scrolling.
+ * On top of that, this view only keeps a window of at most {@link #MAX_WINDOW_SIZE} messages in memory:
+ * when the user scrolls near the top (or the bottom) of the window, the next page is read from the
+ * {@link ConversationStore} in a background thread and the messages at the other end are dropped.
+ * That way memory depends on the viewport and not on how long the conversation is
+ * <p>
+ * Measuring wrapped text is the expensive part of laying out a cell, so the measured heights are cached per
+ * conversation position (see {@link ChatMessageCell})
+ * <p>
+ * If a page could not be read, no other page is requested for a while (longer after each consecutive failure),
+ * so a failing disk doesn't make every shown cell request the page again
+ */
+public class ChatTranscriptView extends ListView<ChatMessage> {
+	// number of messages read from the disk each time
+	static final int PAGE_SIZE = 100;
+
+	// max number of messages kept in the list
+	static final int MAX_WINDOW_SIZE = 4 * PAGE_SIZE;
+
+	// a new page is requested when a cell this close to the window edge is shown
+	private static final int PREFETCH_DISTANCE = 20;
+
+	// max number of cached cell heights
+	private static final int MAX_CACHED_HEIGHTS = 2 * MAX_WINDOW_SIZE;
+
+	// time to wait before requesting a page again after a failed read, doubled after each consecutive failure
+	private static final long MIN_RETRY_DELAY = 500; // ms
+	private static final long MAX_RETRY_DELAY = 30_000; // ms
+
+	// shared by all transcripts, pages are read one at a time
+	private static final ExecutorService pageLoader = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "transcript-page-loader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@NotNull
+	private final ConversationStore store;
+
+	private final int peer_uid;
+
+	private final int own_uid;
+
+	// position in the conversation of the first message in the list
+	private int window_start;
+
+	// total number of messages in the conversation (including the ones not in the window)
+	private int conversation_size;
+
+	// true while a page is being read (or while waiting to retry a failed read), so the same page is not requested twice
+	private boolean is_loading;
+
+	// number of consecutive failed reads
+	private int failed_loads;
+
+	// false until the last page of the conversation was read the first time
+	private boolean has_recent_page;
+
+	// messages appended before the last page was read the first time, they may or may not be in that page
+	@NotNull
+	private final List<ChatMessage> appendedWhileLoading;
+
+	// maps conversation position -> measured cell height, only valid for the width in cachedHeightsWidth
+	@NotNull
+	private final LinkedHashMap<Integer, Double> cachedHeights;
+	private double cachedHeightsWidth;
+
+	/**
+	 * Creates the view and starts reading the most recent messages of the conversation
+	 *
+	 * @param store    the store from where the messages will be read
+	 * @param peer_uid the chat uid of the other user in the conversation
+	 * @param own_uid  the chat uid of the current user, used to tell apart sent from received messages
+	 */
+	public ChatTranscriptView(@NotNull ConversationStore store, int peer_uid, int own_uid) {
+		super(FXCollections.observableArrayList());
+		this.store = Objects.requireNonNull(store);
+		this.peer_uid = peer_uid;
+		this.own_uid = own_uid;
+		this.appendedWhileLoading = new ArrayList<>();
+		this.cachedHeights = new LinkedHashMap<Integer, Double>(MAX_CACHED_HEIGHTS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Double> eldest) {
+				return this.size() > MAX_CACHED_HEIGHTS;
+			}
+		};
+
+		this.getStyleClass().add("chat-transcript");
+		this.setCellFactory(listView -> new ChatMessageCell(this));
+
+		this.loadRecent();
+	}
+
+	/**
+	 * Reads the last page of the conversation and scrolls to the bottom
+	 */
+	private void loadRecent() {
+		this.is_loading = true;
+		pageLoader.execute(() -> {
+			try {
+				int size = this.store.size(this.peer_uid);
+				List<ChatMessage> page = this.store.read(this.peer_uid, size - PAGE_SIZE, size);
+
+				Platform.runLater(() -> {
+					int n_loaded = this.countAppendedIn(page);
+					List<ChatMessage> appended = new ArrayList<>(
+						this.appendedWhileLoading.subList(n_loaded, this.appendedWhileLoading.size())
+					);
+					this.appendedWhileLoading.clear();
+					this.has_recent_page = true;
+
+					this.conversation_size = size;
+					this.window_start = size - page.size();
+					this.getItems().setAll(page);
+					this.scrollTo(page.size() - 1);
+					this.setPlaceholder(null);
+					this.onLoadSucceeded();
+
+					// the ones written to the store after its size was read
+					if (!appended.isEmpty())
+						this.appendMessages(appended);
+				});
+			} catch (IOException e) {
+				e.printStackTrace();
+				Platform.runLater(() -> {
+					// the list is empty, so the placeholder is shown instead
+					this.setPlaceholder(new Label(ShareBook.getMessages().get(Message.CHAT_HISTORY_ERROR)));
+					this.onLoadFailed(this::loadRecent);
+				});
+			}
+		});
+	}
+
+	/**
+	 * The messages appended while the last page was being read were already in the store, but the store may have
+	 * been read before or after they were written. The ones read are the first ones, at the end of the page
+	 *
+	 * @param page the last page of the conversation
+	 * @return the number of messages in {@link #appendedWhileLoading} that are already counted in the page
+	 */
+	private int countAppendedIn(@NotNull List<ChatMessage> page) {
+		List<ChatMessage> appended = this.appendedWhileLoading;
+		for (int n_read = appended.size(); n_read > 0; --n_read) {
+			int n_compared = Math.min(n_read, page.size());
+			boolean matches = true;
+			for (int i = 1; i <= n_compared && matches; ++i)
+				matches = isSameMessage(page.get(page.size() - i), appended.get(n_read - i));
+			if (matches)
+				return n_read;
+		}
+		return 0;
+	}
+
+	private static boolean isSameMessage(@NotNull ChatMessage a, @NotNull ChatMessage b) {
+		return a.getFromUID() == b.getFromUID()
+			&& a.getToUID() == b.getToUID()
+			&& a.getTimestamp() == b.getTimestamp()
+			&& a.getText().equals(b.getText());
+	}
+
+	/**
+	 * Appends new messages (e. g. the ones delivered by the {@link org.fos.chat.ChatEventBus}) to the conversation
+	 * <p>
+	 * If the window is showing the end of the conversation, the messages are added to the list and the view
+	 * follows them if it was scrolled to the bottom. Otherwise they will be read from the store when
+	 * the user scrolls down. Before the first page was read they are kept until it is, so they are not lost
+	 * <p>
+	 * This method should be called in the FX thread
+	 *
+	 * @param messages the new messages, they should be already appended to the store
+	 */
+	public void appendMessages(@NotNull List<ChatMessage> messages) {
+		if (!this.has_recent_page) {
+			this.appendedWhileLoading.addAll(messages);
+			return;
+		}
+
+		ObservableList<ChatMessage> items = this.getItems();
+		boolean is_window_at_end = this.window_start + items.size() == this.conversation_size;
+		this.conversation_size += messages.size();
+
+		if (!is_window_at_end)
+			return;
+
+		VirtualFlow<?> flow = this.getVirtualFlow();
+		boolean was_at_bottom = flow == null
+			|| flow.getLastVisibleCell() == null
+			|| flow.getLastVisibleCell().getIndex() >= items.size() - 1;
+
+		items.addAll(messages);
+		this.trimStart();
+
+		if (was_at_bottom)
+			this.scrollTo(items.size() - 1);
+	}
+
+	/**
+	 * Invoked by the cells when they display the message at the given index
+	 * Requests the previous/next page if the index is close to the window edges
+	 *
+	 * @param index the index in the list of the displayed message
+	 */
+	void onCellShown(int index) {
+		if (this.is_loading)
+			return;
+
+		if (index < PREFETCH_DISTANCE && this.window_start > 0)
+			this.loadPrevious();
+		else if (index >= this.getItems().size() - PREFETCH_DISTANCE
+			&& this.window_start + this.getItems().size() < this.conversation_size)
+			this.loadNext();
+	}
+
+	/**
+	 * Reads the page before the window and prepends it, keeping the current scroll position
+	 */
+	private void loadPrevious() {
+		this.is_loading = true;
+		int from = Math.max(0, this.window_start - PAGE_SIZE);
+		int to = this.window_start;
+
+		pageLoader.execute(() -> {
+			List<ChatMessage> page = this.readPage(from, to);
+			if (page == null)
+				return;
+
+			Platform.runLater(() -> {
+				VirtualFlow<?> flow = this.getVirtualFlow();
+				int first_visible = flow == null || flow.getFirstVisibleCell() == null
+					? 0
+					: flow.getFirstVisibleCell().getIndex();
+
+				this.getItems().addAll(0, page);
+				this.window_start -= page.size();
+				this.trimEnd();
+
+				this.scrollTo(first_visible + page.size());
+				this.onLoadSucceeded();
+			});
+		});
+	}
+
+	/**
+	 * Reads the page after the window and appends it
+	 */
+	private void loadNext() {
+		this.is_loading = true;
+		int from = this.window_start + this.getItems().size();
+		int to = Math.min(this.conversation_size, from + PAGE_SIZE);
+
+		pageLoader.execute(() -> {
+			List<ChatMessage> page = this.readPage(from, to);
+			if (page == null)
+				return;
+
+			Platform.runLater(() -> {
+				VirtualFlow<?> flow = this.getVirtualFlow();
+				int first_visible = flow == null || flow.getFirstVisibleCell() == null
+					? 0
+					: flow.getFirstVisibleCell().getIndex();
+
+				this.getItems().addAll(page);
+				int removed = this.trimStart();
+
+				this.scrollTo(Math.max(0, first_visible - removed));
+				this.onLoadSucceeded();
+			});
+		});
+	}
+
+	/**
+	 * Reads a page of the conversation, if it fails the page will be requested again later (see {@link #onLoadFailed})
+	 * This method should be called in the page loader thread
+	 *
+	 * @return the messages, or null if they could not be read
+	 */
+	@Nullable
+	private List<ChatMessage> readPage(int from, int to) {
+		try {
+			return this.store.read(this.peer_uid, from, to);
+		} catch (IOException e) {
+			e.printStackTrace();
+			// the page is requested again when a cell is shown after the delay
+			Platform.runLater(() -> this.onLoadFailed(null));
+			return null;
+		}
+	}
+
+	/**
+	 * Invoked in the FX thread after a page was read and added to the list
+	 */
+	private void onLoadSucceeded() {
+		this.failed_loads = 0;
+		this.is_loading = false;
+	}
+
+	/**
+	 * Invoked in the FX thread after a page could not be read
+	 * No other page is requested until the retry delay has passed
+	 *
+	 * @param retry what to run after the delay, or null to wait until a cell requests the page again
+	 */
+	private void onLoadFailed(@Nullable Runnable retry) {
+		long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(this.failed_loads, 16));
+		++this.failed_loads;
+
+		PauseTransition backoff = new PauseTransition(Duration.millis(delay));
+		backoff.setOnFinished(event -> {
+			this.is_loading = false;
+			if (retry != null)
+				retry.run();
+		});
+		backoff.play();
+	}
+
+	/**
+	 * Drops messages from the start of the window if it is too big
+	 *
+	 * @return the number of dropped messages
+	 */
+	private int trimStart() {
+		int excess = this.getItems().size() - MAX_WINDOW_SIZE;
+		if (excess <= 0)
+			return 0;
+
+		this.getItems().remove(0, excess);
+		this.window_start += excess;
+		return excess;
+	}
+
+	/**
+	 * Drops messages from the end of the window if it is too big
+	 */
+	private void trimEnd() {
+		int size = this.getItems().size();
+		if (size > MAX_WINDOW_SIZE)
+			this.getItems().remove(MAX_WINDOW_SIZE, size);
+	}
+
+	private VirtualFlow<?> getVirtualFlow() {
+		return (VirtualFlow<?>) this.lookup(".virtual-flow");
+	}
+
+	/**
+	 * @param index the index in the list
+	 * @param width the width of the cell
+	 * @return the cached height for the message at the given index, or a negative number if it is not cached
+	 */
+	double getCachedHeight(int index, double width) {
+		if (width != this.cachedHeightsWidth) {
+			// wrapped text changes its height with the width, every measure is now invalid
+			this.cachedHeights.clear();
+			this.cachedHeightsWidth = width;
+			return -1;
+		}
+
+		Double height = this.cachedHeights.get(this.window_start + index);
+		return height == null ? -1 : height;
+	}
+
+	void cacheHeight(int index, double width, double height) {
+		if (width == this.cachedHeightsWidth)
+			this.cachedHeights.put(this.window_start + index, height);
+	}
+
+	/**
+	 * @return the position in the conversation of the first message in the list
+	 */
+	public int getWindowStart() {
+		return this.window_start;
+	}
+
+	/**
+	 * @return the total number of messages in the conversation
+	 */
+	public int getConversationSize() {
+		return this.conversation_size;
+	}
+
+	public int getPeerUID() {
+		return this.peer_uid;
+	}
+
+	public int getOwnUID() {
+		return this.own_uid;
+	}
+}
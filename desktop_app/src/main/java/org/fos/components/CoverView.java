@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.components;
+
+import javafx.scene.image.ImageView;
+import org.fos.core.covers.CoverCache;
+import org.fos.core.covers.CoverRequest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Objects;
+
+/**
+ * Shows a book cover loaded with a {@link CoverCache}
+ * <p>
+ * Meant to be used inside recycled cells: each time the cell shows another book the request for the previous
+ * cover is cancelled, so covers scrolled out of the screen are never decoded
+ */
+public class CoverView extends ImageView {
+	@NotNull
+	private final CoverCache cache;
+
+	@Nullable
+	private String key;
+
+	@Nullable
+	private CoverRequest request;
+
+	public CoverView(@NotNull CoverCache cache, double width, double height) {
+		this.cache = cache;
+		this.setFitWidth(width);
+		this.setFitHeight(height);
+		this.setPreserveRatio(true);
+		this.getStyleClass().add("cover-view");
+	}
+
+	/**
+	 * Shows another cover, this should be called from the FX thread
+	 *
+	 * @param key the key of the cover or null to show nothing
+	 */
+	public void setCover(@Nullable String key) {
+		if (Objects.equals(key, this.key))
+			return;
+
+		if (this.request != null)
+			this.request.cancel();
+		this.request = null;
+		this.key = key;
+
+		if (key == null) {
+			this.setImage(null);
+			return;
+		}
+
+		// if it is in memory the image is set right now, otherwise nothing is shown until it is loaded
+		this.setImage(null);
+		this.request = this.cache.load(key, this::setImage);
+	}
+
+	public @Nullable String getCover() {
+		return this.key;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.components;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.layout.StackPane;
+import javafx.util.Duration;
+import org.fos.chat.ChatClient;
+
+/**
+ * Debug overlay with the latency of the received chat messages (see {@link org.fos.chat.MessageLatency}),
+ * refreshed every second
+ * <p>
+ * It is shown on top of the window if the app is started with -Dsharebook.latencyOverlay=true, and it doesn't
+ * receive mouse events so the views below it work as usual
+ */
+public class LatencyOverlay extends Label {
+	private static final Duration REFRESH_INTERVAL = Duration.seconds(1);
+
+	public LatencyOverlay() {
+		this.getStyleClass().add("latency-overlay");
+		this.setMouseTransparent(true);
+		this.setPadding(new Insets(4));
+		this.setStyle("-fx-font-family: monospace; -fx-background-color: rgba(0, 0, 0, 0.6); -fx-text-fill: white;");
+		StackPane.setAlignment(this, Pos.BOTTOM_RIGHT);
+
+		Timeline refresh = new Timeline(new KeyFrame(REFRESH_INTERVAL, evt -> this.refresh()));
+		refresh.setCycleCount(Timeline.INDEFINITE);
+		refresh.play();
+		this.refresh();
+	}
+
+	private void refresh() {
+		Thread chatThread = ChatClient.getThread();
+		this.setText(chatThread instanceof ChatClient
+			? ((ChatClient) chatThread).getLatency().summary()
+			: "chat not connected");
+	}
+
+	/**
+	 * @return true if the overlay should be shown
+	 */
+	public static boolean isEnabled() {
+		return Boolean.getBoolean("sharebook.latencyOverlay");
+	}
+}
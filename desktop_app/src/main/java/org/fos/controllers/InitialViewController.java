@@ -20,7 +20,6 @@ package org.fos.controllers;
 
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
-import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.Parent;
 import javafx.scene.control.*;
@@ -28,10 +27,15 @@ import javafx.scene.text.Text;
 import org.fos.I18nable;
 import org.fos.ShareBook;
 import org.fos.core.AvailableLanguage;
+import org.fos.core.I18nRegistry;
+import org.fos.core.Message;
+import org.fos.core.MessageTable;
+import org.fos.core.ViewRegistry;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -56,19 +60,18 @@ public class InitialViewController implements Initializable, I18nable {
 	 * Sets the action panel
 	 * adds languages options to the language combobox
 	 * changes the text of the elements in the view according to the language
+	 * <p>
+	 * The view is parsed in a background thread (see {@link ViewRegistry#preload(String...)}), so errors are not
+	 * shown here, they are thrown and reported when the view is requested
 	 * @param url the url
 	 * @param resourceBundle the resource bundle
 	 */
 	@Override
 	public void initialize(URL url, ResourceBundle resourceBundle) {
-		if (!this.changeActionsPanelContent()) {
-			new Alert(
-				Alert.AlertType.ERROR,
-				"Fatal error, could not load the FXML for the register/login. Please retry",
-				ButtonType.CLOSE
-			);
-			ShareBook.exit();
-			return;
+		try {
+			this.changeActionsPanelContent();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 
 		// add languages to the languages combobox
@@ -79,7 +82,7 @@ public class InitialViewController implements Initializable, I18nable {
 		this.langComboBox.getItems().addAll(availableLangs);
 
 		// set the current active language
-		Locale currentLocale = ShareBook.getMessagesBundle().getLocale();
+		Locale currentLocale = ShareBook.getMessages().getLocale();
 		Optional<AvailableLanguage> currentLang = Arrays.stream(AvailableLanguage.values())
 			.filter(lang -> lang.getLocale().equals(currentLocale))
 			.findAny(); // get the current lang
@@ -95,8 +98,9 @@ public class InitialViewController implements Initializable, I18nable {
 					+ currentLocale
 			);
 
-		// display text according to language
+		// display text according to language, and every time the language changes
 		this.displayTextWithLang();
+		I18nRegistry.register(this);
 	}
 
 	/**
@@ -107,9 +111,9 @@ public class InitialViewController implements Initializable, I18nable {
 	@FXML
 	private void onToggleLoginRegister(@Nullable ActionEvent actionEvent) {
 		this.is_login_active = !this.is_login_active;
-		this.changeToggleButtonText(ShareBook.getMessagesBundle());
+		this.changeToggleButtonText(ShareBook.getMessages());
 
-		// TODO: change content inside the scrollpane
+		// the actions panel keeps the login, there is no register view to show yet
 	}
 
 	/**
@@ -119,25 +123,26 @@ public class InitialViewController implements Initializable, I18nable {
 	 */
 	@FXML
 	private void onChangeLanguage(@Nullable ActionEvent actionEvent) {
-		if (this.langComboBox.getValue().equals(AvailableLanguage.EN.getLocale().getDisplayLanguage())) // english
-			ShareBook.changeMessagesBundle(new Locale("es"));
-		else if (this.langComboBox.getValue().equals(AvailableLanguage.ES.getLocale().getDisplayLanguage())) // spanish
-			ShareBook.changeMessagesBundle(new Locale("en"));
+		Optional<AvailableLanguage> selectedLang = Arrays.stream(AvailableLanguage.values())
+			.filter(lang -> lang.getLocale().getDisplayLanguage().equals(this.langComboBox.getValue()))
+			.findAny();
+
+		// this view (and every other open view) is re-rendered by the registry
+		if (selectedLang.isPresent())
+			ShareBook.changeMessagesBundle(selectedLang.get().getLocale());
 		else
 			System.err.println("This shouldn't be printed");
 		// TODO: log the abnormal execution
-
-		this.displayTextWithLang();
 	}
 
 	/**
 	 * Changes the text for the toggle register/login button
-	 * @param messagesBundle the bundle containing the messages to show
+	 * @param messages the table containing the messages to show
 	 */
-	private void changeToggleButtonText(@NotNull ResourceBundle messagesBundle) {
+	private void changeToggleButtonText(@NotNull MessageTable messages) {
 		String toggleButtonMessage = this.is_login_active
-			? messagesBundle.getString("toggle_register_btn")
-			: messagesBundle.getString("toggle_login_btn");
+			? messages.get(Message.TOGGLE_REGISTER_BTN)
+			: messages.get(Message.TOGGLE_LOGIN_BTN);
 		this.toggleLoginRegister.setText(toggleButtonMessage);
 	}
 
@@ -145,23 +150,16 @@ public class InitialViewController implements Initializable, I18nable {
 	 * Replaces the actions panel content
 	 * It changes the login for the register panel
 	 * or vice versa
-	 * @return true if the panel could be correctly loaded
+	 * The panels are parsed only once and then reused, see {@link ViewRegistry}
+	 * @throws IOException if the panel could not be loaded
 	 */
-	private boolean changeActionsPanelContent() {
-		String fxmlPath = "/resources/views/Login.fxml";
+	private void changeActionsPanelContent() throws IOException {
+		String fxmlPath = ViewRegistry.LOGIN_VIEW;
 		if (this.is_login_active)
-			fxmlPath = "/resources/views/Register.fxml";
+			fxmlPath = ViewRegistry.REGISTER_VIEW;
 
-		Parent panel;
-		try {
-			panel = FXMLLoader.load(this.getClass().getResource(fxmlPath));
-		} catch (IOException e) {
-			// TODO: handle the exception
-			return false;
-		}
+		Parent panel = ViewRegistry.get(fxmlPath).getRoot();
 		this.mainScrollPane.setContent(panel);
-
-		return true;
 	}
 
 	/**
@@ -169,11 +167,11 @@ public class InitialViewController implements Initializable, I18nable {
 	 */
 	@Override
 	public void displayTextWithLang() {
-		ResourceBundle messagesBundle = ShareBook.getMessagesBundle();
+		MessageTable messages = ShareBook.getMessages();
 
-		this.whatIsSB.setText(messagesBundle.getString("what_is_sb"));
-		this.whatIsSBDesc.setText(messagesBundle.getString("what_is_sb_desc"));
-		this.changeToggleButtonText(messagesBundle);
+		this.whatIsSB.setText(messages.get(Message.WHAT_IS_SB));
+		this.whatIsSBDesc.setText(messages.get(Message.WHAT_IS_SB_DESC));
+		this.changeToggleButtonText(messages);
 	}
 
 	@Override
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core;
+
+import javafx.application.Platform;
+import org.fos.I18nable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the current language and the live {@link I18nable} views
+ * <p>
+ * When the language changes, the current {@link MessageTable} reference is swapped and every registered view
+ * re-renders its text in a single pass in the FX thread
+ * <p>
+ * The views are weakly referenced, so a view that is no longer used doesn't need to unregister
+ */
+public final class I18nRegistry {
+	// maps language code -> table, the tables are immutable so they are shared
+	private static final Map<String, MessageTable> tables = new ConcurrentHashMap<>();
+
+	private static final Set<I18nable> views = Collections.newSetFromMap(new WeakHashMap<>());
+
+	private static volatile MessageTable currentTable = getTable(Locale.ENGLISH);
+
+	private I18nRegistry() {
+	}
+
+	/**
+	 * @return the messages for the current language
+	 */
+	public static @NotNull MessageTable getMessages() {
+		return currentTable;
+	}
+
+	/**
+	 * Registers the view so its text is updated every time the language changes
+	 *
+	 * @param view the view
+	 */
+	public static void register(@NotNull I18nable view) {
+		synchronized (views) {
+			views.add(view);
+		}
+	}
+
+	/**
+	 * Changes the current language and re-renders all the registered views
+	 * <p>
+	 * The views are updated in the FX thread, if this method is not invoked from it the update is scheduled
+	 *
+	 * @param locale the new language
+	 */
+	public static void changeLanguage(@NotNull Locale locale) {
+		MessageTable table = getTable(locale);
+		if (table == currentTable)
+			return;
+
+		currentTable = table;
+
+		List<I18nable> liveViews;
+		synchronized (views) {
+			if (views.isEmpty())
+				return;
+			liveViews = new ArrayList<>(views);
+		}
+
+		Runnable renderAll = () -> liveViews.forEach(I18nable::displayTextWithLang);
+		if (Platform.isFxApplicationThread())
+			renderAll.run();
+		else
+			Platform.runLater(renderAll);
+	}
+
+	private static MessageTable getTable(@NotNull Locale locale) {
+		return tables.computeIfAbsent(locale.getLanguage(), language -> new MessageTable(locale));
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * The messages for a single language
+ * <p>
+ * The messages are stored in an array generated at build time from the messages_*.properties bundles
+ * so getting a message is just an array access
+ */
+public final class MessageTable {
+	@NotNull
+	private final Locale locale;
+
+	@NotNull
+	private final String[] messages;
+
+	MessageTable(@NotNull Locale locale) {
+		this.locale = locale;
+		this.messages = MessageTables.forLanguage(locale.getLanguage());
+	}
+
+	/**
+	 * @param message the message key
+	 * @return the message in the language of this table
+	 */
+	public @NotNull String get(@NotNull Message message) {
+		return this.messages[message.ordinal()];
+	}
+
+	public @NotNull Locale getLocale() {
+		return locale;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long it took (since the JVM started) to reach each startup phase, e. g. loading the config,
+ * parsing the initial view or the first paint of the window
+ * <p>
+ * The report is printed at the first paint if the app is started with -Dsharebook.startupTrace=true
+ */
+public final class StartupTimer {
+	// epoch millis when the JVM started
+	private static final long jvm_start = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+	// maps phase name -> millis since the JVM started, in the order they were reached
+	private static final Map<String, Long> marks = new LinkedHashMap<>();
+
+	private StartupTimer() {
+	}
+
+	/**
+	 * Records the given phase has been reached now. This method can be called from any thread
+	 *
+	 * @param phase the name of the phase
+	 */
+	public static void mark(@NotNull String phase) {
+		long elapsed = System.currentTimeMillis() - jvm_start;
+		synchronized (marks) {
+			marks.putIfAbsent(phase, elapsed);
+		}
+	}
+
+	/**
+	 * @param phase the name of the phase
+	 * @return millis since the JVM started until the phase was reached, or -1 if it has not been reached
+	 */
+	public static long get(@NotNull String phase) {
+		synchronized (marks) {
+			return marks.getOrDefault(phase, -1L);
+		}
+	}
+
+	/**
+	 * @return true if the report should be printed
+	 */
+	public static boolean isTraceEnabled() {
+		return Boolean.getBoolean("sharebook.startupTrace");
+	}
+
+	/**
+	 * @return the phases and the millis to reach each one, e. g. "Startup: main=85ms config=97ms first_paint=640ms"
+	 */
+	public static String report() {
+		StringBuilder report = new StringBuilder("Startup:");
+		synchronized (marks) {
+			marks.forEach((phase, elapsed) -> report.append(' ').append(phase).append('=').append(elapsed).append("ms"));
+		}
+		return report.toString();
+	}
+}
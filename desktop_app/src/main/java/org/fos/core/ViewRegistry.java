@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core;
+
+import javafx.fxml.FXMLLoader;
+import javafx.scene.Parent;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Parses the FXML views once and keeps them (and their controllers) so they can be reused
+ * <p>
+ * Parsing FXML is slow (reflection, CSS, creating every node), so instead of calling {@link FXMLLoader#load(URL)}
+ * each time a view is shown, use {@link #get(String)}. Views that are likely to be shown next can be
+ * parsed in a background thread with {@link #preload(String...)}, so they are ready when needed
+ * <p>
+ * Notice a {@link Parent} can only be in one place of the scene graph, so a cached view should be shown in
+ * a single container at a time (e. g. replacing the content of a panel)
+ */
+public final class ViewRegistry {
+	public static final String INITIAL_VIEW = "/resources/views/InitialView.fxml";
+	public static final String LOGIN_VIEW = "/resources/views/Login.fxml";
+	public static final String REGISTER_VIEW = "/resources/views/Register.fxml";
+
+	// maps the FXML path -> the (maybe still loading) view
+	private static final ConcurrentHashMap<String, CompletableFuture<LoadedView<?>>> views = new ConcurrentHashMap<>();
+
+	// the views are independent of each other, so a couple of them can be parsed at the same time
+	private static final ExecutorService preloader = Executors.newFixedThreadPool(2, runnable -> {
+		Thread thread = new Thread(runnable, "view-preloader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private ViewRegistry() {
+	}
+
+	/**
+	 * Gets the view for the given FXML
+	 * <p>
+	 * If the view is already cached it is returned immediately, if it is being preloaded this method waits for it,
+	 * otherwise it is parsed in the calling thread
+	 *
+	 * @param fxmlPath the path of the FXML resource, e. g. {@link #LOGIN_VIEW}
+	 * @param <C>      the type of the controller of the view
+	 * @return the loaded view
+	 * @throws IOException if the FXML could not be loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public static <C> LoadedView<C> get(@NotNull String fxmlPath) throws IOException {
+		CompletableFuture<LoadedView<?>> future = new CompletableFuture<>();
+		CompletableFuture<LoadedView<?>> existing = views.putIfAbsent(fxmlPath, future);
+
+		if (existing == null) {
+			load(fxmlPath, future);
+			existing = future;
+		}
+
+		try {
+			return (LoadedView<C>) existing.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + fxmlPath + " to load", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Could not load " + fxmlPath, e.getCause());
+		}
+	}
+
+	/**
+	 * Parses the given views in a background thread, if they are not cached already
+	 * <p>
+	 * Errors are not reported here, they will be thrown when the view is requested with {@link #get(String)}
+	 *
+	 * @param fxmlPaths the paths of the FXML resources
+	 */
+	public static void preload(@NotNull String... fxmlPaths) {
+		for (String fxmlPath : fxmlPaths) {
+			CompletableFuture<LoadedView<?>> future = new CompletableFuture<>();
+			if (views.putIfAbsent(fxmlPath, future) == null)
+				preloader.execute(() -> load(fxmlPath, future));
+		}
+	}
+
+	/**
+	 * Removes the view from the cache, so the next call to {@link #get(String)} will parse it again
+	 *
+	 * @param fxmlPath the path of the FXML resource
+	 */
+	public static void invalidate(@NotNull String fxmlPath) {
+		views.remove(fxmlPath);
+	}
+
+	/**
+	 * Parses the FXML and completes the future with the result
+	 * If the view could not be loaded it is removed from the cache, so it can be retried later
+	 */
+	private static void load(@NotNull String fxmlPath, @NotNull CompletableFuture<LoadedView<?>> future) {
+		try {
+			URL url = ViewRegistry.class.getResource(fxmlPath);
+			if (url == null)
+				throw new FileNotFoundException(fxmlPath + " was not found");
+
+			FXMLLoader loader = new FXMLLoader(url);
+			Parent root = loader.load();
+			future.complete(new LoadedView<>(root, loader.getController()));
+		} catch (IOException | RuntimeException e) {
+			views.remove(fxmlPath, future);
+			future.completeExceptionally(e instanceof UncheckedIOException ? e.getCause() : e);
+		}
+	}
+
+	/**
+	 * The root node of a parsed view and its controller
+	 *
+	 * @param <C> the type of the controller
+	 */
+	public static class LoadedView<C> {
+		@NotNull
+		private final Parent root;
+
+		private final C controller;
+
+		LoadedView(@NotNull Parent root, C controller) {
+			this.root = root;
+			this.controller = controller;
+		}
+
+		public @NotNull Parent getRoot() {
+			return root;
+		}
+
+		public C getController() {
+			return controller;
+		}
+	}
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.fos.core.AvailableLanguage;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory catalog of books and their reviews, with full-text search over titles, authors and review text
+ * <p>
+ * Books and reviews are stored in columns (one array per attribute) indexed by their id, instead of one object
+ * per book/review. That keeps millions of reviews compact and cache-friendly
+ * <p>
+ * Each book is a document in the {@link InvertedIndex} (title and author) and so is each review (its text).
+ * A search scores every matching document with BM25 and each book gets the best score among its documents
+ * <p>
+ * Any number of threads can search at the same time, changes are exclusive
+ */
+public class BookCatalog {
+	private static final int INITIAL_CAPACITY = 1_024;
+
+	// rating values go from 1 to MAX_RATING stars
+	public static final int MAX_RATING = 5;
+
+	@NotNull
+	private final ReentrantReadWriteLock lock;
+
+	@NotNull
+	private final InvertedIndex index;
+
+	// each thread searching gets its own scores arrays
+	@NotNull
+	private final ThreadLocal<InvertedIndex.Scratch> scratch;
+
+	// book columns, indexed by book id
+	@NotNull
+	private long[] isbns;
+	@NotNull
+	private String[] titles;
+	@NotNull
+	private String[] authors;
+	private int n_books;
+
+	// review columns, indexed by review id
+	@NotNull
+	private int[] reviewBooks;
+	@NotNull
+	private byte[] reviewRatings;
+	@NotNull
+	private String[] reviewTexts;
+	// index document of each review
+	@NotNull
+	private int[] reviewDocs;
+	private int n_reviews;
+
+	// maps index document id -> book id, or -1 if the document was deleted
+	@NotNull
+	private int[] docBooks;
+
+	@NotNull
+	private final RatingAggregates ratings;
+
+	// maps ISBN -> id of the first book added with it
+	@NotNull
+	private final LongIntHashMap isbnIndex;
+
+	/**
+	 * @param language the language used to split the text in terms (stop words, plurals)
+	 */
+	public BookCatalog(@NotNull AvailableLanguage language) {
+		this.lock = new ReentrantReadWriteLock();
+		this.index = new InvertedIndex(new Tokenizer(language));
+		this.scratch = ThreadLocal.withInitial(InvertedIndex.Scratch::new);
+
+		this.isbns = new long[INITIAL_CAPACITY];
+		this.titles = new String[INITIAL_CAPACITY];
+		this.authors = new String[INITIAL_CAPACITY];
+
+		this.reviewBooks = new int[INITIAL_CAPACITY];
+		this.reviewRatings = new byte[INITIAL_CAPACITY];
+		this.reviewTexts = new String[INITIAL_CAPACITY];
+		this.reviewDocs = new int[INITIAL_CAPACITY];
+
+		this.docBooks = new int[INITIAL_CAPACITY];
+		this.isbnIndex = new LongIntHashMap();
+		this.ratings = new RatingAggregates();
+	}
+
+	/**
+	 * Adds a new book to the catalog
+	 *
+	 * @param isbn   the ISBN-13 of the book as a number, or 0 if unknown
+	 * @param title  the title
+	 * @param author the author(s)
+	 * @return the id of the new book
+	 */
+	public int addBook(long isbn, @NotNull String title, @NotNull String author) {
+		this.lock.writeLock().lock();
+		try {
+			return this.insertBook(isbn, title, author);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the books whose ISBN is not in the catalog yet, all of them are added with a single lock acquisition
+	 * <p>
+	 * Books without ISBN (0) are always added
+	 *
+	 * @param records the books to add
+	 * @return the number of books added, the rest were duplicates
+	 */
+	int addBooks(@NotNull Iterable<BookRecord> records) {
+		this.lock.writeLock().lock();
+		try {
+			int added = 0;
+			for (BookRecord record : records) {
+				if (record.isbn != 0 && this.isbnIndex.get(record.isbn) >= 0)
+					continue;
+				this.insertBook(record.isbn, record.title, record.author);
+				++added;
+			}
+			return added;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private int insertBook(long isbn, @NotNull String title, @NotNull String author) {
+		int book_id = this.n_books++;
+		if (book_id == this.isbns.length) {
+			this.isbns = Arrays.copyOf(this.isbns, book_id * 2);
+			this.titles = Arrays.copyOf(this.titles, book_id * 2);
+			this.authors = Arrays.copyOf(this.authors, book_id * 2);
+		}
+		this.isbns[book_id] = isbn;
+		this.titles[book_id] = title;
+		this.authors[book_id] = author;
+		if (isbn != 0)
+			this.isbnIndex.putIfAbsent(isbn, book_id);
+
+		// the title is added twice, so it weights more than the review text
+		this.mapDocument(this.index.addDocument(title, title, author), book_id);
+
+		return book_id;
+	}
+
+	/**
+	 * @param isbn the ISBN-13 as a number
+	 * @return the id of the (first) book with the ISBN or -1 if there is none
+	 */
+	public int findByIsbn(long isbn) {
+		if (isbn == 0)
+			return -1;
+
+		this.lock.readLock().lock();
+		try {
+			return this.isbnIndex.get(isbn);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a new review for a book
+	 *
+	 * @param book_id the id of the reviewed book
+	 * @param rating  the rating, from 1 to {@link #MAX_RATING}
+	 * @param text    the review text
+	 * @return the id of the new review
+	 * @throws IllegalArgumentException if the book doesn't exist or the rating is out of range
+	 */
+	public int addReview(int book_id, int rating, @NotNull String text) {
+		checkRating(rating);
+
+		this.lock.writeLock().lock();
+		try {
+			this.checkBook(book_id);
+
+			int review_id = this.n_reviews++;
+			if (review_id == this.reviewBooks.length) {
+				this.reviewBooks = Arrays.copyOf(this.reviewBooks, review_id * 2);
+				this.reviewRatings = Arrays.copyOf(this.reviewRatings, review_id * 2);
+				this.reviewTexts = Arrays.copyOf(this.reviewTexts, review_id * 2);
+				this.reviewDocs = Arrays.copyOf(this.reviewDocs, review_id * 2);
+			}
+			this.reviewBooks[review_id] = book_id;
+			this.reviewRatings[review_id] = (byte) rating;
+			this.reviewTexts[review_id] = text;
+
+			int doc_id = this.index.addDocument(text);
+			this.mapDocument(doc_id, book_id);
+			this.reviewDocs[review_id] = doc_id;
+
+			this.ratings.add(book_id, rating);
+
+			return review_id;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Changes the rating and text of a review
+	 * <p>
+	 * Indexed documents are immutable, so if the text changed the review is indexed again as a new document
+	 * and the old one is ignored by the searches
+	 *
+	 * @param review_id the id of the review
+	 * @param rating    the new rating, from 1 to {@link #MAX_RATING}
+	 * @param text      the new text
+	 * @throws IllegalArgumentException if the review doesn't exist, was deleted or the rating is out of range
+	 */
+	public void editReview(int review_id, int rating, @NotNull String text) {
+		checkRating(rating);
+
+		this.lock.writeLock().lock();
+		try {
+			this.checkLiveReview(review_id);
+
+			int book_id = this.reviewBooks[review_id];
+			this.ratings.edit(book_id, this.reviewRatings[review_id], rating);
+			this.reviewRatings[review_id] = (byte) rating;
+
+			if (!text.equals(this.reviewTexts[review_id])) {
+				this.docBooks[this.reviewDocs[review_id]] = -1;
+				int doc_id = this.index.addDocument(text);
+				this.mapDocument(doc_id, book_id);
+				this.reviewDocs[review_id] = doc_id;
+				this.reviewTexts[review_id] = text;
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Deletes a review, it won't count in the ratings nor match searches anymore
+	 * <p>
+	 * The review id is not reused
+	 *
+	 * @param review_id the id of the review
+	 * @throws IllegalArgumentException if the review doesn't exist or was already deleted
+	 */
+	public void deleteReview(int review_id) {
+		this.lock.writeLock().lock();
+		try {
+			this.checkLiveReview(review_id);
+
+			this.ratings.remove(this.reviewBooks[review_id], this.reviewRatings[review_id]);
+			this.reviewRatings[review_id] = 0;
+			this.docBooks[this.reviewDocs[review_id]] = -1;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The aggregates are updated with every review change and can be read without blocking
+	 * the catalog, see {@link RatingAggregates}
+	 *
+	 * @return the rating aggregates of the books in this catalog
+	 */
+	public @NotNull RatingAggregates getRatings() {
+		return this.ratings;
+	}
+
+	private void mapDocument(int doc_id, int book_id) {
+		if (doc_id == this.docBooks.length)
+			this.docBooks = Arrays.copyOf(this.docBooks, doc_id * 2);
+		this.docBooks[doc_id] = book_id;
+	}
+
+	/**
+	 * Searches the books matching the query in their title, author or reviews
+	 *
+	 * @param query the query, e. g. "cien años de soledad"
+	 * @param limit the max number of results
+	 * @return the matching books sorted by relevance, the most relevant first
+	 */
+	public List<SearchResult> search(@NotNull String query, int limit) {
+		if (limit <= 0)
+			return Collections.emptyList();
+
+		InvertedIndex.Scratch scratch = this.scratch.get();
+		this.lock.readLock().lock();
+		try {
+			int n_touched = this.index.score(query, scratch);
+			if (n_touched == 0)
+				return Collections.emptyList();
+
+			// a book may match in many documents (its own and its reviews), it gets the best score among them
+			scratch.ensureBookCapacity(this.n_books);
+			float[] bookScores = scratch.bookScores;
+			int[] touchedBooks = scratch.touchedBooks;
+			int n_books_touched = 0;
+
+			for (int i = 0; i < n_touched; ++i) {
+				int doc = scratch.touched[i];
+				int book = this.docBooks[doc];
+				if (book < 0)
+					continue; // deleted review
+				if (bookScores[book] == 0)
+					touchedBooks[n_books_touched++] = book;
+				bookScores[book] = Math.max(bookScores[book], scratch.scores[doc]);
+			}
+			scratch.reset(n_touched);
+
+			List<SearchResult> results = this.topBooks(scratch, n_books_touched, limit);
+			scratch.resetBooks(n_books_touched);
+
+			return results;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Selects the best scored books with a min-heap of size limit, so only the results are sorted
+	 * and not every matching book
+	 */
+	private List<SearchResult> topBooks(@NotNull InvertedIndex.Scratch scratch, int n_books_touched, int limit) {
+		int capacity = Math.min(limit, n_books_touched);
+		int[] heapBooks = new int[capacity];
+		float[] heapScores = new float[capacity];
+		int heap_size = 0;
+
+		for (int i = 0; i < n_books_touched; ++i) {
+			int book = scratch.touchedBooks[i];
+			float score = scratch.bookScores[book];
+
+			if (heap_size < capacity) {
+				// sift up
+				int pos = heap_size++;
+				while (pos > 0 && heapScores[(pos - 1) / 2] > score) {
+					heapBooks[pos] = heapBooks[(pos - 1) / 2];
+					heapScores[pos] = heapScores[(pos - 1) / 2];
+					pos = (pos - 1) / 2;
+				}
+				heapBooks[pos] = book;
+				heapScores[pos] = score;
+			} else if (score > heapScores[0]) {
+				// replace the worst result and sift down
+				int pos = 0;
+				while (true) {
+					int child = 2 * pos + 1;
+					if (child >= heap_size)
+						break;
+					if (child + 1 < heap_size && heapScores[child + 1] < heapScores[child])
+						++child;
+					if (heapScores[child] >= score)
+						break;
+					heapBooks[pos] = heapBooks[child];
+					heapScores[pos] = heapScores[child];
+					pos = child;
+				}
+				heapBooks[pos] = book;
+				heapScores[pos] = score;
+			}
+		}
+
+		List<SearchResult> results = new ArrayList<>(heap_size);
+		for (int i = 0; i < heap_size; ++i) {
+			int book = heapBooks[i];
+			results.add(new SearchResult(book, heapScores[i], this.isbns[book], this.titles[book], this.authors[book]));
+		}
+		results.sort((a, b) -> Float.compare(b.getScore(), a.getScore()));
+
+		return results;
+	}
+
+	/**
+	 * @param book_id the id of the book
+	 * @return the title of the book
+	 */
+	public @NotNull String getTitle(int book_id) {
+		this.lock.readLock().lock();
+		try {
+			this.checkBook(book_id);
+			return this.titles[book_id];
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param book_id the id of the book
+	 * @return the author(s) of the book
+	 */
+	public @NotNull String getAuthor(int book_id) {
+		this.lock.readLock().lock();
+		try {
+			this.checkBook(book_id);
+			return this.authors[book_id];
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param book_id the id of the book
+	 * @return the ISBN-13 of the book, or 0 if unknown
+	 */
+	public long getIsbn(int book_id) {
+		this.lock.readLock().lock();
+		try {
+			this.checkBook(book_id);
+			return this.isbns[book_id];
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param review_id the id of the review
+	 * @return the text of the review
+	 */
+	public @NotNull String getReviewText(int review_id) {
+		this.lock.readLock().lock();
+		try {
+			this.checkReview(review_id);
+			return this.reviewTexts[review_id];
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param review_id the id of the review
+	 * @return the rating of the review, from 1 to {@link #MAX_RATING}, or 0 if the review was deleted
+	 */
+	public int getReviewRating(int review_id) {
+		this.lock.readLock().lock();
+		try {
+			this.checkReview(review_id);
+			return this.reviewRatings[review_id];
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	private void checkBook(int book_id) {
+		if (book_id < 0 || book_id >= this.n_books)
+			throw new IllegalArgumentException("There is no book with id " + book_id);
+	}
+
+	private void checkReview(int review_id) {
+		if (review_id < 0 || review_id >= this.n_reviews)
+			throw new IllegalArgumentException("There is no review with id " + review_id);
+	}
+
+	private void checkLiveReview(int review_id) {
+		this.checkReview(review_id);
+		if (this.reviewRatings[review_id] == 0)
+			throw new IllegalArgumentException("The review " + review_id + " was deleted");
+	}
+
+	private static void checkRating(int rating) {
+		if (rating < 1 || rating > MAX_RATING)
+			throw new IllegalArgumentException("Rating should be between 1 and " + MAX_RATING + ", got " + rating);
+	}
+
+	public int getBookCount() {
+		this.lock.readLock().lock();
+		try {
+			return this.n_books;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public int getReviewCount() {
+		this.lock.readLock().lock();
+		try {
+			return this.n_reviews;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+}
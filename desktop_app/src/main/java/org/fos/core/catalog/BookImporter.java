@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Imports big book datasets (CSV or JSON lines, several GB) into a {@link BookCatalog}
+ * <p>
+ * The file is memory-mapped in chunks that end at a line break. Each chunk is split recursively in slices
+ * that are parsed in parallel in a fork/join pool, and while a chunk is parsed the books of the previous one
+ * are added to the catalog. So at most two chunks are in memory, no matter how big the file is
+ * <p>
+ * Books are deduplicated by ISBN (ISBN-10 and ISBN-13 of the same book are the same), the first one is kept
+ */
+public class BookImporter {
+	static final int DEFAULT_CHUNK_SIZE = 32 * 1024 * 1024;
+
+	// slices smaller than this are parsed sequentially
+	static final int DEFAULT_SLICE_SIZE = 1024 * 1024;
+
+	@NotNull
+	private final BookCatalog catalog;
+
+	@NotNull
+	private final ForkJoinPool pool;
+
+	private final int chunk_size;
+	private final int slice_size;
+
+	public enum Format {
+		CSV,
+		JSON_LINES;
+
+		/**
+		 * @param file the dataset
+		 * @return the format according to the file extension (.csv or .jsonl, .ndjson, .json)
+		 * @throws IllegalArgumentException if the extension is unknown
+		 */
+		public static @NotNull Format fromPath(@NotNull Path file) {
+			String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+			if (name.endsWith(".csv"))
+				return CSV;
+			if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json"))
+				return JSON_LINES;
+			throw new IllegalArgumentException("Unknown dataset format: " + name);
+		}
+	}
+
+	/**
+	 * Creates an importer that parses in the common fork/join pool
+	 *
+	 * @param catalog the catalog where the books will be added
+	 */
+	public BookImporter(@NotNull BookCatalog catalog) {
+		this(catalog, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE, DEFAULT_SLICE_SIZE);
+	}
+
+	BookImporter(@NotNull BookCatalog catalog, @NotNull ForkJoinPool pool, int chunk_size, int slice_size) {
+		this.catalog = catalog;
+		this.pool = pool;
+		this.chunk_size = chunk_size;
+		this.slice_size = slice_size;
+	}
+
+	/**
+	 * Imports the file, the format is deduced from its extension
+	 * <p>
+	 * This method blocks until the whole file is imported, so it should not be called from the FX thread
+	 *
+	 * @param file the dataset
+	 * @return the final progress with the import statistics
+	 * @throws IOException if the file could not be read or its format is invalid
+	 */
+	public @NotNull ImportProgress importFile(@NotNull Path file) throws IOException {
+		ImportProgress progress = new ImportProgress();
+		this.importFile(file, Format.fromPath(file), progress);
+		return progress;
+	}
+
+	/**
+	 * Imports the file
+	 * <p>
+	 * This method blocks until the whole file is imported, so it should not be called from the FX thread.
+	 * Other threads may poll or cancel the import through the given progress
+	 *
+	 * @param file     the dataset
+	 * @param format   the format of the dataset
+	 * @param progress it will be updated as the import progresses
+	 * @throws IOException if the file could not be read or its format is invalid
+	 */
+	public void importFile(@NotNull Path file, @NotNull Format format, @NotNull ImportProgress progress) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			progress.start(size);
+
+			long position = this.skipByteOrderMark(channel);
+			RecordParser parser;
+			if (format == Format.CSV) {
+				// the header is the first line
+				MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(this.chunk_size, size - position));
+				int header_end = indexOf(chunk, 0, chunk.limit(), (byte) '\n');
+				if (header_end < 0 && position + chunk.limit() < size)
+					throw new IOException("The CSV header is longer than " + this.chunk_size + " bytes");
+				if (header_end < 0)
+					header_end = chunk.limit();
+
+				parser = new CsvRecordParser(decodeLine(chunk, 0, header_end));
+				position += Math.min(header_end + 1, chunk.limit());
+			} else {
+				parser = new JsonLinesRecordParser();
+			}
+
+			// parse the next chunk while the books of the previous one are added to the catalog
+			ForkJoinTask<List<BookRecord>> pending = null;
+			long pending_end = position;
+
+			while (position < size && !progress.isCancelled()) {
+				int length = (int) Math.min(this.chunk_size, size - position);
+				MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+				// cut the chunk after the last line break, the incomplete line goes in the next chunk
+				int end = length;
+				if (position + length < size) {
+					end = lastIndexOf(chunk, length, (byte) '\n') + 1;
+					if (end == 0)
+						throw new IOException("Line at byte " + position + " is longer than " + this.chunk_size + " bytes");
+				}
+
+				ForkJoinTask<List<BookRecord>> next = this.pool.submit(new ParseTask(chunk, 0, end, parser, progress));
+				if (pending != null)
+					this.addToCatalog(pending.join(), pending_end, progress);
+
+				pending = next;
+				position += end;
+				pending_end = position;
+			}
+
+			if (pending != null)
+				this.addToCatalog(pending.join(), pending_end, progress);
+		} finally {
+			progress.finish();
+		}
+	}
+
+	private void addToCatalog(@NotNull List<BookRecord> records, long bytes_done, @NotNull ImportProgress progress) {
+		progress.addBooksAdded(this.catalog.addBooks(records));
+		progress.setBytesDone(bytes_done);
+	}
+
+	/**
+	 * @return the position after the UTF-8 byte order mark, or 0 if the file doesn't have it
+	 */
+	private long skipByteOrderMark(@NotNull FileChannel channel) throws IOException {
+		ByteBuffer bom = ByteBuffer.allocate(3);
+		while (bom.hasRemaining())
+			if (channel.read(bom, bom.position()) <= 0)
+				break;
+
+		if (bom.position() == 3 && (bom.get(0) & 0xFF) == 0xEF && (bom.get(1) & 0xFF) == 0xBB && (bom.get(2) & 0xFF) == 0xBF)
+			return 3;
+		return 0;
+	}
+
+	private static int indexOf(@NotNull ByteBuffer buffer, int from, int to, byte b) {
+		for (int i = from; i < to; ++i)
+			if (buffer.get(i) == b)
+				return i;
+		return -1;
+	}
+
+	private static int lastIndexOf(@NotNull ByteBuffer buffer, int to, byte b) {
+		for (int i = to - 1; i >= 0; --i)
+			if (buffer.get(i) == b)
+				return i;
+		return -1;
+	}
+
+	private static @NotNull String decodeLine(@NotNull ByteBuffer buffer, int from, int to) {
+		if (to > from && buffer.get(to - 1) == '\r')
+			--to;
+
+		byte[] bytes = new byte[to - from];
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(from);
+		slice.get(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parses the lines in [from, to) of a chunk, splitting the range in halves (at a line break)
+	 * until it is smaller than the slice size
+	 * <p>
+	 * The result keeps the order of the file, so the first book with an ISBN is always the one kept
+	 */
+	private class ParseTask extends RecursiveTask<List<BookRecord>> {
+		@NotNull
+		private final ByteBuffer chunk;
+		private final int from;
+		private final int to;
+		@NotNull
+		private final RecordParser parser;
+		@NotNull
+		private final ImportProgress progress;
+
+		ParseTask(@NotNull ByteBuffer chunk, int from, int to, @NotNull RecordParser parser, @NotNull ImportProgress progress) {
+			this.chunk = chunk;
+			this.from = from;
+			this.to = to;
+			this.parser = parser;
+			this.progress = progress;
+		}
+
+		@Override
+		protected List<BookRecord> compute() {
+			if (this.to - this.from > BookImporter.this.slice_size) {
+				int split = indexOf(this.chunk, this.from + (this.to - this.from) / 2, this.to, (byte) '\n');
+				if (split >= 0) {
+					ParseTask left = new ParseTask(this.chunk, this.from, split + 1, this.parser, this.progress);
+					ParseTask right = new ParseTask(this.chunk, split + 1, this.to, this.parser, this.progress);
+					left.fork();
+					List<BookRecord> rightRecords = right.compute();
+					List<BookRecord> records = left.join();
+
+					records.addAll(rightRecords);
+					return records;
+				}
+			}
+
+			return this.parseSlice();
+		}
+
+		private List<BookRecord> parseSlice() {
+			// copy the slice to the heap once, so the lines are decoded from an array
+			byte[] bytes = new byte[this.to - this.from];
+			ByteBuffer slice = this.chunk.duplicate();
+			slice.position(this.from);
+			slice.get(bytes);
+
+			List<BookRecord> records = new ArrayList<>();
+			int n_lines = 0;
+			int n_malformed = 0;
+
+			int line_start = 0;
+			for (int i = 0; i <= bytes.length; ++i) {
+				if (i < bytes.length && bytes[i] != '\n')
+					continue;
+
+				int line_end = i > line_start && bytes[i - 1] == '\r' ? i - 1 : i;
+				if (line_end > line_start) {
+					++n_lines;
+					BookRecord record = this.parser.parse(new String(bytes, line_start, line_end - line_start, StandardCharsets.UTF_8));
+					if (record == null)
+						++n_malformed;
+					else
+						records.add(record);
+				}
+				line_start = i + 1;
+			}
+
+			this.progress.addRecordsRead(n_lines);
+			this.progress.addMalformedRecords(n_malformed);
+			return records;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A book read by the {@link BookImporter}, before it is added to the {@link BookCatalog}
+ */
+class BookRecord {
+	// the ISBN-13 as a number, or 0 if unknown
+	final long isbn;
+
+	@NotNull
+	final String title;
+
+	@NotNull
+	final String author;
+
+	BookRecord(long isbn, @NotNull String title, @NotNull String author) {
+		this.isbn = isbn;
+		this.title = title;
+		this.author = author;
+	}
+
+	/**
+	 * Parses an ISBN-10 or ISBN-13, ISBN-10 are converted to ISBN-13 so the same book has always the same number
+	 *
+	 * @param text the ISBN, it may contain hyphens or spaces, e. g. "0-306-40615-2"
+	 * @return the ISBN-13 as a number, or 0 if the text is not an ISBN
+	 */
+	static long parseIsbn(@Nullable String text) {
+		if (text == null)
+			return 0;
+
+		long value = 0;
+		int n_digits = 0;
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				++n_digits;
+			} else if ((c == 'X' || c == 'x') && n_digits == 9) {
+				++n_digits; // check digit of ISBN-10, it is recomputed below
+			} else if (c != '-' && c != ' ') {
+				return 0;
+			}
+			if (n_digits > 13)
+				return 0;
+		}
+
+		if (n_digits == 13)
+			return value;
+		if (n_digits != 10)
+			return 0;
+
+		// ISBN-10 -> 978 + first 9 digits + new check digit
+		long isbn = 978_000_000_000L + (text.indexOf('X') >= 0 || text.indexOf('x') >= 0 ? value : value / 10);
+		int sum = 0;
+		long digits = isbn;
+		for (int i = 0; i < 12; ++i, digits /= 10)
+			sum += (int) (digits % 10) * (i % 2 == 0 ? 3 : 1);
+
+		return isbn * 10 + (10 - sum % 10) % 10;
+	}
+}
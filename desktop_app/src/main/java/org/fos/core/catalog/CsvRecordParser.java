@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parses the lines of a CSV file (RFC 4180, comma separated and double quotes)
+ * <p>
+ * The columns are found by name in the header, e. g. the goodreads dump has
+ * bookID,title,authors,average_rating,isbn,isbn13,...
+ * <p>
+ * Quoted fields spanning several lines are not supported, those records are reported as malformed
+ */
+class CsvRecordParser implements RecordParser {
+	private final int title_column;
+	private final int author_column;
+	private final int isbn13_column;
+	private final int isbn_column;
+
+	// the parser only needs the fields up to this one
+	private final int last_column;
+
+	/**
+	 * @param header the first line of the file
+	 * @throws IOException if the header doesn't have a title column
+	 */
+	CsvRecordParser(@NotNull String header) throws IOException {
+		List<String> columns = split(header);
+		if (columns == null)
+			throw new IOException("Malformed CSV header: " + header);
+
+		int title = -1, author = -1, isbn13 = -1, isbn = -1;
+		for (int i = 0; i < columns.size(); ++i) {
+			switch (columns.get(i).trim().toLowerCase(Locale.ROOT)) {
+				case "title":
+					title = i;
+					break;
+				case "author":
+				case "authors":
+					author = i;
+					break;
+				case "isbn13":
+				case "isbn_13":
+					isbn13 = i;
+					break;
+				case "isbn":
+				case "isbn10":
+				case "isbn_10":
+					isbn = i;
+					break;
+			}
+		}
+
+		if (title < 0)
+			throw new IOException("The CSV header doesn't have a title column: " + header);
+
+		this.title_column = title;
+		this.author_column = author;
+		this.isbn13_column = isbn13;
+		this.isbn_column = isbn;
+		this.last_column = Math.max(Math.max(title, author), Math.max(isbn13, isbn));
+	}
+
+	@Override
+	public @Nullable BookRecord parse(@NotNull String line) {
+		List<String> fields = split(line);
+		if (fields == null || fields.size() <= this.last_column)
+			return null;
+
+		String title = fields.get(this.title_column).trim();
+		if (title.isEmpty())
+			return null;
+
+		long isbn = this.isbn13_column < 0 ? 0 : BookRecord.parseIsbn(fields.get(this.isbn13_column));
+		if (isbn == 0 && this.isbn_column >= 0)
+			isbn = BookRecord.parseIsbn(fields.get(this.isbn_column));
+
+		String author = this.author_column < 0 ? "" : fields.get(this.author_column).trim();
+
+		return new BookRecord(isbn, title, author);
+	}
+
+	/**
+	 * @return the fields of the line or null if a quote is not closed
+	 */
+	private static @Nullable List<String> split(@NotNull String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean in_quotes = false;
+
+		for (int i = 0; i < line.length(); ++i) {
+			char c = line.charAt(i);
+			if (in_quotes) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"'); // escaped quote
+					++i;
+				} else {
+					in_quotes = false;
+				}
+			} else if (c == '"') {
+				in_quotes = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+
+		if (in_quotes)
+			return null;
+
+		fields.add(field.toString());
+		return fields;
+	}
+}
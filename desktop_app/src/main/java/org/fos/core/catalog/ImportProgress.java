@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress and throughput of a {@link BookImporter} run
+ * <p>
+ * The importer updates it while it runs, so any thread (e. g. the FX thread with a timeline) can poll it
+ */
+public class ImportProgress {
+	private volatile long total_bytes;
+
+	// bytes of the file whose records were already added to the catalog
+	private volatile long bytes_done;
+
+	private final LongAdder records_read = new LongAdder();
+	private final LongAdder malformed_records = new LongAdder();
+	private final LongAdder books_added = new LongAdder();
+
+	private volatile long start_nanos;
+	private volatile long end_nanos;
+
+	private volatile boolean is_cancelled;
+
+	void start(long total_bytes) {
+		this.total_bytes = total_bytes;
+		this.start_nanos = System.nanoTime();
+	}
+
+	void finish() {
+		this.end_nanos = System.nanoTime();
+	}
+
+	void setBytesDone(long bytes_done) {
+		this.bytes_done = bytes_done;
+	}
+
+	void addRecordsRead(long n) {
+		this.records_read.add(n);
+	}
+
+	void addMalformedRecords(long n) {
+		this.malformed_records.add(n);
+	}
+
+	void addBooksAdded(long n) {
+		this.books_added.add(n);
+	}
+
+	/**
+	 * Stops the import after the chunk being processed, books already added are kept in the catalog
+	 */
+	public void cancel() {
+		this.is_cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return this.is_cancelled;
+	}
+
+	public boolean isDone() {
+		return this.end_nanos != 0;
+	}
+
+	public long getTotalBytes() {
+		return this.total_bytes;
+	}
+
+	public long getBytesDone() {
+		return this.bytes_done;
+	}
+
+	/**
+	 * @return the progress from 0 to 1, suitable for a progress bar
+	 */
+	public double getFraction() {
+		long total = this.total_bytes;
+		return total == 0 ? (this.isDone() ? 1 : 0) : (double) this.bytes_done / total;
+	}
+
+	/**
+	 * @return the number of non-empty lines read, including malformed lines and duplicated books
+	 */
+	public long getRecordsRead() {
+		return this.records_read.sum();
+	}
+
+	public long getMalformedRecords() {
+		return this.malformed_records.sum();
+	}
+
+	public long getBooksAdded() {
+		return this.books_added.sum();
+	}
+
+	/**
+	 * @return the number of valid records not added because there was a book with the same ISBN
+	 */
+	public long getDuplicates() {
+		return Math.max(0, this.getRecordsRead() - this.getMalformedRecords() - this.getBooksAdded());
+	}
+
+	public long getElapsedMillis() {
+		if (this.start_nanos == 0)
+			return 0;
+		long end = this.isDone() ? this.end_nanos : System.nanoTime();
+		return TimeUnit.NANOSECONDS.toMillis(end - this.start_nanos);
+	}
+
+	public double getMegabytesPerSecond() {
+		long elapsed = this.getElapsedMillis();
+		return elapsed == 0 ? 0 : this.bytes_done / 1_048_576.0 / (elapsed / 1_000.0);
+	}
+
+	public double getRecordsPerSecond() {
+		long elapsed = this.getElapsedMillis();
+		return elapsed == 0 ? 0 : this.getRecordsRead() / (elapsed / 1_000.0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"ImportProgress{%.1f%%, records=%d, added=%d, duplicates=%d, malformed=%d, %.1f MB/s, %.0f records/s}",
+			this.getFraction() * 100, this.getRecordsRead(), this.getBooksAdded(), this.getDuplicates(),
+			this.getMalformedRecords(), this.getMegabytesPerSecond(), this.getRecordsPerSecond()
+		);
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Inverted index with BM25 ranking
+ * <p>
+ * Each term maps to its postings: the ids of the documents containing it and how many times it appears in each one.
+ * Documents get consecutive ids and are never modified, so the postings are always sorted and are stored in
+ * growable primitive arrays instead of lists of objects
+ * <p>
+ * This class is not thread-safe, {@link BookCatalog} takes care of the synchronization
+ */
+class InvertedIndex {
+	// BM25 parameters, the usual values
+	private static final float K1 = 1.2f;
+	private static final float B = 0.75f;
+
+	private static final int INITIAL_CAPACITY = 1_024;
+
+	@NotNull
+	private final Tokenizer tokenizer;
+
+	// maps term -> postings for the term
+	@NotNull
+	private final HashMap<String, Postings> postings;
+
+	// number of terms in each document
+	@NotNull
+	private int[] docLengths;
+
+	private int n_docs;
+
+	private long total_length;
+
+	// reused while indexing a document, maps term -> frequency in the document
+	@NotNull
+	private final HashMap<String, int[]> docFrequencies;
+
+	InvertedIndex(@NotNull Tokenizer tokenizer) {
+		this.tokenizer = tokenizer;
+		this.postings = new HashMap<>(INITIAL_CAPACITY);
+		this.docLengths = new int[INITIAL_CAPACITY];
+		this.docFrequencies = new HashMap<>();
+	}
+
+	/**
+	 * Adds a new document to the index
+	 *
+	 * @param fields the text of the document, each field is tokenized independently
+	 * @return the id of the new document
+	 */
+	int addDocument(@NotNull String... fields) {
+		int doc_id = this.n_docs++;
+		if (doc_id == this.docLengths.length)
+			this.docLengths = Arrays.copyOf(this.docLengths, doc_id * 2);
+
+		int[] length = new int[1];
+		for (String field : fields)
+			this.tokenizer.tokenize(field, term -> {
+				++length[0];
+				int[] frequency = this.docFrequencies.get(term);
+				if (frequency == null)
+					this.docFrequencies.put(term, new int[]{1});
+				else
+					++frequency[0];
+			});
+
+		for (Map.Entry<String, int[]> entry : this.docFrequencies.entrySet())
+			this.postings.computeIfAbsent(entry.getKey(), term -> new Postings()).add(doc_id, entry.getValue()[0]);
+		this.docFrequencies.clear();
+
+		this.docLengths[doc_id] = length[0];
+		this.total_length += length[0];
+
+		return doc_id;
+	}
+
+	/**
+	 * Scores the documents matching any of the query terms with BM25
+	 *
+	 * @param query   the query text, it is tokenized like the documents
+	 * @param scratch arrays to accumulate the scores, they are reused between queries
+	 * @return the number of matched documents, their ids are in the first positions of {@link Scratch#touched}
+	 * and their scores in {@link Scratch#scores}
+	 */
+	int score(@NotNull String query, @NotNull Scratch scratch) {
+		if (this.n_docs == 0)
+			return 0;
+
+		Set<String> terms = scratch.terms;
+		terms.clear();
+		this.tokenizer.tokenize(query, scratch.addTerm);
+
+		scratch.ensureCapacity(this.n_docs);
+		float[] scores = scratch.scores;
+		int[] touched = scratch.touched;
+		int n_touched = 0;
+
+		float avg_length = (float) this.total_length / this.n_docs;
+		for (String term : terms) {
+			Postings termPostings = this.postings.get(term);
+			if (termPostings == null)
+				continue;
+
+			float idf = (float) Math.log(1 + (this.n_docs - termPostings.size + 0.5) / (termPostings.size + 0.5));
+			int[] docs = termPostings.docs;
+			int[] frequencies = termPostings.frequencies;
+
+			for (int i = 0; i < termPostings.size; ++i) {
+				int doc = docs[i];
+				int frequency = frequencies[i];
+				float norm = K1 * (1 - B + B * this.docLengths[doc] / avg_length);
+
+				if (scores[doc] == 0)
+					touched[n_touched++] = doc;
+				scores[doc] += idf * frequency * (K1 + 1) / (frequency + norm);
+			}
+		}
+
+		return n_touched;
+	}
+
+	int getDocumentCount() {
+		return this.n_docs;
+	}
+
+	/**
+	 * Growable arrays with the documents containing a term
+	 */
+	private static class Postings {
+		@NotNull
+		int[] docs = new int[2];
+		@NotNull
+		int[] frequencies = new int[2];
+		int size;
+
+		void add(int doc, int frequency) {
+			if (this.size == this.docs.length) {
+				this.docs = Arrays.copyOf(this.docs, this.size * 2);
+				this.frequencies = Arrays.copyOf(this.frequencies, this.size * 2);
+			}
+			this.docs[this.size] = doc;
+			this.frequencies[this.size] = frequency;
+			++this.size;
+		}
+	}
+
+	/**
+	 * Arrays used while scoring a query, they are as big as the number of documents
+	 * so they are reused instead of allocated in each query. The set of distinct query terms is reused too
+	 * <p>
+	 * After a query the caller should reset the touched scores with {@link #reset(int)}
+	 */
+	static class Scratch {
+		@NotNull
+		float[] scores = new float[0];
+		@NotNull
+		int[] touched = new int[0];
+
+		// distinct terms of the query, in order
+		@NotNull
+		final Set<String> terms = new LinkedHashSet<>();
+		@NotNull
+		final Consumer<String> addTerm = this.terms::add;
+
+		void ensureCapacity(int n_docs) {
+			if (this.scores.length < n_docs) {
+				int capacity = n_docs + n_docs / 2; // leave room for the documents added later
+				this.scores = Arrays.copyOf(this.scores, capacity);
+				this.touched = new int[capacity];
+			}
+		}
+
+		/**
+		 * Best score of each book, used by the {@link BookCatalog} to group the matching documents
+		 */
+		@NotNull
+		float[] bookScores = new float[0];
+		@NotNull
+		int[] touchedBooks = new int[0];
+
+		void ensureBookCapacity(int n_books) {
+			if (this.bookScores.length < n_books) {
+				int capacity = n_books + n_books / 2;
+				this.bookScores = Arrays.copyOf(this.bookScores, capacity);
+				this.touchedBooks = new int[capacity];
+			}
+		}
+
+		void resetBooks(int n_books_touched) {
+			for (int i = 0; i < n_books_touched; ++i)
+				this.bookScores[this.touchedBooks[i]] = 0;
+		}
+
+		/**
+		 * Clears the scores of the touched documents, this is cheaper than clearing the whole array
+		 *
+		 * @param n_touched the value returned by {@link InvertedIndex#score(String, Scratch)}
+		 */
+		void reset(int n_touched) {
+			for (int i = 0; i < n_touched; ++i)
+				this.scores[this.touched[i]] = 0;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parses the lines of a JSON lines file, each line is an object like
+ * {"isbn13": "9780307474728", "title": "Cien años de soledad", "authors": ["Gabriel García Márquez"]}
+ * <p>
+ * Only the top-level fields title, author(s) and isbn are read, everything else (nested objects included)
+ * is skipped without building it, so there is no need of a full JSON library
+ */
+class JsonLinesRecordParser implements RecordParser {
+	@Override
+	public @Nullable BookRecord parse(@NotNull String line) {
+		try {
+			return new Cursor(line).readBook();
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			return null; // malformed JSON
+		}
+	}
+
+	/**
+	 * Reads a single line, each method throws IllegalArgumentException if the text is not valid JSON
+	 */
+	private static class Cursor {
+		@NotNull
+		private final String text;
+		private int pos;
+
+		Cursor(@NotNull String text) {
+			this.text = text;
+		}
+
+		@Nullable BookRecord readBook() {
+			String title = null, author = "", isbn13 = null, isbn = null;
+
+			this.expect('{');
+			if (!this.consume('}')) {
+				do {
+					this.skipWhitespace();
+					String key = this.readString();
+					this.expect(':');
+
+					switch (key) {
+						case "title":
+							title = this.readText();
+							break;
+						case "author":
+						case "authors":
+						case "author_name":
+							String value = this.readText();
+							author = value == null ? "" : value;
+							break;
+						case "isbn13":
+						case "isbn_13":
+							isbn13 = this.readText();
+							break;
+						case "isbn":
+						case "isbn10":
+						case "isbn_10":
+							isbn = this.readText();
+							break;
+						default:
+							this.skipValue();
+					}
+				} while (this.consume(','));
+				this.expect('}');
+			}
+
+			if (title == null || title.trim().isEmpty())
+				return null;
+
+			long isbn_value = BookRecord.parseIsbn(isbn13);
+			if (isbn_value == 0)
+				isbn_value = BookRecord.parseIsbn(isbn);
+
+			return new BookRecord(isbn_value, title.trim(), author.trim());
+		}
+
+		/**
+		 * Reads a string, number or an array of them (joined with ", ")
+		 *
+		 * @return the text or null for null, objects and booleans
+		 */
+		private @Nullable String readText() {
+			this.skipWhitespace();
+			char c = this.text.charAt(this.pos);
+			if (c == '"')
+				return this.readString();
+
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				int start = this.pos;
+				this.skipValue();
+				return this.text.substring(start, this.pos).trim();
+			}
+
+			if (c == '[') {
+				++this.pos;
+				StringBuilder joined = new StringBuilder();
+				if (!this.consume(']')) {
+					do {
+						this.skipWhitespace();
+						if (this.text.charAt(this.pos) == '"') {
+							if (joined.length() > 0)
+								joined.append(", ");
+							joined.append(this.readString());
+						} else {
+							this.skipValue();
+						}
+					} while (this.consume(','));
+					this.expect(']');
+				}
+				return joined.toString();
+			}
+
+			this.skipValue();
+			return null;
+		}
+
+		private @NotNull String readString() {
+			this.expect('"');
+			StringBuilder value = null;
+			int start = this.pos;
+
+			while (true) {
+				char c = this.text.charAt(this.pos++);
+				if (c == '"')
+					break;
+				if (c != '\\') {
+					if (value != null)
+						value.append(c);
+					continue;
+				}
+
+				// copy the string only when it has escapes
+				if (value == null)
+					value = new StringBuilder(this.text.substring(start, this.pos - 1));
+
+				char escaped = this.text.charAt(this.pos++);
+				switch (escaped) {
+					case 'n':
+						value.append('\n');
+						break;
+					case 't':
+						value.append('\t');
+						break;
+					case 'r':
+						value.append('\r');
+						break;
+					case 'b':
+						value.append('\b');
+						break;
+					case 'f':
+						value.append('\f');
+						break;
+					case 'u':
+						value.append((char) Integer.parseInt(this.text.substring(this.pos, this.pos + 4), 16));
+						this.pos += 4;
+						break;
+					default: // " \ /
+						value.append(escaped);
+				}
+			}
+
+			return value == null ? this.text.substring(start, this.pos - 1) : value.toString();
+		}
+
+		private void skipValue() {
+			this.skipWhitespace();
+			char c = this.text.charAt(this.pos);
+			if (c == '"') {
+				this.readString();
+			} else if (c == '{' || c == '[') {
+				char close = c == '{' ? '}' : ']';
+				++this.pos;
+				if (this.consume(close))
+					return;
+				do {
+					if (c == '{') {
+						this.skipWhitespace();
+						this.readString();
+						this.expect(':');
+					}
+					this.skipValue();
+				} while (this.consume(','));
+				this.expect(close);
+			} else {
+				// number, true, false or null
+				int start = this.pos;
+				while (this.pos < this.text.length() && ",}] \t".indexOf(this.text.charAt(this.pos)) < 0)
+					++this.pos;
+				if (start == this.pos)
+					throw new IllegalArgumentException("Expected a value at " + start);
+			}
+		}
+
+		private boolean consume(char c) {
+			this.skipWhitespace();
+			if (this.pos < this.text.length() && this.text.charAt(this.pos) == c) {
+				++this.pos;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(char c) {
+			if (!this.consume(c))
+				throw new IllegalArgumentException("Expected '" + c + "' at " + this.pos);
+		}
+
+		private void skipWhitespace() {
+			while (this.pos < this.text.length() && Character.isWhitespace(this.text.charAt(this.pos)))
+				++this.pos;
+		}
+	}
+}
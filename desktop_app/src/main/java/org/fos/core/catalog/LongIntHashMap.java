@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Hash map from long keys to int values with open addressing (linear probing)
+ * <p>
+ * Keys and values are stored in two primitive arrays, so there are no boxed Longs or entry objects
+ * Key 0 is reserved to mark empty slots, so it can't be stored
+ * <p>
+ * This class is not thread-safe
+ */
+class LongIntHashMap {
+	private static final int INITIAL_CAPACITY = 1_024; // must be a power of 2
+
+	// the map is resized when it is 2/3 full
+	private static final int MAX_LOAD_NUMERATOR = 2;
+	private static final int MAX_LOAD_DENOMINATOR = 3;
+
+	@NotNull
+	private long[] keys;
+	@NotNull
+	private int[] values;
+	private int size;
+
+	LongIntHashMap() {
+		this.keys = new long[INITIAL_CAPACITY];
+		this.values = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * @param key the key, must not be 0
+	 * @return the value for the key or -1 if it is not in the map
+	 */
+	int get(long key) {
+		int mask = this.keys.length - 1;
+		for (int slot = slot(key, mask); this.keys[slot] != 0; slot = (slot + 1) & mask)
+			if (this.keys[slot] == key)
+				return this.values[slot];
+		return -1;
+	}
+
+	/**
+	 * Associates the value with the key, only if the key is not in the map
+	 *
+	 * @param key   the key, must not be 0
+	 * @param value the value
+	 * @return true if the value was stored, false if the key was already in the map
+	 */
+	boolean putIfAbsent(long key, int value) {
+		if (key == 0)
+			throw new IllegalArgumentException("Key 0 is reserved");
+
+		if ((this.size + 1) * MAX_LOAD_DENOMINATOR > this.keys.length * MAX_LOAD_NUMERATOR)
+			this.resize();
+
+		int mask = this.keys.length - 1;
+		int slot = slot(key, mask);
+		for (; this.keys[slot] != 0; slot = (slot + 1) & mask)
+			if (this.keys[slot] == key)
+				return false;
+
+		this.keys[slot] = key;
+		this.values[slot] = value;
+		++this.size;
+		return true;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	private void resize() {
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.keys = new long[oldKeys.length * 2];
+		this.values = new int[oldKeys.length * 2];
+
+		int mask = this.keys.length - 1;
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] == 0)
+				continue;
+			int slot = slot(oldKeys[i], mask);
+			while (this.keys[slot] != 0)
+				slot = (slot + 1) & mask;
+			this.keys[slot] = oldKeys[i];
+			this.values[slot] = oldValues[i];
+		}
+	}
+
+	private static int slot(long key, int mask) {
+		// ISBNs are mostly consecutive numbers, mix the bits so they don't cluster
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Rating aggregates (number of reviews, sum of ratings and histogram) of every book
+ * <p>
+ * The aggregates are updated in O(1) each time a review is added, edited or deleted, so the UI never has to
+ * scan the reviews to show the average rating of a book
+ * <p>
+ * Values are kept in primitive arrays split in fixed-size pages, so adding books never moves the existing values.
+ * Each book is guarded by one of {@link #N_STRIPES} stamped locks: reads are optimistic (no lock is taken unless
+ * a write to the same stripe happens at the same time) and a read never sees a half-applied update, e. g. the
+ * count of a review but not its rating
+ */
+public class RatingAggregates {
+	// must be a power of 2
+	private static final int PAGE_SIZE = 1_024;
+	private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE);
+
+	// must be a power of 2
+	private static final int N_STRIPES = 64;
+
+	@NotNull
+	private final StampedLock[] stripes;
+
+	// pages are only appended, the array is replaced when it is full
+	@NotNull
+	private volatile Page[] pages;
+
+	public RatingAggregates() {
+		this.stripes = new StampedLock[N_STRIPES];
+		for (int i = 0; i < N_STRIPES; ++i)
+			this.stripes[i] = new StampedLock();
+		this.pages = new Page[0];
+	}
+
+	/**
+	 * Counts a new review
+	 *
+	 * @param book_id the reviewed book
+	 * @param rating  the rating of the review, from 1 to {@link BookCatalog#MAX_RATING}
+	 */
+	public void add(int book_id, int rating) {
+		checkRating(rating);
+		this.update(book_id, 0, rating);
+	}
+
+	/**
+	 * Changes the rating of a review already counted
+	 *
+	 * @param book_id    the reviewed book
+	 * @param old_rating the previous rating of the review
+	 * @param new_rating the new rating of the review
+	 */
+	public void edit(int book_id, int old_rating, int new_rating) {
+		checkRating(old_rating);
+		checkRating(new_rating);
+		if (old_rating != new_rating)
+			this.update(book_id, old_rating, new_rating);
+	}
+
+	/**
+	 * Stops counting a review
+	 *
+	 * @param book_id the reviewed book
+	 * @param rating  the rating the review had
+	 */
+	public void remove(int book_id, int rating) {
+		checkRating(rating);
+		this.update(book_id, rating, 0);
+	}
+
+	/**
+	 * Removes old_rating (if it is not 0) and adds new_rating (if it is not 0) as a single update
+	 */
+	private void update(int book_id, int old_rating, int new_rating) {
+		Page page = this.getOrCreatePage(book_id);
+		int offset = book_id & (PAGE_SIZE - 1);
+
+		StampedLock lock = this.stripes[book_id & (N_STRIPES - 1)];
+		long stamp = lock.writeLock();
+		try {
+			if (old_rating != 0) {
+				--page.counts[offset];
+				page.sums[offset] -= old_rating;
+				--page.histograms[offset * BookCatalog.MAX_RATING + old_rating - 1];
+			}
+			if (new_rating != 0) {
+				++page.counts[offset];
+				page.sums[offset] += new_rating;
+				++page.histograms[offset * BookCatalog.MAX_RATING + new_rating - 1];
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @param book_id the book
+	 * @return a consistent snapshot of the aggregates of the book, all zeros if it has no reviews
+	 */
+	public @NotNull RatingSummary get(int book_id) {
+		int[] histogram = new int[BookCatalog.MAX_RATING];
+		long sum = this.read(book_id, histogram);
+
+		int count = 0;
+		for (int n : histogram)
+			count += n;
+
+		return new RatingSummary(count, sum, histogram);
+	}
+
+	/**
+	 * Reads the aggregates of many books, e. g. the ones visible in a list, without allocating a summary per book
+	 *
+	 * @param book_ids the books
+	 * @param averages the average rating of each book is written here (0 if it has no reviews)
+	 * @param counts   the number of reviews of each book is written here
+	 */
+	public void getAverages(@NotNull int[] book_ids, @NotNull float[] averages, @NotNull int[] counts) {
+		for (int i = 0; i < book_ids.length; ++i) {
+			int book_id = book_ids[i];
+			Page page = this.getPage(book_id);
+			if (page == null) {
+				averages[i] = 0;
+				counts[i] = 0;
+				continue;
+			}
+
+			int offset = book_id & (PAGE_SIZE - 1);
+			StampedLock lock = this.stripes[book_id & (N_STRIPES - 1)];
+
+			long stamp = lock.tryOptimisticRead();
+			int count = page.counts[offset];
+			long sum = page.sums[offset];
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					count = page.counts[offset];
+					sum = page.sums[offset];
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+
+			counts[i] = count;
+			averages[i] = count == 0 ? 0 : (float) sum / count;
+		}
+	}
+
+	/**
+	 * Copies the histogram of the book and returns the sum of its ratings, both read atomically
+	 */
+	private long read(int book_id, @NotNull int[] histogram) {
+		Page page = this.getPage(book_id);
+		if (page == null) {
+			Arrays.fill(histogram, 0);
+			return 0;
+		}
+
+		int offset = book_id & (PAGE_SIZE - 1);
+		int from = offset * BookCatalog.MAX_RATING;
+		StampedLock lock = this.stripes[book_id & (N_STRIPES - 1)];
+
+		long stamp = lock.tryOptimisticRead();
+		System.arraycopy(page.histograms, from, histogram, 0, BookCatalog.MAX_RATING);
+		long sum = page.sums[offset];
+		if (lock.validate(stamp))
+			return sum;
+
+		// a write happened while reading, read again with the lock
+		stamp = lock.readLock();
+		try {
+			System.arraycopy(page.histograms, from, histogram, 0, BookCatalog.MAX_RATING);
+			return page.sums[offset];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private Page getPage(int book_id) {
+		Page[] pages = this.pages;
+		int page_index = book_id >>> PAGE_SHIFT;
+		return page_index < pages.length ? pages[page_index] : null;
+	}
+
+	private @NotNull Page getOrCreatePage(int book_id) {
+		if (book_id < 0)
+			throw new IllegalArgumentException("Invalid book id " + book_id);
+
+		Page page = this.getPage(book_id);
+		if (page != null)
+			return page;
+
+		synchronized (this) {
+			int page_index = book_id >>> PAGE_SHIFT;
+			Page[] pages = this.pages;
+			if (page_index >= pages.length) {
+				pages = Arrays.copyOf(pages, Math.max(page_index + 1, pages.length * 2));
+				for (int i = this.pages.length; i < pages.length; ++i)
+					pages[i] = new Page();
+				this.pages = pages;
+			}
+			return pages[page_index];
+		}
+	}
+
+	private static void checkRating(int rating) {
+		if (rating < 1 || rating > BookCatalog.MAX_RATING)
+			throw new IllegalArgumentException("Rating should be between 1 and " + BookCatalog.MAX_RATING + ", got " + rating);
+	}
+
+	/**
+	 * Aggregates of PAGE_SIZE consecutive books
+	 */
+	private static class Page {
+		@NotNull
+		final int[] counts = new int[PAGE_SIZE];
+		@NotNull
+		final long[] sums = new long[PAGE_SIZE];
+		// MAX_RATING values per book, the number of reviews with 1, 2, ... stars
+		@NotNull
+		final int[] histograms = new int[PAGE_SIZE * BookCatalog.MAX_RATING];
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Snapshot of the rating aggregates of a book, see {@link RatingAggregates}
+ */
+public class RatingSummary {
+	private final int count;
+
+	private final long sum;
+
+	// histogram[i] is the number of reviews with i + 1 stars
+	@NotNull
+	private final int[] histogram;
+
+	RatingSummary(int count, long sum, @NotNull int[] histogram) {
+		this.count = count;
+		this.sum = sum;
+		this.histogram = histogram;
+	}
+
+	/**
+	 * @return the number of reviews
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the average rating, or 0 if there are no reviews
+	 */
+	public float getAverage() {
+		return count == 0 ? 0 : (float) sum / count;
+	}
+
+	/**
+	 * @param rating the number of stars, from 1 to {@link BookCatalog#MAX_RATING}
+	 * @return the number of reviews with that rating
+	 */
+	public int getCount(int rating) {
+		return histogram[rating - 1];
+	}
+
+	@Override
+	public String toString() {
+		return "RatingSummary{" +
+			"count=" + count +
+			", average=" + getAverage() +
+			'}';
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A book matching a search in the {@link BookCatalog}
+ */
+public class SearchResult {
+	private final int book_id;
+
+	private final float score;
+
+	private final long isbn;
+
+	@NotNull
+	private final String title;
+
+	@NotNull
+	private final String author;
+
+	SearchResult(int book_id, float score, long isbn, @NotNull String title, @NotNull String author) {
+		this.book_id = book_id;
+		this.score = score;
+		this.isbn = isbn;
+		this.title = title;
+		this.author = author;
+	}
+
+	public int getBookId() {
+		return book_id;
+	}
+
+	/**
+	 * @return the relevance of the book for the query, only meaningful to compare results of the same query
+	 */
+	public float getScore() {
+		return score;
+	}
+
+	public long getIsbn() {
+		return isbn;
+	}
+
+	public @NotNull String getTitle() {
+		return title;
+	}
+
+	public @NotNull String getAuthor() {
+		return author;
+	}
+
+	@Override
+	public String toString() {
+		return "SearchResult{" +
+			"book_id=" + book_id +
+			", score=" + score +
+			", title='" + title + '\'' +
+			", author='" + author + '\'' +
+			'}';
+	}
+}
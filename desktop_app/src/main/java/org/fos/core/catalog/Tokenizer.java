@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.fos.core.AvailableLanguage;
+import org.jetbrains.annotations.NotNull;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Splits text in terms for the {@link InvertedIndex}
+ * <p>
+ * The text is lower-cased, accents are removed (so "reseña" and "resena" are the same term),
+ * stop words of the language are dropped and plurals are reduced to a common form
+ */
+public class Tokenizer {
+	private static final Set<String> ENGLISH_STOP_WORDS = new HashSet<>(Arrays.asList(
+		"a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into", "is", "it", "its",
+		"no", "not", "of", "on", "or", "such", "that", "the", "their", "then", "there", "these", "they",
+		"this", "to", "was", "will", "with", "i", "me", "my", "we", "you", "he", "she", "his", "her"
+	));
+
+	private static final Set<String> SPANISH_STOP_WORDS = new HashSet<>(Arrays.asList(
+		"a", "al", "con", "de", "del", "el", "en", "es", "esta", "este", "la", "las", "lo", "los", "mas", "me",
+		"mi", "muy", "no", "o", "para", "pero", "por", "que", "se", "si", "sin", "su", "sus", "un", "una",
+		"unos", "unas", "y", "ya", "yo", "tu", "le", "les", "como", "fue", "ha", "son"
+	));
+
+	// terms shorter than this are not reduced to the singular form
+	private static final int MIN_STEM_LENGTH = 4;
+
+	@NotNull
+	private final Set<String> stopWords;
+
+	private final boolean is_spanish;
+
+	public Tokenizer(@NotNull AvailableLanguage language) {
+		this.is_spanish = language == AvailableLanguage.ES;
+		this.stopWords = this.is_spanish ? SPANISH_STOP_WORDS : ENGLISH_STOP_WORDS;
+	}
+
+	/**
+	 * Splits the text and passes each term to the sink, in the order they appear
+	 *
+	 * @param text the text to split
+	 * @param sink the consumer of the terms
+	 */
+	public void tokenize(@NotNull String text, @NotNull Consumer<String> sink) {
+		String normalized = normalize(text);
+		int length = normalized.length();
+		int start = -1;
+
+		for (int i = 0; i <= length; ++i) {
+			boolean is_term_char = i < length && Character.isLetterOrDigit(normalized.charAt(i));
+			if (is_term_char && start < 0) {
+				start = i;
+			} else if (!is_term_char && start >= 0) {
+				String term = normalized.substring(start, i);
+				start = -1;
+
+				if (!this.stopWords.contains(term))
+					sink.accept(this.stem(term));
+			}
+		}
+	}
+
+	/**
+	 * Lower-cases the text and removes the accents
+	 * ASCII text (the most common case) is not decomposed
+	 */
+	private static String normalize(@NotNull String text) {
+		String lower = text.toLowerCase(Locale.ROOT); // the same tokens in every locale (e. g. "I" in Turkish)
+		for (int i = 0; i < lower.length(); ++i)
+			if (lower.charAt(i) > 0x7f)
+				return Normalizer.normalize(lower, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+
+		return lower;
+	}
+
+	/**
+	 * Reduces plural terms to the singular form, this works for most regular plurals
+	 * e. g. books -> book, stories -> story, libros -> libro, autores -> autor
+	 */
+	private String stem(@NotNull String term) {
+		int length = term.length();
+		if (length < MIN_STEM_LENGTH || term.charAt(length - 1) != 's' || term.charAt(length - 2) == 's')
+			return term;
+
+		if (this.is_spanish) {
+			// autores -> autor, pero "clases" -> "clase"
+			char before = term.charAt(length - 3);
+			boolean is_consonant_plural = term.charAt(length - 2) == 'e'
+				&& (before == 'r' || before == 'l' || before == 'n' || before == 'd' || before == 'z');
+			if (length > MIN_STEM_LENGTH && is_consonant_plural)
+				return term.substring(0, length - 2);
+		} else if (term.endsWith("ies")) {
+			return term.substring(0, length - 3) + 'y';
+		}
+
+		return term.substring(0, length - 1);
+	}
+}
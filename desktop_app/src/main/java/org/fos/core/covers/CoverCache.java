@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.covers;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Loads book covers without blocking the FX thread
+ * <p>
+ * A cover goes through three levels:
+ * <p>
+ * - memory: a LRU of decoded thumbnails bounded by the bytes of their pixels. The pixels are kept off-heap
+ * (in a direct buffer wrapped by a {@link PixelBuffer}) so a big budget doesn't grow the heap nor the GC pauses
+ * <p>
+ * - disk: the encoded bytes, so a cover is fetched from the {@link CoverSource} only once
+ * <p>
+ * - the {@link CoverSource}
+ * <p>
+ * Disk reads, fetches and decoding happen in a pool of loader threads. The most recent requests are served first,
+ * since those are the covers currently on the screen when the user scrolls. Requests for a cover already being
+ * loaded wait for that load instead of starting another one, and a load is cancelled if all its requests are
+ */
+public class CoverCache implements AutoCloseable {
+	private static final int BYTES_PER_PIXEL = 4;
+
+	@NotNull
+	private final Path dir;
+
+	@NotNull
+	private final CoverSource source;
+
+	private final int thumbnail_width;
+	private final int thumbnail_height;
+
+	@NotNull
+	private final WeightedLruCache<String, Image> memory;
+
+	// maps cover key -> the load in progress
+	@NotNull
+	private final ConcurrentHashMap<String, PendingLoad> pending;
+
+	@NotNull
+	private final ThreadPoolExecutor loader;
+
+	/**
+	 * @param dir              directory for the disk cache, it will be created if it doesn't exist
+	 * @param source           where the covers are fetched from when they are not in the disk cache
+	 * @param thumbnail_width  covers are scaled down (keeping the ratio) to fit this width
+	 * @param thumbnail_height and this height
+	 * @param memory_budget    max bytes of decoded pixels kept in memory
+	 * @throws IOException if the directory could not be created
+	 */
+	public CoverCache(
+		@NotNull Path dir,
+		@NotNull CoverSource source,
+		int thumbnail_width,
+		int thumbnail_height,
+		long memory_budget
+	) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.source = source;
+		this.thumbnail_width = thumbnail_width;
+		this.thumbnail_height = thumbnail_height;
+		this.memory = new WeightedLruCache<>(
+			memory_budget,
+			image -> (long) image.getWidth() * (long) image.getHeight() * BYTES_PER_PIXEL
+		);
+		this.pending = new ConcurrentHashMap<>();
+
+		int n_threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		AtomicInteger thread_count = new AtomicInteger();
+		this.loader = new ThreadPoolExecutor(
+			n_threads,
+			n_threads,
+			0,
+			TimeUnit.MILLISECONDS,
+			// LIFO, the last requested covers are the ones on the screen
+			new LinkedBlockingDeque<Runnable>() {
+				@Override
+				public boolean offer(Runnable runnable) {
+					return super.offerFirst(runnable);
+				}
+			},
+			runnable -> {
+				Thread thread = new Thread(runnable, "cover-loader-" + thread_count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		);
+	}
+
+	/**
+	 * @param key the key of the cover
+	 * @return the thumbnail if it is in memory, null otherwise
+	 */
+	public @Nullable Image getIfCached(@NotNull String key) {
+		return this.memory.get(key);
+	}
+
+	/**
+	 * Loads the thumbnail of a cover
+	 * <p>
+	 * If the cover is in memory the callback is called immediately in the caller thread,
+	 * otherwise it is called later in the FX thread. If the cover could not be loaded it is not called
+	 *
+	 * @param key      the key of the cover, e. g. the ISBN of the book
+	 * @param onLoaded receives the thumbnail
+	 * @return the request, cancel it if the cover is not needed anymore
+	 */
+	public @NotNull CoverRequest load(@NotNull String key, @NotNull Consumer<Image> onLoaded) {
+		CoverRequest request = new CoverRequest(this, key, onLoaded);
+
+		Image image = this.memory.get(key);
+		if (image != null) {
+			request.deliver(image);
+			return request;
+		}
+
+		PendingLoad[] created = new PendingLoad[1];
+		PendingLoad load = this.pending.compute(key, (k, current) -> {
+			if (current == null)
+				current = created[0] = new PendingLoad();
+			synchronized (current) {
+				current.requests.add(request);
+			}
+			return current;
+		});
+
+		// the task is submitted outside compute, it removes the load from the map when it finishes
+		if (created[0] != null) {
+			Future<?> future = this.loader.submit(() -> this.runLoad(key, load));
+			synchronized (load) {
+				load.future = future;
+				if (load.is_cancelled)
+					future.cancel(false);
+			}
+		}
+
+		return request;
+	}
+
+	void cancel(@NotNull CoverRequest request) {
+		this.pending.computeIfPresent(request.getKey(), (key, load) -> {
+			synchronized (load) {
+				load.requests.remove(request);
+				if (!load.requests.isEmpty())
+					return load;
+
+				// no one wants this cover anymore
+				load.is_cancelled = true;
+				if (load.future != null)
+					load.future.cancel(false);
+				return null;
+			}
+		});
+	}
+
+	private void runLoad(@NotNull String key, @NotNull PendingLoad load) {
+		Image image = this.memory.get(key); // it may have been loaded right before this load was requested
+		if (image == null) {
+			try {
+				image = this.decode(this.readEncoded(key));
+				this.memory.put(key, image);
+			} catch (IOException e) {
+				System.err.println("Could not load the cover " + key + ": " + e.getMessage());
+			}
+		}
+
+		// once removed no more requests are added to the load, they would start a new one
+		this.pending.remove(key, load);
+		if (image == null)
+			return;
+
+		List<CoverRequest> requests;
+		synchronized (load) {
+			requests = new ArrayList<>(load.requests);
+		}
+
+		Image loaded = image;
+		Platform.runLater(() -> {
+			for (CoverRequest request : requests)
+				request.deliver(loaded);
+		});
+	}
+
+	/**
+	 * @return the encoded image, from the disk cache or from the source
+	 */
+	private byte[] readEncoded(@NotNull String key) throws IOException {
+		Path file = this.dir.resolve(fileName(key));
+		if (Files.exists(file))
+			return Files.readAllBytes(file);
+
+		byte[] encoded = this.source.fetch(key);
+
+		// write to a temp file and rename it, so a half-written file is never read
+		Path tmp = Files.createTempFile(this.dir, "cover", ".tmp");
+		try {
+			Files.write(tmp, encoded);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp);
+			e.printStackTrace(); // the cover can still be shown, it will be fetched again next time
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * Decodes and scales down the image, then copies its pixels off-heap
+	 */
+	private @NotNull Image decode(byte[] encoded) throws IOException {
+		Image decoded = new Image(new ByteArrayInputStream(encoded), this.thumbnail_width, this.thumbnail_height, true, true);
+		if (decoded.isError())
+			throw new IOException("Invalid image", decoded.getException());
+
+		int width = (int) decoded.getWidth();
+		int height = (int) decoded.getHeight();
+		IntBuffer pixels = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL)
+			.order(ByteOrder.nativeOrder())
+			.asIntBuffer();
+		decoded.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), pixels, width);
+
+		return new WritableImage(new PixelBuffer<>(width, height, pixels, PixelFormat.getIntArgbPreInstance()));
+	}
+
+	private static @NotNull String fileName(@NotNull String key) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder(hash.length * 2 + 4);
+			for (byte b : hash)
+				name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return name.append(".img").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JVM has SHA-1
+		}
+	}
+
+	/**
+	 * @return the bytes of the decoded thumbnails in memory
+	 */
+	public long getMemoryUsed() {
+		return this.memory.getWeight();
+	}
+
+	/**
+	 * @return the number of decoded thumbnails in memory
+	 */
+	public int getCachedCount() {
+		return this.memory.size();
+	}
+
+	/**
+	 * @return the number of covers being loaded or waiting to be loaded
+	 */
+	public int getPendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Stops the loader threads, pending requests won't be completed
+	 */
+	@Override
+	public void close() {
+		this.loader.shutdownNow();
+		this.pending.clear();
+	}
+
+	/**
+	 * A cover being loaded and the requests waiting for it
+	 */
+	private static class PendingLoad {
+		@NotNull
+		final List<CoverRequest> requests = new ArrayList<>(1);
+
+		// guarded by the load itself
+		Future<?> future;
+		boolean is_cancelled;
+	}
+}
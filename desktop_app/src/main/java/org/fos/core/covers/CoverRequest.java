@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.covers;
+
+import javafx.scene.image.Image;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Consumer;
+
+/**
+ * A pending request for a cover, see {@link CoverCache#load(String, Consumer)}
+ */
+public class CoverRequest {
+	@NotNull
+	private final CoverCache cache;
+
+	@NotNull
+	private final String key;
+
+	@NotNull
+	private final Consumer<Image> onLoaded;
+
+	private volatile boolean is_cancelled;
+
+	CoverRequest(@NotNull CoverCache cache, @NotNull String key, @NotNull Consumer<Image> onLoaded) {
+		this.cache = cache;
+		this.key = key;
+		this.onLoaded = onLoaded;
+	}
+
+	/**
+	 * Cancels the request, e. g. because the cell showing the cover was scrolled out of the screen
+	 * <p>
+	 * The callback won't be called. If no one else requested the same cover it won't be loaded either
+	 */
+	public void cancel() {
+		if (this.is_cancelled)
+			return;
+		this.is_cancelled = true;
+		this.cache.cancel(this);
+	}
+
+	public boolean isCancelled() {
+		return this.is_cancelled;
+	}
+
+	public @NotNull String getKey() {
+		return this.key;
+	}
+
+	void deliver(@NotNull Image image) {
+		if (!this.is_cancelled)
+			this.onLoaded.accept(image);
+	}
+}
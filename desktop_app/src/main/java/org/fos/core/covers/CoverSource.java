@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.covers;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Where the encoded cover images come from, e. g. a web service
+ */
+public interface CoverSource {
+	/**
+	 * Fetches the encoded image (JPEG, PNG...), this is called from the loader threads of the {@link CoverCache}
+	 *
+	 * @param key the key of the cover, e. g. the ISBN of the book
+	 * @return the encoded image
+	 * @throws IOException if the cover doesn't exist or could not be fetched
+	 */
+	byte[] fetch(@NotNull String key) throws IOException;
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.covers;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fetches the covers from a URL built with the key, e. g. "https://covers.openlibrary.org/b/isbn/%s-M.jpg"
+ */
+public class UrlCoverSource implements CoverSource {
+	private static final int TIMEOUT_MS = 10_000;
+
+	@NotNull
+	private final String url_pattern;
+
+	/**
+	 * @param url_pattern the URL of the covers, %s is replaced by the (URL-encoded) key
+	 */
+	public UrlCoverSource(@NotNull String url_pattern) {
+		this.url_pattern = url_pattern;
+	}
+
+	@Override
+	public byte[] fetch(@NotNull String key) throws IOException {
+		URL url = new URL(String.format(this.url_pattern, URLEncoder.encode(key, StandardCharsets.UTF_8.name())));
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(TIMEOUT_MS);
+		connection.setReadTimeout(TIMEOUT_MS);
+
+		try {
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+				throw new IOException("Could not fetch " + url + ", response code: " + connection.getResponseCode());
+
+			try (InputStream in = connection.getInputStream()) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 8_192));
+				byte[] buff = new byte[8_192];
+				int n;
+				while ((n = in.read(buff)) > 0)
+					out.write(buff, 0, n);
+				return out.toByteArray();
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
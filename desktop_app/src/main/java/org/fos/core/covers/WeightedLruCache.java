@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.covers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * LRU cache bounded by the total weight of its values (e. g. bytes) instead of the number of entries
+ * <p>
+ * All methods are synchronized
+ */
+class WeightedLruCache<K, V> {
+	@NotNull
+	private final LinkedHashMap<K, V> entries;
+
+	@NotNull
+	private final ToLongFunction<V> weigher;
+
+	private final long max_weight;
+
+	private long weight;
+
+	/**
+	 * @param max_weight the max total weight of the values
+	 * @param weigher    computes the weight of a value, it must always return the same for the same value
+	 */
+	WeightedLruCache(long max_weight, @NotNull ToLongFunction<V> weigher) {
+		this.entries = new LinkedHashMap<>(64, 0.75f, true);
+		this.weigher = weigher;
+		this.max_weight = max_weight;
+	}
+
+	/**
+	 * @return the value for the key or null, the entry becomes the most recently used
+	 */
+	synchronized @Nullable V get(@NotNull K key) {
+		return this.entries.get(key);
+	}
+
+	/**
+	 * Adds the entry and evicts the least recently used entries until the total weight is within the limit.
+	 * A value heavier than the limit is not stored at all (and the other entries are kept)
+	 */
+	synchronized void put(@NotNull K key, @NotNull V value) {
+		long value_weight = this.weigher.applyAsLong(value);
+		V old = value_weight > this.max_weight ? this.entries.remove(key) : this.entries.put(key, value);
+		if (old != null)
+			this.weight -= this.weigher.applyAsLong(old);
+		if (value_weight > this.max_weight)
+			return;
+		this.weight += value_weight;
+
+		Iterator<Map.Entry<K, V>> it = this.entries.entrySet().iterator();
+		while (this.weight > this.max_weight && it.hasNext()) {
+			this.weight -= this.weigher.applyAsLong(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	synchronized long getWeight() {
+		return this.weight;
+	}
+
+	synchronized int size() {
+		return this.entries.size();
+	}
+}
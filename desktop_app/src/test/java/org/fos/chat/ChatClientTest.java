@@ -25,6 +25,7 @@ import javax.management.InstanceAlreadyExistsException;
 import java.util.Locale;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ChatClientTest {
 	int N_TESTS = 10_000;
@@ -69,4 +70,18 @@ class ChatClientTest {
 		chatClient.start();
 		chatClient.join();
 	}
+
+	@Test
+	public void testReconnectDelay() {
+		long previous_max = 0;
+		for (int attempt = 0; attempt < 40; ++attempt) {
+			long max = Math.min(60_000, 1_000L << Math.min(attempt, 20));
+			assertTrue(max >= previous_max, "the delay never shrinks");
+			for (int i = 0; i < 100; ++i) {
+				long delay = ChatClient.reconnectDelay(attempt);
+				assertTrue(delay >= max / 2 && delay < max, delay + " out of [" + max / 2 + ", " + max + ")");
+			}
+			previous_max = max;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationStoreTest {
+	@TempDir
+	Path dataDir;
+
+	@Test
+	public void testPaging() throws IOException {
+		try (ConversationStore store = new ConversationStore(this.dataDir)) {
+			for (int i = 0; i < 1_000; ++i)
+				store.append(7, new ChatMessage(7, 10, i, "message " + i));
+			store.append(7, new ChatMessage(10, 7, 1_000, "last")).join();
+
+			assertEquals(1_001, store.size(7));
+			assertEquals(0, store.size(8));
+
+			List<ChatMessage> recent = store.readRecent(7, 3);
+			assertEquals(3, recent.size());
+			assertEquals("message 998", recent.get(0).getText());
+			assertEquals("last", recent.get(2).getText());
+			assertEquals(10, recent.get(2).getFromUID());
+
+			List<ChatMessage> page = store.read(7, 500, 510);
+			assertEquals(10, page.size());
+			assertEquals(500, page.get(0).getTimestamp());
+			assertEquals("message 509", page.get(9).getText());
+		}
+
+		// reopen, the messages should have been persisted
+		try (ConversationStore store = new ConversationStore(this.dataDir)) {
+			assertEquals(1_001, store.size(7));
+			assertEquals("message 0", store.read(7, 0, 1).get(0).getText());
+		}
+	}
+
+	@Test
+	public void testAppendWhileOtherLogsAreOpened() throws IOException {
+		try (ConversationStore store = new ConversationStore(this.dataDir)) {
+			CompletableFuture<Void> last = null;
+			for (int peer = 100; peer < 140; ++peer)
+				last = store.append(peer, new ChatMessage(peer, 10, 0, "hello"));
+			last.join();
+
+			for (int i = 0; i < 2_000; ++i)
+				last = store.append(7, new ChatMessage(7, 10, i, "message " + i));
+
+			// open more logs than the store keeps open while the messages are being written
+			for (int round = 0; round < 5; ++round)
+				for (int peer = 100; peer < 140; ++peer)
+					assertEquals(1, store.size(peer));
+
+			last.join();
+			assertEquals(2_000, store.size(7));
+		}
+
+		try (ConversationStore store = new ConversationStore(this.dataDir)) {
+			assertEquals(2_000, store.size(7));
+			assertEquals("message 1999", store.readRecent(7, 1).get(0).getText());
+		}
+	}
+
+	@Test
+	public void testReadingUnknownPeerCreatesNoFiles() throws IOException {
+		try (ConversationStore store = new ConversationStore(this.dataDir)) {
+			assertEquals(0, store.size(8));
+			assertTrue(store.read(8, 0, 10).isEmpty());
+			assertTrue(store.readRecent(8, 10).isEmpty());
+		}
+
+		try (Stream<Path> files = Files.list(this.dataDir)) {
+			assertEquals(0, files.count());
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileTransferManagerTest {
+	private static final int SENDER_UID = 7;
+	private static final int RECEIVER_UID = 10;
+
+	@TempDir
+	Path dataDir;
+
+	@Test
+	public void testTransfer() throws Exception {
+		// not a multiple of the chunk size, so the last chunk is smaller
+		byte[] content = new byte[FileTransferManager.CHUNK_SIZE * 40 + 1234];
+		new Random(42).nextBytes(content);
+		Path file = this.dataDir.resolve("book.epub");
+		Files.write(file, content);
+
+		Path received = this.dataDir.resolve("received.epub");
+		Connection connection = new Connection(this.dataDir, transfer -> {
+			assertEquals("book.epub", transfer.getFileName());
+			assertEquals(content.length, transfer.getSize());
+			assertEquals(SENDER_UID, transfer.getPeerUID());
+			return received;
+		});
+
+		FileTransfer transfer = connection.sender.send(file, RECEIVER_UID);
+		assertEquals(file, transfer.getCompletion().get(10, TimeUnit.SECONDS));
+		assertEquals(content.length, transfer.getBytesTransferred());
+
+		assertArrayEquals(content, Files.readAllBytes(received));
+		assertTrue(connection.max_chunks_in_flight.get() <= FileTransferManager.WINDOW_SIZE);
+
+		// the manifests are deleted once the transfer completes
+		connection.close();
+		assertEquals(0, countManifests(this.dataDir.resolve("sender")));
+		assertEquals(0, countManifests(this.dataDir.resolve("receiver")));
+	}
+
+	@Test
+	public void testResumeAfterDisconnect() throws Exception {
+		int n_chunks = 50;
+		byte[] content = new byte[FileTransferManager.CHUNK_SIZE * n_chunks - 100];
+		new Random(7).nextBytes(content);
+		Path file = this.dataDir.resolve("book.epub");
+		Files.write(file, content);
+
+		Path received = this.dataDir.resolve("received.epub");
+		AtomicInteger n_offers = new AtomicInteger();
+		Function<FileTransfer, Path> onFileOffer = transfer -> {
+			n_offers.incrementAndGet();
+			return received;
+		};
+
+		// the connection is lost after the receiver wrote some chunks
+		int n_before_drop = 20;
+		Connection connection = new Connection(this.dataDir, onFileOffer);
+		connection.drop_after_chunks = n_before_drop;
+		FileTransfer transfer = connection.sender.send(file, RECEIVER_UID);
+		while (connection.n_chunks_handled.get() < n_before_drop)
+			Thread.sleep(1);
+		connection.close();
+
+		assertTrue(transfer.getCompletion().isCompletedExceptionally());
+		assertTrue(Files.exists(received));
+
+		// only the synced window is marked as done, the chunks written after it will be sent again
+		int n_synced = n_before_drop / FileTransferManager.WINDOW_SIZE * FileTransferManager.WINDOW_SIZE;
+		Path manifestPath = this.dataDir.resolve("receiver").resolve(transfer.getId() + ".manifest");
+		try (TransferManifest manifest = TransferManifest.open(manifestPath)) {
+			assertEquals(n_synced, manifest.countDone());
+			assertEquals(n_synced, manifest.getDone().nextClearBit(0));
+		}
+
+		// a new connection, e. g. after restarting the app
+		Connection reconnection = new Connection(this.dataDir, onFileOffer);
+		List<FileTransfer> resumed = reconnection.sender.resumeAll();
+		assertEquals(1, resumed.size());
+		assertEquals(transfer.getId(), resumed.get(0).getId());
+
+		assertEquals(file, resumed.get(0).getCompletion().get(10, TimeUnit.SECONDS));
+		assertArrayEquals(content, Files.readAllBytes(received));
+
+		// the user was asked only once and only the missing chunks were sent again
+		assertEquals(1, n_offers.get());
+		assertEquals(n_chunks - n_synced, reconnection.n_chunks_handled.get());
+		reconnection.close();
+	}
+
+	@Test
+	public void testResumeDiscardsModifiedFile() throws Exception {
+		Path file = this.dataDir.resolve("book.pdf");
+		Files.write(file, new byte[FileTransferManager.CHUNK_SIZE * 10]);
+
+		Connection connection = new Connection(this.dataDir, transfer -> this.dataDir.resolve("received.pdf"));
+		connection.drop_after_chunks = 2;
+		connection.sender.send(file, RECEIVER_UID);
+		while (connection.n_chunks_handled.get() < 2)
+			Thread.sleep(1);
+		connection.close();
+
+		Files.write(file, new byte[FileTransferManager.CHUNK_SIZE * 5]);
+		Connection reconnection = new Connection(this.dataDir, transfer -> null);
+		assertTrue(reconnection.sender.resumeAll().isEmpty());
+		assertEquals(0, countManifests(this.dataDir.resolve("sender")));
+		reconnection.close();
+	}
+
+	@Test
+	public void testChecksumMismatchCancels() throws Exception {
+		Path file = this.dataDir.resolve("book.pdf");
+		Files.write(file, new byte[FileTransferManager.CHUNK_SIZE * 10]);
+
+		Path received = this.dataDir.resolve("received.pdf");
+		Connection connection = new Connection(this.dataDir, transfer -> received);
+		connection.corrupt_chunk = 3;
+		FileTransfer transfer = connection.sender.send(file, RECEIVER_UID);
+
+		CancellationException e = assertThrows(
+			CancellationException.class,
+			() -> transfer.getCompletion().get(10, TimeUnit.SECONDS)
+		);
+		assertTrue(e.getMessage().contains("CHECKSUM_MISMATCH"));
+		connection.close();
+		assertFalse(Files.exists(received));
+	}
+
+	@Test
+	public void testManifest() throws Exception {
+		Path manifestPath = this.dataDir.resolve("test.manifest");
+		Path file = this.dataDir.resolve("book.epub");
+		long size = FileTransferManager.CHUNK_SIZE * 9L + 1;
+		try (TransferManifest manifest = TransferManifest.create(
+			manifestPath, true, size, FileTransferManager.CHUNK_SIZE, SENDER_UID, 0, file, "book.epub"
+		)) {
+			assertEquals(10, TransferManifest.chunkCount(size, FileTransferManager.CHUNK_SIZE));
+			manifest.markDone(0, 123);
+			manifest.markDone(9, -5);
+		}
+
+		try (TransferManifest manifest = TransferManifest.open(manifestPath)) {
+			assertTrue(manifest.isIncoming());
+			assertEquals(size, manifest.getSize());
+			assertEquals(SENDER_UID, manifest.getPeerUID());
+			assertEquals(file, manifest.getPath());
+			assertEquals("book.epub", manifest.getFileName());
+			assertEquals(2, manifest.countDone());
+			assertTrue(manifest.isDone(9));
+			assertFalse(manifest.isDone(1));
+			assertEquals(123, manifest.getCrc(0));
+			assertEquals(-5, manifest.getCrc(9));
+			assertEquals(FileTransferManager.CHUNK_SIZE + 1, manifest.getBytesDone());
+		}
+	}
+
+	@Test
+	public void testRejectedOffer() throws Exception {
+		Path file = this.dataDir.resolve("book.pdf");
+		Files.write(file, new byte[100_000]);
+
+		Connection connection = new Connection(this.dataDir, transfer -> null);
+		FileTransfer transfer = connection.sender.send(file, RECEIVER_UID);
+
+		assertThrows(CancellationException.class, () -> transfer.getCompletion().get(10, TimeUnit.SECONDS));
+		connection.close();
+	}
+
+	@Test
+	public void testInvalidOfferIsCancelled() throws Exception {
+		List<String[]> sent = new ArrayList<>();
+		AtomicInteger n_offers = new AtomicInteger();
+		FileTransferManager receiver = new FileTransferManager(sent::add, RECEIVER_UID, this.dataDir, transfer -> {
+			n_offers.incrementAndGet();
+			return this.dataDir.resolve("received.pdf");
+		});
+
+		String[] offer = {
+			String.valueOf(SENDER_UID),
+			String.valueOf(RECEIVER_UID),
+			"transfer-1",
+			Base64.getEncoder().encodeToString("book.pdf".getBytes(StandardCharsets.UTF_8)),
+			String.valueOf(1L << 40),
+			String.valueOf(Integer.MAX_VALUE)
+		};
+		Iterator<String> lines = Arrays.asList(offer).iterator();
+		receiver.handle(ServerResponseType.FILE_OFFER, lines::next);
+
+		assertEquals(0, n_offers.get());
+		assertEquals(1, sent.size());
+		assertEquals("FILE_CANCEL", sent.get(0)[0]);
+		assertEquals("INVALID_OFFER", sent.get(0)[4]);
+		receiver.suspendAll();
+	}
+
+	@Test
+	public void testCancelDeletesPartialFile() throws Exception {
+		Path file = this.dataDir.resolve("big.pdf");
+		Files.write(file, new byte[FileTransferManager.CHUNK_SIZE * 100]);
+
+		Path received = this.dataDir.resolve("partial.pdf");
+		FileTransfer[] incoming = new FileTransfer[1];
+		Connection connection = new Connection(this.dataDir, transfer -> {
+			incoming[0] = transfer;
+			return received;
+		});
+		// the receiver doesn't process any chunk until the transfer is cancelled
+		connection.paused = true;
+
+		FileTransfer transfer = connection.sender.send(file, RECEIVER_UID);
+		while (connection.toReceiver.size() < FileTransferManager.WINDOW_SIZE)
+			Thread.sleep(1);
+		transfer.cancel();
+
+		connection.paused = false;
+		assertThrows(CancellationException.class, () -> transfer.getCompletion().get(10, TimeUnit.SECONDS));
+		while (incoming[0] == null || !incoming[0].getCompletion().isDone())
+			Thread.sleep(1);
+
+		assertTrue(incoming[0].getCompletion().isCompletedExceptionally());
+		assertFalse(Files.exists(received));
+		connection.close();
+	}
+
+	@Test
+	public void testSafeFileName() {
+		assertEquals("bashrc", FileTransferManager.safeFileName("../../.bashrc"));
+		assertEquals("book.epub", FileTransferManager.safeFileName("C:\\Users\\me\\book.epub"));
+		assertEquals("file", FileTransferManager.safeFileName("/"));
+	}
+
+	private static long countManifests(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.filter(path -> path.toString().endsWith(".manifest")).count();
+		}
+	}
+
+	/**
+	 * Two managers talking through queues, as the server would relay the requests
+	 */
+	private static class Connection {
+		final FileTransferManager sender;
+		final FileTransferManager receiver;
+
+		final BlockingQueue<String[]> toReceiver = new LinkedBlockingQueue<>();
+		final BlockingQueue<String[]> toSender = new LinkedBlockingQueue<>();
+
+		final AtomicInteger max_chunks_in_flight = new AtomicInteger();
+		final AtomicInteger n_chunks_handled = new AtomicInteger();
+		// the receiver only processes offers while it is paused
+		volatile boolean paused;
+
+		// after this many chunks the receiver doesn't get anything else, as if the connection was lost
+		volatile int drop_after_chunks = Integer.MAX_VALUE;
+
+		// index of a chunk whose content is modified before it reaches the receiver
+		volatile int corrupt_chunk = -1;
+
+		private final Thread[] pumps;
+
+		Connection(Path dataDir, Function<FileTransfer, Path> onFileOffer) throws IOException {
+			this.sender = new FileTransferManager(this.toReceiver::add, SENDER_UID, dataDir.resolve("sender"), transfer -> null);
+			this.receiver = new FileTransferManager(this.toSender::add, RECEIVER_UID, dataDir.resolve("receiver"), onFileOffer);
+			this.pumps = new Thread[]{
+				this.pump(this.toReceiver, this.receiver),
+				this.pump(this.toSender, this.sender)
+			};
+		}
+
+		private Thread pump(BlockingQueue<String[]> queue, FileTransferManager manager) {
+			Thread thread = new Thread(() -> {
+				try {
+					while (true) {
+						while (this.paused && manager == this.receiver && !isOffer(queue.peek()))
+							Thread.sleep(1);
+
+						long chunks = queue.stream().filter(request -> request[0].equals("FILE_CHUNK")).count();
+						this.max_chunks_in_flight.accumulateAndGet((int) chunks, Math::max);
+
+						String[] request = queue.take();
+						if (request[0].equals("FILE_CHUNK") && manager == this.receiver) {
+							if (this.n_chunks_handled.get() >= this.drop_after_chunks)
+								continue;
+							if (Integer.parseInt(request[4]) == this.corrupt_chunk)
+								request[6] = "BBBB" + request[6].substring(4);
+						}
+
+						Iterator<String> lines = Arrays.asList(request).subList(1, request.length).iterator();
+						manager.handle(ServerResponseType.fromHeader(request[0]), lines::next);
+						if (request[0].equals("FILE_CHUNK"))
+							this.n_chunks_handled.incrementAndGet();
+					}
+				} catch (InterruptedException ignored) {
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+			return thread;
+		}
+
+		private static boolean isOffer(String[] request) {
+			return request != null && request[0].equals("FILE_OFFER");
+		}
+
+		void close() {
+			for (Thread pump : this.pumps)
+				pump.interrupt();
+			this.sender.suspendAll();
+			this.receiver.suspendAll();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.chat;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLatencyTest {
+	@Test
+	public void testSegments() {
+		MessageLatency latency = new MessageLatency();
+		// the server clock is 50ms behind the clocks of the devices
+		latency.record(1_000, 960, 962, 1_030);
+
+		assertEquals(30, latency.getEndToEnd().getMax());
+		assertEquals(2, latency.getServer().getMax());
+		assertEquals(68, latency.getDownstream().getMax());
+
+		// the skew makes the upstream segment negative, it is counted apart
+		assertEquals(0, latency.getUpstream().getMax());
+		assertEquals(1, latency.getUpstream().getNegativeCount());
+
+		// an older server doesn't add its times, only the total is known
+		latency.record(2_000, 0, 0, 2_010);
+		assertEquals(2, latency.getEndToEnd().getCount());
+		assertEquals(1, latency.getServer().getCount());
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1_000; ++i)
+			histogram.record(i);
+
+		assertEquals(1_000, histogram.getCount());
+		assertEquals(1_000, histogram.getMax());
+		assertEquals(500.5, histogram.getMean(), 1e-9);
+
+		// the buckets are at most 12.5% wide
+		long p50 = histogram.getPercentile(50);
+		assertTrue(p50 >= 500 && p50 <= 500 * 1.125, "p50 was " + p50);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p99 >= 990 && p99 <= 1_000, "p99 was " + p99);
+
+		histogram.reset();
+		assertEquals(0, histogram.getPercentile(50));
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.components;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.stage.Stage;
+import org.fos.chat.ChatMessage;
+import org.fos.chat.ConversationStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Scrolls a 100k messages conversation from the bottom to the top and reports the frame times and
+ * the latency to load each page
+ * <p>
+ * This is a benchmark, not a unit test, so it only runs with -Dsharebook.bench=true
+ * By default it runs headless (with Monocle), use -Dsharebook.headless=false to see the window
+ */
+class ChatTranscriptViewBenchmark {
+	private static final int N_MESSAGES = 100_000;
+
+	@TempDir
+	Path dataDir;
+
+	private ChatTranscriptView view;
+
+	@Test
+	public void scrollWholeConversation() throws Exception {
+		assumeTrue(Boolean.getBoolean("sharebook.bench"));
+		if (Boolean.parseBoolean(System.getProperty("sharebook.headless", "true"))) {
+			System.setProperty("glass.platform", "Monocle");
+			System.setProperty("monocle.platform", "Headless");
+			System.setProperty("prism.order", "sw");
+		}
+
+		ConversationStore store = this.createConversation();
+
+		CountDownLatch fxStarted = new CountDownLatch(1);
+		Platform.startup(fxStarted::countDown);
+		fxStarted.await();
+
+		long[] frame_times = new long[1 << 16];
+		int[] n_frames = new int[1];
+		AnimationTimer frameRecorder = new AnimationTimer() {
+			private long last_frame;
+
+			@Override
+			public void handle(long now) {
+				if (this.last_frame != 0 && n_frames[0] < frame_times.length)
+					frame_times[n_frames[0]++] = now - this.last_frame;
+				this.last_frame = now;
+			}
+		};
+
+		onFx(() -> {
+			this.view = new ChatTranscriptView(store, 7, 10);
+			Stage stage = new Stage();
+			stage.setScene(new Scene(this.view, 400, 600));
+			stage.show();
+			return null;
+		});
+
+		// wait for the first page
+		while (onFx(() -> this.view.getItems().isEmpty()))
+			Thread.sleep(10);
+
+		onFx(() -> {
+			frameRecorder.start();
+			return null;
+		});
+
+		long[] page_latencies = new long[N_MESSAGES / ChatTranscriptView.PAGE_SIZE];
+		int n_pages = 0;
+		int max_window_size = 0;
+		long start = System.nanoTime();
+
+		int window_start = onFx(this.view::getWindowStart);
+		while (window_start > 0) {
+			long scroll_start = System.nanoTime();
+			onFx(() -> {
+				this.view.scrollTo(0);
+				return null;
+			});
+
+			int previous_window_start = window_start;
+			while ((window_start = onFx(this.view::getWindowStart)) == previous_window_start)
+				Thread.yield();
+
+			page_latencies[n_pages++] = System.nanoTime() - scroll_start;
+			max_window_size = Math.max(max_window_size, onFx(() -> this.view.getItems().size()));
+		}
+
+		long elapsed = System.nanoTime() - start;
+		onFx(() -> {
+			frameRecorder.stop();
+			return null;
+		});
+		store.close();
+
+		long[] frames = Arrays.copyOf(frame_times, n_frames[0]);
+		Arrays.sort(frames);
+		long[] latencies = Arrays.copyOf(page_latencies, n_pages);
+		Arrays.sort(latencies);
+
+		System.out.println("Scrolled " + N_MESSAGES + " messages in " + elapsed / 1_000_000 + " ms");
+		System.out.println("Frames: " + frames.length
+			+ " avg fps: " + (frames.length * 1_000_000_000L / Math.max(1, elapsed))
+			+ " p50 frame: " + percentile(frames, 50) / 1_000 + " us"
+			+ " p99 frame: " + percentile(frames, 99) / 1_000 + " us");
+		System.out.println("Pages: " + latencies.length
+			+ " p50 latency: " + percentile(latencies, 50) / 1_000 + " us"
+			+ " p99 latency: " + percentile(latencies, 99) / 1_000 + " us");
+		System.out.println("Max messages in memory: " + max_window_size);
+
+		assertEquals(0, window_start);
+		assertTrue(max_window_size <= ChatTranscriptView.MAX_WINDOW_SIZE);
+	}
+
+	private ConversationStore createConversation() throws IOException {
+		ConversationStore store = new ConversationStore(this.dataDir);
+		for (int i = 0; i < N_MESSAGES - 1; ++i)
+			store.append(7, new ChatMessage(i % 2 == 0 ? 7 : 10, i % 2 == 0 ? 10 : 7, i, "Message #" + i
+				+ (i % 5 == 0 ? " this one is a bit longer so it has to be wrapped in more than a single line" : "")));
+		store.append(7, new ChatMessage(7, 10, N_MESSAGES, "last message")).join();
+		return store;
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		if (sorted.length == 0)
+			return 0;
+		return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+	}
+
+	private static <T> T onFx(Callable<T> callable) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Platform.runLater(() -> {
+			try {
+				result.complete(callable.call());
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result.get();
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.components;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.scene.Scene;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.HBox;
+import javafx.stage.Stage;
+import org.fos.core.covers.CoverCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Scrolls a grid of 10k covers from the top to the bottom and reports the frame times and the memory used
+ * by the decoded thumbnails
+ * <p>
+ * This is a benchmark, not a unit test, so it only runs with -Dsharebook.bench=true
+ * By default it runs headless (with Monocle), use -Dsharebook.headless=false to see the window
+ */
+class CoverGridBenchmark {
+	private static final int N_COVERS = 10_000;
+	private static final int COVERS_PER_ROW = 8;
+	private static final int N_ROWS = N_COVERS / COVERS_PER_ROW;
+
+	private static final int THUMBNAIL_WIDTH = 90;
+	private static final int THUMBNAIL_HEIGHT = 135;
+	private static final long MEMORY_BUDGET = 16 * 1024 * 1024;
+
+	// rows scrolled in each step, there is a step every 16 ms (a frame)
+	private static final int ROWS_PER_STEP = 1;
+
+	@TempDir
+	Path dataDir;
+
+	private ListView<Integer> grid;
+
+	@Test
+	public void scrollCoverGrid() throws Exception {
+		assumeTrue(Boolean.getBoolean("sharebook.bench"));
+		if (Boolean.parseBoolean(System.getProperty("sharebook.headless", "true"))) {
+			System.setProperty("glass.platform", "Monocle");
+			System.setProperty("monocle.platform", "Headless");
+			System.setProperty("prism.order", "sw");
+		}
+
+		// a few different JPEGs, the cache decodes each key anyway
+		List<byte[]> jpegs = new ArrayList<>();
+		for (int i = 0; i < 16; ++i)
+			jpegs.add(createJpeg(new Color(Color.HSBtoRGB(i / 16f, 0.6f, 0.9f))));
+		AtomicInteger fetches = new AtomicInteger();
+
+		CoverCache cache = new CoverCache(this.dataDir, key -> {
+			fetches.incrementAndGet();
+			return jpegs.get(Math.abs(key.hashCode()) % jpegs.size());
+		}, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, MEMORY_BUDGET);
+
+		CountDownLatch fxStarted = new CountDownLatch(1);
+		Platform.startup(fxStarted::countDown);
+		fxStarted.await();
+
+		long[] frame_times = new long[1 << 16];
+		int[] n_frames = new int[1];
+		AnimationTimer frameRecorder = new AnimationTimer() {
+			private long last_frame;
+
+			@Override
+			public void handle(long now) {
+				if (this.last_frame != 0 && n_frames[0] < frame_times.length)
+					frame_times[n_frames[0]++] = now - this.last_frame;
+				this.last_frame = now;
+			}
+		};
+
+		onFx(() -> {
+			List<Integer> rows = new ArrayList<>(N_ROWS);
+			for (int i = 0; i < N_ROWS; ++i)
+				rows.add(i);
+			this.grid = new ListView<>(FXCollections.observableArrayList(rows));
+			this.grid.setCellFactory(list -> new CoverRowCell(cache));
+
+			Stage stage = new Stage();
+			stage.setScene(new Scene(this.grid, COVERS_PER_ROW * (THUMBNAIL_WIDTH + 10) + 30, 800));
+			stage.show();
+			frameRecorder.start();
+			return null;
+		});
+
+		long max_memory = 0;
+		long start = System.nanoTime();
+		for (int row = 0; row < N_ROWS; row += ROWS_PER_STEP) {
+			int target = row;
+			onFx(() -> {
+				this.grid.scrollTo(target);
+				return null;
+			});
+			Thread.sleep(16);
+			max_memory = Math.max(max_memory, cache.getMemoryUsed());
+		}
+		long elapsed = System.nanoTime() - start;
+
+		onFx(() -> {
+			frameRecorder.stop();
+			return null;
+		});
+		cache.close();
+
+		long[] frames = Arrays.copyOf(frame_times, n_frames[0]);
+		Arrays.sort(frames);
+
+		System.out.println("Scrolled " + N_COVERS + " covers in " + elapsed / 1_000_000 + " ms");
+		System.out.println("Frames: " + frames.length
+			+ " avg fps: " + (frames.length * 1_000_000_000L / Math.max(1, elapsed))
+			+ " p50 frame: " + percentile(frames, 50) / 1_000 + " us"
+			+ " p99 frame: " + percentile(frames, 99) / 1_000 + " us");
+		System.out.println("Covers fetched: " + fetches.get() + " (the rest were cancelled before loading)"
+			+ " max thumbnails memory: " + max_memory / 1024 + " KB");
+
+		assertTrue(max_memory <= MEMORY_BUDGET);
+	}
+
+	/**
+	 * A row of the grid
+	 */
+	private static class CoverRowCell extends ListCell<Integer> {
+		private final HBox row;
+		private final CoverView[] covers;
+
+		CoverRowCell(CoverCache cache) {
+			this.row = new HBox(10);
+			this.covers = new CoverView[COVERS_PER_ROW];
+			for (int i = 0; i < COVERS_PER_ROW; ++i) {
+				this.covers[i] = new CoverView(cache, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
+				this.row.getChildren().add(this.covers[i]);
+			}
+		}
+
+		@Override
+		protected void updateItem(Integer index, boolean empty) {
+			super.updateItem(index, empty);
+			for (int i = 0; i < COVERS_PER_ROW; ++i)
+				this.covers[i].setCover(empty || index == null ? null : "isbn-" + (index * COVERS_PER_ROW + i));
+			this.setGraphic(empty ? null : this.row);
+		}
+	}
+
+	private static byte[] createJpeg(Color color) throws IOException {
+		BufferedImage image = new BufferedImage(300, 450, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(color);
+		graphics.fillRect(0, 0, 300, 450);
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(30, 60, 240, 80);
+		graphics.dispose();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		return out.toByteArray();
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		if (sorted.length == 0)
+			return 0;
+		return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+	}
+
+	private static <T> T onFx(Callable<T> callable) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Platform.runLater(() -> {
+			try {
+				result.complete(callable.call());
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result.get();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Measures the time from the JVM start to the first paint of the window, with and without
+ * the class data sharing archive
+ * <p>
+ * This is a benchmark, not a unit test, it needs a display and the archive, so first run
+ * mvn -Pappcds package
+ * and then
+ * mvn test -Dtest=StartupBenchmark -Dsharebook.bench=true
+ */
+class StartupBenchmark {
+	private static final int N_RUNS = 5;
+
+	private static final Pattern FIRST_PAINT = Pattern.compile("first_paint=(\\d+)ms");
+
+	@Test
+	public void compareColdStart() throws IOException, InterruptedException {
+		assumeTrue(Boolean.getBoolean("sharebook.bench"));
+
+		Path target = Paths.get("target");
+		Path jar = target.resolve("mainfx-1.0-SNAPSHOT-jar-with-dependencies.jar");
+		Path archive = target.resolve("sharebook.jsa");
+		assumeTrue(Files.exists(jar) && Files.exists(archive), "Run mvn -Pappcds package first");
+
+		long[] without_cds = new long[N_RUNS];
+		long[] with_cds = new long[N_RUNS];
+		for (int i = 0; i < N_RUNS; ++i) {
+			// alternate the runs so both get the same (un)luck with the OS caches
+			without_cds[i] = timeToFirstPaint(jar, "-Xshare:auto");
+			with_cds[i] = timeToFirstPaint(jar, "-XX:SharedArchiveFile=" + archive);
+		}
+
+		Arrays.sort(without_cds);
+		Arrays.sort(with_cds);
+		System.out.println("Time to first paint without AppCDS: " + Arrays.toString(without_cds) + " ms");
+		System.out.println("Time to first paint with AppCDS:    " + Arrays.toString(with_cds) + " ms");
+		System.out.println("Median: " + without_cds[N_RUNS / 2] + " ms -> " + with_cds[N_RUNS / 2] + " ms");
+
+		assertTrue(with_cds[N_RUNS / 2] < without_cds[N_RUNS / 2]);
+	}
+
+	/**
+	 * Starts the app in a new JVM and waits until it exits after the first paint
+	 *
+	 * @return millis from the JVM start to the first paint, as reported by the app
+	 */
+	private static long timeToFirstPaint(Path jar, String cdsOption) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>(Arrays.asList(
+			Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+			cdsOption,
+			"-Dsharebook.startupTrace=true",
+			"-Dsharebook.exitAfterFirstPaint=true",
+			"-jar",
+			jar.toString()
+		));
+		Process process = new ProcessBuilder(command)
+			.redirectErrorStream(true)
+			.start();
+
+		long first_paint = -1;
+		try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = output.readLine()) != null) {
+				Matcher matcher = FIRST_PAINT.matcher(line);
+				if (matcher.find())
+					first_paint = Long.parseLong(matcher.group(1));
+			}
+		}
+		process.waitFor();
+
+		assertTrue(first_paint > 0, "The app didn't report the first paint");
+		return first_paint;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.fos.core.AvailableLanguage;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Searches a catalog with 100k books and 1M reviews
+ * <p>
+ * This is a benchmark, not a unit test, so it only runs with -Dsharebook.bench=true
+ * It needs a big heap, e. g. -DargLine=-Xmx2g
+ */
+class BookCatalogBenchmark {
+	private static final int N_BOOKS = 100_000;
+	private static final int N_REVIEWS = 1_000_000;
+	private static final int N_QUERIES = 1_000;
+
+	// words of the synthetic texts, with a skewed distribution so some terms are very common
+	private static final String[] WORDS = (
+		"book novel story character plot ending author writing reading chapter love war history mystery " +
+		"adventure fantasy science fiction classic boring amazing beautiful slow fast dark funny sad long short " +
+		"world life death family friend journey magic dragon detective murder city village king queen ship sea"
+	).split(" ");
+
+	@Test
+	public void searchMillionReviews() {
+		assumeTrue(Boolean.getBoolean("sharebook.bench"));
+
+		Random random = new Random(42);
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.EN);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < N_BOOKS; ++i)
+			catalog.addBook(9780000000000L + i, randomText(random, 4) + " " + i, randomText(random, 2));
+		for (int i = 0; i < N_REVIEWS; ++i)
+			catalog.addReview(random.nextInt(N_BOOKS), 1 + random.nextInt(5), randomText(random, 30));
+		System.out.println("Indexed " + N_BOOKS + " books and " + N_REVIEWS + " reviews in "
+			+ (System.nanoTime() - start) / 1_000_000 + " ms");
+
+		// warm up
+		for (int i = 0; i < N_QUERIES / 10; ++i)
+			catalog.search(randomText(random, 3), 20);
+
+		long[] latencies = new long[N_QUERIES];
+		for (int i = 0; i < N_QUERIES; ++i) {
+			String query = randomText(random, 1 + random.nextInt(4));
+			long query_start = System.nanoTime();
+			catalog.search(query, 20);
+			latencies[i] = System.nanoTime() - query_start;
+		}
+
+		Arrays.sort(latencies);
+		long p50 = latencies[N_QUERIES / 2] / 1_000;
+		long p99 = latencies[N_QUERIES * 99 / 100] / 1_000;
+		System.out.println("Search latency p50: " + p50 + " us p99: " + p99 + " us");
+
+		assertTrue(p50 < 50_000, "Median search latency should be under 50 ms");
+	}
+
+	private static String randomText(Random random, int n_words) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < n_words; ++i) {
+			// squaring the random number favors the first words
+			double skewed = random.nextDouble();
+			text.append(WORDS[(int) (skewed * skewed * WORDS.length)]).append(' ');
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.fos.core.AvailableLanguage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookCatalogTest {
+	@Test
+	public void testSearchRanking() {
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.ES);
+		int soledad = catalog.addBook(9780307474728L, "Cien años de soledad", "Gabriel García Márquez");
+		int amor = catalog.addBook(9780307387264L, "El amor en los tiempos del cólera", "Gabriel García Márquez");
+		int quijote = catalog.addBook(0, "Don Quijote de la Mancha", "Miguel de Cervantes");
+
+		catalog.addReview(quijote, 5, "Un clásico, los molinos y la soledad del caballero");
+		catalog.addReview(amor, 4, "Una historia de amor muy larga");
+
+		// accents and case don't matter
+		List<SearchResult> results = catalog.search("CIEN ANOS de Soledad", 10);
+		assertEquals(2, results.size());
+		assertEquals(soledad, results.get(0).getBookId());
+		assertEquals(quijote, results.get(1).getBookId());
+		assertTrue(results.get(0).getScore() > results.get(1).getScore());
+
+		// the author matches both books, the review only one
+		results = catalog.search("garcia marquez amor", 10);
+		assertEquals(amor, results.get(0).getBookId());
+		assertEquals(soledad, results.get(1).getBookId());
+
+		// plurals
+		assertEquals(quijote, catalog.search("molino", 10).get(0).getBookId());
+
+		assertEquals(1, catalog.search("gabriel", 1).size());
+		assertTrue(catalog.search("inexistente", 10).isEmpty());
+	}
+
+	@Test
+	public void testEnglishTokenizer() {
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.EN);
+		int stories = catalog.addBook(0, "Short Stories", "Unknown");
+		catalog.addBook(0, "The Story of the Tales", "Unknown");
+
+		assertEquals(2, catalog.search("story", 10).size());
+		assertEquals(stories, catalog.search("short stories", 10).get(0).getBookId());
+		// stop words only
+		assertTrue(catalog.search("the of", 10).isEmpty());
+	}
+
+	@Test
+	public void testTokensDontDependOnDefaultLocale() {
+		Locale defaultLocale = Locale.getDefault();
+		try {
+			// in Turkish "I" is lower-cased to a dotless "ı"
+			Locale.setDefault(new Locale("tr", "TR"));
+			BookCatalog catalog = new BookCatalog(AvailableLanguage.EN);
+			int book = catalog.addBook(0, "INVISIBLE CITIES", "Italo Calvino");
+
+			assertEquals(book, catalog.search("invisible", 10).get(0).getBookId());
+			assertEquals(book, catalog.search("Italo", 10).get(0).getBookId());
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+	}
+}
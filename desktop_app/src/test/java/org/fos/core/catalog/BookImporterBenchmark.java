@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.fos.core.AvailableLanguage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Imports a generated CSV dataset and reports the throughput and the heap used
+ * <p>
+ * This is a benchmark, not a unit test, so it only runs with -Dsharebook.bench=true
+ * The size of the dataset is given in MB with -Dsharebook.bench.importMB (1024 by default)
+ */
+class BookImporterBenchmark {
+	@TempDir
+	Path dataDir;
+
+	@Test
+	public void importGeneratedDataset() throws IOException {
+		assumeTrue(Boolean.getBoolean("sharebook.bench"));
+
+		long target_bytes = Long.getLong("sharebook.bench.importMB", 1024) * 1024 * 1024;
+		Path file = this.dataDir.resolve("dataset.csv");
+
+		// a few books are repeated to exercise the deduplication
+		Random random = new Random(42);
+		long n_lines = 0;
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write("bookID,title,authors,average_rating,isbn13,description\n");
+			long written = 0;
+			while (written < target_bytes) {
+				long isbn = 9780000000000L + (random.nextInt(100) == 0 ? random.nextInt(1_000) : n_lines);
+				String line = n_lines + ",\"Title " + Long.toString(n_lines, 36) + ", volume " + random.nextInt(10) + "\"," +
+					"Author " + random.nextInt(100_000) + ",4.5," + isbn + "," +
+					"\"a long description that is not indexed but has to be parsed anyway, like in the real dumps\"\n";
+				writer.write(line);
+				written += line.length();
+				++n_lines;
+			}
+		}
+
+		Runtime runtime = Runtime.getRuntime();
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.EN);
+		ImportProgress progress = new BookImporter(catalog).importFile(file);
+
+		System.gc();
+		System.out.println(progress);
+		System.out.println("Imported " + Files.size(file) / 1_048_576 + " MB in " + progress.getElapsedMillis() + " ms, heap used: "
+			+ (runtime.totalMemory() - runtime.freeMemory()) / 1_048_576 + " MB");
+
+		assertEquals(n_lines, progress.getRecordsRead());
+		assertEquals(n_lines, progress.getBooksAdded() + progress.getDuplicates());
+	}
+}
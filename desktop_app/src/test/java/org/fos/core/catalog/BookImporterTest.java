@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.fos.core.AvailableLanguage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookImporterTest {
+	@TempDir
+	Path dataDir;
+
+	@Test
+	public void testImportCsv() throws IOException {
+		Path file = this.dataDir.resolve("books.csv");
+		Files.write(file, (
+			"﻿bookID,title,authors,isbn,isbn13\r\n" +
+				"1,\"Cien años de soledad\",Gabriel García Márquez,,9780307474728\r\n" +
+				"2,\"Dune, the novel\",Frank Herbert,0-441-17271-7,\r\n" +
+				"3,\"Dune\",Frank Herbert,,978-0-441-17271-9\r\n" + // same ISBN as the previous one
+				"4,\"A \"\"quoted\"\" title\",Someone,,\r\n" +
+				"5,\"unclosed quote,Someone,,\r\n" +
+				"6,,Nobody,,\r\n"
+		).getBytes(StandardCharsets.UTF_8));
+
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.EN);
+		ImportProgress progress = new BookImporter(catalog).importFile(file);
+
+		assertEquals(6, progress.getRecordsRead());
+		assertEquals(3, progress.getBooksAdded());
+		assertEquals(1, progress.getDuplicates());
+		assertEquals(2, progress.getMalformedRecords());
+		assertEquals(1.0, progress.getFraction());
+		assertTrue(progress.isDone());
+
+		assertEquals("Cien años de soledad", catalog.getTitle(catalog.findByIsbn(9780307474728L)));
+		assertEquals("Dune, the novel", catalog.getTitle(catalog.findByIsbn(9780441172719L)));
+		assertEquals("A \"quoted\" title", catalog.getTitle(2));
+		assertEquals(2, catalog.search("soledad dune", 10).size());
+	}
+
+	@Test
+	public void testImportJsonLines() throws IOException {
+		Path file = this.dataDir.resolve("books.jsonl");
+		Files.write(file, (
+			"{\"title\": \"Cien a\\u00f1os de soledad\", \"authors\": [\"Gabriel García Márquez\"], \"isbn_13\": [\"9780307474728\"]}\n" +
+				"{\"key\": {\"nested\": [1, 2, {\"a\": null}]}, \"title\": \"Dune\", \"author\": \"Frank Herbert\", \"isbn\": \"044117271X\", \"rating\": 4.5}\n" +
+				"\n" +
+				"{\"title\": \"Cien años de soledad (duplicated)\", \"isbn13\": 9780307474728}\n" +
+				"{\"title\": \"broken\"\n" +
+				"{\"authors\": [\"No title\"]}\n"
+		).getBytes(StandardCharsets.UTF_8));
+
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.ES);
+		ImportProgress progress = new BookImporter(catalog).importFile(file);
+
+		assertEquals(5, progress.getRecordsRead());
+		assertEquals(2, progress.getBooksAdded());
+		assertEquals(1, progress.getDuplicates());
+		assertEquals(2, progress.getMalformedRecords());
+
+		int book_id = catalog.findByIsbn(9780307474728L);
+		assertEquals("Cien años de soledad", catalog.getTitle(book_id));
+		assertEquals("Gabriel García Márquez", catalog.getAuthor(book_id));
+		assertEquals("Dune", catalog.getTitle(catalog.findByIsbn(BookRecord.parseIsbn("044117271X"))));
+	}
+
+	@Test
+	public void testChunkBoundaries() throws IOException {
+		// many lines with tiny chunks and slices, so lines are cut by the chunks and slices are forked
+		int n_books = 5_000;
+		StringBuilder csv = new StringBuilder("title,author,isbn13\n");
+		for (int i = 0; i < n_books; ++i)
+			csv.append("Book number ").append(i).append(",Author ").append(i % 7).append(',').append(9780000000000L + i).append('\n');
+		csv.append("Book number 0,Duplicated,9780000000000"); // no line break at the end
+
+		Path file = this.dataDir.resolve("many.csv");
+		Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.EN);
+		ImportProgress progress = new ImportProgress();
+		new BookImporter(catalog, ForkJoinPool.commonPool(), 4_096, 512)
+			.importFile(file, BookImporter.Format.CSV, progress);
+
+		assertEquals(n_books + 1, progress.getRecordsRead());
+		assertEquals(n_books, progress.getBooksAdded());
+		assertEquals(1, progress.getDuplicates());
+		assertEquals(0, progress.getMalformedRecords());
+		assertEquals(Files.size(file), progress.getBytesDone());
+
+		// the order of the file is kept
+		for (int i = 0; i < n_books; i += 499)
+			assertEquals("Book number " + i, catalog.getTitle(i));
+	}
+
+	@Test
+	public void testParseIsbn() {
+		assertEquals(9780306406157L, BookRecord.parseIsbn("0-306-40615-2"));
+		assertEquals(9780306406157L, BookRecord.parseIsbn("978-0-306-40615-7"));
+		assertEquals(9780441172719L, BookRecord.parseIsbn("044117271X"));
+		assertEquals(0, BookRecord.parseIsbn("not an isbn"));
+		assertEquals(0, BookRecord.parseIsbn("12345"));
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Reads the aggregates of "visible" windows of books while other threads add, edit and delete reviews
+ * <p>
+ * Every snapshot is checked for consistency: its histogram always adds up to a valid sum of ratings
+ * <p>
+ * This is a benchmark, not a unit test, so it only runs with -Dsharebook.bench=true
+ */
+class RatingAggregatesBenchmark {
+	private static final int N_BOOKS = 100_000;
+	private static final int N_WRITERS = 2;
+	private static final int N_READERS = 4;
+	private static final int WINDOW_SIZE = 50;
+	private static final long DURATION_MS = 5_000;
+
+	@Test
+	public void readWhileWriting() throws InterruptedException {
+		assumeTrue(Boolean.getBoolean("sharebook.bench"));
+
+		RatingAggregates aggregates = new RatingAggregates();
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicLong writes = new AtomicLong();
+		AtomicLong reads = new AtomicLong();
+		AtomicLong inconsistent = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(N_WRITERS + N_READERS);
+
+		for (int w = 0; w < N_WRITERS; ++w) {
+			int seed = w;
+			new Thread(() -> {
+				// each writer keeps the ratings of its own reviews, so it edits and deletes valid ones
+				Random random = new Random(seed);
+				int[] books = new int[1 << 16];
+				int[] ratings = new int[books.length];
+				long n = 0;
+				while (running.get()) {
+					int slot = random.nextInt(books.length);
+					if (ratings[slot] == 0) {
+						books[slot] = random.nextInt(N_BOOKS);
+						ratings[slot] = 1 + random.nextInt(BookCatalog.MAX_RATING);
+						aggregates.add(books[slot], ratings[slot]);
+					} else if (random.nextBoolean()) {
+						int rating = 1 + random.nextInt(BookCatalog.MAX_RATING);
+						aggregates.edit(books[slot], ratings[slot], rating);
+						ratings[slot] = rating;
+					} else {
+						aggregates.remove(books[slot], ratings[slot]);
+						ratings[slot] = 0;
+					}
+					++n;
+				}
+				writes.addAndGet(n);
+				done.countDown();
+			}).start();
+		}
+
+		for (int r = 0; r < N_READERS; ++r) {
+			int seed = 100 + r;
+			new Thread(() -> {
+				Random random = new Random(seed);
+				int[] window = new int[WINDOW_SIZE];
+				float[] averages = new float[WINDOW_SIZE];
+				int[] counts = new int[WINDOW_SIZE];
+				long n = 0;
+				while (running.get()) {
+					// a scrolled list: consecutive books
+					int first = random.nextInt(N_BOOKS - WINDOW_SIZE);
+					for (int i = 0; i < WINDOW_SIZE; ++i)
+						window[i] = first + i;
+					aggregates.getAverages(window, averages, counts);
+
+					RatingSummary summary = aggregates.get(first);
+					int weighted = 0;
+					for (int stars = 1; stars <= BookCatalog.MAX_RATING; ++stars)
+						weighted += stars * summary.getCount(stars);
+					if (Math.abs(weighted - summary.getAverage() * summary.getCount()) > 0.01 * summary.getCount())
+						inconsistent.incrementAndGet();
+
+					n += WINDOW_SIZE + 1;
+				}
+				reads.addAndGet(n);
+				done.countDown();
+			}).start();
+		}
+
+		Thread.sleep(DURATION_MS);
+		running.set(false);
+		done.await(10, TimeUnit.SECONDS);
+
+		double seconds = DURATION_MS / 1_000.0;
+		System.out.printf("Writes: %.0f/s, aggregate reads: %.0f/s%n", writes.get() / seconds, reads.get() / seconds);
+		assertEquals(0, inconsistent.get(), "Snapshots should be consistent");
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.catalog;
+
+import org.fos.core.AvailableLanguage;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RatingAggregatesTest {
+	@Test
+	public void testReviewChangesUpdateAggregates() {
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.EN);
+		int dune = catalog.addBook(0, "Dune", "Frank Herbert");
+		int other = catalog.addBook(0, "Other", "Someone");
+
+		int first = catalog.addReview(dune, 5, "amazing desert planet");
+		int second = catalog.addReview(dune, 2, "too long");
+		catalog.addReview(dune, 5, "a classic");
+
+		RatingSummary summary = catalog.getRatings().get(dune);
+		assertEquals(3, summary.getCount());
+		assertEquals(4f, summary.getAverage());
+		assertEquals(2, summary.getCount(5));
+		assertEquals(1, summary.getCount(2));
+		assertEquals(0, catalog.getRatings().get(other).getCount());
+
+		catalog.editReview(second, 3, "too long");
+		summary = catalog.getRatings().get(dune);
+		assertEquals(3, summary.getCount());
+		assertEquals(0, summary.getCount(2));
+		assertEquals(1, summary.getCount(3));
+
+		catalog.deleteReview(first);
+		summary = catalog.getRatings().get(dune);
+		assertEquals(2, summary.getCount());
+		assertEquals(4f, summary.getAverage());
+		assertEquals(0, catalog.getReviewRating(first));
+		assertThrows(IllegalArgumentException.class, () -> catalog.deleteReview(first));
+
+		int[] counts = new int[3];
+		float[] averages = new float[3];
+		catalog.getRatings().getAverages(new int[]{dune, other, 1_000_000}, averages, counts);
+		assertEquals(2, counts[0]);
+		assertEquals(4f, averages[0]);
+		assertEquals(0, counts[1]);
+		assertEquals(0, counts[2]);
+	}
+
+	@Test
+	public void testDeletedAndEditedReviewsAreNotSearched() {
+		BookCatalog catalog = new BookCatalog(AvailableLanguage.EN);
+		int dune = catalog.addBook(0, "Dune", "Frank Herbert");
+		int review = catalog.addReview(dune, 4, "sandworms everywhere");
+
+		assertEquals(1, catalog.search("sandworms", 10).size());
+
+		catalog.editReview(review, 4, "spice everywhere");
+		assertTrue(catalog.search("sandworms", 10).isEmpty());
+		assertEquals(1, catalog.search("spice", 10).size());
+
+		catalog.deleteReview(review);
+		assertTrue(catalog.search("spice", 10).isEmpty());
+		assertEquals(1, catalog.search("dune", 10).size());
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <9benjaminguzman@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fos.core.covers;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WeightedLruCacheTest {
+	@Test
+	public void testEvictsByWeight() {
+		WeightedLruCache<String, byte[]> cache = new WeightedLruCache<>(100, value -> value.length);
+
+		cache.put("a", new byte[40]);
+		cache.put("b", new byte[40]);
+		assertEquals(80, cache.getWeight());
+
+		// "a" becomes the most recently used, so "b" is evicted
+		assertNotNull(cache.get("a"));
+		cache.put("c", new byte[40]);
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(80, cache.getWeight());
+
+		// replacing a value updates the weight
+		cache.put("c", new byte[10]);
+		assertEquals(50, cache.getWeight());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testValueHeavierThanBudget() {
+		WeightedLruCache<String, byte[]> cache = new WeightedLruCache<>(100, value -> value.length);
+		cache.put("a", new byte[10]);
+		cache.put("huge", new byte[200]);
+
+		// the other values are kept
+		assertNull(cache.get("huge"));
+		assertNotNull(cache.get("a"));
+		assertEquals(10, cache.getWeight());
+	}
+}